@@ -0,0 +1,578 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Limits the number of operations in flight on one token and decides which waiting operation is
+ * admitted next. Thus, batch jobs cannot fill the queue of the device and delay interactive
+ * requests sharing the same token. All Token objects of a slot share one controller.
+ *
+ * The concurrency limit adapts to the latency of the operations (additive increase, multiplicative
+ * decrease): while operations complete within tolerance times the lowest observed latency, the
+ * limit grows by one per limit completions; if an operation takes longer, the device is queuing
+ * and the limit shrinks by the backoff ratio. The limit shrinks at most once per round trip: only
+ * an operation admitted after the last decrease can shrink it again; thus, a burst of slow
+ * operations that were in flight together counts once.
+ *
+ * Waiting operations are admitted by weighted fair queuing: each priority class gets a share of
+ * the admissions proportional to its weight, so a busy class cannot starve another one. An
+ * operation that would wait longer than its queue timeout, by estimate or in fact, is rejected
+ * with an AdmissionRejectedException.
+ *
+ * <pre>
+ * <code>
+ *   AdmissionController admission = token.getAdmissionController();
+ *   byte[] signatureValue = admission.execute(session,
+ *       AdmissionController.PriorityClass.INTERACTIVE, 200,
+ *       new SessionPool.SessionOperation&lt;byte[]&gt;() {
+ *     public byte[] execute(Session session) throws TokenException {
+ *       session.signInit(mechanism, privateKey);
+ *       return session.sign(data);
+ *     }
+ *   });
+ * </code>
+ * </pre>
+ *
+ * @see Token#getAdmissionController()
+ * @version 1.0
+ * @invariants (inFlight_ >= 0) and (limit_ >= minLimit_) and (limit_ <= maxLimit_)
+ */
+public class AdmissionController {
+
+  /**
+   * A priority class of operations. Its weight is the share of the admissions the class gets while
+   * operations of several classes are waiting.
+   *
+   * @invariants (name_ != null) and (weight_ > 0)
+   */
+  public static class PriorityClass {
+
+    /**
+     * The class of requests a user waits for.
+     */
+    public static final PriorityClass INTERACTIVE = new PriorityClass("INTERACTIVE", 8);
+
+    /**
+     * The class of background and bulk operations.
+     */
+    public static final PriorityClass BATCH = new PriorityClass("BATCH", 1);
+
+    /**
+     * The name of this class.
+     */
+    protected String name_;
+
+    /**
+     * The weight of this class.
+     */
+    protected int weight_;
+
+    /**
+     * Create a new priority class.
+     *
+     * @param name
+     *          The name of the class.
+     * @param weight
+     *          The weight of the class.
+     * @preconditions (name != null) and (weight > 0)
+     */
+    public PriorityClass(String name, int weight) {
+      if (name == null) {
+        throw new NullPointerException("Argument \"name\" must not be null.");
+      }
+      if (weight <= 0) {
+        throw new IllegalArgumentException("Argument \"weight\" must be positive.");
+      }
+      name_ = name;
+      weight_ = weight;
+    }
+
+    /**
+     * Get the name of this class.
+     *
+     * @return The name.
+     */
+    public String getName() {
+      return name_;
+    }
+
+    /**
+     * Get the weight of this class.
+     *
+     * @return The weight.
+     */
+    public int getWeight() {
+      return weight_;
+    }
+
+    /**
+     * Returns the string representation of this object.
+     *
+     * @return The name of this class.
+     */
+    public String toString() {
+      return name_;
+    }
+
+  }
+
+  /**
+   * The admission to perform one operation. Release it after the operation, whether it succeeded
+   * or not.
+   */
+  public class Permit {
+
+    /**
+     * The time the operation was admitted, as of System.nanoTime().
+     */
+    protected long start_ = System.nanoTime();
+
+    /**
+     * True, if this permit was released.
+     */
+    protected boolean released_;
+
+    /**
+     * Release this permit. The latency of the operation adapts the concurrency limit, unless the
+     * operation failed; the latency of failed operations says nothing about the load.
+     *
+     * @param success
+     *          True, if the operation succeeded.
+     */
+    public void release(boolean success) {
+      long latency = System.nanoTime() - start_;
+      synchronized (AdmissionController.this) {
+        if (released_) {
+          return;
+        }
+        released_ = true;
+        inFlight_--;
+        if (success) {
+          adaptLimit(start_, latency);
+        }
+        dispatch();
+      }
+    }
+
+  }
+
+  /**
+   * An operation waiting for admission.
+   */
+  protected static class Ticket implements Comparable<Ticket> {
+
+    protected final PriorityClass priorityClass_;
+
+    protected final double finishTag_;
+
+    protected final long sequence_;
+
+    protected boolean granted_;
+
+    protected Ticket(PriorityClass priorityClass, double finishTag, long sequence) {
+      priorityClass_ = priorityClass;
+      finishTag_ = finishTag;
+      sequence_ = sequence;
+    }
+
+    public int compareTo(Ticket other) {
+      if (finishTag_ != other.finishTag_) {
+        return (finishTag_ < other.finishTag_) ? -1 : 1;
+      }
+
+      return (sequence_ < other.sequence_) ? -1 : ((sequence_ == other.sequence_) ? 0 : 1);
+    }
+
+  }
+
+  /**
+   * The token this controller admits operations to.
+   */
+  protected Token token_;
+
+  /**
+   * The current concurrency limit.
+   */
+  protected double limit_ = 8.0;
+
+  /**
+   * The lower bound of the concurrency limit.
+   */
+  protected int minLimit_ = 1;
+
+  /**
+   * The upper bound of the concurrency limit.
+   */
+  protected int maxLimit_ = 64;
+
+  /**
+   * The factor by which the latency may exceed the lowest latency before the limit shrinks.
+   */
+  protected double tolerance_ = 2.0;
+
+  /**
+   * The factor the limit is multiplied with when it shrinks.
+   */
+  protected double backoffRatio_ = 0.9;
+
+  /**
+   * The number of admitted operations not released yet.
+   */
+  protected int inFlight_;
+
+  /**
+   * The waiting operations in the order of admission.
+   */
+  protected final PriorityQueue<Ticket> queue_ = new PriorityQueue<Ticket>();
+
+  /**
+   * The finish tag of the last admitted operation; the virtual time of the fair queuing.
+   */
+  protected double virtualTime_;
+
+  /**
+   * The finish tag of the last queued operation per priority class.
+   */
+  protected final Map<PriorityClass, Double> lastFinishTags_ =
+      new HashMap<PriorityClass, Double>();
+
+  /**
+   * The sequence number of the next ticket.
+   */
+  protected long sequence_;
+
+  /**
+   * The lowest observed latency in nanoseconds; 0, if none was observed yet.
+   */
+  protected double baselineNanos_;
+
+  /**
+   * The moving average of the latency in nanoseconds; 0, if none was observed yet.
+   */
+  protected double averageNanos_;
+
+  /**
+   * The time of the last decrease of the limit, as of System.nanoTime().
+   */
+  protected long lastDecreaseNanos_;
+
+  /**
+   * True, if the limit was decreased before.
+   */
+  protected boolean decreased_;
+
+  /**
+   * Create a new admission controller for the given token.
+   *
+   * @param token
+   *          The token.
+   * @preconditions (token != null)
+   */
+  protected AdmissionController(Token token) {
+    if (token == null) {
+      throw new NullPointerException("Argument \"token\" must not be null.");
+    }
+    token_ = token;
+  }
+
+  /**
+   * Get the token of this controller.
+   *
+   * @return The token.
+   * @postconditions (result != null)
+   */
+  public Token getToken() {
+    return token_;
+  }
+
+  /**
+   * Set the bounds of the concurrency limit and the initial limit.
+   *
+   * @param minLimit
+   *          The lower bound.
+   * @param initialLimit
+   *          The initial limit.
+   * @param maxLimit
+   *          The upper bound; e.g. the number of requests the device processes in parallel.
+   * @preconditions (minLimit >= 1) and (minLimit <= initialLimit) and (initialLimit <= maxLimit)
+   */
+  public synchronized void setLimits(int minLimit, int initialLimit, int maxLimit) {
+    if ((minLimit < 1) || (initialLimit < minLimit) || (maxLimit < initialLimit)) {
+      throw new IllegalArgumentException("Invalid limits " + minLimit + ", " + initialLimit
+          + ", " + maxLimit + ".");
+    }
+    minLimit_ = minLimit;
+    maxLimit_ = maxLimit;
+    limit_ = initialLimit;
+    dispatch();
+  }
+
+  /**
+   * Set how the limit adapts to the latency.
+   *
+   * @param tolerance
+   *          The factor by which the latency may exceed the lowest observed latency before the
+   *          limit shrinks; e.g. 2.0.
+   * @param backoffRatio
+   *          The factor the limit is multiplied with when it shrinks; e.g. 0.9.
+   * @preconditions (tolerance > 1.0) and (backoffRatio > 0.0) and (backoffRatio < 1.0)
+   */
+  public synchronized void setAdaptation(double tolerance, double backoffRatio) {
+    if ((tolerance <= 1.0) || (backoffRatio <= 0.0) || (backoffRatio >= 1.0)) {
+      throw new IllegalArgumentException("Invalid adaptation " + tolerance + ", " + backoffRatio
+          + ".");
+    }
+    tolerance_ = tolerance;
+    backoffRatio_ = backoffRatio;
+  }
+
+  /**
+   * Get the current concurrency limit.
+   *
+   * @return The number of operations admitted at the same time.
+   */
+  public synchronized int getLimit() {
+    return (int) limit_;
+  }
+
+  /**
+   * Get the number of admitted operations not released yet.
+   *
+   * @return The number of operations in flight.
+   */
+  public synchronized int getInFlightCount() {
+    return inFlight_;
+  }
+
+  /**
+   * Get the number of operations waiting for admission.
+   *
+   * @return The queue length.
+   */
+  public synchronized int getQueueLength() {
+    return queue_.size();
+  }
+
+  /**
+   * Wait for the admission of an operation of the given class.
+   *
+   * @param priorityClass
+   *          The priority class of the operation.
+   * @param queueTimeoutMillis
+   *          The maximum time to wait for the admission in milliseconds.
+   * @return The permit. The caller must release it after the operation.
+   * @exception AdmissionRejectedException
+   *              If the operation cannot be admitted within the timeout.
+   * @exception TokenException
+   *              If the thread was interrupted.
+   * @preconditions (priorityClass != null)
+   * @postconditions (result != null)
+   */
+  public synchronized Permit acquire(PriorityClass priorityClass, long queueTimeoutMillis)
+      throws TokenException {
+    if (priorityClass == null) {
+      throw new NullPointerException("Argument \"priorityClass\" must not be null.");
+    }
+    if (queue_.isEmpty() && (inFlight_ < (int) limit_)) {
+      inFlight_++;
+      return new Permit();
+    }
+
+    Double lastFinishTag = lastFinishTags_.get(priorityClass);
+    double startTag = (lastFinishTag != null) ? Math.max(virtualTime_, lastFinishTag
+        .doubleValue()) : virtualTime_;
+    Ticket ticket = new Ticket(priorityClass, startTag + 1.0 / priorityClass.getWeight(),
+        sequence_++);
+
+    long estimatedWaitMillis = estimateWaitMillis(ticket);
+    if (estimatedWaitMillis > queueTimeoutMillis) {
+      throw new AdmissionRejectedException("Operation of class " + priorityClass
+          + " rejected; the estimated wait of " + estimatedWaitMillis
+          + " ms exceeds the queue timeout.", priorityClass, estimatedWaitMillis);
+    }
+    lastFinishTags_.put(priorityClass, Double.valueOf(ticket.finishTag_));
+    queue_.add(ticket);
+
+    long start = System.nanoTime();
+    long remaining = queueTimeoutMillis;
+    try {
+      while (!ticket.granted_ && (remaining > 0L)) {
+        wait(remaining);
+        remaining = queueTimeoutMillis - (System.nanoTime() - start) / 1000000L;
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      abandon(ticket);
+      throw new TokenException("Interrupted while waiting for admission.", ex);
+    }
+    if (!ticket.granted_) {
+      abandon(ticket);
+      long waitMillis = (System.nanoTime() - start) / 1000000L;
+      throw new AdmissionRejectedException("Operation of class " + priorityClass
+          + " rejected after waiting " + waitMillis + " ms for admission.", priorityClass,
+          waitMillis);
+    }
+
+    return new Permit();
+  }
+
+  /**
+   * Perform the given operation, after it was admitted.
+   *
+   * @param session
+   *          The session to perform the operation with.
+   * @param priorityClass
+   *          The priority class of the operation.
+   * @param queueTimeoutMillis
+   *          The maximum time to wait for the admission in milliseconds.
+   * @param operation
+   *          The operation.
+   * @return The result of the operation.
+   * @exception AdmissionRejectedException
+   *              If the operation cannot be admitted within the timeout.
+   * @exception TokenException
+   *              If the operation fails.
+   * @preconditions (session != null) and (priorityClass != null) and (operation != null)
+   */
+  public <T> T execute(Session session, PriorityClass priorityClass, long queueTimeoutMillis,
+      SessionPool.SessionOperation<T> operation) throws TokenException {
+    Permit permit = acquire(priorityClass, queueTimeoutMillis);
+    boolean success = false;
+    try {
+      T result = operation.execute(session);
+      success = true;
+      return result;
+    } finally {
+      permit.release(success);
+    }
+  }
+
+  /**
+   * Estimate how long the given ticket would wait.
+   *
+   * @param ticket
+   *          The ticket not yet queued.
+   * @return The estimated wait in milliseconds.
+   */
+  protected long estimateWaitMillis(Ticket ticket) {
+    int ahead = 0;
+    Iterator<Ticket> tickets = queue_.iterator();
+    while (tickets.hasNext()) {
+      if (tickets.next().compareTo(ticket) < 0) {
+        ahead++;
+      }
+    }
+
+    return (long) ((ahead + 1) * averageNanos_ / Math.max(1.0, Math.floor(limit_)) / 1000000.0);
+  }
+
+  /**
+   * Remove a ticket that will not be used; give its admission on, if it was granted meanwhile.
+   *
+   * @param ticket
+   *          The ticket.
+   */
+  protected void abandon(Ticket ticket) {
+    if (ticket.granted_) {
+      inFlight_--;
+      dispatch();
+    } else {
+      queue_.remove(ticket);
+    }
+  }
+
+  /**
+   * Admit waiting operations while the limit allows.
+   */
+  protected void dispatch() {
+    boolean granted = false;
+    while ((inFlight_ < (int) limit_) && !queue_.isEmpty()) {
+      Ticket ticket = queue_.poll();
+      ticket.granted_ = true;
+      virtualTime_ = Math.max(virtualTime_, ticket.finishTag_);
+      inFlight_++;
+      granted = true;
+    }
+    if (queue_.isEmpty()) {
+      // no backlog; the tags of idle classes must not lag behind
+      lastFinishTags_.clear();
+    }
+    if (granted) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Adapt the concurrency limit to the latency of a completed operation. A slow operation shrinks
+   * the limit only, if it was admitted after the last decrease.
+   *
+   * @param startNanos
+   *          The time the operation was admitted, as of System.nanoTime().
+   * @param latencyNanos
+   *          The latency of the operation in nanoseconds.
+   */
+  protected void adaptLimit(long startNanos, long latencyNanos) {
+    if ((baselineNanos_ == 0.0) || (latencyNanos < baselineNanos_)) {
+      baselineNanos_ = latencyNanos;
+    } else {
+      // let the baseline follow a permanent change of the device slowly
+      baselineNanos_ += (latencyNanos - baselineNanos_) * 0.001;
+    }
+    averageNanos_ = (averageNanos_ == 0.0) ? latencyNanos : averageNanos_ + (latencyNanos
+        - averageNanos_) * 0.1;
+
+    if (latencyNanos <= tolerance_ * baselineNanos_) {
+      limit_ = Math.min(maxLimit_, limit_ + 1.0 / limit_);
+    } else if (!decreased_ || (startNanos - lastDecreaseNanos_ > 0L)) {
+      limit_ = Math.max(minLimit_, limit_ * backoffRatio_);
+      lastDecreaseNanos_ = System.nanoTime();
+      decreased_ = true;
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+/**
+ * Thrown by an AdmissionController, if an operation cannot be admitted to the token within its
+ * queue timeout. The controller throws it at once, if the estimated wait already exceeds the
+ * timeout, or when the timeout expires while the operation waits. The operation was not started;
+ * the application may shed the request or try again later.
+ *
+ * @see AdmissionController
+ * @version 1.0
+ */
+public class AdmissionRejectedException extends TokenException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The priority class of the rejected operation.
+   */
+  protected AdmissionController.PriorityClass priorityClass_;
+
+  /**
+   * The estimated or actual wait in milliseconds.
+   */
+  protected long waitMillis_;
+
+  /**
+   * Constructor taking the message, the priority class and the wait time.
+   *
+   * @param message
+   *          The message giving details about the exception to ease debugging.
+   * @param priorityClass
+   *          The priority class of the rejected operation.
+   * @param waitMillis
+   *          The estimated or actual wait in milliseconds.
+   */
+  public AdmissionRejectedException(String message,
+      AdmissionController.PriorityClass priorityClass, long waitMillis) {
+    super(message);
+    priorityClass_ = priorityClass;
+    waitMillis_ = waitMillis;
+  }
+
+  /**
+   * Get the priority class of the rejected operation.
+   *
+   * @return The priority class.
+   */
+  public AdmissionController.PriorityClass getPriorityClass() {
+    return priorityClass_;
+  }
+
+  /**
+   * Get the wait time. For an operation rejected at once, this is the estimated wait; otherwise, it
+   * is the time the operation waited.
+   *
+   * @return The wait time in milliseconds.
+   */
+  public long getWaitMillis() {
+    return waitMillis_;
+  }
+
+}
@@ -0,0 +1,793 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.X509PublicKeyCertificate;
+import iaik.pkcs.pkcs11.wrapper.CK_ATTRIBUTE;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Indexes the X.509 certificates on a token. load finds all certificate objects once and reads
+ * only CKA_ID, CKA_VALUE and CKA_HASH_OF_SUBJECT_PUBLIC_KEY of each, with one C_GetAttributeValue
+ * call per certificate. The parsed X509Certificate instances are kept and indexed by object handle,
+ * subject, issuer and serial number, CKA_ID and SHA-1 hash of the subject public key; thus,
+ * building a chain or finding the certificate of a key is a hash table lookup per step.
+ *
+ * <pre>
+ * <code>
+ *   CertificateIndex index = token.getCertificateIndex();
+ *   index.load(session);
+ *   X509Certificate[] chain = index.getChain(index.getByKey(privateKey).getCertificate());
+ * </code>
+ * </pre>
+ *
+ * The index is not validated on each use. After creating or destroying a certificate object, call
+ * add or remove to update it; load rebuilds it from scratch. If the token does not set
+ * CKA_HASH_OF_SUBJECT_PUBLIC_KEY, the hash is computed from the certificate. Updates are
+ * serialized; each builds new tables and publishes them at once. Thus, lookups do not block and
+ * never see a half-done update.
+ *
+ * @see Token#getCertificateIndex()
+ * @version 1.0
+ * @invariants (token_ != null)
+ */
+public class CertificateIndex {
+
+  /**
+   * An indexed certificate.
+   *
+   * @invariants (certificate_ != null) and (subjectKeyHash_ != null)
+   */
+  public static class Entry {
+
+    /**
+     * The handle of the certificate object.
+     */
+    protected final long objectHandle_;
+
+    /**
+     * The value of CKA_ID or null.
+     */
+    protected final byte[] id_;
+
+    /**
+     * The parsed certificate.
+     */
+    protected final X509Certificate certificate_;
+
+    /**
+     * The SHA-1 hash of the subject public key.
+     */
+    protected final byte[] subjectKeyHash_;
+
+    protected Entry(long objectHandle, byte[] id, X509Certificate certificate,
+        byte[] subjectKeyHash) {
+      objectHandle_ = objectHandle;
+      id_ = id;
+      certificate_ = certificate;
+      subjectKeyHash_ = subjectKeyHash;
+    }
+
+    /**
+     * Get the handle of the certificate object.
+     *
+     * @return The object handle.
+     */
+    public long getObjectHandle() {
+      return objectHandle_;
+    }
+
+    /**
+     * Get the value of CKA_ID. The array must not be modified.
+     *
+     * @return The ID or null.
+     */
+    public byte[] getId() {
+      return id_;
+    }
+
+    /**
+     * Get the parsed certificate.
+     *
+     * @return The certificate.
+     * @postconditions (result != null)
+     */
+    public X509Certificate getCertificate() {
+      return certificate_;
+    }
+
+    /**
+     * Get the SHA-1 hash of the subject public key. The array must not be modified.
+     *
+     * @return The hash.
+     * @postconditions (result != null)
+     */
+    public byte[] getSubjectKeyHash() {
+      return subjectKeyHash_;
+    }
+
+  }
+
+  /**
+   * The tables of the index. A published snapshot is never modified; an update modifies a copy and
+   * publishes it instead.
+   */
+  protected static class Snapshot {
+
+    /**
+     * The entries by object handle.
+     */
+    protected final HashMap<Long, Entry> byHandle_;
+
+    /**
+     * The entries by subject; more than one certificate may have the same subject.
+     */
+    protected final HashMap<X500Principal, Entry[]> bySubject_;
+
+    /**
+     * The entries by issuer and serial number; see getIssuerSerialKey.
+     */
+    protected final HashMap<String, Entry> byIssuerSerial_;
+
+    /**
+     * The entries by CKA_ID.
+     */
+    protected final HashMap<ByteBuffer, Entry[]> byId_;
+
+    /**
+     * The entries by SHA-1 hash of the subject public key.
+     */
+    protected final HashMap<ByteBuffer, Entry[]> bySubjectKeyHash_;
+
+    /**
+     * Create empty tables.
+     */
+    protected Snapshot() {
+      byHandle_ = new HashMap<Long, Entry>();
+      bySubject_ = new HashMap<X500Principal, Entry[]>();
+      byIssuerSerial_ = new HashMap<String, Entry>();
+      byId_ = new HashMap<ByteBuffer, Entry[]>();
+      bySubjectKeyHash_ = new HashMap<ByteBuffer, Entry[]>();
+    }
+
+    /**
+     * Create a copy of the given tables. The entry arrays are shared; they are replaced, not
+     * modified.
+     *
+     * @param other
+     *          The tables to copy.
+     * @preconditions (other != null)
+     */
+    protected Snapshot(Snapshot other) {
+      byHandle_ = new HashMap<Long, Entry>(other.byHandle_);
+      bySubject_ = new HashMap<X500Principal, Entry[]>(other.bySubject_);
+      byIssuerSerial_ = new HashMap<String, Entry>(other.byIssuerSerial_);
+      byId_ = new HashMap<ByteBuffer, Entry[]>(other.byId_);
+      bySubjectKeyHash_ = new HashMap<ByteBuffer, Entry[]>(other.bySubjectKeyHash_);
+    }
+
+  }
+
+  /**
+   * The maximum length of chains; protects against cycles.
+   */
+  protected static final int MAX_CHAIN_LENGTH = 16;
+
+  /**
+   * The token whose certificates this index holds.
+   */
+  protected Token token_;
+
+  /**
+   * The published tables. Readers read this field once per lookup; updates replace it.
+   */
+  protected volatile Snapshot snapshot_ = new Snapshot();
+
+  /**
+   * Create a new index for the given token.
+   *
+   * @param token
+   *          The token.
+   * @preconditions (token != null)
+   */
+  protected CertificateIndex(Token token) {
+    if (token == null) {
+      throw new NullPointerException("Argument \"token\" must not be null.");
+    }
+    token_ = token;
+  }
+
+  /**
+   * Get the token of this index.
+   *
+   * @return The token.
+   * @postconditions (result != null)
+   */
+  public Token getToken() {
+    return token_;
+  }
+
+  /**
+   * Find all X.509 certificates on the token and rebuild the index. A user session sees also the
+   * private certificates.
+   *
+   * @param session
+   *          The session to read with.
+   * @return The number of certificates indexed.
+   * @exception TokenException
+   *              If the search or reading a certificate fails.
+   * @preconditions (session != null)
+   */
+  public synchronized int load(Session session) throws TokenException {
+    long[] handles = new long[64];
+    int count = 0;
+    session.findObjectsInit(new X509PublicKeyCertificate());
+    try {
+      long[] found;
+      while ((found = session.findObjectHandles(100)).length > 0) {
+        if (count + found.length > handles.length) {
+          handles = Arrays.copyOf(handles, Math.max(2 * handles.length, count + found.length));
+        }
+        System.arraycopy(found, 0, handles, count, found.length);
+        count += found.length;
+      }
+    } finally {
+      session.findObjectsFinal();
+    }
+
+    List<Entry> entries = new ArrayList<Entry>(count);
+    for (int i = 0; i < count; i++) {
+      Entry entry = readEntry(session, handles[i]);
+      if (entry != null) {
+        entries.add(entry);
+      }
+    }
+    Snapshot snapshot = new Snapshot();
+    for (int i = 0; i < entries.size(); i++) {
+      index(snapshot, entries.get(i));
+    }
+    snapshot_ = snapshot;
+
+    return entries.size();
+  }
+
+  /**
+   * Add the certificate object with the given handle; e.g. after it was created.
+   *
+   * @param session
+   *          The session to read with.
+   * @param objectHandle
+   *          The handle of the certificate object.
+   * @return The new entry or null, if the object has no parsable X.509 certificate value.
+   * @exception TokenException
+   *              If reading the certificate fails.
+   * @preconditions (session != null)
+   */
+  public synchronized Entry add(Session session, long objectHandle) throws TokenException {
+    Entry entry = readEntry(session, objectHandle);
+    Snapshot snapshot = new Snapshot(snapshot_);
+    unindex(snapshot, objectHandle);
+    if (entry != null) {
+      index(snapshot, entry);
+    }
+    snapshot_ = snapshot;
+
+    return entry;
+  }
+
+  /**
+   * Remove the certificate object with the given handle; e.g. after it was destroyed.
+   *
+   * @param objectHandle
+   *          The handle of the certificate object.
+   */
+  public synchronized void remove(long objectHandle) {
+    if (!snapshot_.byHandle_.containsKey(Long.valueOf(objectHandle))) {
+      return;
+    }
+    Snapshot snapshot = new Snapshot(snapshot_);
+    unindex(snapshot, objectHandle);
+    snapshot_ = snapshot;
+  }
+
+  /**
+   * Remove all certificates from the index.
+   */
+  public synchronized void clear() {
+    snapshot_ = new Snapshot();
+  }
+
+  /**
+   * Get the number of indexed certificates.
+   *
+   * @return The number of certificates.
+   */
+  public int size() {
+    return snapshot_.byHandle_.size();
+  }
+
+  /**
+   * Get all indexed certificates.
+   *
+   * @return The entries.
+   * @postconditions (result != null)
+   */
+  public Entry[] getEntries() {
+    return snapshot_.byHandle_.values().toArray(new Entry[0]);
+  }
+
+  /**
+   * Get the certificate object with the given handle.
+   *
+   * @param objectHandle
+   *          The object handle.
+   * @return The entry or null.
+   */
+  public Entry getByHandle(long objectHandle) {
+    return snapshot_.byHandle_.get(Long.valueOf(objectHandle));
+  }
+
+  /**
+   * Get the certificates with the given subject.
+   *
+   * @param subject
+   *          The subject name.
+   * @return The entries; empty, if there is none.
+   * @preconditions (subject != null)
+   * @postconditions (result != null)
+   */
+  public Entry[] getBySubject(X500Principal subject) {
+    return nonNull(snapshot_.bySubject_.get(subject));
+  }
+
+  /**
+   * Get the certificate with the given issuer and serial number.
+   *
+   * @param issuer
+   *          The issuer name.
+   * @param serialNumber
+   *          The serial number.
+   * @return The entry or null.
+   * @preconditions (issuer != null) and (serialNumber != null)
+   */
+  public Entry getByIssuerAndSerialNumber(X500Principal issuer, BigInteger serialNumber) {
+    return snapshot_.byIssuerSerial_.get(getIssuerSerialKey(issuer, serialNumber));
+  }
+
+  /**
+   * Get the certificates with the given CKA_ID.
+   *
+   * @param id
+   *          The ID.
+   * @return The entries; empty, if there is none.
+   * @preconditions (id != null)
+   * @postconditions (result != null)
+   */
+  public Entry[] getById(byte[] id) {
+    return nonNull(snapshot_.byId_.get(ByteBuffer.wrap(id)));
+  }
+
+  /**
+   * Get the certificates with the given SHA-1 hash of the subject public key.
+   *
+   * @param subjectKeyHash
+   *          The hash; e.g. the value of CKA_HASH_OF_SUBJECT_PUBLIC_KEY.
+   * @return The entries; empty, if there is none.
+   * @preconditions (subjectKeyHash != null)
+   * @postconditions (result != null)
+   */
+  public Entry[] getBySubjectKeyHash(byte[] subjectKeyHash) {
+    return nonNull(snapshot_.bySubjectKeyHash_.get(ByteBuffer.wrap(subjectKeyHash)));
+  }
+
+  /**
+   * Get the certificate of the given public key.
+   *
+   * @param publicKey
+   *          The JDK public key.
+   * @return The entry or null.
+   * @exception TokenException
+   *              If the key encoding can not be parsed.
+   * @preconditions (publicKey != null)
+   */
+  public Entry getByPublicKey(PublicKey publicKey) throws TokenException {
+    Entry[] entries = getBySubjectKeyHash(hashSubjectPublicKey(publicKey.getEncoded()));
+
+    return (entries.length > 0) ? entries[0] : null;
+  }
+
+  /**
+   * Get the certificate of the given key object; i.e. the certificate with the same CKA_ID. If
+   * several certificates have this ID, e.g. after a renewal, the one valid longest is returned.
+   *
+   * @param key
+   *          The key object with its CKA_ID read.
+   * @return The entry or null.
+   * @preconditions (key != null)
+   */
+  public Entry getByKey(Key key) {
+    byte[] id = key.getId().getByteArrayValue();
+    if (id == null) {
+      return null;
+    }
+    Entry[] entries = getById(id);
+    Entry latest = null;
+    for (int i = 0; i < entries.length; i++) {
+      if ((latest == null) || entries[i].certificate_.getNotAfter()
+          .after(latest.certificate_.getNotAfter())) {
+        latest = entries[i];
+      }
+    }
+
+    return latest;
+  }
+
+  /**
+   * Get the issuer certificate of the given certificate; i.e. a certificate whose subject is the
+   * issuer of the given one and whose public key verifies its signature. A candidate is verified,
+   * even if it is the only one with this subject.
+   *
+   * @param certificate
+   *          The certificate.
+   * @return The issuer certificate or null, if none is on the token or the certificate is
+   *         self-signed.
+   * @preconditions (certificate != null)
+   */
+  public X509Certificate getIssuer(X509Certificate certificate) {
+    X500Principal issuer = certificate.getIssuerX500Principal();
+    if (issuer.equals(certificate.getSubjectX500Principal()) && isSignedBy(certificate,
+        certificate)) {
+      return null;
+    }
+    Entry[] candidates = getBySubject(issuer);
+    for (int i = 0; i < candidates.length; i++) {
+      if (isSignedBy(certificate, candidates[i].certificate_)) {
+        return candidates[i].certificate_;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Build the chain of the given certificate from the certificates on the token.
+   *
+   * @param certificate
+   *          The end entity certificate.
+   * @return The chain; the given certificate first, then its issuers as far as they are on the
+   *         token.
+   * @preconditions (certificate != null)
+   * @postconditions (result != null) and (result.length >= 1)
+   */
+  public X509Certificate[] getChain(X509Certificate certificate) {
+    List<X509Certificate> chain = new ArrayList<X509Certificate>();
+    X509Certificate current = certificate;
+    while ((current != null) && (chain.size() < MAX_CHAIN_LENGTH) && !chain.contains(current)) {
+      chain.add(current);
+      current = getIssuer(current);
+    }
+
+    return chain.toArray(new X509Certificate[chain.size()]);
+  }
+
+  /**
+   * Get the given entries or an empty array.
+   *
+   * @param entries
+   *          The entries or null.
+   * @return The entries.
+   */
+  protected static Entry[] nonNull(Entry[] entries) {
+    return (entries != null) ? entries : new Entry[0];
+  }
+
+  /**
+   * Read and parse one certificate object.
+   *
+   * @param session
+   *          The session to read with.
+   * @param objectHandle
+   *          The object handle.
+   * @return The entry or null, if the object has no parsable X.509 certificate value.
+   * @exception TokenException
+   *              If reading the attributes fails.
+   */
+  protected Entry readEntry(Session session, long objectHandle) throws TokenException {
+    CK_ATTRIBUTE[] attributes = new CK_ATTRIBUTE[] { new CK_ATTRIBUTE(), new CK_ATTRIBUTE(),
+        new CK_ATTRIBUTE() };
+    attributes[0].type = PKCS11Constants.CKA_ID;
+    attributes[1].type = PKCS11Constants.CKA_VALUE;
+    attributes[2].type = PKCS11Constants.CKA_HASH_OF_SUBJECT_PUBLIC_KEY;
+    try {
+      session.getAttributeValues(objectHandle, attributes);
+    } catch (PKCS11Exception ex) {
+      if (ex.getErrorCode() != PKCS11Constants.CKR_ATTRIBUTE_TYPE_INVALID) {
+        throw ex;
+      }
+      // tokens of PKCS#11 before 2.20 do not know the hash attribute
+      attributes = Arrays.copyOf(attributes, 2);
+      session.getAttributeValues(objectHandle, attributes);
+    }
+
+    byte[] encoded = (byte[]) attributes[1].pValue;
+    if (encoded == null) {
+      return null;
+    }
+    X509Certificate certificate;
+    try {
+      certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+          .generateCertificate(new ByteArrayInputStream(encoded));
+    } catch (GeneralSecurityException ex) {
+      // not an X.509 certificate we can use; skip it
+      return null;
+    }
+    byte[] subjectKeyHash = (attributes.length > 2) ? (byte[]) attributes[2].pValue : null;
+    if ((subjectKeyHash == null) || (subjectKeyHash.length == 0)) {
+      subjectKeyHash = hashSubjectPublicKey(certificate.getPublicKey().getEncoded());
+    }
+    byte[] id = (byte[]) attributes[0].pValue;
+
+    return new Entry(objectHandle, ((id != null) && (id.length > 0)) ? id : null, certificate,
+        subjectKeyHash);
+  }
+
+  /**
+   * Add an entry to all tables of a snapshot that is not published yet.
+   *
+   * @param snapshot
+   *          The tables.
+   * @param entry
+   *          The entry.
+   */
+  protected static void index(Snapshot snapshot, Entry entry) {
+    X509Certificate certificate = entry.certificate_;
+    snapshot.byHandle_.put(Long.valueOf(entry.objectHandle_), entry);
+    addTo(snapshot.bySubject_, certificate.getSubjectX500Principal(), entry);
+    snapshot.byIssuerSerial_.put(getIssuerSerialKey(certificate.getIssuerX500Principal(),
+        certificate.getSerialNumber()), entry);
+    if (entry.id_ != null) {
+      addTo(snapshot.byId_, ByteBuffer.wrap(entry.id_), entry);
+    }
+    addTo(snapshot.bySubjectKeyHash_, ByteBuffer.wrap(entry.subjectKeyHash_), entry);
+  }
+
+  /**
+   * Remove the entry of an object handle from all tables of a snapshot that is not published yet.
+   *
+   * @param snapshot
+   *          The tables.
+   * @param objectHandle
+   *          The handle of the certificate object.
+   */
+  protected static void unindex(Snapshot snapshot, long objectHandle) {
+    Entry entry = snapshot.byHandle_.remove(Long.valueOf(objectHandle));
+    if (entry == null) {
+      return;
+    }
+    X509Certificate certificate = entry.certificate_;
+    removeFrom(snapshot.bySubject_, certificate.getSubjectX500Principal(), entry);
+    String issuerSerialKey = getIssuerSerialKey(certificate.getIssuerX500Principal(),
+        certificate.getSerialNumber());
+    if (snapshot.byIssuerSerial_.get(issuerSerialKey) == entry) {
+      snapshot.byIssuerSerial_.remove(issuerSerialKey);
+    }
+    if (entry.id_ != null) {
+      removeFrom(snapshot.byId_, ByteBuffer.wrap(entry.id_), entry);
+    }
+    removeFrom(snapshot.bySubjectKeyHash_, ByteBuffer.wrap(entry.subjectKeyHash_), entry);
+  }
+
+  /**
+   * Add an entry to a multi-valued table. The arrays are replaced, not modified; thus, copies of
+   * the table may share them.
+   *
+   * @param table
+   *          The table.
+   * @param key
+   *          The key.
+   * @param entry
+   *          The entry.
+   */
+  protected static <K> void addTo(Map<K, Entry[]> table, K key, Entry entry) {
+    Entry[] entries = table.get(key);
+    if (entries == null) {
+      table.put(key, new Entry[] { entry });
+    } else {
+      Entry[] newEntries = Arrays.copyOf(entries, entries.length + 1);
+      newEntries[entries.length] = entry;
+      table.put(key, newEntries);
+    }
+  }
+
+  /**
+   * Remove an entry from a multi-valued table.
+   *
+   * @param table
+   *          The table.
+   * @param key
+   *          The key.
+   * @param entry
+   *          The entry.
+   */
+  protected static <K> void removeFrom(Map<K, Entry[]> table, K key, Entry entry) {
+    Entry[] entries = table.get(key);
+    if (entries == null) {
+      return;
+    }
+    List<Entry> remaining = new ArrayList<Entry>(Arrays.asList(entries));
+    Iterator<Entry> iterator = remaining.iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next() == entry) {
+        iterator.remove();
+      }
+    }
+    if (remaining.isEmpty()) {
+      table.remove(key);
+    } else {
+      table.put(key, remaining.toArray(new Entry[remaining.size()]));
+    }
+  }
+
+  /**
+   * Get the key of the issuer and serial number table.
+   *
+   * @param issuer
+   *          The issuer name.
+   * @param serialNumber
+   *          The serial number.
+   * @return The key.
+   */
+  protected static String getIssuerSerialKey(X500Principal issuer, BigInteger serialNumber) {
+    return issuer.getName(X500Principal.CANONICAL) + "#" + serialNumber.toString(16);
+  }
+
+  /**
+   * Check, if the signature of a certificate verifies with the public key of another.
+   *
+   * @param certificate
+   *          The certificate.
+   * @param issuer
+   *          The candidate issuer.
+   * @return True, if the signature is valid.
+   */
+  protected static boolean isSignedBy(X509Certificate certificate, X509Certificate issuer) {
+    try {
+      certificate.verify(issuer.getPublicKey());
+      return true;
+    } catch (GeneralSecurityException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Compute the SHA-1 hash of the subject public key; i.e. of the contents of the bit string in
+   * a DER encoded SubjectPublicKeyInfo, as CKA_HASH_OF_SUBJECT_PUBLIC_KEY is defined.
+   *
+   * @param subjectPublicKeyInfo
+   *          The DER encoded SubjectPublicKeyInfo.
+   * @return The hash.
+   * @exception TokenException
+   *              If the encoding can not be parsed.
+   */
+  protected static byte[] hashSubjectPublicKey(byte[] subjectPublicKeyInfo)
+      throws TokenException {
+    // SEQUENCE { AlgorithmIdentifier SEQUENCE, subjectPublicKey BIT STRING }
+    int[] offset = new int[2];
+    if ((subjectPublicKeyInfo == null) || (readHeader(subjectPublicKeyInfo, offset) != 0x30)) {
+      throw new TokenException("Invalid SubjectPublicKeyInfo encoding.");
+    }
+    if (readHeader(subjectPublicKeyInfo, offset) != 0x30) {
+      throw new TokenException("Invalid SubjectPublicKeyInfo encoding.");
+    }
+    offset[0] += offset[1];
+    if (readHeader(subjectPublicKeyInfo, offset) != 0x03) {
+      throw new TokenException("Invalid SubjectPublicKeyInfo encoding.");
+    }
+    // skip the number of unused bits
+    int contentStart = offset[0] + 1;
+    int contentEnd = offset[0] + offset[1];
+    if ((contentStart > contentEnd) || (contentEnd > subjectPublicKeyInfo.length)) {
+      throw new TokenException("Invalid SubjectPublicKeyInfo encoding.");
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(subjectPublicKeyInfo, contentStart, contentEnd - contentStart);
+      return digest.digest();
+    } catch (GeneralSecurityException ex) {
+      throw new TokenException("SHA-1 is not available.", ex);
+    }
+  }
+
+  /**
+   * Read a DER tag and length.
+   *
+   * @param encoding
+   *          The DER encoding.
+   * @param offset
+   *          On input, offset[0] is the position of the tag; on output, offset[0] is the position
+   *          of the contents and offset[1] their length.
+   * @return The tag or -1, if the encoding is invalid.
+   */
+  protected static int readHeader(byte[] encoding, int[] offset) {
+    int position = offset[0];
+    if (position + 2 > encoding.length) {
+      return -1;
+    }
+    int tag = encoding[position++] & 0xFF;
+    int length = encoding[position++] & 0xFF;
+    if (length > 0x80) {
+      int lengthBytes = length & 0x7F;
+      if ((lengthBytes > 3) || (position + lengthBytes > encoding.length)) {
+        return -1;
+      }
+      length = 0;
+      for (int i = 0; i < lengthBytes; i++) {
+        length = (length << 8) | (encoding[position++] & 0xFF);
+      }
+    }
+    offset[0] = position;
+    offset[1] = length;
+
+    return tag;
+  }
+
+}
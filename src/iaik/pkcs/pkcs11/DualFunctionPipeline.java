@@ -0,0 +1,549 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Streams data through two operations of one session at once; e.g. encrypt and sign a file or
+ * decrypt and verify it. Both operations are initialized, the data is passed chunk by chunk to the
+ * dual-function calls (C_SignEncryptUpdate, C_DecryptVerifyUpdate, C_DigestEncryptUpdate or
+ * C_DecryptDigestUpdate), so that each chunk crosses JNI once instead of twice, and both operations
+ * are finalized.
+ *
+ * <pre>
+ * <code>
+ *   DualFunctionPipeline pipeline = new DualFunctionPipeline(token, 65536);
+ *   byte[] signatureValue = pipeline.encryptAndSign(session, encryptionMechanism, encryptionKey,
+ *       signatureMechanism, signatureKey, plainIn, encryptedOut);
+ * </code>
+ * </pre>
+ *
+ * If the token does not set CKF_DUAL_CRYPTO_OPERATIONS or a dual-function call fails with
+ * CKR_FUNCTION_NOT_SUPPORTED, the pipeline calls the two single update functions for each chunk
+ * instead and keeps doing so for all further runs. If a run fails, both operations are ended before
+ * the exception is thrown, so the session can be used again. Objects of this class are
+ * thread-safe; each run needs its own session.
+ *
+ * @version 1.0
+ * @invariants (token_ != null) and (chunkSize_ > 0)
+ */
+public class DualFunctionPipeline {
+
+  /**
+   * The combinations of operations.
+   */
+  protected static final int SIGN_ENCRYPT = 0;
+  protected static final int DECRYPT_VERIFY = 1;
+  protected static final int DIGEST_ENCRYPT = 2;
+  protected static final int DECRYPT_DIGEST = 3;
+
+  /**
+   * The token whose information tells if dual-function operations are supported.
+   */
+  protected Token token_;
+
+  /**
+   * The number of bytes passed to the token per call.
+   */
+  protected int chunkSize_;
+
+  /**
+   * True, if dual-function calls are used; null, until known.
+   */
+  protected volatile Boolean dualSupported_;
+
+  /**
+   * Create a new pipeline.
+   *
+   * @param token
+   *          The token.
+   * @param chunkSize
+   *          The number of bytes passed to the token per call; a multiple of the block size of the
+   *          cipher.
+   * @preconditions (token != null) and (chunkSize > 0)
+   */
+  public DualFunctionPipeline(Token token, int chunkSize) {
+    if (token == null) {
+      throw new NullPointerException("Argument \"token\" must not be null.");
+    }
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("Argument \"chunkSize\" must be positive.");
+    }
+    token_ = token;
+    chunkSize_ = chunkSize;
+  }
+
+  /**
+   * Check, if this pipeline uses the dual-function calls of the token.
+   *
+   * @return True, if the dual-function calls are used; false, if the single update functions are
+   *         called instead.
+   * @exception TokenException
+   *              If reading the token information fails.
+   */
+  public boolean isDualSupported() throws TokenException {
+    Boolean dualSupported = dualSupported_;
+    if (dualSupported == null) {
+      dualSupported = Boolean.valueOf(token_.getTokenInfoCache().getTokenInfo()
+          .isDualCryptoOperations());
+      dualSupported_ = dualSupported;
+    }
+
+    return dualSupported.booleanValue();
+  }
+
+  /**
+   * Sign the data and encrypt it. The signature is computed over the plain data.
+   *
+   * @param session
+   *          The session; no other operation may be active in it.
+   * @param encryptionMechanism
+   *          The encryption mechanism.
+   * @param encryptionKey
+   *          The encryption key.
+   * @param signatureMechanism
+   *          The signature mechanism; a multipart mechanism like SHA256_RSA_PKCS or a MAC.
+   * @param signatureKey
+   *          The signature key.
+   * @param in
+   *          The plain data.
+   * @param out
+   *          The stream receiving the encrypted data.
+   * @return The signature value.
+   * @exception TokenException
+   *              If an operation fails.
+   * @exception IOException
+   *              If reading or writing the data fails.
+   * @preconditions (session != null) and (encryptionMechanism != null) and (encryptionKey != null)
+   *                and (signatureMechanism != null) and (signatureKey != null) and (in != null)
+   *                and (out != null)
+   */
+  public byte[] encryptAndSign(Session session, Mechanism encryptionMechanism,
+      Key encryptionKey, Mechanism signatureMechanism, Key signatureKey, InputStream in,
+      OutputStream out) throws TokenException, IOException {
+    session.signInit(signatureMechanism, signatureKey);
+    try {
+      session.encryptInit(encryptionMechanism, encryptionKey);
+    } catch (TokenException ex) {
+      endQuietly(session, SIGN_ENCRYPT, false);
+      throw ex;
+    }
+    run(session, SIGN_ENCRYPT, in, out);
+    byte[] finalPart;
+    try {
+      finalPart = session.encryptFinal();
+    } catch (TokenException ex) {
+      endQuietly(session, SIGN_ENCRYPT, false);
+      throw ex;
+    }
+    byte[] signatureValue = session.signFinal();
+    write(out, finalPart);
+
+    return signatureValue;
+  }
+
+  /**
+   * Decrypt the data and verify its signature. Like Session.verify, this method returns normally,
+   * if the signature is valid, and throws a PKCS11Exception with the error code
+   * CKR_SIGNATURE_INVALID otherwise. The decrypted data is written before the signature is checked;
+   * the caller must not use it, unless this method returns normally.
+   *
+   * @param session
+   *          The session; no other operation may be active in it.
+   * @param decryptionMechanism
+   *          The decryption mechanism.
+   * @param decryptionKey
+   *          The decryption key.
+   * @param verificationMechanism
+   *          The verification mechanism; a multipart mechanism like SHA256_RSA_PKCS or a MAC.
+   * @param verificationKey
+   *          The verification key.
+   * @param in
+   *          The encrypted data.
+   * @param out
+   *          The stream receiving the decrypted data.
+   * @param signature
+   *          The signature value over the plain data.
+   * @exception TokenException
+   *              If an operation fails or the signature is invalid.
+   * @exception IOException
+   *              If reading or writing the data fails.
+   * @preconditions (session != null) and (decryptionMechanism != null) and (decryptionKey != null)
+   *                and (verificationMechanism != null) and (verificationKey != null)
+   *                and (in != null) and (out != null) and (signature != null)
+   */
+  public void decryptAndVerify(Session session, Mechanism decryptionMechanism,
+      Key decryptionKey, Mechanism verificationMechanism, Key verificationKey, InputStream in,
+      OutputStream out, byte[] signature) throws TokenException, IOException {
+    session.decryptInit(decryptionMechanism, decryptionKey);
+    try {
+      session.verifyInit(verificationMechanism, verificationKey);
+    } catch (TokenException ex) {
+      endQuietly(session, DECRYPT_VERIFY, true);
+      throw ex;
+    }
+    run(session, DECRYPT_VERIFY, in, out);
+    byte[] finalPart;
+    try {
+      finalPart = session.decryptFinal();
+      if ((finalPart != null) && (finalPart.length > 0)) {
+        session.verifyUpdate(finalPart);
+      }
+    } catch (TokenException ex) {
+      endQuietly(session, DECRYPT_VERIFY, false);
+      throw ex;
+    }
+    write(out, finalPart);
+    session.verifyFinal(signature);
+  }
+
+  /**
+   * Digest the data and encrypt it. The digest is computed over the plain data.
+   *
+   * @param session
+   *          The session; no other operation may be active in it.
+   * @param digestMechanism
+   *          The digest mechanism.
+   * @param encryptionMechanism
+   *          The encryption mechanism.
+   * @param encryptionKey
+   *          The encryption key.
+   * @param in
+   *          The plain data.
+   * @param out
+   *          The stream receiving the encrypted data.
+   * @return The digest.
+   * @exception TokenException
+   *              If an operation fails.
+   * @exception IOException
+   *              If reading or writing the data fails.
+   * @preconditions (session != null) and (digestMechanism != null)
+   *                and (encryptionMechanism != null) and (encryptionKey != null) and (in != null)
+   *                and (out != null)
+   */
+  public byte[] digestAndEncrypt(Session session, Mechanism digestMechanism,
+      Mechanism encryptionMechanism, Key encryptionKey, InputStream in, OutputStream out)
+      throws TokenException, IOException {
+    session.digestInit(digestMechanism);
+    try {
+      session.encryptInit(encryptionMechanism, encryptionKey);
+    } catch (TokenException ex) {
+      endQuietly(session, DIGEST_ENCRYPT, false);
+      throw ex;
+    }
+    run(session, DIGEST_ENCRYPT, in, out);
+    byte[] finalPart;
+    try {
+      finalPart = session.encryptFinal();
+    } catch (TokenException ex) {
+      endQuietly(session, DIGEST_ENCRYPT, false);
+      throw ex;
+    }
+    byte[] digest = session.digestFinal();
+    write(out, finalPart);
+
+    return digest;
+  }
+
+  /**
+   * Decrypt the data and digest it. The digest is computed over the decrypted data.
+   *
+   * @param session
+   *          The session; no other operation may be active in it.
+   * @param decryptionMechanism
+   *          The decryption mechanism.
+   * @param decryptionKey
+   *          The decryption key.
+   * @param digestMechanism
+   *          The digest mechanism.
+   * @param in
+   *          The encrypted data.
+   * @param out
+   *          The stream receiving the decrypted data.
+   * @return The digest.
+   * @exception TokenException
+   *              If an operation fails.
+   * @exception IOException
+   *              If reading or writing the data fails.
+   * @preconditions (session != null) and (decryptionMechanism != null) and (decryptionKey != null)
+   *                and (digestMechanism != null) and (in != null) and (out != null)
+   */
+  public byte[] decryptAndDigest(Session session, Mechanism decryptionMechanism,
+      Key decryptionKey, Mechanism digestMechanism, InputStream in, OutputStream out)
+      throws TokenException, IOException {
+    session.decryptInit(decryptionMechanism, decryptionKey);
+    try {
+      session.digestInit(digestMechanism);
+    } catch (TokenException ex) {
+      endQuietly(session, DECRYPT_DIGEST, true);
+      throw ex;
+    }
+    run(session, DECRYPT_DIGEST, in, out);
+    byte[] finalPart;
+    try {
+      finalPart = session.decryptFinal();
+      if ((finalPart != null) && (finalPart.length > 0)) {
+        session.digestUpdate(finalPart);
+      }
+    } catch (TokenException ex) {
+      endQuietly(session, DECRYPT_DIGEST, false);
+      throw ex;
+    }
+    byte[] digest = session.digestFinal();
+    write(out, finalPart);
+
+    return digest;
+  }
+
+  /**
+   * Pass all data through both operations. If reading, writing or an update fails, both operations
+   * are ended.
+   *
+   * @param session
+   *          The session with both operations initialized.
+   * @param mode
+   *          The combination of operations.
+   * @param in
+   *          The input data.
+   * @param out
+   *          The stream receiving the output data.
+   * @exception TokenException
+   *              If an update fails.
+   * @exception IOException
+   *              If reading or writing the data fails.
+   */
+  protected void run(Session session, int mode, InputStream in, OutputStream out)
+      throws TokenException, IOException {
+    byte[] buffer = new byte[chunkSize_];
+    try {
+      int length;
+      while ((length = readChunk(in, buffer)) > 0) {
+        byte[] chunk = (length == buffer.length) ? buffer : Arrays.copyOf(buffer, length);
+        write(out, update(session, mode, chunk));
+      }
+    } catch (TokenException ex) {
+      endQuietly(session, mode, false);
+      throw ex;
+    } catch (IOException ex) {
+      endQuietly(session, mode, false);
+      throw ex;
+    } catch (RuntimeException ex) {
+      endQuietly(session, mode, false);
+      throw ex;
+    }
+  }
+
+  /**
+   * Pass one chunk through both operations; with a dual-function call, if supported.
+   *
+   * @param session
+   *          The session with both operations initialized.
+   * @param mode
+   *          The combination of operations.
+   * @param chunk
+   *          The input data.
+   * @return The output of the cipher.
+   * @exception TokenException
+   *              If an update fails.
+   */
+  protected byte[] update(Session session, int mode, byte[] chunk) throws TokenException {
+    if (isDualSupported()) {
+      try {
+        switch (mode) {
+        case SIGN_ENCRYPT:
+          return session.signEncryptUpdate(chunk);
+        case DECRYPT_VERIFY:
+          return session.decryptVerifyUpdate(chunk);
+        case DIGEST_ENCRYPT:
+          return session.digestEncryptedUpdate(chunk);
+        default:
+          return session.decryptDigestUpdate(chunk);
+        }
+      } catch (PKCS11Exception ex) {
+        if (ex.getErrorCode() != PKCS11Constants.CKR_FUNCTION_NOT_SUPPORTED) {
+          throw ex;
+        }
+        // the module does not implement the dual function; the operations are unchanged
+        dualSupported_ = Boolean.FALSE;
+      }
+    }
+
+    return updateSeparately(session, mode, chunk);
+  }
+
+  /**
+   * Pass one chunk through both operations with the single update functions.
+   *
+   * @param session
+   *          The session with both operations initialized.
+   * @param mode
+   *          The combination of operations.
+   * @param chunk
+   *          The input data.
+   * @return The output of the cipher.
+   * @exception TokenException
+   *              If an update fails.
+   */
+  protected byte[] updateSeparately(Session session, int mode, byte[] chunk)
+      throws TokenException {
+    byte[] output;
+    switch (mode) {
+    case SIGN_ENCRYPT:
+      session.signUpdate(chunk);
+      output = session.encryptUpdate(chunk);
+      break;
+    case DIGEST_ENCRYPT:
+      session.digestUpdate(chunk);
+      output = session.encryptUpdate(chunk);
+      break;
+    case DECRYPT_VERIFY:
+      output = session.decryptUpdate(chunk);
+      if ((output != null) && (output.length > 0)) {
+        session.verifyUpdate(output);
+      }
+      break;
+    default:
+      output = session.decryptUpdate(chunk);
+      if ((output != null) && (output.length > 0)) {
+        session.digestUpdate(output);
+      }
+      break;
+    }
+
+    return output;
+  }
+
+  /**
+   * End both operations, ignoring errors. Operations end with their final call, even if it fails.
+   *
+   * @param session
+   *          The session.
+   * @param mode
+   *          The combination of operations.
+   * @param firstOnly
+   *          True, if only the first operation was initialized.
+   */
+  protected void endQuietly(Session session, int mode, boolean firstOnly) {
+    try {
+      switch (mode) {
+      case SIGN_ENCRYPT:
+        session.signFinal();
+        break;
+      case DIGEST_ENCRYPT:
+        session.digestFinal();
+        break;
+      default:
+        session.decryptFinal();
+        break;
+      }
+    } catch (TokenException ex) {
+      // the operation is ended anyway
+    }
+    if (firstOnly) {
+      return;
+    }
+    try {
+      switch (mode) {
+      case SIGN_ENCRYPT:
+      case DIGEST_ENCRYPT:
+        session.encryptFinal();
+        break;
+      case DECRYPT_VERIFY:
+        session.verifyFinal(new byte[0]);
+        break;
+      default:
+        session.digestFinal();
+        break;
+      }
+    } catch (TokenException ex) {
+      // the operation is ended anyway
+    }
+  }
+
+  /**
+   * Read a full chunk, unless the end of the stream is reached.
+   *
+   * @param in
+   *          The stream.
+   * @param buffer
+   *          The buffer to fill.
+   * @return The number of bytes read; 0 at the end of the stream.
+   * @exception IOException
+   *              If reading fails.
+   */
+  protected static int readChunk(InputStream in, byte[] buffer) throws IOException {
+    int length = 0;
+    int read;
+    while ((length < buffer.length)
+        && ((read = in.read(buffer, length, buffer.length - length)) != -1)) {
+      length += read;
+    }
+
+    return length;
+  }
+
+  /**
+   * Write output data, if there is any.
+   *
+   * @param out
+   *          The stream.
+   * @param data
+   *          The data or null.
+   * @exception IOException
+   *              If writing fails.
+   */
+  protected static void write(OutputStream out, byte[] data) throws IOException {
+    if ((data != null) && (data.length > 0)) {
+      out.write(data);
+    }
+  }
+
+}
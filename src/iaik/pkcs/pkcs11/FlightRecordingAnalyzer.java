@@ -0,0 +1,214 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.wrapper.PKCS11CallEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Aggregates the PKCS#11 events of a JDK Flight Recorder recording into latency tables. For each
+ * combination of event type, function or operation and mechanism, it prints the number of events,
+ * the number of failed calls and the mean, median, 90th and 99th percentile and maximum duration.
+ * Comparing the Session operations with the native calls of the same mechanism shows whether time
+ * is spent in the module or in Java.
+ *
+ * <pre>
+ * <code>
+ *   java iaik.pkcs.pkcs11.FlightRecordingAnalyzer pkcs11.jfr
+ * </code>
+ * </pre>
+ *
+ * @version 1.0
+ */
+public class FlightRecordingAnalyzer {
+
+  /**
+   * The durations of one group of events.
+   */
+  protected static class Group {
+
+    protected long[] durations_ = new long[16];
+
+    protected int count_;
+
+    protected int failures_;
+
+    protected void add(long durationNanos, boolean failed) {
+      if (count_ == durations_.length) {
+        durations_ = Arrays.copyOf(durations_, 2 * count_);
+      }
+      durations_[count_++] = durationNanos;
+      if (failed) {
+        failures_++;
+      }
+    }
+
+    protected long percentile(long[] sorted, double fraction) {
+      int index = (int) Math.ceil(fraction * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+  }
+
+  /**
+   * The groups of events. The key of this table is the function or operation and the mechanism
+   * separated by a tab; the table is sorted by this key.
+   */
+  protected Map<String, Group> groups_ = new TreeMap<String, Group>();
+
+  /**
+   * Read all PKCS#11 events of the given recording. The events are read one by one; thus, large
+   * recordings need not fit into memory.
+   *
+   * @param recording
+   *          The recording file.
+   * @exception IOException
+   *              If reading the recording fails.
+   * @preconditions (recording != null)
+   */
+  public void read(File recording) throws IOException {
+    RecordingFile file = new RecordingFile(recording.toPath());
+    try {
+      while (file.hasMoreEvents()) {
+        add(file.readEvent());
+      }
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Add one event. Events of other types are ignored. An event failed, if its result is not
+   * CKR_OK.
+   *
+   * @param event
+   *          The recorded event.
+   */
+  public void add(RecordedEvent event) {
+    String type = event.getEventType().getName();
+    String name;
+    if (type.equals(PKCS11CallEvent.NAME)) {
+      name = event.getString("function");
+    } else if (type.equals(SessionOperationEvent.NAME)) {
+      name = "Session." + event.getString("operation");
+    } else {
+      return;
+    }
+    // recordings of older versions have no result for session operations
+    String result = event.hasField("result") ? event.getString("result") : null;
+    boolean failed = (result != null) && !result.equals("CKR_OK");
+    String mechanism = event.getString("mechanism");
+    String key = name + "\t" + ((mechanism != null) ? mechanism : "-");
+
+    Group group = groups_.get(key);
+    if (group == null) {
+      group = new Group();
+      groups_.put(key, group);
+    }
+    group.add(event.getDuration().toNanos(), failed);
+  }
+
+  /**
+   * Print the latency table. Durations are given in microseconds.
+   *
+   * @param out
+   *          The stream to print to.
+   * @preconditions (out != null)
+   */
+  public void print(PrintStream out) {
+    out.println(String.format("%-28s %-32s %8s %6s %10s %10s %10s %10s %10s", "Function",
+        "Mechanism", "Count", "Failed", "Mean us", "P50 us", "P90 us", "P99 us", "Max us"));
+    List<String> keys = new ArrayList<String>(groups_.keySet());
+    for (int i = 0; i < keys.size(); i++) {
+      String key = keys.get(i);
+      Group group = groups_.get(key);
+      long[] sorted = Arrays.copyOf(group.durations_, group.count_);
+      Arrays.sort(sorted);
+      long sum = 0L;
+      for (int j = 0; j < sorted.length; j++) {
+        sum += sorted[j];
+      }
+      String[] parts = key.split("\t");
+      out.println(String.format("%-28s %-32s %8d %6d %10.1f %10.1f %10.1f %10.1f %10.1f",
+          parts[0], parts[1], Integer.valueOf(group.count_), Integer.valueOf(group.failures_),
+          Double.valueOf(sum / 1000.0 / sorted.length),
+          Double.valueOf(group.percentile(sorted, 0.5) / 1000.0),
+          Double.valueOf(group.percentile(sorted, 0.9) / 1000.0),
+          Double.valueOf(group.percentile(sorted, 0.99) / 1000.0),
+          Double.valueOf(sorted[sorted.length - 1] / 1000.0)));
+    }
+  }
+
+  /**
+   * Print the latency tables of the given recordings.
+   *
+   * @param args
+   *          The names of the recording files.
+   * @exception IOException
+   *              If reading a recording fails.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.out.println(
+          "Usage: java iaik.pkcs.pkcs11.FlightRecordingAnalyzer <recording.jfr>...");
+      return;
+    }
+    FlightRecordingAnalyzer analyzer = new FlightRecordingAnalyzer();
+    for (int i = 0; i < args.length; i++) {
+      analyzer.read(new File(args[i]));
+    }
+    analyzer.print(System.out);
+  }
+
+}
@@ -0,0 +1,967 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.Object;
+import iaik.pkcs.pkcs11.parameters.AesCbcEncryptDataParameters;
+import iaik.pkcs.pkcs11.parameters.KeyDerivationStringDataParameters;
+import iaik.pkcs.pkcs11.parameters.Parameters;
+import iaik.pkcs.pkcs11.wrapper.CK_ATTRIBUTE;
+import iaik.pkcs.pkcs11.wrapper.CK_MECHANISM;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Derives one key per record from a base key, uses it and destroys it, for many records at once.
+ * The records are split into as many parts as the parallelism, and each part is processed with its
+ * own session of the pool. The attributes of the template are converted once; each record costs one
+ * C_DeriveKey call and the calls of the key use, because only the handle of the derived key is
+ * kept and no attributes are read. The derived keys of a call are destroyed together at its end by
+ * an ObjectDestroyer.
+ *
+ * <pre>
+ * <code>
+ *   AESSecretKey template = new AESSecretKey();
+ *   template.getToken().setBooleanValue(Boolean.FALSE);
+ *   template.getValueLen().setLongValue(new Long(32));
+ *   template.getEncrypt().setBooleanValue(Boolean.TRUE);
+ *   KeyDerivationPipeline pipeline = new KeyDerivationPipeline(sessionPool, masterKey,
+ *       PKCS11Constants.CKM_AES_CBC_ENCRYPT_DATA, iv, template, 4, 1000);
+ *   List&lt;byte[]&gt; encrypted = pipeline.deriveAndUse(recordIds,
+ *       new KeyDerivationPipeline.KeyUse&lt;byte[]&gt;() {
+ *     public byte[] use(Session session, long keyHandle, int index) throws TokenException {
+ *       ...
+ *     }
+ *   });
+ * </code>
+ * </pre>
+ *
+ * With CKM_AES_CBC_ENCRYPT_DATA, the derivation data of a record is encrypted with the given IV;
+ * its length must be a multiple of 16. Other mechanisms get the derivation data as
+ * CK_KEY_DERIVATION_STRING_DATA; e.g. CKM_CONCATENATE_BASE_AND_DATA. Subclasses may override
+ * createParameters for other mechanisms.
+ *
+ * If the cache size is positive, the handles of the most recently used records are kept and
+ * reused instead of deriving the key again. The least recently used handle is evicted, when the
+ * cache is full; it is destroyed as soon as no thread uses it any longer. Cached keys are derived
+ * with dedicated sessions of this pipeline, one per part, which the pool never closes; thus, a
+ * cached handle stays valid until it is destroyed by this pipeline, and the module cannot reuse its
+ * number for another object meanwhile. If C_GetSessionInfo shows that a dedicated session is lost,
+ * e.g. because the device was removed, the handles cached with it are dropped without destroying
+ * them, and the session is closed as soon as none of its keys is in use any longer. Objects of
+ * this class are thread-safe.
+ *
+ * @version 1.0
+ * @invariants (sessionPool_ != null) and (baseKey_ != null) and (templateAttributes_ != null)
+ *             and (destroyer_ != null)
+ */
+public class KeyDerivationPipeline {
+
+  /**
+   * A dedicated session the cached keys are derived with and the number of references to its keys.
+   * A lost session is replaced by a new object. Calls with the session are made holding the lock of
+   * this object; the other fields are guarded by the lock of cache_.
+   */
+  protected static class CacheSession {
+
+    protected Session session_;
+
+    protected int references_;
+
+    protected boolean lost_;
+
+    protected CacheSession(Session session) {
+      session_ = session;
+    }
+
+  }
+
+  /**
+   * A cached key with the number of threads currently using it. The fields are guarded by the lock
+   * of cache_.
+   */
+  protected static class CachedKey {
+
+    protected final CacheSession cacheSession_;
+
+    protected final long handle_;
+
+    protected int references_;
+
+    protected boolean removed_;
+
+    protected boolean lost_;
+
+    protected CachedKey(CacheSession cacheSession, long handle) {
+      cacheSession_ = cacheSession;
+      handle_ = handle;
+    }
+
+  }
+
+  /**
+   * The use of one derived key.
+   */
+  public interface KeyUse<T> {
+
+    /**
+     * Use the derived key of a record.
+     *
+     * @param session
+     *          The session the key was derived with.
+     * @param keyHandle
+     *          The handle of the derived key.
+     * @param index
+     *          The index of the record.
+     * @return The result for the record.
+     * @exception TokenException
+     *              If using the key fails.
+     */
+    public T use(Session session, long keyHandle, int index) throws TokenException;
+
+  }
+
+  /**
+   * The number of pipelines created; used to name the threads.
+   */
+  protected static final AtomicInteger pipelineCounter_ = new AtomicInteger();
+
+  /**
+   * The pool to borrow the sessions from.
+   */
+  protected SessionPool sessionPool_;
+
+  /**
+   * The key to derive from.
+   */
+  protected Key baseKey_;
+
+  /**
+   * The code of the derivation mechanism.
+   */
+  protected long mechanismCode_;
+
+  /**
+   * The IV of CKM_AES_CBC_ENCRYPT_DATA or null.
+   */
+  protected byte[] iv_;
+
+  /**
+   * The set attributes of the template of the derived keys.
+   */
+  protected CK_ATTRIBUTE[] templateAttributes_;
+
+  /**
+   * The number of sessions used at the same time.
+   */
+  protected int parallelism_;
+
+  /**
+   * The maximum number of cached handles; 0 disables the cache.
+   */
+  protected int cacheSize_;
+
+  /**
+   * The cached keys in access order. The key of this table is the derivation data.
+   */
+  protected LinkedHashMap<ByteBuffer, CachedKey> cache_;
+
+  /**
+   * The keys removed from the cache, not used any longer and not yet destroyed.
+   */
+  protected List<CachedKey> evicted_ = new ArrayList<CachedKey>();
+
+  /**
+   * The sessions the cached keys are derived with; one per part, null, until opened. Guarded by the
+   * lock of cache_.
+   */
+  protected CacheSession[] cacheSessions_;
+
+  /**
+   * The destroyer of the derived keys.
+   */
+  protected ObjectDestroyer destroyer_;
+
+  /**
+   * The threads processing all parts but the first; the calling thread processes the first part.
+   */
+  protected ThreadPoolExecutor executor_;
+
+  /**
+   * The number of keys derived.
+   */
+  protected AtomicInteger derivedCount_ = new AtomicInteger();
+
+  /**
+   * The number of keys taken from the cache.
+   */
+  protected AtomicInteger cacheHitCount_ = new AtomicInteger();
+
+  /**
+   * Create a new pipeline.
+   *
+   * @param sessionPool
+   *          The pool to borrow sessions from.
+   * @param baseKey
+   *          The key to derive from.
+   * @param mechanismCode
+   *          The code of the derivation mechanism; e.g. CKM_AES_CBC_ENCRYPT_DATA.
+   * @param iv
+   *          The IV for CKM_AES_CBC_ENCRYPT_DATA or null for other mechanisms.
+   * @param template
+   *          The template of the derived keys; it should set CKA_TOKEN to false.
+   * @param parallelism
+   *          The number of sessions used at the same time.
+   * @param cacheSize
+   *          The maximum number of cached handles; 0 disables the cache.
+   * @exception PKCS11Exception
+   *              If converting the template fails.
+   * @preconditions (sessionPool != null) and (baseKey != null) and (template != null)
+   *                and (parallelism > 0) and (cacheSize >= 0)
+   */
+  public KeyDerivationPipeline(SessionPool sessionPool, Key baseKey, long mechanismCode,
+      byte[] iv, Key template, int parallelism, int cacheSize) throws PKCS11Exception {
+    if (sessionPool == null) {
+      throw new NullPointerException("Argument \"sessionPool\" must not be null.");
+    }
+    if (baseKey == null) {
+      throw new NullPointerException("Argument \"baseKey\" must not be null.");
+    }
+    if (template == null) {
+      throw new NullPointerException("Argument \"template\" must not be null.");
+    }
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Argument \"parallelism\" must be positive.");
+    }
+    if (cacheSize < 0) {
+      throw new IllegalArgumentException("Argument \"cacheSize\" must not be negative.");
+    }
+    if ((mechanismCode == PKCS11Constants.CKM_AES_CBC_ENCRYPT_DATA) && (iv == null)) {
+      throw new NullPointerException("Argument \"iv\" must not be null.");
+    }
+    sessionPool_ = sessionPool;
+    baseKey_ = baseKey;
+    mechanismCode_ = mechanismCode;
+    iv_ = (iv != null) ? iv.clone() : null;
+    templateAttributes_ = Object.getSetAttributes(template);
+    parallelism_ = parallelism;
+    cacheSize_ = cacheSize;
+    cache_ = new LinkedHashMap<ByteBuffer, CachedKey>(16, 0.75f, true);
+    cacheSessions_ = new CacheSession[parallelism];
+    destroyer_ = new ObjectDestroyer(sessionPool, parallelism);
+    final int pipelineNumber = pipelineCounter_.incrementAndGet();
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger threadCounter_ = new AtomicInteger();
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "PKCS11-derivation-" + pipelineNumber + "-"
+            + threadCounter_.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    int threads = Math.max(1, parallelism - 1);
+    executor_ = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), threadFactory);
+    executor_.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Derive the key of each record, use it and destroy it. Keys of cached records are reused and
+   * stay on the token.
+   *
+   * @param derivationData
+   *          The derivation data of each record.
+   * @param keyUse
+   *          The use of the derived keys.
+   * @return The results of the key use in the order of the records.
+   * @exception TokenException
+   *              If deriving or using a key fails; the exception of the first failure is
+   *              encapsulated. The keys derived so far are destroyed anyway.
+   * @preconditions (derivationData != null) and (keyUse != null)
+   */
+  public <T> List<T> deriveAndUse(byte[][] derivationData, final KeyUse<T> keyUse)
+      throws TokenException {
+    if (derivationData == null) {
+      throw new NullPointerException("Argument \"derivationData\" must not be null.");
+    }
+    if (keyUse == null) {
+      throw new NullPointerException("Argument \"keyUse\" must not be null.");
+    }
+    final java.lang.Object[] results = new java.lang.Object[derivationData.length];
+    final long[] derivedHandles = new long[derivationData.length];
+    Arrays.fill(derivedHandles, -1L);
+    int parts = Math.max(1, Math.min(parallelism_, derivationData.length));
+    List<Future<java.lang.Object>> futures = new ArrayList<Future<java.lang.Object>>();
+    TokenException failure = null;
+    try {
+      for (int part = 1; part < parts; part++) {
+        final byte[][] data = derivationData;
+        final int partIndex = part;
+        final int from = (int) ((long) derivationData.length * part / parts);
+        final int to = (int) ((long) derivationData.length * (part + 1) / parts);
+        futures.add(executor_.submit(new Callable<java.lang.Object>() {
+          public java.lang.Object call() throws TokenException {
+            processPart(data, partIndex, from, to, keyUse, results, derivedHandles);
+            return null;
+          }
+        }));
+      }
+      try {
+        processPart(derivationData, 0, 0, derivationData.length / parts, keyUse, results,
+            derivedHandles);
+      } catch (TokenException ex) {
+        failure = ex;
+      }
+      failure = awaitParts(futures, failure);
+    } finally {
+      destroyDerivedKeys(derivedHandles);
+    }
+    if (failure != null) {
+      throw new TokenException("Deriving or using the record keys failed.", failure);
+    }
+
+    List<T> resultList = new ArrayList<T>(results.length);
+    for (int i = 0; i < results.length; i++) {
+      @SuppressWarnings("unchecked")
+      T result = (T) results[i];
+      resultList.add(result);
+    }
+
+    return resultList;
+  }
+
+  /**
+   * Get the number of keys derived so far.
+   *
+   * @return The number of C_DeriveKey calls.
+   */
+  public int getDerivedCount() {
+    return derivedCount_.get();
+  }
+
+  /**
+   * Get the number of keys taken from the cache so far.
+   *
+   * @return The number of cache hits.
+   */
+  public int getCacheHitCount() {
+    return cacheHitCount_.get();
+  }
+
+  /**
+   * Destroy all cached keys and stop the threads of this pipeline. The cached keys are destroyed by
+   * closing the sessions they were derived with. This method must not be called while deriveAndUse
+   * is running.
+   *
+   * @exception TokenException
+   *              If closing a session of the cached keys fails.
+   */
+  public void close() throws TokenException {
+    try {
+      CacheSession[] cacheSessions;
+      synchronized (cache_) {
+        dropCachedKeys();
+        cacheSessions = cacheSessions_.clone();
+        for (int i = 0; i < cacheSessions_.length; i++) {
+          if (cacheSessions_[i] != null) {
+            cacheSessions_[i].lost_ = true;
+            cacheSessions_[i] = null;
+          }
+        }
+      }
+      TokenException failure = null;
+      for (int i = 0; i < cacheSessions.length; i++) {
+        if (cacheSessions[i] == null) {
+          continue;
+        }
+        synchronized (cacheSessions[i]) {
+          Session session = cacheSessions[i].session_;
+          cacheSessions[i].session_ = null;
+          try {
+            if (session != null) {
+              session.closeSession();
+            }
+          } catch (TokenException ex) {
+            failure = (failure != null) ? failure : ex;
+          }
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    } finally {
+      executor_.shutdown();
+      destroyer_.shutdown();
+    }
+  }
+
+  /**
+   * Process the records from index from to index to with one session.
+   *
+   * @param derivationData
+   *          The derivation data of all records.
+   * @param part
+   *          The index of the part; it selects the session of the cached keys.
+   * @param from
+   *          The index of the first record of the part.
+   * @param to
+   *          The index after the last record of the part.
+   * @param keyUse
+   *          The use of the derived keys.
+   * @param results
+   *          The array receiving the results.
+   * @param derivedHandles
+   *          The array receiving the handles of the keys to destroy.
+   * @exception TokenException
+   *              If deriving or using a key fails.
+   */
+  protected <T> void processPart(final byte[][] derivationData, final int part, final int from,
+      final int to, final KeyUse<T> keyUse, final java.lang.Object[] results,
+      final long[] derivedHandles) throws TokenException {
+    if (from == to) {
+      return;
+    }
+    sessionPool_.execute(new SessionPool.SessionOperation<java.lang.Object>() {
+      public java.lang.Object execute(Session session) throws TokenException {
+        for (int i = from; i < to; i++) {
+          results[i] = processRecord(session, part, derivationData[i], i, keyUse,
+              derivedHandles);
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Derive or look up the key of one record and use it. A cached key is referenced while it is
+   * used; thus, it is not destroyed meanwhile, even if it is evicted from the cache. If the use of
+   * a cached key fails because of an invalid handle, the key is derived again only if its session
+   * turns out to be lost.
+   *
+   * @param session
+   *          The session to use.
+   * @param part
+   *          The index of the part; it selects the session of the cached keys.
+   * @param data
+   *          The derivation data of the record.
+   * @param index
+   *          The index of the record.
+   * @param keyUse
+   *          The use of the key.
+   * @param derivedHandles
+   *          The array receiving the handles of the keys to destroy.
+   * @return The result of the key use.
+   * @exception TokenException
+   *              If deriving or using the key fails.
+   */
+  protected <T> T processRecord(Session session, int part, byte[] data, int index,
+      KeyUse<T> keyUse, long[] derivedHandles) throws TokenException {
+    if (cacheSize_ == 0) {
+      long keyHandle = deriveKey(session, data);
+      derivedHandles[index] = keyHandle;
+
+      return keyUse.use(session, keyHandle, index);
+    }
+
+    ByteBuffer cacheKey = ByteBuffer.wrap(data.clone());
+    CachedKey entry = acquireCachedKey(cacheKey);
+    if (entry != null) {
+      cacheHitCount_.incrementAndGet();
+      try {
+        return keyUse.use(session, entry.handle_, index);
+      } catch (PKCS11Exception ex) {
+        if (((ex.getErrorCode() != PKCS11Constants.CKR_KEY_HANDLE_INVALID)
+            && (ex.getErrorCode() != PKCS11Constants.CKR_OBJECT_HANDLE_INVALID))
+            || !isCacheSessionLost(entry.cacheSession_)) {
+          throw ex;
+        }
+      } finally {
+        releaseCachedKey(entry);
+      }
+    }
+
+    entry = deriveCachedKey(part, cacheKey, data);
+    try {
+      return keyUse.use(session, entry.handle_, index);
+    } finally {
+      releaseCachedKey(entry);
+    }
+  }
+
+  /**
+   * Look up a cached key and reference it.
+   *
+   * @param cacheKey
+   *          The derivation data.
+   * @return The referenced key or null, if it is not cached.
+   */
+  protected CachedKey acquireCachedKey(ByteBuffer cacheKey) {
+    synchronized (cache_) {
+      CachedKey entry = cache_.get(cacheKey);
+      if (entry != null) {
+        entry.references_++;
+        entry.cacheSession_.references_++;
+      }
+
+      return entry;
+    }
+  }
+
+  /**
+   * Release a reference to a cached key. The key is queued for destruction, if it was removed from
+   * the cache and this was the last reference. A lost session is closed with the last reference to
+   * its keys.
+   *
+   * @param entry
+   *          The cached key.
+   */
+  protected void releaseCachedKey(CachedKey entry) {
+    CacheSession lostSession = null;
+    synchronized (cache_) {
+      entry.references_--;
+      entry.cacheSession_.references_--;
+      if (entry.removed_ && !entry.lost_ && (entry.references_ == 0)) {
+        evicted_.add(entry);
+      }
+      if (entry.cacheSession_.lost_ && (entry.cacheSession_.references_ == 0)) {
+        lostSession = entry.cacheSession_;
+      }
+    }
+    if (lostSession != null) {
+      closeCacheSession(lostSession);
+    }
+  }
+
+  /**
+   * Remove a key from the cache. The caller must hold the lock of cache_.
+   *
+   * @param entry
+   *          The removed key.
+   */
+  protected void removeCachedKey(CachedKey entry) {
+    entry.removed_ = true;
+    if (!entry.lost_ && (entry.references_ == 0)) {
+      evicted_.add(entry);
+    }
+  }
+
+  /**
+   * Derive the key of a record with the cache session of the given part and put it into the cache,
+   * referenced once. Only the derivations of the same part wait for each other. If the cache
+   * session is lost, it is replaced once.
+   *
+   * @param part
+   *          The index of the part.
+   * @param cacheKey
+   *          The derivation data as key of the cache.
+   * @param data
+   *          The derivation data.
+   * @return The referenced key.
+   * @exception TokenException
+   *              If deriving fails.
+   */
+  protected CachedKey deriveCachedKey(int part, ByteBuffer cacheKey, byte[] data)
+      throws TokenException {
+    for (int attempt = 1;; attempt++) {
+      CacheSession cacheSession = getCacheSession(part);
+      synchronized (cacheSession) {
+        try {
+          if (cacheSession.session_ != null) {
+            long keyHandle = deriveKey(cacheSession.session_, data);
+            // still holding the session; thus, it cannot be closed before the put
+            CachedKey entry = putCachedKey(cacheSession, cacheKey, keyHandle);
+            if (entry != null) {
+              return entry;
+            }
+          }
+        } catch (PKCS11Exception ex) {
+          if (!isSessionLost(ex.getErrorCode()) || (attempt > 1)) {
+            throw ex;
+          }
+          markLost(cacheSession);
+        }
+      }
+      if (attempt > 1) {
+        throw new TokenException("The session of the cached keys was lost.");
+      }
+    }
+  }
+
+  /**
+   * Put a derived key into the cache, referenced once, and evict the least recently used key, if
+   * the cache is full.
+   *
+   * @param cacheSession
+   *          The session the key was derived with.
+   * @param cacheKey
+   *          The derivation data as key of the cache.
+   * @param keyHandle
+   *          The handle of the key.
+   * @return The referenced key or null, if the session was lost meanwhile.
+   */
+  protected CachedKey putCachedKey(CacheSession cacheSession, ByteBuffer cacheKey,
+      long keyHandle) {
+    synchronized (cache_) {
+      if (cacheSession.lost_) {
+        return null;
+      }
+      CachedKey entry = new CachedKey(cacheSession, keyHandle);
+      entry.references_ = 1;
+      cacheSession.references_++;
+      CachedKey previous = cache_.put(cacheKey, entry);
+      if (previous != null) {
+        removeCachedKey(previous);
+      }
+      if (cache_.size() > cacheSize_) {
+        Iterator<CachedKey> eldest = cache_.values().iterator();
+        removeCachedKey(eldest.next());
+        eldest.remove();
+      }
+
+      return entry;
+    }
+  }
+
+  /**
+   * Get the session the cached keys of the given part are derived with; open it, if necessary.
+   *
+   * @param part
+   *          The index of the part.
+   * @return The cache session.
+   * @exception TokenException
+   *              If opening the session fails.
+   */
+  protected CacheSession getCacheSession(int part) throws TokenException {
+    int slot = part % cacheSessions_.length;
+    synchronized (cache_) {
+      if (cacheSessions_[slot] != null) {
+        return cacheSessions_[slot];
+      }
+    }
+    Session session = sessionPool_.getToken().openSession(Token.SessionType.SERIAL_SESSION,
+        Token.SessionReadWriteBehavior.RO_SESSION, null, null);
+    CacheSession cacheSession;
+    synchronized (cache_) {
+      cacheSession = cacheSessions_[slot];
+      if (cacheSession == null) {
+        cacheSessions_[slot] = new CacheSession(session);
+        return cacheSessions_[slot];
+      }
+    }
+    // another thread opened one first; the new session has no objects yet
+    try {
+      session.closeSession();
+    } catch (TokenException ex) {
+      // the session is not needed anyway
+    }
+
+    return cacheSession;
+  }
+
+  /**
+   * Check with C_GetSessionInfo, if the given cache session is lost, and mark it lost, if so.
+   *
+   * @param cacheSession
+   *          The cache session.
+   * @return True, if the session is lost.
+   * @exception TokenException
+   *              If the check fails for another reason.
+   */
+  protected boolean isCacheSessionLost(CacheSession cacheSession) throws TokenException {
+    synchronized (cacheSession) {
+      if (cacheSession.session_ != null) {
+        try {
+          cacheSession.session_.getSessionInfo();
+          return false;
+        } catch (PKCS11Exception ex) {
+          if (!isSessionLost(ex.getErrorCode())) {
+            throw ex;
+          }
+        }
+      }
+    }
+    markLost(cacheSession);
+
+    return true;
+  }
+
+  /**
+   * Mark a cache session lost and drop its cached keys without destroying them; their handles are
+   * not valid any longer. The session is closed now, if none of its keys is referenced; otherwise,
+   * with the release of the last reference.
+   *
+   * @param cacheSession
+   *          The lost session.
+   */
+  protected void markLost(CacheSession cacheSession) {
+    synchronized (cache_) {
+      if (cacheSession.lost_) {
+        return;
+      }
+      cacheSession.lost_ = true;
+      for (int i = 0; i < cacheSessions_.length; i++) {
+        if (cacheSessions_[i] == cacheSession) {
+          cacheSessions_[i] = null;
+        }
+      }
+      Iterator<CachedKey> entries = cache_.values().iterator();
+      while (entries.hasNext()) {
+        CachedKey entry = entries.next();
+        if (entry.cacheSession_ == cacheSession) {
+          entry.lost_ = true;
+          entry.removed_ = true;
+          entries.remove();
+        }
+      }
+      Iterator<CachedKey> evicted = evicted_.iterator();
+      while (evicted.hasNext()) {
+        if (evicted.next().cacheSession_ == cacheSession) {
+          evicted.remove();
+        }
+      }
+      if (cacheSession.references_ > 0) {
+        return;
+      }
+    }
+    closeCacheSession(cacheSession);
+  }
+
+  /**
+   * Close a lost cache session, unless closed before.
+   *
+   * @param cacheSession
+   *          The lost session.
+   */
+  protected void closeCacheSession(CacheSession cacheSession) {
+    synchronized (cacheSession) {
+      if (cacheSession.session_ != null) {
+        try {
+          cacheSession.session_.closeSession();
+        } catch (TokenException ex) {
+          // the session is lost anyway
+        }
+        cacheSession.session_ = null;
+      }
+    }
+  }
+
+  /**
+   * Remove all keys from the cache and mark them lost; they are not destroyed explicitly. The
+   * caller must hold the lock of cache_.
+   */
+  protected void dropCachedKeys() {
+    Iterator<CachedKey> iterator = cache_.values().iterator();
+    while (iterator.hasNext()) {
+      CachedKey entry = iterator.next();
+      entry.lost_ = true;
+      entry.removed_ = true;
+    }
+    cache_.clear();
+    evicted_.clear();
+  }
+
+  /**
+   * Check, if the given error code means that a session was lost.
+   *
+   * @param errorCode
+   *          The error code.
+   * @return True, if the session is not usable any longer.
+   */
+  protected boolean isSessionLost(long errorCode) {
+    return (errorCode == PKCS11Constants.CKR_SESSION_HANDLE_INVALID)
+        || (errorCode == PKCS11Constants.CKR_SESSION_CLOSED)
+        || (errorCode == PKCS11Constants.CKR_DEVICE_REMOVED)
+        || (errorCode == PKCS11Constants.CKR_TOKEN_NOT_PRESENT);
+  }
+
+  /**
+   * Derive the key of one record.
+   *
+   * @param session
+   *          The session to use.
+   * @param data
+   *          The derivation data of the record.
+   * @return The handle of the derived key.
+   * @exception TokenException
+   *              If deriving fails.
+   */
+  protected long deriveKey(Session session, byte[] data) throws TokenException {
+    CK_MECHANISM ckMechanism = new CK_MECHANISM();
+    ckMechanism.mechanism = mechanismCode_;
+    ckMechanism.pParameter = createParameters(data).getPKCS11ParamsObject();
+    long keyHandle = session.deriveKeyHandle(ckMechanism, baseKey_.getObjectHandle(),
+        templateAttributes_);
+    derivedCount_.incrementAndGet();
+
+    return keyHandle;
+  }
+
+  /**
+   * Create the mechanism parameters for the derivation data of a record.
+   *
+   * @param data
+   *          The derivation data.
+   * @return The parameters.
+   */
+  protected Parameters createParameters(byte[] data) {
+    if (mechanismCode_ == PKCS11Constants.CKM_AES_CBC_ENCRYPT_DATA) {
+      return new AesCbcEncryptDataParameters(iv_, data);
+    }
+
+    return new KeyDerivationStringDataParameters(data);
+  }
+
+  /**
+   * Wait for the parts processed by other threads.
+   *
+   * @param futures
+   *          The futures of the parts.
+   * @param failure
+   *          The failure so far or null.
+   * @return The first failure or null.
+   */
+  protected TokenException awaitParts(List<Future<java.lang.Object>> futures,
+      TokenException failure) {
+    boolean interrupted = false;
+    for (int i = 0; i < futures.size(); i++) {
+      while (true) {
+        try {
+          futures.get(i).get();
+          break;
+        } catch (InterruptedException ex) {
+          // the parts are already running; wait for them
+          interrupted = true;
+        } catch (ExecutionException ex) {
+          if (!(ex.getCause() instanceof TokenException)) {
+            throw new TokenRuntimeException("Processing the records failed unexpectedly.", ex);
+          }
+          if (failure == null) {
+            failure = (TokenException) ex.getCause();
+          }
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    return failure;
+  }
+
+  /**
+   * Destroy the keys derived by a call and the keys evicted from the cache meanwhile. Failures are
+   * ignored; the keys disappear with their session anyway. Evicted keys are destroyed with the
+   * session they were derived with, holding its lock, and only if that session is not lost; thus,
+   * a handle number the module reused after losing the session is never destroyed.
+   *
+   * @param derivedHandles
+   *          The handles of the derived keys; -1 for cached or missing keys.
+   */
+  protected void destroyDerivedKeys(long[] derivedHandles) {
+    CachedKey[] evicted;
+    synchronized (cache_) {
+      evicted = evicted_.toArray(new CachedKey[evicted_.size()]);
+      evicted_.clear();
+    }
+    long[] handles = new long[derivedHandles.length];
+    int count = 0;
+    for (int i = 0; i < derivedHandles.length; i++) {
+      if (derivedHandles[i] != -1L) {
+        handles[count++] = derivedHandles[i];
+      }
+    }
+    try {
+      if (count > 0) {
+        destroyer_.destroyObjects(Arrays.copyOf(handles, count));
+      }
+    } catch (TokenException ex) {
+      // the session objects are destroyed with their sessions at the latest
+    }
+    for (int i = 0; i < evicted.length; i++) {
+      destroyCachedKey(evicted[i]);
+    }
+  }
+
+  /**
+   * Destroy an evicted key with its cache session, unless the session is lost.
+   *
+   * @param entry
+   *          The evicted key.
+   */
+  protected void destroyCachedKey(CachedKey entry) {
+    CacheSession cacheSession = entry.cacheSession_;
+    synchronized (cacheSession) {
+      synchronized (cache_) {
+        if (cacheSession.lost_) {
+          return;
+        }
+      }
+      Session session = cacheSession.session_;
+      try {
+        session.getModule().getPKCS11Module().C_DestroyObject(session.getSessionHandle(),
+            entry.handle_);
+      } catch (TokenException ex) {
+        // the key is destroyed with its session at the latest
+      }
+    }
+  }
+
+}
@@ -0,0 +1,358 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.DSAPublicKey;
+import iaik.pkcs.pkcs11.objects.ECDSAPublicKey;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.RSAPrivateKey;
+import iaik.pkcs.pkcs11.objects.RSAPublicKey;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.interfaces.DSAParams;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.DSAPublicKeySpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes the key material attributes of key objects into JDK types and memoizes the results in
+ * the attributes. Integers like CKA_MODULUS are converted once per attribute value (see
+ * ByteArrayAttribute.getBigIntegerValue), the ECParameterSpec of a curve is decoded once per
+ * encoding of CKA_EC_PARAMS and shared by all keys on this curve, and the java.security.PublicKey
+ * of a key object is built once and returned again, as long as the key material attributes hold
+ * the same values. Thus, repeated conversions of the same key object allocate nothing.
+ *
+ * <pre>
+ * <code>
+ *   java.security.PublicKey publicKey = KeyMaterialDecoder.getPublicKey(ecdsaPublicKey);
+ * </code>
+ * </pre>
+ *
+ * Supported are RSAPublicKey, the public part of RSAPrivateKey, ECDSAPublicKey with named curves
+ * and DSAPublicKey. The key objects must have their attributes read; they are not thread-safe, but
+ * concurrent conversions of the same object only decode twice.
+ *
+ * @version 1.0
+ */
+public class KeyMaterialDecoder {
+
+  /**
+   * The decoded curves. The key of this table is the encoding of CKA_EC_PARAMS; i.e. the DER
+   * encoded OID of a named curve.
+   */
+  protected static final ConcurrentHashMap<ByteBuffer, ECParameterSpec> CURVES =
+      new ConcurrentHashMap<ByteBuffer, ECParameterSpec>();
+
+  /**
+   * Get the JDK public key of the given key object. The key is memoized in the attribute holding
+   * the last part of the key material.
+   *
+   * @param key
+   *          An RSAPublicKey, RSAPrivateKey, ECDSAPublicKey or DSAPublicKey with its attributes
+   *          read.
+   * @return The JDK public key.
+   * @exception TokenException
+   *              If the key is of another type, misses its key material or can not be converted.
+   * @preconditions (key != null)
+   * @postconditions (result != null)
+   */
+  public static PublicKey getPublicKey(Key key) throws TokenException {
+    if (key instanceof RSAPublicKey) {
+      RSAPublicKey rsaKey = (RSAPublicKey) key;
+      return getRsaPublicKey(rsaKey.getModulus(), rsaKey.getPublicExponent());
+    } else if (key instanceof RSAPrivateKey) {
+      RSAPrivateKey rsaKey = (RSAPrivateKey) key;
+      return getRsaPublicKey(rsaKey.getModulus(), rsaKey.getPublicExponent());
+    } else if (key instanceof ECDSAPublicKey) {
+      ECDSAPublicKey ecKey = (ECDSAPublicKey) key;
+      return getEcPublicKey(ecKey.getEcdsaParams(), ecKey.getEcPoint());
+    } else if (key instanceof DSAPublicKey) {
+      return getDsaPublicKey((DSAPublicKey) key);
+    }
+
+    throw new TokenException("Unsupported key type " + key.getClass().getName() + ".");
+  }
+
+  /**
+   * Get the curve of the given CKA_EC_PARAMS attribute. The curve is shared by all attributes with
+   * the same encoding.
+   *
+   * @param ecParams
+   *          The CKA_EC_PARAMS attribute.
+   * @return The curve.
+   * @exception TokenException
+   *              If the attribute has no value or the parameters can not be decoded; e.g. explicit
+   *              parameters of a curve unknown to the JDK.
+   * @preconditions (ecParams != null)
+   * @postconditions (result != null)
+   */
+  public static ECParameterSpec getECParameterSpec(ByteArrayAttribute ecParams)
+      throws TokenException {
+    java.lang.Object decoded = ecParams.getDecodedValue();
+    if (decoded instanceof ECParameterSpec) {
+      return (ECParameterSpec) decoded;
+    }
+
+    byte[] encoded = requireValue(ecParams);
+    ECParameterSpec parameterSpec = CURVES.get(ByteBuffer.wrap(encoded));
+    if (parameterSpec == null) {
+      try {
+        AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+        parameters.init(encoded);
+        parameterSpec = parameters.getParameterSpec(ECParameterSpec.class);
+      } catch (GeneralSecurityException ex) {
+        throw new TokenException("Can not decode EC parameters.", ex);
+      } catch (IOException ex) {
+        throw new TokenException("Can not decode EC parameters.", ex);
+      }
+      ECParameterSpec existing = CURVES.putIfAbsent(ByteBuffer.wrap(encoded.clone()),
+          parameterSpec);
+      if (existing != null) {
+        parameterSpec = existing;
+      }
+    }
+    ecParams.setDecodedValue(parameterSpec);
+
+    return parameterSpec;
+  }
+
+  /**
+   * Get the RSA public key of the given attributes; memoized in the public exponent attribute.
+   *
+   * @param modulus
+   *          The CKA_MODULUS attribute.
+   * @param publicExponent
+   *          The CKA_PUBLIC_EXPONENT attribute.
+   * @return The JDK public key.
+   * @exception TokenException
+   *              If an attribute has no value or the conversion fails.
+   */
+  protected static PublicKey getRsaPublicKey(ByteArrayAttribute modulus,
+      ByteArrayAttribute publicExponent) throws TokenException {
+    requireValue(modulus);
+    requireValue(publicExponent);
+    BigInteger modulusValue = modulus.getBigIntegerValue();
+    java.lang.Object decoded = publicExponent.getDecodedValue();
+    if ((decoded instanceof java.security.interfaces.RSAPublicKey)
+        && (((java.security.interfaces.RSAPublicKey) decoded).getModulus() == modulusValue)) {
+      return (PublicKey) decoded;
+    }
+
+    PublicKey publicKey = generatePublic("RSA", new RSAPublicKeySpec(modulusValue,
+        publicExponent.getBigIntegerValue()));
+    publicExponent.setDecodedValue(publicKey);
+
+    return publicKey;
+  }
+
+  /**
+   * Get the EC public key of the given attributes; memoized in the EC point attribute.
+   *
+   * @param ecParams
+   *          The CKA_EC_PARAMS attribute.
+   * @param ecPoint
+   *          The CKA_EC_POINT attribute.
+   * @return The JDK public key.
+   * @exception TokenException
+   *              If an attribute has no value or can not be decoded.
+   */
+  protected static PublicKey getEcPublicKey(ByteArrayAttribute ecParams,
+      ByteArrayAttribute ecPoint) throws TokenException {
+    ECParameterSpec parameterSpec = getECParameterSpec(ecParams);
+    java.lang.Object decoded = ecPoint.getDecodedValue();
+    if ((decoded instanceof ECPublicKey)
+        && (((ECPublicKey) decoded).getParams() == parameterSpec)) {
+      return (PublicKey) decoded;
+    }
+
+    ECPoint point = decodeEcPoint(requireValue(ecPoint), parameterSpec);
+    PublicKey publicKey = generatePublic("EC", new ECPublicKeySpec(point, parameterSpec));
+    // the JDK key must keep the shared curve object for the identity check above
+    if (((ECPublicKey) publicKey).getParams() == parameterSpec) {
+      ecPoint.setDecodedValue(publicKey);
+    }
+
+    return publicKey;
+  }
+
+  /**
+   * Get the DSA public key of the given key object; memoized in the value attribute.
+   *
+   * @param key
+   *          The DSA public key object.
+   * @return The JDK public key.
+   * @exception TokenException
+   *              If an attribute has no value or the conversion fails.
+   */
+  protected static PublicKey getDsaPublicKey(DSAPublicKey key) throws TokenException {
+    requireValue(key.getPrime());
+    requireValue(key.getSubprime());
+    requireValue(key.getBase());
+    requireValue(key.getValue());
+    BigInteger p = key.getPrime().getBigIntegerValue();
+    BigInteger q = key.getSubprime().getBigIntegerValue();
+    BigInteger g = key.getBase().getBigIntegerValue();
+    java.lang.Object decoded = key.getValue().getDecodedValue();
+    if (decoded instanceof java.security.interfaces.DSAPublicKey) {
+      DSAParams params = ((java.security.interfaces.DSAPublicKey) decoded).getParams();
+      if ((params.getP() == p) && (params.getQ() == q) && (params.getG() == g)) {
+        return (PublicKey) decoded;
+      }
+    }
+
+    PublicKey publicKey = generatePublic("DSA", new DSAPublicKeySpec(
+        key.getValue().getBigIntegerValue(), p, q, g));
+    key.getValue().setDecodedValue(publicKey);
+
+    return publicKey;
+  }
+
+  /**
+   * Generate a JDK public key from a key specification.
+   *
+   * @param algorithm
+   *          The key algorithm.
+   * @param keySpec
+   *          The key specification.
+   * @return The public key.
+   * @exception TokenException
+   *              If the conversion fails.
+   */
+  protected static PublicKey generatePublic(String algorithm, java.security.spec.KeySpec keySpec)
+      throws TokenException {
+    try {
+      return KeyFactory.getInstance(algorithm).generatePublic(keySpec);
+    } catch (GeneralSecurityException ex) {
+      throw new TokenException("Can not convert " + algorithm + " public key.", ex);
+    }
+  }
+
+  /**
+   * Decode the CKA_EC_POINT value. Most tokens return the uncompressed point wrapped in a DER octet
+   * string, some return the plain point; both are accepted.
+   *
+   * @param encodedPoint
+   *          The value of CKA_EC_POINT.
+   * @param parameterSpec
+   *          The curve of the key.
+   * @return The decoded point.
+   * @exception TokenException
+   *              If the point is not an uncompressed point on this curve.
+   */
+  protected static ECPoint decodeEcPoint(byte[] encodedPoint, ECParameterSpec parameterSpec)
+      throws TokenException {
+    int fieldLength = (parameterSpec.getCurve().getField().getFieldSize() + 7) / 8;
+    byte[] point = encodedPoint;
+    if (point.length != 2 * fieldLength + 1) {
+      point = unwrapOctetString(encodedPoint);
+    }
+    if ((point == null) || (point.length != 2 * fieldLength + 1) || (point[0] != 0x04)) {
+      throw new TokenException("Unsupported EC point encoding.");
+    }
+    BigInteger x = new BigInteger(1, Arrays.copyOfRange(point, 1, 1 + fieldLength));
+    BigInteger y = new BigInteger(1, Arrays.copyOfRange(point, 1 + fieldLength, point.length));
+
+    return new ECPoint(x, y);
+  }
+
+  /**
+   * Get the contents of a DER encoded octet string.
+   *
+   * @param encoding
+   *          The DER encoding.
+   * @return The contents or null, if the encoding is no octet string.
+   */
+  protected static byte[] unwrapOctetString(byte[] encoding) {
+    if ((encoding.length < 2) || (encoding[0] != 0x04)) {
+      return null;
+    }
+    int length = encoding[1] & 0xFF;
+    int offset = 2;
+    if (length > 0x80) {
+      int lengthBytes = length & 0x7F;
+      if (lengthBytes > 3 || encoding.length < 2 + lengthBytes) {
+        return null;
+      }
+      length = 0;
+      for (int i = 0; i < lengthBytes; i++) {
+        length = (length << 8) | (encoding[offset++] & 0xFF);
+      }
+    }
+    if (offset + length != encoding.length) {
+      return null;
+    }
+
+    return Arrays.copyOfRange(encoding, offset, encoding.length);
+  }
+
+  /**
+   * Get the value of a key material attribute.
+   *
+   * @param attribute
+   *          The attribute.
+   * @return The value.
+   * @exception TokenException
+   *              If the attribute has no value.
+   */
+  protected static byte[] requireValue(ByteArrayAttribute attribute) throws TokenException {
+    byte[] value = attribute.getByteArrayValue();
+    if (value == null) {
+      throw new TokenException("The key material of the key is not available.");
+    }
+
+    return value;
+  }
+
+}
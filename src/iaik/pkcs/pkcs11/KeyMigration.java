@@ -0,0 +1,863 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.Object;
+import iaik.pkcs.pkcs11.objects.PrivateKey;
+import iaik.pkcs.pkcs11.objects.SecretKey;
+import iaik.pkcs.pkcs11.wrapper.Constants;
+import iaik.pkcs.pkcs11.wrapper.Functions;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies keys from one token to another by wrapping them on the source token and unwrapping them
+ * on the destination token. The keys are wrapped by several threads with sessions of the source
+ * pool and unwrapped by several threads with sessions of the destination pool; bounded queues
+ * between the stages keep the number of wrapped keys in memory small. The wrapping key on the
+ * source token and the unwrapping key on the destination token must be the same key; e.g. an AES
+ * key or an RSA key pair shared by both partitions.
+ *
+ * <pre>
+ * <code>
+ *   KeyMigration migration = new KeyMigration(sourcePool, destinationPool,
+ *       Mechanism.get(PKCS11Constants.CKM_AES_KEY_WRAP_PAD), sourceWrappingKey,
+ *       destinationUnwrappingKey);
+ *   migration.setJournal(new File("migration.journal"));
+ *   KeyMigration.Result result = migration.migrate(new SecretKey(), 4, 4);
+ * </code>
+ * </pre>
+ *
+ * The template of each unwrapped key is a copy of the usage, storage and identification
+ * attributes of the source key; e.g. CKA_LABEL, CKA_ID, CKA_SIGN or CKA_SENSITIVE. If a journal is
+ * set, each migrated key is recorded there; a later run with the same journal skips these keys.
+ * Keys are identified by their object class, key type, CKA_ID and label; keys with neither ID nor
+ * label are identified by their object handle, which may change between runs. Before a key is
+ * unwrapped, the destination token is searched for a key with the same class, key type, CKA_ID and
+ * label; if there is one, e.g. because a previous run crashed before it could write the journal,
+ * the key is skipped too. Public keys are never migrated; they can not be wrapped.
+ *
+ * @version 1.0
+ * @invariants (sourcePool_ != null) and (destinationPool_ != null) and (mechanism_ != null)
+ *             and (wrappingKey_ != null) and (unwrappingKey_ != null)
+ */
+public class KeyMigration {
+
+  /**
+   * The result of a migration.
+   */
+  public static class Result {
+
+    /**
+     * The number of keys migrated by this run.
+     */
+    protected int migratedCount_;
+
+    /**
+     * The number of keys skipped, because the journal lists them as migrated or the destination
+     * token has them already.
+     */
+    protected int skippedCount_;
+
+    /**
+     * The keys that failed. The key of this table is the identity of the key.
+     */
+    protected Map<String, Exception> failures_;
+
+    /**
+     * Get the number of keys migrated by this run.
+     *
+     * @return The number of keys.
+     */
+    public int getMigratedCount() {
+      return migratedCount_;
+    }
+
+    /**
+     * Get the number of keys skipped, because a previous run migrated them or the destination
+     * token has them already.
+     *
+     * @return The number of keys.
+     */
+    public int getSkippedCount() {
+      return skippedCount_;
+    }
+
+    /**
+     * Get the keys that could not be migrated.
+     *
+     * @return A sorted map from the identity of the key to the exception.
+     * @postconditions (result != null)
+     */
+    public Map<String, Exception> getFailures() {
+      return failures_;
+    }
+
+    /**
+     * Returns the string representation of this object.
+     *
+     * @return The string representation of object
+     */
+    public String toString() {
+      StringBuffer buffer = new StringBuffer();
+
+      buffer.append("Migrated: ");
+      buffer.append(migratedCount_);
+      buffer.append(Constants.NEWLINE);
+      buffer.append("Skipped: ");
+      buffer.append(skippedCount_);
+      buffer.append(Constants.NEWLINE);
+      buffer.append("Failed: ");
+      buffer.append(failures_.size());
+
+      return buffer.toString();
+    }
+
+  }
+
+  /**
+   * A key wrapped on the source token.
+   */
+  protected static class WrappedKey {
+
+    protected final Key sourceKey_;
+
+    protected final String identity_;
+
+    protected final byte[] encoding_;
+
+    protected WrappedKey(Key sourceKey, String identity, byte[] encoding) {
+      sourceKey_ = sourceKey;
+      identity_ = identity;
+      encoding_ = encoding;
+    }
+
+  }
+
+  /**
+   * The attributes copied from the source key into the unwrap template.
+   */
+  protected static final Set<Long> COPIED_ATTRIBUTES = new HashSet<Long>();
+
+  /**
+   * The types of COPIED_ATTRIBUTES; the attributes read from the source keys.
+   */
+  protected static final long[] COPIED_ATTRIBUTE_TYPES;
+
+  static {
+    Long[] attributes = new Long[] { Attribute.CLASS, Attribute.KEY_TYPE, Attribute.TOKEN,
+        Attribute.PRIVATE, Attribute.MODIFIABLE, Attribute.LABEL, Attribute.ID,
+        Attribute.SUBJECT, Attribute.START_DATE, Attribute.END_DATE, Attribute.SENSITIVE,
+        Attribute.EXTRACTABLE, Attribute.ENCRYPT, Attribute.DECRYPT, Attribute.WRAP,
+        Attribute.UNWRAP, Attribute.SIGN, Attribute.SIGN_RECOVER, Attribute.VERIFY,
+        Attribute.VERIFY_RECOVER, Attribute.DERIVE, Attribute.WRAP_WITH_TRUSTED,
+        Attribute.ALWAYS_AUTHENTICATE };
+    COPIED_ATTRIBUTES.addAll(Arrays.asList(attributes));
+    COPIED_ATTRIBUTE_TYPES = new long[attributes.length];
+    for (int i = 0; i < attributes.length; i++) {
+      COPIED_ATTRIBUTE_TYPES[i] = attributes[i].longValue();
+    }
+  }
+
+  /**
+   * The marker telling a worker that no more keys follow.
+   */
+  protected static final java.lang.Object END = new java.lang.Object();
+
+  /**
+   * The pool of sessions with the source token.
+   */
+  protected SessionPool sourcePool_;
+
+  /**
+   * The pool of sessions with the destination token.
+   */
+  protected SessionPool destinationPool_;
+
+  /**
+   * The wrapping mechanism.
+   */
+  protected Mechanism mechanism_;
+
+  /**
+   * The wrapping key on the source token.
+   */
+  protected Key wrappingKey_;
+
+  /**
+   * The unwrapping key on the destination token.
+   */
+  protected Key unwrappingKey_;
+
+  /**
+   * The journal file or null.
+   */
+  protected File journal_;
+
+  /**
+   * The capacity of each queue between the stages.
+   */
+  protected int queueCapacity_ = 64;
+
+  /**
+   * Create a new key migration.
+   *
+   * @param sourcePool
+   *          The pool of sessions with the source token.
+   * @param destinationPool
+   *          The pool of sessions with the destination token; the sessions must be read-write
+   *          sessions.
+   * @param mechanism
+   *          The wrapping mechanism.
+   * @param wrappingKey
+   *          The wrapping key on the source token.
+   * @param unwrappingKey
+   *          The unwrapping key on the destination token.
+   * @preconditions (sourcePool != null) and (destinationPool != null) and (mechanism != null)
+   *                and (wrappingKey != null) and (unwrappingKey != null)
+   */
+  public KeyMigration(SessionPool sourcePool, SessionPool destinationPool, Mechanism mechanism,
+      Key wrappingKey, Key unwrappingKey) {
+    if (sourcePool == null) {
+      throw new NullPointerException("Argument \"sourcePool\" must not be null.");
+    }
+    if (destinationPool == null) {
+      throw new NullPointerException("Argument \"destinationPool\" must not be null.");
+    }
+    if (mechanism == null) {
+      throw new NullPointerException("Argument \"mechanism\" must not be null.");
+    }
+    if (wrappingKey == null) {
+      throw new NullPointerException("Argument \"wrappingKey\" must not be null.");
+    }
+    if (unwrappingKey == null) {
+      throw new NullPointerException("Argument \"unwrappingKey\" must not be null.");
+    }
+    sourcePool_ = sourcePool;
+    destinationPool_ = destinationPool;
+    mechanism_ = mechanism;
+    wrappingKey_ = wrappingKey;
+    unwrappingKey_ = unwrappingKey;
+  }
+
+  /**
+   * Set the journal of migrated keys. If the file exists, the keys listed in it are skipped.
+   *
+   * @param journal
+   *          The journal file or null for no journal.
+   */
+  public void setJournal(File journal) {
+    journal_ = journal;
+  }
+
+  /**
+   * Set the capacity of the queues between the stages.
+   *
+   * @param queueCapacity
+   *          The maximum number of keys waiting in each queue.
+   * @preconditions (queueCapacity > 0)
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    if (queueCapacity <= 0) {
+      throw new IllegalArgumentException("Argument \"queueCapacity\" must be positive.");
+    }
+    queueCapacity_ = queueCapacity;
+  }
+
+  /**
+   * Migrate all keys on the source token matching the given template. The keys are found first;
+   * then they are wrapped and unwrapped concurrently. A key that fails does not stop the migration;
+   * it is reported in the result.
+   *
+   * @param template
+   *          The search template; e.g. new SecretKey() for all secret keys.
+   * @param wrapThreads
+   *          The number of threads wrapping keys.
+   * @param unwrapThreads
+   *          The number of threads unwrapping keys.
+   * @return The result of the migration.
+   * @exception TokenException
+   *              If finding the keys, reading or writing the journal fails, or the thread was
+   *              interrupted.
+   * @preconditions (template != null) and (wrapThreads > 0) and (unwrapThreads > 0)
+   * @postconditions (result != null)
+   */
+  public Result migrate(final Key template, int wrapThreads, int unwrapThreads)
+      throws TokenException {
+    if (template == null) {
+      throw new NullPointerException("Argument \"template\" must not be null.");
+    }
+    if ((wrapThreads <= 0) || (unwrapThreads <= 0)) {
+      throw new IllegalArgumentException("The numbers of threads must be positive.");
+    }
+    Set<String> migrated = readJournal();
+    List<Key> keys = sourcePool_.execute(new SessionPool.SessionOperation<List<Key>>() {
+      public List<Key> execute(Session session) throws TokenException {
+        return findKeys(session, template);
+      }
+    });
+
+    final Result result = new Result();
+    final Map<String, Exception> failures = Collections
+        .synchronizedMap(new TreeMap<String, Exception>());
+    final AtomicInteger migratedCount = new AtomicInteger();
+    final AtomicInteger skippedCount = new AtomicInteger();
+    final BlockingQueue<java.lang.Object> sourceQueue = new ArrayBlockingQueue<java.lang.Object>(
+        queueCapacity_);
+    final BlockingQueue<java.lang.Object> wrappedQueue = new ArrayBlockingQueue<java.lang.Object>(
+        queueCapacity_);
+    final Writer journalWriter = openJournal();
+    final AtomicInteger runningWrappers = new AtomicInteger(wrapThreads);
+
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < wrapThreads; i++) {
+      threads.add(new Thread("KeyMigration-wrap-" + i) {
+        public void run() {
+          try {
+            wrapKeys(sourceQueue, wrappedQueue, failures);
+          } catch (InterruptedException ex) {
+            // stopped by migrate
+          } finally {
+            if (runningWrappers.decrementAndGet() == 0) {
+              putEnd(wrappedQueue);
+            }
+          }
+        }
+      });
+    }
+    for (int i = 0; i < unwrapThreads; i++) {
+      threads.add(new Thread("KeyMigration-unwrap-" + i) {
+        public void run() {
+          try {
+            unwrapKeys(wrappedQueue, journalWriter, failures, migratedCount, skippedCount);
+          } catch (InterruptedException ex) {
+            // stopped by migrate
+          }
+        }
+      });
+    }
+    for (int i = 0; i < threads.size(); i++) {
+      threads.get(i).start();
+    }
+
+    try {
+      for (int i = 0; i < keys.size(); i++) {
+        Key key = keys.get(i);
+        if (migrated.contains(getIdentity(key))) {
+          result.skippedCount_++;
+        } else {
+          sourceQueue.put(key);
+        }
+      }
+      for (int i = 0; i < wrapThreads; i++) {
+        sourceQueue.put(END);
+      }
+      for (int i = 0; i < threads.size(); i++) {
+        threads.get(i).join();
+      }
+    } catch (InterruptedException ex) {
+      for (int i = 0; i < threads.size(); i++) {
+        threads.get(i).interrupt();
+      }
+      Thread.currentThread().interrupt();
+      throw new TokenException("Interrupted while migrating keys.", ex);
+    } finally {
+      closeJournal(journalWriter);
+    }
+
+    result.migratedCount_ = migratedCount.get();
+    result.skippedCount_ += skippedCount.get();
+    result.failures_ = failures;
+
+    return result;
+  }
+
+  /**
+   * Find all keys matching the template. Only the handles are searched for; of each key, only its
+   * class and the attributes of COPIED_ATTRIBUTES are read afterwards.
+   *
+   * @param session
+   *          The session with the source token.
+   * @param template
+   *          The search template.
+   * @return The keys found.
+   * @exception TokenException
+   *              If the search fails.
+   */
+  protected List<Key> findKeys(Session session, Key template) throws TokenException {
+    List<Long> handles = new ArrayList<Long>();
+    session.findObjectsInit(template);
+    try {
+      long[] found;
+      while ((found = session.findObjectHandles(100)).length > 0) {
+        for (int i = 0; i < found.length; i++) {
+          handles.add(Long.valueOf(found[i]));
+        }
+      }
+    } finally {
+      session.findObjectsFinal();
+    }
+
+    List<Key> keys = new ArrayList<Key>(handles.size());
+    for (int i = 0; i < handles.size(); i++) {
+      Key key = readKey(session, handles.get(i).longValue());
+      if (key != null) {
+        keys.add(key);
+      }
+    }
+
+    return keys;
+  }
+
+  /**
+   * Read the class and the attributes of COPIED_ATTRIBUTES of the key with the given handle.
+   *
+   * @param session
+   *          The session with the source token.
+   * @param objectHandle
+   *          The handle of the key.
+   * @return The key or null, if the object is no secret or private key.
+   * @exception TokenException
+   *              If reading the attributes fails.
+   */
+  protected Key readKey(Session session, long objectHandle) throws TokenException {
+    Key key = new Key();
+    Object.readAttributes(session, objectHandle, key, new long[] { PKCS11Constants.CKA_CLASS });
+    Long objectClass = key.getObjectClass().getLongValue();
+    if (Object.ObjectClass.SECRET_KEY.equals(objectClass)) {
+      key = new SecretKey();
+    } else if (Object.ObjectClass.PRIVATE_KEY.equals(objectClass)) {
+      key = new PrivateKey();
+    } else {
+      // public keys can not be wrapped
+      return null;
+    }
+    Object.readAttributes(session, objectHandle, key, COPIED_ATTRIBUTE_TYPES);
+
+    return key;
+  }
+
+  /**
+   * Wrap the keys of the source queue until the end marker and put them into the wrapped queue.
+   *
+   * @param sourceQueue
+   *          The queue of keys to wrap.
+   * @param wrappedQueue
+   *          The queue of wrapped keys.
+   * @param failures
+   *          The table of failed keys.
+   * @exception InterruptedException
+   *              If the thread was interrupted.
+   */
+  protected void wrapKeys(BlockingQueue<java.lang.Object> sourceQueue,
+      BlockingQueue<java.lang.Object> wrappedQueue, Map<String, Exception> failures)
+      throws InterruptedException {
+    java.lang.Object item;
+    while ((item = sourceQueue.take()) != END) {
+      final Key key = (Key) item;
+      String identity = getIdentity(key);
+      try {
+        byte[] encoding = sourcePool_.execute(new SessionPool.SessionOperation<byte[]>() {
+          public byte[] execute(Session session) throws TokenException {
+            return session.wrapKey(mechanism_, wrappingKey_, key);
+          }
+        });
+        wrappedQueue.put(new WrappedKey(key, identity, encoding));
+      } catch (TokenException ex) {
+        failures.put(identity, ex);
+      } catch (RuntimeException ex) {
+        failures.put(identity, ex);
+      }
+    }
+  }
+
+  /**
+   * Unwrap the keys of the wrapped queue until the end marker and record them in the journal. A key
+   * the destination token has already is not unwrapped again, but recorded too.
+   *
+   * @param wrappedQueue
+   *          The queue of wrapped keys.
+   * @param journalWriter
+   *          The writer of the journal or null.
+   * @param failures
+   *          The table of failed keys.
+   * @param migratedCount
+   *          The counter of migrated keys.
+   * @param skippedCount
+   *          The counter of keys found on the destination token.
+   * @exception InterruptedException
+   *              If the thread was interrupted.
+   */
+  protected void unwrapKeys(BlockingQueue<java.lang.Object> wrappedQueue, Writer journalWriter,
+      Map<String, Exception> failures, AtomicInteger migratedCount, AtomicInteger skippedCount)
+      throws InterruptedException {
+    java.lang.Object item;
+    while ((item = wrappedQueue.take()) != END) {
+      final WrappedKey wrappedKey = (WrappedKey) item;
+      try {
+        final Key keyTemplate = createTemplate(wrappedKey.sourceKey_);
+        final Key searchTemplate = createSearchTemplate(wrappedKey.sourceKey_);
+        boolean unwrapped = destinationPool_.execute(
+            new SessionPool.SessionOperation<Boolean>() {
+              public Boolean execute(Session session) throws TokenException {
+                if ((searchTemplate != null) && exists(session, searchTemplate)) {
+                  return Boolean.FALSE;
+                }
+                session.unwrapKey(mechanism_, unwrappingKey_, wrappedKey.encoding_,
+                    keyTemplate);
+                return Boolean.TRUE;
+              }
+            }).booleanValue();
+        writeJournal(journalWriter, wrappedKey.identity_);
+        if (unwrapped) {
+          migratedCount.incrementAndGet();
+        } else {
+          skippedCount.incrementAndGet();
+        }
+      } catch (TokenException ex) {
+        failures.put(wrappedKey.identity_, ex);
+      } catch (RuntimeException ex) {
+        failures.put(wrappedKey.identity_, ex);
+      } finally {
+        Arrays.fill(wrappedKey.encoding_, (byte) 0);
+      }
+    }
+    // let the other unwrapping threads end too
+    putEnd(wrappedQueue);
+  }
+
+  /**
+   * Create the unwrap template for the given source key; a copy of the key with only the
+   * attributes of COPIED_ATTRIBUTES that are present and not sensitive.
+   *
+   * @param sourceKey
+   *          The source key.
+   * @return The template.
+   * @postconditions (result != null)
+   */
+  protected Key createTemplate(Key sourceKey) {
+    Key template = (Key) sourceKey.clone();
+    Enumeration<?> attributes = template.getAttributeTable().elements();
+    while (attributes.hasMoreElements()) {
+      Attribute attribute = (Attribute) attributes.nextElement();
+      if (!COPIED_ATTRIBUTES.contains(attribute.getType()) || attribute.isSensitive()) {
+        attribute.setPresent(false);
+      }
+    }
+    BooleanAttribute token = (BooleanAttribute) template.getAttribute(Attribute.TOKEN
+        .longValue());
+    token.setBooleanValue(Boolean.TRUE);
+    template.setObjectHandle(-1);
+
+    return template;
+  }
+
+  /**
+   * Create the template to search the destination token for a copy of the given source key; a copy
+   * of the key with only its class, key type, CKA_ID and label present.
+   *
+   * @param sourceKey
+   *          The source key.
+   * @return The template or null, if the key has neither ID nor label; then it can not be found
+   *         reliably.
+   */
+  protected Key createSearchTemplate(Key sourceKey) {
+    if (!hasId(sourceKey) && !hasLabel(sourceKey)) {
+      return null;
+    }
+    Key template = (Key) sourceKey.clone();
+    Enumeration<?> attributes = template.getAttributeTable().elements();
+    while (attributes.hasMoreElements()) {
+      Attribute attribute = (Attribute) attributes.nextElement();
+      Long type = attribute.getType();
+      if (!Attribute.CLASS.equals(type) && !Attribute.KEY_TYPE.equals(type)
+          && !Attribute.ID.equals(type) && !Attribute.LABEL.equals(type)) {
+        attribute.setPresent(false);
+      }
+    }
+    template.setObjectHandle(-1);
+
+    return template;
+  }
+
+  /**
+   * Check, if the token has an object matching the given template.
+   *
+   * @param session
+   *          The session with the destination token.
+   * @param template
+   *          The search template.
+   * @return True, if there is at least one matching object.
+   * @exception TokenException
+   *              If the search fails.
+   */
+  protected boolean exists(Session session, Key template) throws TokenException {
+    session.findObjectsInit(template);
+    try {
+      return session.findObjectHandles(1).length > 0;
+    } finally {
+      session.findObjectsFinal();
+    }
+  }
+
+  /**
+   * Check, if the given key has a CKA_ID.
+   *
+   * @param key
+   *          The key.
+   * @return True, if the ID is present.
+   */
+  protected static boolean hasId(Key key) {
+    ByteArrayAttribute id = key.getId();
+
+    return id.isPresent() && (id.getByteArrayValue() != null);
+  }
+
+  /**
+   * Check, if the given key has a label.
+   *
+   * @param key
+   *          The key.
+   * @return True, if the label is present.
+   */
+  protected static boolean hasLabel(Key key) {
+    return key.getLabel().isPresent() && (key.getLabel().getCharArrayValue() != null);
+  }
+
+  /**
+   * Get the identity of a key as used in the journal. It contains the CKA_ID and the label, as far
+   * as they are present; two keys differing only in the label have different identities.
+   *
+   * @param key
+   *          The key.
+   * @return The identity.
+   * @postconditions (result != null)
+   */
+  protected String getIdentity(Key key) {
+    StringBuffer buffer = new StringBuffer();
+    buffer.append(key.getObjectClass().getLongValue());
+    buffer.append('/');
+    buffer.append(key.getKeyType().getLongValue());
+    buffer.append('/');
+    boolean hasId = hasId(key);
+    if (hasId) {
+      buffer.append("id:");
+      buffer.append(Functions.toHexString(key.getId().getByteArrayValue()));
+    }
+    if (hasLabel(key)) {
+      if (hasId) {
+        buffer.append('/');
+      }
+      buffer.append("label:");
+      buffer.append(key.getLabel().getCharArrayValue());
+    } else if (!hasId) {
+      buffer.append("handle:");
+      buffer.append(key.getObjectHandle());
+    }
+
+    return buffer.toString();
+  }
+
+  /**
+   * Put the end marker into the given queue. If the thread is interrupted, the migration is being
+   * aborted and nobody may take from the queue any more; then the waiting items are discarded to
+   * make room for the marker, instead of waiting forever.
+   *
+   * @param queue
+   *          The queue.
+   */
+  protected static void putEnd(BlockingQueue<java.lang.Object> queue) {
+    boolean interrupted = Thread.interrupted();
+    while (!queue.offer(END)) {
+      if (interrupted) {
+        discard(queue);
+      } else {
+        try {
+          if (queue.offer(END, 100L, TimeUnit.MILLISECONDS)) {
+            break;
+          }
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Remove all items from the given queue of an aborted migration and clear the encodings of
+   * wrapped keys.
+   *
+   * @param queue
+   *          The queue.
+   */
+  protected static void discard(BlockingQueue<java.lang.Object> queue) {
+    List<java.lang.Object> items = new ArrayList<java.lang.Object>();
+    queue.drainTo(items);
+    for (int i = 0; i < items.size(); i++) {
+      if (items.get(i) instanceof WrappedKey) {
+        Arrays.fill(((WrappedKey) items.get(i)).encoding_, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * Read the identities of the keys migrated by previous runs.
+   *
+   * @return The identities.
+   * @exception TokenException
+   *              If reading the journal fails.
+   */
+  protected Set<String> readJournal() throws TokenException {
+    Set<String> migrated = new HashSet<String>();
+    if ((journal_ == null) || !journal_.exists()) {
+      return migrated;
+    }
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+          journal_), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.length() > 0) {
+            migrated.add(line);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException ex) {
+      throw new TokenException("Reading the journal " + journal_ + " failed.", ex);
+    }
+
+    return migrated;
+  }
+
+  /**
+   * Open the journal for appending.
+   *
+   * @return The writer or null, if there is no journal.
+   * @exception TokenException
+   *              If opening the journal fails.
+   */
+  protected Writer openJournal() throws TokenException {
+    if (journal_ == null) {
+      return null;
+    }
+    try {
+      return new OutputStreamWriter(new FileOutputStream(journal_, true), "UTF-8");
+    } catch (IOException ex) {
+      throw new TokenException("Opening the journal " + journal_ + " failed.", ex);
+    }
+  }
+
+  /**
+   * Record a migrated key in the journal. The entry is flushed at once; thus, it survives a crash
+   * of the application.
+   *
+   * @param journalWriter
+   *          The writer of the journal or null.
+   * @param identity
+   *          The identity of the key.
+   * @exception TokenException
+   *              If writing the journal fails.
+   */
+  protected void writeJournal(Writer journalWriter, String identity) throws TokenException {
+    if (journalWriter == null) {
+      return;
+    }
+    try {
+      synchronized (journalWriter) {
+        journalWriter.write(identity);
+        journalWriter.write('\n');
+        journalWriter.flush();
+      }
+    } catch (IOException ex) {
+      throw new TokenException("Writing the journal " + journal_ + " failed.", ex);
+    }
+  }
+
+  /**
+   * Close the journal.
+   *
+   * @param journalWriter
+   *          The writer of the journal or null.
+   */
+  protected void closeJournal(Writer journalWriter) {
+    if (journalWriter != null) {
+      try {
+        journalWriter.close();
+      } catch (IOException ex) {
+        // all entries were flushed already
+      }
+    }
+  }
+
+}
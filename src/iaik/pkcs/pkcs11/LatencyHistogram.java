@@ -0,0 +1,142 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations. The durations are counted in buckets of powers of two
+ * nanoseconds; recording a duration is a single atomic increment, so it can be done on every
+ * operation. Percentiles are approximated by the upper bound of the bucket they fall into; i.e.
+ * they are at most twice the exact value.
+ *
+ * @version 1.0
+ */
+public class LatencyHistogram {
+
+  /**
+   * The number of buckets; bucket i counts durations below 2^(i+1) nanoseconds.
+   */
+  protected static final int BUCKETS = 63;
+
+  /**
+   * The counts per bucket.
+   */
+  protected final AtomicLongArray buckets_ = new AtomicLongArray(BUCKETS);
+
+  /**
+   * The number of recorded durations.
+   */
+  protected final LongAdder count_ = new LongAdder();
+
+  /**
+   * The sum of all recorded durations in nanoseconds.
+   */
+  protected final LongAdder sumNanos_ = new LongAdder();
+
+  /**
+   * Record a duration.
+   *
+   * @param nanos
+   *          The duration in nanoseconds. Negative values are counted as 0.
+   */
+  public void record(long nanos) {
+    long value = Math.max(nanos, 0L);
+    int bucket = Math.min(63 - Long.numberOfLeadingZeros(value | 1L), BUCKETS - 1);
+    buckets_.incrementAndGet(bucket);
+    count_.increment();
+    sumNanos_.add(value);
+  }
+
+  /**
+   * Get the number of recorded durations.
+   *
+   * @return The count.
+   */
+  public long getCount() {
+    return count_.sum();
+  }
+
+  /**
+   * Get the mean of the recorded durations.
+   *
+   * @return The mean in nanoseconds or 0, if nothing was recorded.
+   */
+  public long getMeanNanos() {
+    long count = count_.sum();
+    return (count > 0) ? sumNanos_.sum() / count : 0L;
+  }
+
+  /**
+   * Get an approximation of the given percentile.
+   *
+   * @param fraction
+   *          The percentile as fraction; e.g. 0.99 for the 99th percentile.
+   * @return The upper bound of the bucket that holds the percentile in nanoseconds or 0, if nothing
+   *         was recorded.
+   * @preconditions (fraction >= 0.0) and (fraction <= 1.0)
+   */
+  public long getPercentileNanos(double fraction) {
+    long[] counts = new long[BUCKETS];
+    long total = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = buckets_.get(i);
+      total += counts[i];
+    }
+    if (total == 0L) {
+      return 0L;
+    }
+    long rank = Math.max(1L, (long) Math.ceil(fraction * total));
+    long cumulated = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      cumulated += counts[i];
+      if (cumulated >= rank) {
+        return (i < 62) ? (1L << (i + 1)) : Long.MAX_VALUE;
+      }
+    }
+
+    return Long.MAX_VALUE;
+  }
+
+}
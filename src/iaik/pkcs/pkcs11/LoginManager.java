@@ -0,0 +1,337 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.PrivateKey;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Manages the login state of a token. In PKCS#11, the login state is shared by all sessions of an
+ * application with a token; once logged in, each new session has user rights. This class logs in
+ * once, remembers the login state and checks it with the session state (SessionInfo.getState())
+ * only if it does not know it. If an operation fails with CKR_USER_NOT_LOGGED_IN, e.g. after the
+ * token was reset, the manager logs in again and retries the operation once.
+ *
+ * <pre>
+ * <code>
+ *   final LoginManager loginManager = token.getLoginManager();
+ *   loginManager.setPin(Session.UserType.USER, userPIN);
+ *   byte[] signatureValue = loginManager.execute(session,
+ *       new SessionPool.SessionOperation&lt;byte[]&gt;() {
+ *     public byte[] execute(Session session) throws TokenException {
+ *       session.signInit(mechanism, privateKey);
+ *       loginManager.authenticateKeyUse(session, privateKey);
+ *       return session.sign(data);
+ *     }
+ *   });
+ * </code>
+ * </pre>
+ *
+ * Keys with CKA_ALWAYS_AUTHENTICATE need a context specific login after each init call;
+ * authenticateKeyUse performs this login only for those keys. The value of the attribute is cached
+ * per object handle. Objects of this class are thread-safe.
+ *
+ * @version 1.0
+ * @invariants (token_ != null)
+ */
+public class LoginManager {
+
+  /**
+   * The token whose login state this object manages.
+   */
+  protected Token token_;
+
+  /**
+   * Session.UserType.USER or Session.UserType.SO.
+   */
+  protected boolean userType_ = Session.UserType.USER;
+
+  /**
+   * The PIN or null, if the token has a protected authentication path.
+   */
+  protected char[] pin_;
+
+  /**
+   * True, if this manager knows that the token is logged in.
+   */
+  protected volatile boolean loggedIn_;
+
+  /**
+   * The cached values of CKA_ALWAYS_AUTHENTICATE. The key of this table is the object handle as
+   * Long.
+   */
+  protected final ConcurrentHashMap<Long, Boolean> alwaysAuthenticate_ =
+      new ConcurrentHashMap<Long, Boolean>();
+
+  /**
+   * Create a new login manager for the given token.
+   *
+   * @param token
+   *          The token.
+   * @preconditions (token != null)
+   */
+  protected LoginManager(Token token) {
+    if (token == null) {
+      throw new NullPointerException("Argument \"token\" must not be null.");
+    }
+    token_ = token;
+  }
+
+  /**
+   * Get the token of this login manager.
+   *
+   * @return The token.
+   * @postconditions (result != null)
+   */
+  public Token getToken() {
+    return token_;
+  }
+
+  /**
+   * Set the user type and the PIN to log in with. This manager keeps a copy of the PIN until
+   * clearPin is called.
+   *
+   * @param userType
+   *          Session.UserType.USER or Session.UserType.SO.
+   * @param pin
+   *          The PIN or null, if the token has a protected authentication path.
+   */
+  public synchronized void setPin(boolean userType, char[] pin) {
+    clearPin();
+    userType_ = userType;
+    pin_ = (pin != null) ? pin.clone() : null;
+  }
+
+  /**
+   * Overwrite and forget the PIN. Further logins use a protected authentication path.
+   */
+  public synchronized void clearPin() {
+    if (pin_ != null) {
+      Arrays.fill(pin_, '\0');
+      pin_ = null;
+    }
+  }
+
+  /**
+   * Check, if this manager knows that the token is logged in. This method does not query the
+   * token.
+   *
+   * @return True, if logged in according to the cached state.
+   */
+  public boolean isLoggedIn() {
+    return loggedIn_;
+  }
+
+  /**
+   * Forget the cached login state; e.g. after a token event. The next call to ensureLoggedIn checks
+   * the session state.
+   */
+  public void invalidate() {
+    loggedIn_ = false;
+  }
+
+  /**
+   * Forget the cached CKA_ALWAYS_AUTHENTICATE value of the given object; e.g. after the object was
+   * destroyed.
+   *
+   * @param objectHandle
+   *          The object handle.
+   */
+  public void evict(long objectHandle) {
+    alwaysAuthenticate_.remove(Long.valueOf(objectHandle));
+  }
+
+  /**
+   * Make sure that the token is logged in. If the cached state says so, this method returns at once.
+   * Otherwise, it checks the state of the given session and logs in only if the session is a public
+   * session.
+   *
+   * @param session
+   *          A session of the token.
+   * @exception TokenException
+   *              If checking the state or logging in fails.
+   * @preconditions (session != null)
+   */
+  public void ensureLoggedIn(Session session) throws TokenException {
+    if (loggedIn_) {
+      return;
+    }
+    synchronized (this) {
+      if (loggedIn_) {
+        return;
+      }
+      if (!token_.isLoginRequired() || isLoggedInState(session.getSessionInfo().getState())) {
+        loggedIn_ = true;
+        return;
+      }
+      try {
+        session.login(userType_, pin_);
+      } catch (PKCS11Exception ex) {
+        // another thread of this application may have logged in meanwhile
+        if (ex.getErrorCode() != PKCS11Constants.CKR_USER_ALREADY_LOGGED_IN) {
+          throw ex;
+        }
+      }
+      loggedIn_ = true;
+    }
+  }
+
+  /**
+   * Perform the given operation with a logged in session. If the operation fails because the
+   * token is not logged in any more, e.g. after a reset, this method logs in again and repeats the
+   * operation once.
+   *
+   * @param session
+   *          The session to perform the operation with.
+   * @param operation
+   *          The operation.
+   * @return The result of the operation.
+   * @exception TokenException
+   *              If logging in or the operation fails.
+   * @preconditions (session != null) and (operation != null)
+   */
+  public <T> T execute(Session session, SessionPool.SessionOperation<T> operation)
+      throws TokenException {
+    ensureLoggedIn(session);
+    try {
+      return operation.execute(session);
+    } catch (PKCS11Exception ex) {
+      if (ex.getErrorCode() != PKCS11Constants.CKR_USER_NOT_LOGGED_IN) {
+        throw ex;
+      }
+      invalidate();
+      ensureLoggedIn(session);
+      return operation.execute(session);
+    }
+  }
+
+  /**
+   * Perform the context specific login for the operation just initialized with the given key, if
+   * the key requires it (CKA_ALWAYS_AUTHENTICATE is true). Call this method after signInit,
+   * decryptInit and the like.
+   *
+   * @param session
+   *          The session the operation was initialized in.
+   * @param key
+   *          The key of the operation.
+   * @exception TokenException
+   *              If reading the attribute or the login fails.
+   * @preconditions (session != null) and (key != null)
+   */
+  public void authenticateKeyUse(Session session, Key key) throws TokenException {
+    if (!isAlwaysAuthenticate(session, key)) {
+      return;
+    }
+    char[] pin;
+    synchronized (this) {
+      pin = (pin_ != null) ? pin_.clone() : null;
+    }
+    try {
+      session.contextSpecificLogin(pin);
+    } finally {
+      if (pin != null) {
+        Arrays.fill(pin, '\0');
+      }
+    }
+  }
+
+  /**
+   * Check, if the given key requires a context specific login. The value is taken from the key
+   * object, if present; otherwise, it is read from the token. In both cases, it is cached for the
+   * object handle.
+   *
+   * @param session
+   *          The session to read the attribute with.
+   * @param key
+   *          The key.
+   * @return True, if CKA_ALWAYS_AUTHENTICATE is true.
+   * @exception TokenException
+   *              If reading the attribute fails.
+   * @preconditions (session != null) and (key != null)
+   */
+  public boolean isAlwaysAuthenticate(Session session, Key key) throws TokenException {
+    if (!(key instanceof PrivateKey)) {
+      return false;
+    }
+    Long handle = Long.valueOf(key.getObjectHandle());
+    Boolean cached = alwaysAuthenticate_.get(handle);
+    if (cached != null) {
+      return cached.booleanValue();
+    }
+
+    BooleanAttribute attribute = ((PrivateKey) key).getAlwaysAuthenticate();
+    if (!attribute.isPresent() && (key.getObjectHandle() != -1)) {
+      attribute = ((PrivateKey) session.getAttributeValues(key)).getAlwaysAuthenticate();
+    }
+    boolean alwaysAuthenticate = attribute.isPresent() && !attribute.isSensitive()
+        && Boolean.TRUE.equals(attribute.getBooleanValue());
+    if (key.getObjectHandle() != -1) {
+      alwaysAuthenticate_.put(handle, Boolean.valueOf(alwaysAuthenticate));
+    }
+
+    return alwaysAuthenticate;
+  }
+
+  /**
+   * Check, if the given session state has user or security officer rights matching the user type
+   * of this manager.
+   *
+   * @param state
+   *          The session state.
+   * @return True, if logged in.
+   */
+  protected boolean isLoggedInState(State state) {
+    if (userType_ == Session.UserType.SO) {
+      return state.equals(State.RW_SO_FUNCTIONS);
+    }
+
+    return state.equals(State.RO_USER_FUNCTIONS) || state.equals(State.RW_USER_FUNCTIONS);
+  }
+
+}
@@ -52,8 +52,11 @@ import iaik.pkcs.pkcs11.wrapper.PKCS11;
 import iaik.pkcs.pkcs11.wrapper.PKCS11Connector;
 import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
 import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Interceptor;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Objects of this class represent a PKCS#11 module. The application should create an instance by
@@ -171,6 +174,12 @@ public class Module {
    */
   protected PKCS11 pkcs11Module_;
 
+  /**
+   * The state shared by all Token objects of a slot. The key of this table is the slot ID.
+   */
+  protected final Map<Long, Token.SharedState> tokenStates_ =
+      new HashMap<Long, Token.SharedState>();
+
   /**
    * Create a new module that uses the given PKCS11 interface to interact with the token.
    * 
@@ -387,6 +396,28 @@ public class Module {
     return new Slot(this, slotID);
   }
 
+  /**
+   * Get the state shared by all Token objects of the given slot; create it, if necessary. Slot and
+   * Token objects are created anew by many calls; thus, their state is kept here.
+   *
+   * @param slotID
+   *          The ID of the slot.
+   * @return The shared state.
+   * @postconditions (result != null)
+   */
+  protected Token.SharedState getTokenState(long slotID) {
+    synchronized (tokenStates_) {
+      Long key = Long.valueOf(slotID);
+      Token.SharedState state = tokenStates_.get(key);
+      if (state == null) {
+        state = new Token.SharedState();
+        tokenStates_.put(key, state);
+      }
+
+      return state;
+    }
+  }
+
   /**
    * Gets the PKCS#11 module of the wrapper package behind this object.
    * 
@@ -398,6 +429,20 @@ public class Module {
     return pkcs11Module_;
   }
 
+  /**
+   * Installs an interceptor for all calls to the PKCS#11 module. Interceptors installed later see
+   * the calls first. Sessions keep the PKCS#11 module that was installed when they were opened;
+   * thus, install the interceptors before opening sessions.
+   *
+   * @param interceptor
+   *          The interceptor. It must not be installed on another module.
+   * @preconditions (interceptor != null)
+   * @postconditions (getPKCS11Module() passes all calls through interceptor)
+   */
+  public synchronized void addInterceptor(PKCS11Interceptor interceptor) {
+    pkcs11Module_ = interceptor.wrap(pkcs11Module_);
+  }
+
   /**
    * Returns the string representation of this object.
    * 
@@ -0,0 +1,398 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.wrapper.CK_INFO;
+import iaik.pkcs.pkcs11.wrapper.CK_MECHANISM_INFO;
+import iaik.pkcs.pkcs11.wrapper.CK_SLOT_INFO;
+import iaik.pkcs.pkcs11.wrapper.CK_TOKEN_INFO;
+import iaik.pkcs.pkcs11.wrapper.PKCS11;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Collects the information about a module, its slots, tokens and mechanisms into a ModuleSnapshot.
+ * The slots are enumerated concurrently; each slot needs C_GetSlotInfo, C_GetTokenInfo,
+ * C_GetMechanismList and one C_GetMechanismInfo per mechanism, which makes hundreds of calls for
+ * modules with many slots.
+ *
+ * <pre>
+ * <code>
+ *   ModuleSnapshot snapshot = ModuleDiscovery.load(module, new File("hsm.snapshot"), 8);
+ *   Mechanism[] mechanisms = snapshot.getMechanismList(slotId);
+ * </code>
+ * </pre>
+ *
+ * With load, the snapshot is kept in a file. On later starts, the file is used, if the library
+ * (C_GetInfo), the slot list, the hardware and firmware version of each slot and the serial number
+ * and firmware version of each token are unchanged; otherwise, the module is enumerated again and
+ * the file is replaced. Validating costs one C_GetSlotInfo per slot and one C_GetTokenInfo per
+ * slot with a token; the snapshot returned then has this current slot and token information, e.g.
+ * the flags and session counts, and the mechanism information of the file.
+ *
+ * @see ModuleSnapshot
+ * @version 1.0
+ */
+public class ModuleDiscovery {
+
+  /**
+   * Empty constructor for internal use only.
+   */
+  protected ModuleDiscovery() { /* left empty intentionally */
+  }
+
+  /**
+   * Enumerate the slots of the given module concurrently.
+   *
+   * @param module
+   *          The module; it must be initialized.
+   * @param parallelism
+   *          The maximum number of slots enumerated at the same time.
+   * @return The snapshot of the module.
+   * @exception TokenException
+   *              If a call fails or the thread was interrupted.
+   * @preconditions (module != null) and (parallelism > 0)
+   * @postconditions (result != null)
+   */
+  public static ModuleSnapshot discover(Module module, int parallelism) throws TokenException {
+    if (module == null) {
+      throw new NullPointerException("Argument \"module\" must not be null.");
+    }
+    final PKCS11 pkcs11Module = module.getPKCS11Module();
+    CK_INFO ckInfo = pkcs11Module.C_GetInfo();
+    long[] slotIds = pkcs11Module.C_GetSlotList(false);
+
+    return discover(pkcs11Module, ckInfo, slotIds, null, parallelism);
+  }
+
+  /**
+   * Get the snapshot of the given module from the given file, if it is still valid; otherwise,
+   * enumerate the module and write the snapshot to the file.
+   *
+   * @param module
+   *          The module; it must be initialized.
+   * @param snapshotFile
+   *          The file of the snapshot.
+   * @param parallelism
+   *          The maximum number of slots enumerated at the same time.
+   * @return The snapshot of the module.
+   * @exception TokenException
+   *              If a call fails or the thread was interrupted.
+   * @preconditions (module != null) and (snapshotFile != null) and (parallelism > 0)
+   * @postconditions (result != null)
+   */
+  public static ModuleSnapshot load(Module module, File snapshotFile, int parallelism)
+      throws TokenException {
+    if (module == null) {
+      throw new NullPointerException("Argument \"module\" must not be null.");
+    }
+    if (snapshotFile == null) {
+      throw new NullPointerException("Argument \"snapshotFile\" must not be null.");
+    }
+    PKCS11 pkcs11Module = module.getPKCS11Module();
+    CK_INFO ckInfo = pkcs11Module.C_GetInfo();
+    long[] slotIds = pkcs11Module.C_GetSlotList(false);
+
+    ModuleSnapshot cached = readSnapshot(snapshotFile);
+    if ((cached != null) && !cached.matches(ckInfo, slotIds)) {
+      cached = null;
+    }
+    ModuleSnapshot snapshot = discover(pkcs11Module, ckInfo, slotIds, cached, parallelism);
+    // a snapshot based on the cached one keeps its time
+    if ((cached == null) || (snapshot.getTime() != cached.getTime())) {
+      writeSnapshot(snapshot, snapshotFile);
+    }
+
+    return snapshot;
+  }
+
+  /**
+   * Enumerate the given slots concurrently. If a cached snapshot is given, only the slot and token
+   * information is read; if the cached snapshot matches for all slots, a copy of it with this
+   * current information is returned.
+   *
+   * @param pkcs11Module
+   *          The module.
+   * @param ckInfo
+   *          The module information.
+   * @param slotIds
+   *          The slot list.
+   * @param cached
+   *          The cached snapshot matching the module information and slot list or null.
+   * @param parallelism
+   *          The maximum number of slots enumerated at the same time.
+   * @return The snapshot.
+   * @exception TokenException
+   *              If a call fails or the thread was interrupted.
+   */
+  protected static ModuleSnapshot discover(final PKCS11 pkcs11Module, CK_INFO ckInfo,
+      long[] slotIds, final ModuleSnapshot cached, int parallelism) throws TokenException {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Argument \"parallelism\" must be positive.");
+    }
+    long time = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism,
+        slotIds.length)), new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "PKCS11-discovery");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      // validating the cache needs the token information too; set before the future completes
+      final CK_TOKEN_INFO[] ckTokenInfos = new CK_TOKEN_INFO[slotIds.length];
+      List<Future<CK_SLOT_INFO>> slotInfos = new ArrayList<Future<CK_SLOT_INFO>>();
+      for (int i = 0; i < slotIds.length; i++) {
+        final long slotId = slotIds[i];
+        final int index = i;
+        slotInfos.add(executor.submit(new Callable<CK_SLOT_INFO>() {
+          public CK_SLOT_INFO call() throws PKCS11Exception {
+            CK_SLOT_INFO ckSlotInfo = pkcs11Module.C_GetSlotInfo(slotId);
+            if ((cached != null)
+                && ((ckSlotInfo.flags & PKCS11Constants.CKF_TOKEN_PRESENT) != 0L)) {
+              ckTokenInfos[index] = getTokenInfo(pkcs11Module, slotId);
+            }
+            return ckSlotInfo;
+          }
+        }));
+      }
+      boolean cacheValid = (cached != null);
+      CK_SLOT_INFO[] ckSlotInfos = new CK_SLOT_INFO[slotIds.length];
+      for (int i = 0; i < slotIds.length; i++) {
+        ckSlotInfos[i] = get(slotInfos.get(i));
+        cacheValid = cacheValid && cached.matches(slotIds[i], ckSlotInfos[i], ckTokenInfos[i]);
+      }
+      if (cacheValid) {
+        return cached.withCurrentInfo(ckSlotInfos, ckTokenInfos);
+      }
+
+      List<Future<ModuleSnapshot.SlotSnapshot>> slots =
+          new ArrayList<Future<ModuleSnapshot.SlotSnapshot>>();
+      for (int i = 0; i < slotIds.length; i++) {
+        final long slotId = slotIds[i];
+        final CK_SLOT_INFO ckSlotInfo = ckSlotInfos[i];
+        slots.add(executor.submit(new Callable<ModuleSnapshot.SlotSnapshot>() {
+          public ModuleSnapshot.SlotSnapshot call() throws PKCS11Exception {
+            return discoverSlot(pkcs11Module, slotId, ckSlotInfo);
+          }
+        }));
+      }
+      ModuleSnapshot.SlotSnapshot[] slotSnapshots = new ModuleSnapshot.SlotSnapshot[slotIds.length];
+      for (int i = 0; i < slotIds.length; i++) {
+        slotSnapshots[i] = get(slots.get(i));
+      }
+
+      return new ModuleSnapshot(ckInfo, slotSnapshots, time);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Get the token information of a slot.
+   *
+   * @param pkcs11Module
+   *          The module.
+   * @param slotId
+   *          The slot ID.
+   * @return The token information or null, if the token was removed or is not recognized.
+   * @exception PKCS11Exception
+   *              If the call fails otherwise.
+   */
+  protected static CK_TOKEN_INFO getTokenInfo(PKCS11 pkcs11Module, long slotId)
+      throws PKCS11Exception {
+    try {
+      return pkcs11Module.C_GetTokenInfo(slotId);
+    } catch (PKCS11Exception ex) {
+      if ((ex.getErrorCode() != PKCS11Constants.CKR_TOKEN_NOT_PRESENT)
+          && (ex.getErrorCode() != PKCS11Constants.CKR_TOKEN_NOT_RECOGNIZED)) {
+        throw ex;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Enumerate the token and mechanisms of one slot.
+   *
+   * @param pkcs11Module
+   *          The module.
+   * @param slotId
+   *          The slot ID.
+   * @param ckSlotInfo
+   *          The slot information.
+   * @return The slot snapshot.
+   * @exception PKCS11Exception
+   *              If a call fails.
+   */
+  protected static ModuleSnapshot.SlotSnapshot discoverSlot(PKCS11 pkcs11Module, long slotId,
+      CK_SLOT_INFO ckSlotInfo) throws PKCS11Exception {
+    CK_TOKEN_INFO ckTokenInfo = null;
+    long[] mechanismCodes = new long[0];
+    CK_MECHANISM_INFO[] ckMechanismInfos = new CK_MECHANISM_INFO[0];
+    if ((ckSlotInfo.flags & PKCS11Constants.CKF_TOKEN_PRESENT) != 0L) {
+      try {
+        ckTokenInfo = pkcs11Module.C_GetTokenInfo(slotId);
+        mechanismCodes = pkcs11Module.C_GetMechanismList(slotId);
+      } catch (PKCS11Exception ex) {
+        // the token was removed meanwhile or is not recognized
+        if ((ex.getErrorCode() != PKCS11Constants.CKR_TOKEN_NOT_PRESENT)
+            && (ex.getErrorCode() != PKCS11Constants.CKR_TOKEN_NOT_RECOGNIZED)) {
+          throw ex;
+        }
+        ckTokenInfo = null;
+        mechanismCodes = new long[0];
+      }
+      ckMechanismInfos = new CK_MECHANISM_INFO[mechanismCodes.length];
+      for (int i = 0; i < mechanismCodes.length; i++) {
+        try {
+          ckMechanismInfos[i] = pkcs11Module.C_GetMechanismInfo(slotId, mechanismCodes[i]);
+        } catch (PKCS11Exception ex) {
+          // some modules list mechanisms they give no information about
+          if (ex.getErrorCode() != PKCS11Constants.CKR_MECHANISM_INVALID) {
+            throw ex;
+          }
+        }
+      }
+    }
+
+    return new ModuleSnapshot.SlotSnapshot(slotId, ckSlotInfo, ckTokenInfo, mechanismCodes,
+        ckMechanismInfos);
+  }
+
+  /**
+   * Get the result of a task.
+   *
+   * @param future
+   *          The task.
+   * @return The result.
+   * @exception TokenException
+   *              If the task failed or the thread was interrupted.
+   */
+  protected static <T> T get(Future<T> future) throws TokenException {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new TokenException("Interrupted while discovering the module.", ex);
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof TokenException) {
+        throw (TokenException) ex.getCause();
+      }
+      throw new TokenException("Discovering the module failed.", ex);
+    }
+  }
+
+  /**
+   * Read a snapshot file.
+   *
+   * @param snapshotFile
+   *          The file.
+   * @return The snapshot or null, if the file does not exist or cannot be read.
+   */
+  protected static ModuleSnapshot readSnapshot(File snapshotFile) {
+    if (!snapshotFile.isFile()) {
+      return null;
+    }
+    try {
+      InputStream in = new FileInputStream(snapshotFile);
+      try {
+        return ModuleSnapshot.read(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException ex) {
+      // an unreadable or outdated file is replaced
+      return null;
+    }
+  }
+
+  /**
+   * Write a snapshot file. The snapshot is written to a temporary file first, which then replaces
+   * the file with an atomic move; thus, neither a crash nor a concurrent reader sees a partial or
+   * missing file.
+   *
+   * @param snapshot
+   *          The snapshot.
+   * @param snapshotFile
+   *          The file.
+   * @exception TokenException
+   *              If writing the file fails.
+   */
+  protected static void writeSnapshot(ModuleSnapshot snapshot, File snapshotFile)
+      throws TokenException {
+    File tempFile = new File(snapshotFile.getPath() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(tempFile);
+      try {
+        snapshot.write(out);
+      } finally {
+        out.close();
+      }
+      Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException ex) {
+      tempFile.delete();
+      throw new TokenException("Writing the snapshot " + snapshotFile + " failed.", ex);
+    }
+  }
+
+}
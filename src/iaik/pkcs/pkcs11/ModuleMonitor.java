@@ -0,0 +1,279 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.wrapper.CallStatisticsInterceptor;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the state of a module, its tokens and session pools as management beans (MXBeans) in
+ * the platform MBean server; thus, JConsole, VisualVM or any JMX agent can show it. The values are
+ * taken from a CallStatisticsInterceptor installed on the module and from the session pools; reading
+ * an attribute does not call the module, except refreshTokenInfo of a token.
+ *
+ * <pre>
+ * <code>
+ *   ModuleMonitor monitor = ModuleMonitor.install("hsm", module);
+ *   monitor.registerToken(token);
+ *   monitor.registerSessionPool(sessionPool, "signing");
+ * </code>
+ * </pre>
+ *
+ * The beans have the object names iaik.pkcs11:type=Module,name=&lt;name&gt;,
+ * iaik.pkcs11:type=Token,module=&lt;name&gt;,slot=&lt;slot ID&gt; and
+ * iaik.pkcs11:type=SessionPool,module=&lt;name&gt;,name=&lt;pool name&gt;. Install the monitor
+ * before opening sessions; otherwise, sessions opened before are not counted.
+ *
+ * @version 1.0
+ * @invariants (name_ != null) and (module_ != null) and (statistics_ != null)
+ */
+public class ModuleMonitor implements ModuleMonitorMXBean {
+
+  /**
+   * The domain of the object names.
+   */
+  public static final String DOMAIN = "iaik.pkcs11";
+
+  /**
+   * The name of the module in the object names.
+   */
+  protected String name_;
+
+  /**
+   * The monitored module.
+   */
+  protected Module module_;
+
+  /**
+   * The statistics interceptor installed on the module.
+   */
+  protected CallStatisticsInterceptor statistics_;
+
+  /**
+   * The MBean server the beans are registered with.
+   */
+  protected MBeanServer mBeanServer_;
+
+  /**
+   * The object names of all beans registered by this monitor.
+   */
+  protected List<ObjectName> objectNames_ = new ArrayList<ObjectName>();
+
+  /**
+   * Create a new monitor. Use install to create a monitor.
+   *
+   * @param name
+   *          The name of the module in the object names.
+   * @param module
+   *          The module.
+   * @param statistics
+   *          The statistics interceptor installed on the module.
+   * @param mBeanServer
+   *          The MBean server.
+   * @preconditions (name != null) and (module != null) and (statistics != null)
+   *                and (mBeanServer != null)
+   */
+  protected ModuleMonitor(String name, Module module, CallStatisticsInterceptor statistics,
+      MBeanServer mBeanServer) {
+    name_ = name;
+    module_ = module;
+    statistics_ = statistics;
+    mBeanServer_ = mBeanServer;
+  }
+
+  /**
+   * Install a CallStatisticsInterceptor on the given module and register the bean of the module
+   * with the platform MBean server.
+   *
+   * @param name
+   *          The name of the module in the object names; e.g. the name of the HSM.
+   * @param module
+   *          The module.
+   * @return The monitor of the module.
+   * @exception TokenException
+   *              If registering the bean fails.
+   * @preconditions (name != null) and (module != null)
+   * @postconditions (result != null)
+   */
+  public static ModuleMonitor install(String name, Module module) throws TokenException {
+    if (name == null) {
+      throw new NullPointerException("Argument \"name\" must not be null.");
+    }
+    if (module == null) {
+      throw new NullPointerException("Argument \"module\" must not be null.");
+    }
+    CallStatisticsInterceptor statistics = new CallStatisticsInterceptor();
+    module.addInterceptor(statistics);
+    ModuleMonitor monitor = new ModuleMonitor(name, module, statistics,
+        ManagementFactory.getPlatformMBeanServer());
+    monitor.register(monitor, "type=Module,name=" + ObjectName.quote(name));
+
+    return monitor;
+  }
+
+  /**
+   * Register the bean of the given token.
+   *
+   * @param token
+   *          A token of the monitored module.
+   * @return The bean of the token.
+   * @exception TokenException
+   *              If registering the bean fails.
+   * @preconditions (token != null)
+   * @postconditions (result != null)
+   */
+  public TokenMonitor registerToken(Token token) throws TokenException {
+    if (token == null) {
+      throw new NullPointerException("Argument \"token\" must not be null.");
+    }
+    TokenMonitor tokenMonitor = new TokenMonitor(token, statistics_);
+    register(tokenMonitor, "type=Token,module=" + ObjectName.quote(name_) + ",slot="
+        + tokenMonitor.getSlotId());
+
+    return tokenMonitor;
+  }
+
+  /**
+   * Register the bean of the given session pool.
+   *
+   * @param sessionPool
+   *          A session pool of a token of the monitored module.
+   * @param poolName
+   *          The name of the pool in the object name.
+   * @exception TokenException
+   *              If registering the bean fails.
+   * @preconditions (sessionPool != null) and (poolName != null)
+   */
+  public void registerSessionPool(SessionPool sessionPool, String poolName)
+      throws TokenException {
+    if (sessionPool == null) {
+      throw new NullPointerException("Argument \"sessionPool\" must not be null.");
+    }
+    if (poolName == null) {
+      throw new NullPointerException("Argument \"poolName\" must not be null.");
+    }
+    register(sessionPool, "type=SessionPool,module=" + ObjectName.quote(name_) + ",name="
+        + ObjectName.quote(poolName));
+  }
+
+  /**
+   * Unregister all beans of this monitor. The interceptor stays installed.
+   */
+  public synchronized void unregister() {
+    for (int i = 0; i < objectNames_.size(); i++) {
+      try {
+        mBeanServer_.unregisterMBean(objectNames_.get(i));
+      } catch (JMException ex) {
+        // already unregistered by someone else
+      }
+    }
+    objectNames_.clear();
+  }
+
+  /**
+   * Register a bean under the domain of this library.
+   *
+   * @param bean
+   *          The bean.
+   * @param properties
+   *          The key properties of the object name.
+   * @exception TokenException
+   *              If registering the bean fails.
+   */
+  protected synchronized void register(Object bean, String properties) throws TokenException {
+    try {
+      ObjectName objectName = new ObjectName(DOMAIN + ":" + properties);
+      mBeanServer_.registerMBean(bean, objectName);
+      objectNames_.add(objectName);
+    } catch (JMException ex) {
+      throw new TokenException("Registering the management bean " + properties + " failed.", ex);
+    }
+  }
+
+  /**
+   * Get the statistics interceptor installed on the module.
+   *
+   * @return The interceptor.
+   * @postconditions (result != null)
+   */
+  public CallStatisticsInterceptor getStatistics() {
+    return statistics_;
+  }
+
+  public String getName() {
+    return name_;
+  }
+
+  public String getDescription() {
+    return module_.toString();
+  }
+
+  public long getTotalCalls() {
+    return statistics_.getTotalCalls();
+  }
+
+  public long getTotalErrors() {
+    return statistics_.getTotalErrors();
+  }
+
+  public Map<String, Long> getCallCounts() {
+    return statistics_.getCallCounts();
+  }
+
+  public Map<String, Long> getErrorCounts() {
+    return statistics_.getErrorCounts();
+  }
+
+  public int getOpenSessionCount() {
+    return statistics_.getOpenSessionCount();
+  }
+
+}
@@ -0,0 +1,105 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.util.Map;
+
+/**
+ * The management interface of a PKCS#11 module. The values are counted by a
+ * CallStatisticsInterceptor; reading them does not call the module.
+ *
+ * @see ModuleMonitor
+ * @version 1.0
+ */
+public interface ModuleMonitorMXBean {
+
+  /**
+   * Get the name this module was registered with.
+   *
+   * @return The name.
+   */
+  public String getName();
+
+  /**
+   * Get the description of the module; usually the path of the PKCS#11 library.
+   *
+   * @return The description.
+   */
+  public String getDescription();
+
+  /**
+   * Get the total number of calls into the module.
+   *
+   * @return The number of calls.
+   */
+  public long getTotalCalls();
+
+  /**
+   * Get the total number of calls that failed with a PKCS#11 error.
+   *
+   * @return The number of failed calls.
+   */
+  public long getTotalErrors();
+
+  /**
+   * Get the number of calls per PKCS#11 function; e.g. C_Sign.
+   *
+   * @return The counts by function name.
+   */
+  public Map<String, Long> getCallCounts();
+
+  /**
+   * Get the number of errors per PKCS#11 error code; e.g. CKR_PIN_INCORRECT.
+   *
+   * @return The counts by error name.
+   */
+  public Map<String, Long> getErrorCounts();
+
+  /**
+   * Get the number of open sessions of all slots.
+   *
+   * @return The number of sessions.
+   */
+  public int getOpenSessionCount();
+
+}
@@ -0,0 +1,603 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.wrapper.CK_INFO;
+import iaik.pkcs.pkcs11.wrapper.CK_MECHANISM_INFO;
+import iaik.pkcs.pkcs11.wrapper.CK_SLOT_INFO;
+import iaik.pkcs.pkcs11.wrapper.CK_TOKEN_INFO;
+import iaik.pkcs.pkcs11.wrapper.CK_VERSION;
+import iaik.pkcs.pkcs11.wrapper.Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The information about a module, its slots, tokens and mechanisms at one point in time, as
+ * collected by ModuleDiscovery. Objects of this class are immutable; each getter returns a new
+ * information object. The snapshot can be written to a stream and read again; ModuleDiscovery.load
+ * uses this to skip the enumeration on later starts.
+ *
+ * The dynamic values of the token information, e.g. the number of open sessions, the free memory
+ * and the time, are those at the time of the snapshot.
+ *
+ * @see ModuleDiscovery
+ * @version 1.0
+ * @invariants (ckInfo_ != null) and (slots_ != null)
+ */
+public class ModuleSnapshot {
+
+  /**
+   * The information about one slot and its token.
+   */
+  protected static class SlotSnapshot {
+
+    protected final long slotId_;
+
+    protected final CK_SLOT_INFO ckSlotInfo_;
+
+    /**
+     * The token information or null, if there is no token in the slot.
+     */
+    protected final CK_TOKEN_INFO ckTokenInfo_;
+
+    /**
+     * The mechanism codes; empty, if there is no token in the slot.
+     */
+    protected final long[] mechanismCodes_;
+
+    /**
+     * The mechanism information in the order of mechanismCodes_.
+     */
+    protected final CK_MECHANISM_INFO[] ckMechanismInfos_;
+
+    protected SlotSnapshot(long slotId, CK_SLOT_INFO ckSlotInfo, CK_TOKEN_INFO ckTokenInfo,
+        long[] mechanismCodes, CK_MECHANISM_INFO[] ckMechanismInfos) {
+      slotId_ = slotId;
+      ckSlotInfo_ = ckSlotInfo;
+      ckTokenInfo_ = ckTokenInfo;
+      mechanismCodes_ = mechanismCodes;
+      ckMechanismInfos_ = ckMechanismInfos;
+    }
+
+  }
+
+  /**
+   * The format version of written snapshots.
+   */
+  protected static final int FORMAT_VERSION = 1;
+
+  /**
+   * The module information.
+   */
+  protected final CK_INFO ckInfo_;
+
+  /**
+   * The slots in the order of the slot list.
+   */
+  protected final SlotSnapshot[] slots_;
+
+  /**
+   * The time the snapshot was taken, as of System.currentTimeMillis().
+   */
+  protected final long time_;
+
+  /**
+   * Create a new snapshot. The arguments become part of the snapshot and must not be changed.
+   *
+   * @param ckInfo
+   *          The module information.
+   * @param slots
+   *          The slots.
+   * @param time
+   *          The time the snapshot was taken.
+   * @preconditions (ckInfo != null) and (slots != null)
+   */
+  protected ModuleSnapshot(CK_INFO ckInfo, SlotSnapshot[] slots, long time) {
+    ckInfo_ = ckInfo;
+    slots_ = slots;
+    time_ = time;
+  }
+
+  /**
+   * Get the time the snapshot was taken.
+   *
+   * @return The time as of System.currentTimeMillis().
+   */
+  public long getTime() {
+    return time_;
+  }
+
+  /**
+   * Get the module information.
+   *
+   * @return The module information.
+   * @postconditions (result != null)
+   */
+  public Info getInfo() {
+    return new Info(ckInfo_);
+  }
+
+  /**
+   * Get the IDs of all slots, with or without token.
+   *
+   * @return The slot IDs.
+   * @postconditions (result != null)
+   */
+  public long[] getSlotIds() {
+    long[] slotIds = new long[slots_.length];
+    for (int i = 0; i < slotIds.length; i++) {
+      slotIds[i] = slots_[i].slotId_;
+    }
+
+    return slotIds;
+  }
+
+  /**
+   * Get the IDs of the slots with a token.
+   *
+   * @return The slot IDs.
+   * @postconditions (result != null)
+   */
+  public long[] getSlotIdsWithToken() {
+    long[] slotIds = new long[slots_.length];
+    int count = 0;
+    for (int i = 0; i < slots_.length; i++) {
+      if (slots_[i].ckTokenInfo_ != null) {
+        slotIds[count++] = slots_[i].slotId_;
+      }
+    }
+
+    return Arrays.copyOf(slotIds, count);
+  }
+
+  /**
+   * Get the information about the given slot.
+   *
+   * @param slotId
+   *          The slot ID.
+   * @return The slot information or null, if the snapshot has no such slot.
+   */
+  public SlotInfo getSlotInfo(long slotId) {
+    SlotSnapshot slot = getSlot(slotId);
+    return (slot != null) ? new SlotInfo(slot.ckSlotInfo_) : null;
+  }
+
+  /**
+   * Get the information about the token in the given slot.
+   *
+   * @param slotId
+   *          The slot ID.
+   * @return The token information or null, if the slot has no token.
+   */
+  public TokenInfo getTokenInfo(long slotId) {
+    SlotSnapshot slot = getSlot(slotId);
+    return ((slot != null) && (slot.ckTokenInfo_ != null)) ? new TokenInfo(slot.ckTokenInfo_)
+        : null;
+  }
+
+  /**
+   * Get the mechanisms of the token in the given slot.
+   *
+   * @param slotId
+   *          The slot ID.
+   * @return The mechanisms; empty, if the slot has no token.
+   * @postconditions (result != null)
+   */
+  public Mechanism[] getMechanismList(long slotId) {
+    SlotSnapshot slot = getSlot(slotId);
+    if (slot == null) {
+      return new Mechanism[0];
+    }
+    Mechanism[] mechanisms = new Mechanism[slot.mechanismCodes_.length];
+    for (int i = 0; i < mechanisms.length; i++) {
+      mechanisms[i] = new Mechanism(slot.mechanismCodes_[i]);
+    }
+
+    return mechanisms;
+  }
+
+  /**
+   * Get the information about a mechanism of the token in the given slot.
+   *
+   * @param slotId
+   *          The slot ID.
+   * @param mechanism
+   *          The mechanism.
+   * @return The mechanism information or null, if the token does not support the mechanism.
+   * @preconditions (mechanism != null)
+   */
+  public MechanismInfo getMechanismInfo(long slotId, Mechanism mechanism) {
+    SlotSnapshot slot = getSlot(slotId);
+    if (slot != null) {
+      long mechanismCode = mechanism.getMechanismCode();
+      for (int i = 0; i < slot.mechanismCodes_.length; i++) {
+        if ((slot.mechanismCodes_[i] == mechanismCode) && (slot.ckMechanismInfos_[i] != null)) {
+          return new MechanismInfo(slot.ckMechanismInfos_[i]);
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Check, if this snapshot was taken of a module with the same library and slots as the given
+   * information.
+   *
+   * @param ckInfo
+   *          The current module information.
+   * @param slotIds
+   *          The current slot list.
+   * @return True, if library description, manufacturer, library and Cryptoki version and the slot
+   *         IDs are the same.
+   * @preconditions (ckInfo != null) and (slotIds != null)
+   */
+  protected boolean matches(CK_INFO ckInfo, long[] slotIds) {
+    return Arrays.equals(ckInfo_.libraryDescription, ckInfo.libraryDescription)
+        && Arrays.equals(ckInfo_.manufacturerID, ckInfo.manufacturerID)
+        && equals(ckInfo_.libraryVersion, ckInfo.libraryVersion)
+        && equals(ckInfo_.cryptokiVersion, ckInfo.cryptokiVersion)
+        && Arrays.equals(getSlotIds(), slotIds);
+  }
+
+  /**
+   * Check, if the given slot had the same device, firmware and token at the time of this snapshot.
+   *
+   * @param slotId
+   *          The slot ID.
+   * @param ckSlotInfo
+   *          The current slot information.
+   * @param ckTokenInfo
+   *          The current token information or null, if there is no token in the slot.
+   * @return True, if the token presence, the hardware and the firmware version of the slot and the
+   *         serial number and firmware version of the token are the same.
+   * @preconditions (ckSlotInfo != null)
+   */
+  protected boolean matches(long slotId, CK_SLOT_INFO ckSlotInfo, CK_TOKEN_INFO ckTokenInfo) {
+    SlotSnapshot slot = getSlot(slotId);
+    if ((slot == null)
+        || ((slot.ckSlotInfo_.flags & PKCS11Constants.CKF_TOKEN_PRESENT) != (ckSlotInfo.flags
+            & PKCS11Constants.CKF_TOKEN_PRESENT))
+        || !equals(slot.ckSlotInfo_.hardwareVersion, ckSlotInfo.hardwareVersion)
+        || !equals(slot.ckSlotInfo_.firmwareVersion, ckSlotInfo.firmwareVersion)) {
+      return false;
+    }
+    if ((slot.ckTokenInfo_ == null) || (ckTokenInfo == null)) {
+      return (slot.ckTokenInfo_ == null) && (ckTokenInfo == null);
+    }
+
+    return Arrays.equals(slot.ckTokenInfo_.serialNumber, ckTokenInfo.serialNumber)
+        && equals(slot.ckTokenInfo_.firmwareVersion, ckTokenInfo.firmwareVersion);
+  }
+
+  /**
+   * Create a copy of this snapshot with the given current slot and token information; e.g. after
+   * the slots matched. The mechanism lists and information are kept, and so is the time, because
+   * they were read then.
+   *
+   * @param ckSlotInfos
+   *          The current slot information in the order of the slot list.
+   * @param ckTokenInfos
+   *          The current token information in the order of the slot list; null elements for slots
+   *          without token.
+   * @return The copy.
+   * @preconditions (ckSlotInfos != null) and (ckTokenInfos != null)
+   *                and (ckSlotInfos.length == slots_.length)
+   *                and (ckTokenInfos.length == slots_.length)
+   * @postconditions (result != null) and (result.getTime() == getTime())
+   */
+  protected ModuleSnapshot withCurrentInfo(CK_SLOT_INFO[] ckSlotInfos,
+      CK_TOKEN_INFO[] ckTokenInfos) {
+    SlotSnapshot[] slots = new SlotSnapshot[slots_.length];
+    for (int i = 0; i < slots_.length; i++) {
+      slots[i] = new SlotSnapshot(slots_[i].slotId_, ckSlotInfos[i], ckTokenInfos[i],
+          slots_[i].mechanismCodes_, slots_[i].ckMechanismInfos_);
+    }
+
+    return new ModuleSnapshot(ckInfo_, slots, time_);
+  }
+
+  /**
+   * Write this snapshot to the given stream.
+   *
+   * @param out
+   *          The stream.
+   * @exception IOException
+   *              If writing fails.
+   * @preconditions (out != null)
+   */
+  public void write(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(FORMAT_VERSION);
+    data.writeLong(time_);
+    writeVersion(data, ckInfo_.cryptokiVersion);
+    writeChars(data, ckInfo_.manufacturerID);
+    data.writeLong(ckInfo_.flags);
+    writeChars(data, ckInfo_.libraryDescription);
+    writeVersion(data, ckInfo_.libraryVersion);
+
+    data.writeInt(slots_.length);
+    for (int i = 0; i < slots_.length; i++) {
+      SlotSnapshot slot = slots_[i];
+      data.writeLong(slot.slotId_);
+      writeChars(data, slot.ckSlotInfo_.slotDescription);
+      writeChars(data, slot.ckSlotInfo_.manufacturerID);
+      data.writeLong(slot.ckSlotInfo_.flags);
+      writeVersion(data, slot.ckSlotInfo_.hardwareVersion);
+      writeVersion(data, slot.ckSlotInfo_.firmwareVersion);
+
+      CK_TOKEN_INFO ckTokenInfo = slot.ckTokenInfo_;
+      data.writeBoolean(ckTokenInfo != null);
+      if (ckTokenInfo != null) {
+        writeChars(data, ckTokenInfo.label);
+        writeChars(data, ckTokenInfo.manufacturerID);
+        writeChars(data, ckTokenInfo.model);
+        writeChars(data, ckTokenInfo.serialNumber);
+        data.writeLong(ckTokenInfo.flags);
+        data.writeLong(ckTokenInfo.ulMaxSessionCount);
+        data.writeLong(ckTokenInfo.ulSessionCount);
+        data.writeLong(ckTokenInfo.ulMaxRwSessionCount);
+        data.writeLong(ckTokenInfo.ulRwSessionCount);
+        data.writeLong(ckTokenInfo.ulMaxPinLen);
+        data.writeLong(ckTokenInfo.ulMinPinLen);
+        data.writeLong(ckTokenInfo.ulTotalPublicMemory);
+        data.writeLong(ckTokenInfo.ulFreePublicMemory);
+        data.writeLong(ckTokenInfo.ulTotalPrivateMemory);
+        data.writeLong(ckTokenInfo.ulFreePrivateMemory);
+        writeVersion(data, ckTokenInfo.hardwareVersion);
+        writeVersion(data, ckTokenInfo.firmwareVersion);
+        writeChars(data, ckTokenInfo.utcTime);
+      }
+
+      data.writeInt(slot.mechanismCodes_.length);
+      for (int j = 0; j < slot.mechanismCodes_.length; j++) {
+        data.writeLong(slot.mechanismCodes_[j]);
+        CK_MECHANISM_INFO ckMechanismInfo = slot.ckMechanismInfos_[j];
+        data.writeBoolean(ckMechanismInfo != null);
+        if (ckMechanismInfo != null) {
+          data.writeLong(ckMechanismInfo.ulMinKeySize);
+          data.writeLong(ckMechanismInfo.ulMaxKeySize);
+          data.writeLong(ckMechanismInfo.flags);
+        }
+      }
+    }
+    data.flush();
+  }
+
+  /**
+   * Read a snapshot written by write.
+   *
+   * @param in
+   *          The stream.
+   * @return The snapshot.
+   * @exception IOException
+   *              If reading fails or the stream does not contain a snapshot of this format.
+   * @preconditions (in != null)
+   * @postconditions (result != null)
+   */
+  public static ModuleSnapshot read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    int formatVersion = data.readInt();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unsupported snapshot format " + formatVersion + ".");
+    }
+    long time = data.readLong();
+    CK_INFO ckInfo = new CK_INFO();
+    ckInfo.cryptokiVersion = readVersion(data);
+    ckInfo.manufacturerID = readChars(data);
+    ckInfo.flags = data.readLong();
+    ckInfo.libraryDescription = readChars(data);
+    ckInfo.libraryVersion = readVersion(data);
+
+    SlotSnapshot[] slots = new SlotSnapshot[data.readInt()];
+    for (int i = 0; i < slots.length; i++) {
+      long slotId = data.readLong();
+      CK_SLOT_INFO ckSlotInfo = new CK_SLOT_INFO();
+      ckSlotInfo.slotDescription = readChars(data);
+      ckSlotInfo.manufacturerID = readChars(data);
+      ckSlotInfo.flags = data.readLong();
+      ckSlotInfo.hardwareVersion = readVersion(data);
+      ckSlotInfo.firmwareVersion = readVersion(data);
+
+      CK_TOKEN_INFO ckTokenInfo = null;
+      if (data.readBoolean()) {
+        ckTokenInfo = new CK_TOKEN_INFO();
+        ckTokenInfo.label = readChars(data);
+        ckTokenInfo.manufacturerID = readChars(data);
+        ckTokenInfo.model = readChars(data);
+        ckTokenInfo.serialNumber = readChars(data);
+        ckTokenInfo.flags = data.readLong();
+        ckTokenInfo.ulMaxSessionCount = data.readLong();
+        ckTokenInfo.ulSessionCount = data.readLong();
+        ckTokenInfo.ulMaxRwSessionCount = data.readLong();
+        ckTokenInfo.ulRwSessionCount = data.readLong();
+        ckTokenInfo.ulMaxPinLen = data.readLong();
+        ckTokenInfo.ulMinPinLen = data.readLong();
+        ckTokenInfo.ulTotalPublicMemory = data.readLong();
+        ckTokenInfo.ulFreePublicMemory = data.readLong();
+        ckTokenInfo.ulTotalPrivateMemory = data.readLong();
+        ckTokenInfo.ulFreePrivateMemory = data.readLong();
+        ckTokenInfo.hardwareVersion = readVersion(data);
+        ckTokenInfo.firmwareVersion = readVersion(data);
+        ckTokenInfo.utcTime = readChars(data);
+      }
+
+      long[] mechanismCodes = new long[data.readInt()];
+      CK_MECHANISM_INFO[] ckMechanismInfos = new CK_MECHANISM_INFO[mechanismCodes.length];
+      for (int j = 0; j < mechanismCodes.length; j++) {
+        mechanismCodes[j] = data.readLong();
+        if (data.readBoolean()) {
+          ckMechanismInfos[j] = new CK_MECHANISM_INFO();
+          ckMechanismInfos[j].ulMinKeySize = data.readLong();
+          ckMechanismInfos[j].ulMaxKeySize = data.readLong();
+          ckMechanismInfos[j].flags = data.readLong();
+        }
+      }
+      slots[i] = new SlotSnapshot(slotId, ckSlotInfo, ckTokenInfo, mechanismCodes,
+          ckMechanismInfos);
+    }
+
+    return new ModuleSnapshot(ckInfo, slots, time);
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return The string representation of object
+   */
+  public String toString() {
+    StringBuffer buffer = new StringBuffer();
+
+    buffer.append("Library: ");
+    buffer.append(new String(ckInfo_.libraryDescription).trim());
+    buffer.append(Constants.NEWLINE);
+    buffer.append("Slots: ");
+    buffer.append(slots_.length);
+    buffer.append(Constants.NEWLINE);
+    buffer.append("Tokens: ");
+    buffer.append(getSlotIdsWithToken().length);
+
+    return buffer.toString();
+  }
+
+  /**
+   * Get the snapshot of the given slot.
+   *
+   * @param slotId
+   *          The slot ID.
+   * @return The slot snapshot or null.
+   */
+  protected SlotSnapshot getSlot(long slotId) {
+    for (int i = 0; i < slots_.length; i++) {
+      if (slots_[i].slotId_ == slotId) {
+        return slots_[i];
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Compare two versions.
+   *
+   * @param version
+   *          A version or null.
+   * @param otherVersion
+   *          The other version or null.
+   * @return True, if both are null or have the same major and minor number.
+   */
+  protected static boolean equals(CK_VERSION version, CK_VERSION otherVersion) {
+    if ((version == null) || (otherVersion == null)) {
+      return version == otherVersion;
+    }
+
+    return (version.major == otherVersion.major) && (version.minor == otherVersion.minor);
+  }
+
+  /**
+   * Write a blank padded string of a CK_ structure.
+   *
+   * @param data
+   *          The stream.
+   * @param chars
+   *          The characters or null.
+   * @exception IOException
+   *              If writing fails.
+   */
+  protected static void writeChars(DataOutputStream data, char[] chars) throws IOException {
+    data.writeUTF((chars != null) ? new String(chars) : "");
+  }
+
+  /**
+   * Read a string written by writeChars.
+   *
+   * @param data
+   *          The stream.
+   * @return The characters.
+   * @exception IOException
+   *              If reading fails.
+   */
+  protected static char[] readChars(DataInputStream data) throws IOException {
+    return data.readUTF().toCharArray();
+  }
+
+  /**
+   * Write a version.
+   *
+   * @param data
+   *          The stream.
+   * @param version
+   *          The version or null.
+   * @exception IOException
+   *              If writing fails.
+   */
+  protected static void writeVersion(DataOutputStream data, CK_VERSION version)
+      throws IOException {
+    data.writeByte((version != null) ? version.major : 0);
+    data.writeByte((version != null) ? version.minor : 0);
+  }
+
+  /**
+   * Read a version written by writeVersion.
+   *
+   * @param data
+   *          The stream.
+   * @return The version.
+   * @exception IOException
+   *              If reading fails.
+   */
+  protected static CK_VERSION readVersion(DataInputStream data) throws IOException {
+    CK_VERSION version = new CK_VERSION();
+    version.major = data.readByte();
+    version.minor = data.readByte();
+
+    return version;
+  }
+
+}
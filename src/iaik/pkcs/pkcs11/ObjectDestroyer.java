@@ -0,0 +1,341 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
+import iaik.pkcs.pkcs11.objects.Object;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Destroys many objects at once. The handles are split into as many parts as the parallelism, and
+ * each part is destroyed with its own session of the pool; thus, a device that processes requests
+ * in parallel destroys the objects in a fraction of the time of a single session. Session objects
+ * are visible to all sessions of the application, so any session of the pool can destroy them.
+ *
+ * <pre>
+ * <code>
+ *   ObjectDestroyer destroyer = new ObjectDestroyer(sessionPool, 4);
+ *   int destroyed = destroyer.destroyObjects(derivedKeyTemplate);
+ * </code>
+ * </pre>
+ *
+ * Handles of objects that do not exist any more are ignored.
+ *
+ * @version 1.0
+ * @invariants (sessionPool_ != null) and (parallelism_ > 0) and (executor_ != null)
+ */
+public class ObjectDestroyer {
+
+  /**
+   * The number of destroyers created; used to name the threads.
+   */
+  protected static final AtomicInteger destroyerCounter_ = new AtomicInteger();
+
+  /**
+   * The pool to borrow the sessions from.
+   */
+  protected SessionPool sessionPool_;
+
+  /**
+   * The number of sessions used at the same time.
+   */
+  protected int parallelism_;
+
+  /**
+   * The threads destroying all parts but the first; the calling thread destroys the first part.
+   */
+  protected ThreadPoolExecutor executor_;
+
+  /**
+   * Create a new destroyer.
+   *
+   * @param sessionPool
+   *          The pool to borrow sessions from; the sessions must be read-write sessions to
+   *          destroy token objects.
+   * @param parallelism
+   *          The number of sessions used at the same time.
+   * @preconditions (sessionPool != null) and (parallelism > 0)
+   */
+  public ObjectDestroyer(SessionPool sessionPool, int parallelism) {
+    if (sessionPool == null) {
+      throw new NullPointerException("Argument \"sessionPool\" must not be null.");
+    }
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("Argument \"parallelism\" must be positive.");
+    }
+    sessionPool_ = sessionPool;
+    parallelism_ = parallelism;
+    final int destroyerNumber = destroyerCounter_.incrementAndGet();
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger threadCounter_ = new AtomicInteger();
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "PKCS11-destroyer-" + destroyerNumber + "-"
+            + threadCounter_.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    int threads = Math.max(1, parallelism - 1);
+    executor_ = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), threadFactory);
+    executor_.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Get the session pool of this destroyer.
+   *
+   * @return The session pool.
+   * @postconditions (result != null)
+   */
+  public SessionPool getSessionPool() {
+    return sessionPool_;
+  }
+
+  /**
+   * Destroy all objects matching the given template.
+   *
+   * @param template
+   *          The search template; e.g. a key with CKA_TOKEN false and CKA_LABEL set.
+   * @return The number of objects destroyed.
+   * @exception TokenException
+   *              If the search fails or some objects could not be destroyed.
+   * @preconditions (template != null)
+   */
+  public int destroyObjects(final Object template) throws TokenException {
+    if (template == null) {
+      throw new NullPointerException("Argument \"template\" must not be null.");
+    }
+    long[] objectHandles = sessionPool_.execute(new SessionPool.SessionOperation<long[]>() {
+      public long[] execute(Session session) throws TokenException {
+        long[] handles = new long[16];
+        int count = 0;
+        session.findObjectsInit(template);
+        try {
+          long[] found;
+          while ((found = session.findObjectHandles(100)).length > 0) {
+            if (count + found.length > handles.length) {
+              handles = Arrays.copyOf(handles, Math.max(2 * handles.length, count + found.length));
+            }
+            System.arraycopy(found, 0, handles, count, found.length);
+            count += found.length;
+          }
+        } finally {
+          session.findObjectsFinal();
+        }
+        return Arrays.copyOf(handles, count);
+      }
+    });
+
+    return destroyObjects(objectHandles);
+  }
+
+  /**
+   * Destroy the objects with the given handles. All objects are tried, even if some fail.
+   *
+   * @param objectHandles
+   *          The handles of the objects.
+   * @return The number of objects destroyed; handles of objects that do not exist are not
+   *         counted.
+   * @exception ObjectsNotDestroyedException
+   *              If some objects could not be destroyed; it tells the numbers of destroyed and
+   *              failed objects, and the exception of the first failure is encapsulated.
+   * @preconditions (objectHandles != null)
+   */
+  public int destroyObjects(long[] objectHandles) throws TokenException {
+    if (objectHandles == null) {
+      throw new NullPointerException("Argument \"objectHandles\" must not be null.");
+    }
+    if (objectHandles.length == 0) {
+      return 0;
+    }
+    int parts = Math.min(parallelism_, objectHandles.length);
+    final TokenException[] firstFailure = new TokenException[1];
+    final AtomicInteger failureCount = new AtomicInteger();
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    for (int part = 1; part < parts; part++) {
+      final long[] handles = partition(objectHandles, part, parts);
+      futures.add(executor_.submit(new Callable<Integer>() {
+        public Integer call() {
+          return Integer.valueOf(destroyPart(handles, firstFailure, failureCount));
+        }
+      }));
+    }
+    int destroyed = destroyPart(partition(objectHandles, 0, parts), firstFailure, failureCount);
+
+    boolean interrupted = false;
+    for (int i = 0; i < futures.size(); i++) {
+      while (true) {
+        try {
+          destroyed += futures.get(i).get().intValue();
+          break;
+        } catch (InterruptedException ex) {
+          // the parts are already running; wait for them
+          interrupted = true;
+        } catch (ExecutionException ex) {
+          throw new TokenRuntimeException("Destroying objects failed unexpectedly.", ex);
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (failureCount.get() > 0) {
+      throw new ObjectsNotDestroyedException("Destroying " + failureCount.get() + " of "
+          + objectHandles.length + " objects failed.", destroyed, failureCount.get(),
+          firstFailure[0]);
+    }
+
+    return destroyed;
+  }
+
+  /**
+   * Stop the threads of this destroyer.
+   */
+  public void shutdown() {
+    executor_.shutdown();
+  }
+
+  /**
+   * Destroy one part of the objects with one session.
+   *
+   * @param objectHandles
+   *          The handles of the part.
+   * @param firstFailure
+   *          The array holding the first failure.
+   * @param failureCount
+   *          The counter of failed objects.
+   * @return The number of objects destroyed.
+   */
+  protected int destroyPart(final long[] objectHandles, final TokenException[] firstFailure,
+      final AtomicInteger failureCount) {
+    final int[] destroyed = new int[1];
+    final int[] next = new int[1];
+    while (next[0] < objectHandles.length) {
+      try {
+        sessionPool_.execute(new SessionPool.SessionOperation<java.lang.Object>() {
+          public java.lang.Object execute(Session session) throws TokenException {
+            GenericTemplate object = new GenericTemplate();
+            for (; next[0] < objectHandles.length; next[0]++) {
+              object.setObjectHandle(objectHandles[next[0]]);
+              try {
+                session.destroyObject(object);
+                destroyed[0]++;
+              } catch (PKCS11Exception ex) {
+                long errorCode = ex.getErrorCode();
+                if ((errorCode == PKCS11Constants.CKR_SESSION_HANDLE_INVALID)
+                    || (errorCode == PKCS11Constants.CKR_SESSION_CLOSED)
+                    || (errorCode == PKCS11Constants.CKR_DEVICE_ERROR)) {
+                  // the pool replaces the session; the next handles get another session
+                  throw ex;
+                }
+                if (errorCode != PKCS11Constants.CKR_OBJECT_HANDLE_INVALID) {
+                  recordFailure(ex, firstFailure, failureCount);
+                }
+              }
+            }
+            return null;
+          }
+        });
+      } catch (TokenException ex) {
+        // the session failed or none could be borrowed; give up the object at hand
+        recordFailure(ex, firstFailure, failureCount);
+        next[0]++;
+      }
+    }
+
+    return destroyed[0];
+  }
+
+  /**
+   * Record a failed object.
+   *
+   * @param exception
+   *          The exception.
+   * @param firstFailure
+   *          The array holding the first failure.
+   * @param failureCount
+   *          The counter of failed objects.
+   */
+  protected static void recordFailure(TokenException exception, TokenException[] firstFailure,
+      AtomicInteger failureCount) {
+    synchronized (firstFailure) {
+      if (firstFailure[0] == null) {
+        firstFailure[0] = exception;
+      }
+    }
+    failureCount.incrementAndGet();
+  }
+
+  /**
+   * Get one part of the given handles.
+   *
+   * @param objectHandles
+   *          All handles.
+   * @param part
+   *          The index of the part.
+   * @param parts
+   *          The number of parts.
+   * @return The handles of the part.
+   */
+  protected static long[] partition(long[] objectHandles, int part, int parts) {
+    int from = (int) ((long) objectHandles.length * part / parts);
+    int to = (int) ((long) objectHandles.length * (part + 1) / parts);
+
+    return Arrays.copyOfRange(objectHandles, from, to);
+  }
+
+}
@@ -0,0 +1,564 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.Certificate;
+import iaik.pkcs.pkcs11.objects.CharArrayAttribute;
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.Object;
+import iaik.pkcs.pkcs11.objects.ObjectClassAttribute;
+import iaik.pkcs.pkcs11.objects.PrivateKey;
+import iaik.pkcs.pkcs11.objects.PublicKey;
+import iaik.pkcs.pkcs11.objects.SecretKey;
+import iaik.pkcs.pkcs11.wrapper.Functions;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Resolves the label or ID of an object to the object on the token and caches the result; thus,
+ * the usual find sequence of three calls (C_FindObjectsInit, C_FindObjects, C_FindObjectsFinal) is
+ * done once per object and not once per request. If several threads resolve the same uncached
+ * object at the same time, only one of them searches; the others wait for its result.
+ *
+ * <pre>
+ * <code>
+ *   ObjectResolver resolver = token.getObjectResolver();
+ *   resolver.warmUp(session, Object.ObjectClass.PRIVATE_KEY);
+ *   Key signatureKey = (Key) resolver.resolveByLabel(session, Object.ObjectClass.PRIVATE_KEY,
+ *       "signing-key");
+ * </code>
+ * </pre>
+ *
+ * Searches find only the handles of the objects; of each found object, only the attributes needed
+ * for the lookup are read with one call: its class, key type or certificate type, label and ID.
+ * Applications that need other attributes read them with Session.getAttributeValues. Each call
+ * returns a copy of the cached object; thus, callers may modify it without affecting the cache.
+ *
+ * The cache is not validated on each use. If an operation with a resolved object fails with
+ * CKR_OBJECT_HANDLE_INVALID or CKR_KEY_HANDLE_INVALID, the object is evicted; execute does this
+ * and repeats the operation once with the object found again. Objects that do not exist or whose
+ * label or ID is ambiguous are not cached.
+ *
+ * @see Token#getObjectResolver()
+ * @version 1.0
+ * @invariants (token_ != null)
+ */
+public class ObjectResolver {
+
+  /**
+   * The types of the attributes read of each found object.
+   */
+  protected static final long[] LOOKUP_ATTRIBUTES = { PKCS11Constants.CKA_CLASS,
+      PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKA_CERTIFICATE_TYPE,
+      PKCS11Constants.CKA_LABEL, PKCS11Constants.CKA_ID };
+
+  /**
+   * The token whose objects this resolver finds.
+   */
+  protected Token token_;
+
+  /**
+   * The resolved objects and the running searches. The key of this table is made of the object
+   * class and the label or ID; see getCacheKey.
+   */
+  protected final ConcurrentHashMap<String, FutureTask<Object>> cache_ =
+      new ConcurrentHashMap<String, FutureTask<Object>>();
+
+  /**
+   * Create a new resolver for the given token.
+   *
+   * @param token
+   *          The token.
+   * @preconditions (token != null)
+   */
+  protected ObjectResolver(Token token) {
+    if (token == null) {
+      throw new NullPointerException("Argument \"token\" must not be null.");
+    }
+    token_ = token;
+  }
+
+  /**
+   * Get the token of this resolver.
+   *
+   * @return The token.
+   * @postconditions (result != null)
+   */
+  public Token getToken() {
+    return token_;
+  }
+
+  /**
+   * Find the object of the given class with the given label.
+   *
+   * @param session
+   *          The session to search with, if the object is not cached.
+   * @param objectClass
+   *          The object class; e.g. Object.ObjectClass.PRIVATE_KEY.
+   * @param label
+   *          The label.
+   * @return The object or null, if there is none.
+   * @exception TokenException
+   *              If the search fails or finds more than one object.
+   * @preconditions (session != null) and (objectClass != null) and (label != null)
+   */
+  public Object resolveByLabel(Session session, Long objectClass, String label)
+      throws TokenException {
+    if (label == null) {
+      throw new NullPointerException("Argument \"label\" must not be null.");
+    }
+    CharArrayAttribute labelAttribute = new CharArrayAttribute(Attribute.LABEL);
+    labelAttribute.setCharArrayValue(label.toCharArray());
+
+    return resolve(session, objectClass, labelAttribute, getCacheKey(objectClass, label, null));
+  }
+
+  /**
+   * Find the object of the given class with the given ID.
+   *
+   * @param session
+   *          The session to search with, if the object is not cached.
+   * @param objectClass
+   *          The object class; e.g. Object.ObjectClass.PRIVATE_KEY.
+   * @param id
+   *          The ID.
+   * @return The object or null, if there is none.
+   * @exception TokenException
+   *              If the search fails or finds more than one object.
+   * @preconditions (session != null) and (objectClass != null) and (id != null)
+   */
+  public Object resolveById(Session session, Long objectClass, byte[] id)
+      throws TokenException {
+    if (id == null) {
+      throw new NullPointerException("Argument \"id\" must not be null.");
+    }
+    ByteArrayAttribute idAttribute = new ByteArrayAttribute(Attribute.ID);
+    idAttribute.setByteArrayValue(id);
+
+    return resolve(session, objectClass, idAttribute, getCacheKey(objectClass, null, id));
+  }
+
+  /**
+   * Perform an operation with the key of the given class and label. If the operation fails
+   * because the handle of the cached key is stale, the key is found again and the operation is
+   * repeated once.
+   *
+   * @param session
+   *          The session.
+   * @param objectClass
+   *          The object class of the key.
+   * @param label
+   *          The label of the key.
+   * @param operation
+   *          The operation.
+   * @return The result of the operation.
+   * @exception TokenException
+   *              If the key does not exist, cannot be found, or the operation fails.
+   * @preconditions (session != null) and (objectClass != null) and (label != null)
+   *                and (operation != null)
+   */
+  public <T> T execute(Session session, Long objectClass, String label,
+      RetryExecutor.KeyOperation<T> operation) throws TokenException {
+    Key key = resolveKey(session, objectClass, label);
+    try {
+      return operation.execute(session, key);
+    } catch (PKCS11Exception ex) {
+      long errorCode = ex.getErrorCode();
+      if ((errorCode != PKCS11Constants.CKR_OBJECT_HANDLE_INVALID)
+          && (errorCode != PKCS11Constants.CKR_KEY_HANDLE_INVALID)) {
+        throw ex;
+      }
+      evict(key);
+      return operation.execute(session, resolveKey(session, objectClass, label));
+    }
+  }
+
+  /**
+   * Find and cache all objects of the given class that have a label or an ID. Call it at startup
+   * to avoid the searches on the first requests.
+   *
+   * @param session
+   *          The session to search with.
+   * @param objectClass
+   *          The object class; e.g. Object.ObjectClass.PRIVATE_KEY.
+   * @return The number of objects cached.
+   * @exception TokenException
+   *              If the search fails.
+   * @preconditions (session != null) and (objectClass != null)
+   */
+  public int warmUp(Session session, Long objectClass) throws TokenException {
+    GenericTemplate template = new GenericTemplate();
+    ObjectClassAttribute classAttribute = new ObjectClassAttribute();
+    classAttribute.setLongValue(objectClass);
+    template.addAttribute(classAttribute);
+
+    List<Long> handles = new ArrayList<Long>();
+    session.findObjectsInit(template);
+    try {
+      long[] objectHandles;
+      while ((objectHandles = session.findObjectHandles(100)).length > 0) {
+        for (int i = 0; i < objectHandles.length; i++) {
+          handles.add(Long.valueOf(objectHandles[i]));
+        }
+      }
+    } finally {
+      session.findObjectsFinal();
+    }
+
+    Map<String, Object> found = new HashMap<String, Object>();
+    Set<String> ambiguous = new HashSet<String>();
+    for (int i = 0; i < handles.size(); i++) {
+      Object object = readObject(session, objectClass, handles.get(i).longValue());
+      String[] cacheKeys = getCacheKeys(objectClass, object);
+      for (int j = 0; j < cacheKeys.length; j++) {
+        if ((cacheKeys[j] != null) && (found.put(cacheKeys[j], object) != null)) {
+          ambiguous.add(cacheKeys[j]);
+        }
+      }
+    }
+
+    int count = 0;
+    Iterator<Map.Entry<String, Object>> entries = found.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<String, Object> entry = entries.next();
+      if (!ambiguous.contains(entry.getKey())) {
+        final Object object = entry.getValue();
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+          public Object call() {
+            return object;
+          }
+        });
+        task.run();
+        cache_.put(entry.getKey(), task);
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Remove the given object from the cache; e.g. after it was destroyed or its handle became
+   * stale. The cached object with the same handle is removed.
+   *
+   * @param object
+   *          The object as returned by this resolver.
+   * @preconditions (object != null)
+   */
+  public void evict(Object object) {
+    Iterator<FutureTask<Object>> tasks = cache_.values().iterator();
+    while (tasks.hasNext()) {
+      FutureTask<Object> task = tasks.next();
+      if (task.isDone()) {
+        Object cached = getQuietly(task);
+        if ((cached != null) && (cached.getObjectHandle() == object.getObjectHandle())) {
+          tasks.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Remove all objects from the cache; e.g. after the token was reinitialized.
+   */
+  public void clear() {
+    cache_.clear();
+  }
+
+  /**
+   * Get the number of cached objects.
+   *
+   * @return The number of cache entries.
+   */
+  public int size() {
+    return cache_.size();
+  }
+
+  /**
+   * Find a key by class and label.
+   *
+   * @param session
+   *          The session.
+   * @param objectClass
+   *          The object class of the key.
+   * @param label
+   *          The label of the key.
+   * @return The key.
+   * @exception TokenException
+   *              If the key does not exist or cannot be found.
+   */
+  protected Key resolveKey(Session session, Long objectClass, String label)
+      throws TokenException {
+    Object object = resolveByLabel(session, objectClass, label);
+    if (!(object instanceof Key)) {
+      throw new TokenException("No key with label \"" + label + "\" found.");
+    }
+
+    return (Key) object;
+  }
+
+  /**
+   * Get the cached object or search it; concurrent searches for the same object are coalesced.
+   * The result is a copy of the cached object.
+   *
+   * @param session
+   *          The session to search with.
+   * @param objectClass
+   *          The object class.
+   * @param attribute
+   *          The label or ID attribute.
+   * @param cacheKey
+   *          The cache key.
+   * @return The object or null.
+   * @exception TokenException
+   *              If the search fails or finds more than one object.
+   */
+  protected Object resolve(final Session session, final Long objectClass,
+      final Attribute attribute, String cacheKey) throws TokenException {
+    if (session == null) {
+      throw new NullPointerException("Argument \"session\" must not be null.");
+    }
+    if (objectClass == null) {
+      throw new NullPointerException("Argument \"objectClass\" must not be null.");
+    }
+    FutureTask<Object> task = cache_.get(cacheKey);
+    if (task == null) {
+      FutureTask<Object> newTask = new FutureTask<Object>(new Callable<Object>() {
+        public Object call() throws TokenException {
+          return search(session, objectClass, attribute);
+        }
+      });
+      task = cache_.putIfAbsent(cacheKey, newTask);
+      if (task == null) {
+        task = newTask;
+        newTask.run();
+      }
+    }
+
+    Object object;
+    try {
+      object = task.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new TokenException("Interrupted while waiting for a search.", ex);
+    } catch (ExecutionException ex) {
+      cache_.remove(cacheKey, task);
+      if (ex.getCause() instanceof TokenException) {
+        throw (TokenException) ex.getCause();
+      }
+      throw new TokenException("Searching the object failed.", ex);
+    }
+    if (object == null) {
+      // do not cache objects that do not exist; they may be created later
+      cache_.remove(cacheKey, task);
+      return null;
+    }
+
+    return (Object) object.clone();
+  }
+
+  /**
+   * Search the object with the given class and attribute.
+   *
+   * @param session
+   *          The session to search with.
+   * @param objectClass
+   *          The object class.
+   * @param attribute
+   *          The label or ID attribute.
+   * @return The object or null.
+   * @exception TokenException
+   *              If the search fails or finds more than one object.
+   */
+  protected Object search(Session session, Long objectClass, Attribute attribute)
+      throws TokenException {
+    GenericTemplate template = new GenericTemplate();
+    ObjectClassAttribute classAttribute = new ObjectClassAttribute();
+    classAttribute.setLongValue(objectClass);
+    template.addAttribute(classAttribute);
+    template.addAttribute(attribute);
+
+    long[] objectHandles;
+    session.findObjectsInit(template);
+    try {
+      objectHandles = session.findObjectHandles(2);
+    } finally {
+      session.findObjectsFinal();
+    }
+    if (objectHandles.length > 1) {
+      String name = (attribute instanceof CharArrayAttribute) ? "label" : "ID";
+      throw new TokenException("More than one object of class "
+          + Object.getObjectClassName(objectClass) + " has this " + name + ".");
+    }
+
+    return (objectHandles.length == 1) ? readObject(session, objectClass, objectHandles[0])
+        : null;
+  }
+
+  /**
+   * Read the lookup attributes of the object with the given handle.
+   *
+   * @param session
+   *          The session to read with.
+   * @param objectClass
+   *          The object class.
+   * @param objectHandle
+   *          The object handle.
+   * @return The object with the attributes of LOOKUP_ATTRIBUTES it has.
+   * @exception TokenException
+   *              If reading the attributes fails.
+   */
+  protected Object readObject(Session session, Long objectClass, long objectHandle)
+      throws TokenException {
+    Object object = newObject(objectClass);
+    Object.readAttributes(session, objectHandle, object, LOOKUP_ATTRIBUTES);
+
+    return object;
+  }
+
+  /**
+   * Create an empty object of the given class. Keys and certificates get the classes of their
+   * object class; e.g. PrivateKey. Objects of other classes are generic objects with a class, a
+   * label and an ID attribute.
+   *
+   * @param objectClass
+   *          The object class.
+   * @return The new object.
+   */
+  protected static Object newObject(Long objectClass) {
+    if (Object.ObjectClass.PRIVATE_KEY.equals(objectClass)) {
+      return new PrivateKey();
+    } else if (Object.ObjectClass.PUBLIC_KEY.equals(objectClass)) {
+      return new PublicKey();
+    } else if (Object.ObjectClass.SECRET_KEY.equals(objectClass)) {
+      return new SecretKey();
+    } else if (Object.ObjectClass.CERTIFICATE.equals(objectClass)) {
+      return new Certificate();
+    }
+    GenericTemplate object = new GenericTemplate();
+    ObjectClassAttribute classAttribute = new ObjectClassAttribute();
+    classAttribute.setLongValue(objectClass);
+    object.addAttribute(classAttribute);
+    object.addAttribute(new CharArrayAttribute(Attribute.LABEL));
+    object.addAttribute(new ByteArrayAttribute(Attribute.ID));
+
+    return object;
+  }
+
+  /**
+   * Get the cache keys of an object; one for its label and one for its ID.
+   *
+   * @param objectClass
+   *          The object class.
+   * @param object
+   *          The object.
+   * @return The cache keys; an entry is null, if the object lacks the attribute.
+   */
+  protected static String[] getCacheKeys(Long objectClass, Object object) {
+    String[] cacheKeys = new String[2];
+    Attribute label = object.getAttribute(PKCS11Constants.CKA_LABEL);
+    if ((label instanceof CharArrayAttribute) && label.isPresent()
+        && (((CharArrayAttribute) label).getCharArrayValue() != null)) {
+      cacheKeys[0] = getCacheKey(objectClass, new String(((CharArrayAttribute) label)
+          .getCharArrayValue()), null);
+    }
+    Attribute id = object.getAttribute(PKCS11Constants.CKA_ID);
+    if ((id instanceof ByteArrayAttribute) && id.isPresent()
+        && (((ByteArrayAttribute) id).getByteArrayValue() != null)) {
+      cacheKeys[1] = getCacheKey(objectClass, null, ((ByteArrayAttribute) id)
+          .getByteArrayValue());
+    }
+
+    return cacheKeys;
+  }
+
+  /**
+   * Get the cache key for a label or an ID.
+   *
+   * @param objectClass
+   *          The object class.
+   * @param label
+   *          The label or null.
+   * @param id
+   *          The ID or null.
+   * @return The cache key.
+   */
+  protected static String getCacheKey(Long objectClass, String label, byte[] id) {
+    return (label != null) ? objectClass + "/label:" + label : objectClass + "/id:"
+        + Functions.toHexString(id);
+  }
+
+  /**
+   * Get the result of a completed search.
+   *
+   * @param task
+   *          The completed search.
+   * @return The object or null, if the search failed or found nothing.
+   */
+  protected static Object getQuietly(FutureTask<Object> task) {
+    try {
+      return task.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException ex) {
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,103 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+package iaik.pkcs.pkcs11;
+
+/**
+ * Thrown by an ObjectDestroyer, if some of the objects could not be destroyed. All objects were
+ * tried; the exception tells how many were destroyed and how many failed. The cause is the
+ * exception of the first failure.
+ *
+ * @see ObjectDestroyer
+ * @version 1.0
+ */
+public class ObjectsNotDestroyedException extends TokenException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The number of objects destroyed.
+   */
+  protected int destroyedCount_;
+
+  /**
+   * The number of objects that could not be destroyed.
+   */
+  protected int failedCount_;
+
+  /**
+   * Constructor taking the message, the counts and the first failure.
+   *
+   * @param message
+   *          The message giving details about the exception to ease debugging.
+   * @param destroyedCount
+   *          The number of objects destroyed.
+   * @param failedCount
+   *          The number of objects that could not be destroyed.
+   * @param firstFailure
+   *          The exception of the first failure.
+   */
+  public ObjectsNotDestroyedException(String message, int destroyedCount, int failedCount,
+      Exception firstFailure) {
+    super(message, firstFailure);
+    destroyedCount_ = destroyedCount;
+    failedCount_ = failedCount;
+  }
+
+  /**
+   * Get the number of objects destroyed; handles of objects that did not exist are not counted.
+   *
+   * @return The number of objects.
+   */
+  public int getDestroyedCount() {
+    return destroyedCount_;
+  }
+
+  /**
+   * Get the number of objects that could not be destroyed.
+   *
+   * @return The number of objects.
+   */
+  public int getFailedCount() {
+    return failedCount_;
+  }
+
+}
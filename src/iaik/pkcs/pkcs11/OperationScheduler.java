@@ -0,0 +1,816 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.wrapper.Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Schedules long multipart digest, sign and verify operations fairly on the sessions of a
+ * SessionPool. A multipart operation occupies its session from the init call to the final call. If
+ * an application streams a large amount of data, short requests of other threads have to wait for
+ * a free session meanwhile. A StreamOperation of this scheduler holds its session for at most one
+ * time slice. When the slice has expired and other threads are waiting for a session, it saves the
+ * operation state (C_GetOperationState), gives the session back to the pool, and restores the state
+ * on whichever session it gets next (C_SetOperationState).
+ *
+ * <pre>
+ * <code>
+ *   OperationScheduler scheduler = new OperationScheduler(pool, 20, TimeUnit.MILLISECONDS);
+ *   OperationScheduler.StreamOperation operation = scheduler.startSign(mechanism, privateKey);
+ *   while ((length = in.read(buffer)) &gt;= 0) {
+ *     operation.update(Arrays.copyOf(buffer, length));
+ *   }
+ *   byte[] signatureValue = operation.finish();
+ * </code>
+ * </pre>
+ *
+ * Not every module can save operation states. The scheduler checks this once with
+ * probeMigrationSupport (called implicitly by the first operation) and remembers mechanisms for
+ * which saving the state failed with CKR_STATE_UNSAVEABLE. Such operations keep their session until
+ * they are finished; they work as without the scheduler. The statistics of this scheduler tell how
+ * often operations were migrated and how much time saving and restoring the state took.
+ *
+ * Some modules need the key again to restore a state, others return CKR_KEY_NOT_NEEDED, because
+ * the saved state contains the key. The scheduler tries the form that worked last and switches to
+ * the other form on CKR_KEY_NOT_NEEDED or CKR_KEY_NEEDED. After saving the state, the operation
+ * is ended on the old session with C_SessionCancel, if the module supports it. Otherwise, the
+ * final call of the operation ends it; for sign operations, this is a full private key operation
+ * per suspension, which is included in the suspend time of the statistics.
+ *
+ * @version 1.0
+ * @invariants (pool_ != null) and (timeSliceNanos_ > 0)
+ */
+public class OperationScheduler {
+
+  /**
+   * The module has not been probed yet.
+   */
+  public static final int MIGRATION_UNKNOWN = 0;
+
+  /**
+   * The module can save and restore operation states.
+   */
+  public static final int MIGRATION_SUPPORTED = 1;
+
+  /**
+   * The module can not save or restore operation states.
+   */
+  public static final int MIGRATION_UNSUPPORTED = 2;
+
+  /**
+   * The type of a multipart digest operation.
+   */
+  protected static final int DIGEST = 0;
+
+  /**
+   * The type of a multipart sign operation.
+   */
+  protected static final int SIGN = 1;
+
+  /**
+   * The type of a multipart verify operation.
+   */
+  protected static final int VERIFY = 2;
+
+  /**
+   * The counters of a scheduler.
+   *
+   * @version 1.0
+   */
+  public static class Statistics {
+
+    protected final LongAdder suspensions_ = new LongAdder();
+
+    protected final LongAdder resumptions_ = new LongAdder();
+
+    protected final LongAdder failedSuspensions_ = new LongAdder();
+
+    protected final LongAdder stateBytes_ = new LongAdder();
+
+    protected final LongAdder suspendNanos_ = new LongAdder();
+
+    protected final LongAdder resumeNanos_ = new LongAdder();
+
+    /**
+     * Get the number of times an operation state was saved and its session given back.
+     *
+     * @return The number of suspensions.
+     */
+    public long getSuspensionCount() {
+      return suspensions_.sum();
+    }
+
+    /**
+     * Get the number of times a saved operation state was restored on a session.
+     *
+     * @return The number of resumptions.
+     */
+    public long getResumptionCount() {
+      return resumptions_.sum();
+    }
+
+    /**
+     * Get the number of times saving an operation state failed; these operations kept their
+     * session.
+     *
+     * @return The number of failed suspensions.
+     */
+    public long getFailedSuspensionCount() {
+      return failedSuspensions_.sum();
+    }
+
+    /**
+     * Get the total size of all saved operation states.
+     *
+     * @return The number of bytes.
+     */
+    public long getStateBytes() {
+      return stateBytes_.sum();
+    }
+
+    /**
+     * Get the total time spent saving operation states and ending the operations on the old
+     * sessions.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getSuspendNanos() {
+      return suspendNanos_.sum();
+    }
+
+    /**
+     * Get the total time spent restoring operation states.
+     *
+     * @return The time in nanoseconds.
+     */
+    public long getResumeNanos() {
+      return resumeNanos_.sum();
+    }
+
+    /**
+     * Get the average cost of one migration; i.e. one suspension and one resumption.
+     *
+     * @return The average time in nanoseconds or 0, if there was no migration yet.
+     */
+    public long getAverageMigrationNanos() {
+      long resumptions = resumptions_.sum();
+      return (resumptions > 0) ? (suspendNanos_.sum() + resumeNanos_.sum()) / resumptions : 0L;
+    }
+
+    /**
+     * Returns the string representation of these statistics.
+     *
+     * @return The string representation.
+     */
+    public String toString() {
+      StringBuffer buffer = new StringBuffer();
+
+      buffer.append("Suspensions: ");
+      buffer.append(getSuspensionCount());
+      buffer.append(Constants.NEWLINE);
+      buffer.append("Resumptions: ");
+      buffer.append(getResumptionCount());
+      buffer.append(Constants.NEWLINE);
+      buffer.append("Failed Suspensions: ");
+      buffer.append(getFailedSuspensionCount());
+      buffer.append(Constants.NEWLINE);
+      buffer.append("State Bytes: ");
+      buffer.append(getStateBytes());
+      buffer.append(Constants.NEWLINE);
+      buffer.append("Average Migration (ns): ");
+      buffer.append(getAverageMigrationNanos());
+
+      return buffer.toString();
+    }
+
+  }
+
+  /**
+   * A multipart operation which may move between the sessions of the pool. Objects of this class
+   * are meant to be used by one thread at a time.
+   *
+   * @version 1.0
+   */
+  public class StreamOperation {
+
+    /**
+     * DIGEST, SIGN or VERIFY.
+     */
+    protected int type_;
+
+    /**
+     * The mechanism of this operation.
+     */
+    protected Mechanism mechanism_;
+
+    /**
+     * The key of this operation; null for digest operations.
+     */
+    protected Key key_;
+
+    /**
+     * The session this operation currently runs on; null while suspended.
+     */
+    protected Session session_;
+
+    /**
+     * The saved state while suspended.
+     */
+    protected byte[] state_;
+
+    /**
+     * The time the current session was acquired, as of System.nanoTime().
+     */
+    protected long sliceStart_;
+
+    /**
+     * True, if this operation was initialized on a session.
+     */
+    protected boolean initialized_;
+
+    /**
+     * False, if the state of this operation can not be saved.
+     */
+    protected boolean migratable_;
+
+    /**
+     * True, after the operation was finished or aborted.
+     */
+    protected boolean finished_;
+
+    /**
+     * Create a new operation. The operation is initialized with the first update.
+     *
+     * @param type
+     *          DIGEST, SIGN or VERIFY.
+     * @param mechanism
+     *          The mechanism.
+     * @param key
+     *          The key or null for digest operations.
+     */
+    protected StreamOperation(int type, Mechanism mechanism, Key key) {
+      type_ = type;
+      mechanism_ = mechanism;
+      key_ = key;
+      migratable_ = isMigratable(mechanism);
+    }
+
+    /**
+     * Check, if this operation is currently suspended; i.e. it holds no session.
+     *
+     * @return True, if suspended.
+     */
+    public boolean isSuspended() {
+      return session_ == null;
+    }
+
+    /**
+     * Process the next part of the data. The operation may yield its session after this call.
+     *
+     * @param part
+     *          The next part of the data.
+     * @exception TokenException
+     *              If processing the data failed. The operation is aborted in this case.
+     * @preconditions (part != null)
+     */
+    public void update(byte[] part) throws TokenException {
+      acquire();
+      try {
+        if (type_ == DIGEST) {
+          session_.digestUpdate(part);
+        } else if (type_ == SIGN) {
+          session_.signUpdate(part);
+        } else {
+          session_.verifyUpdate(part);
+        }
+      } catch (TokenException ex) {
+        release(false);
+        throw ex;
+      }
+      if (migratable_ && (System.nanoTime() - sliceStart_ >= timeSliceNanos_)
+          && (pool_.getWaitingThreadCount() > 0)) {
+        suspend();
+      }
+    }
+
+    /**
+     * Finish a digest or sign operation.
+     *
+     * @return The digest or signature value.
+     * @exception TokenException
+     *              If finishing the operation failed.
+     */
+    public byte[] finish() throws TokenException {
+      if (type_ == VERIFY) {
+        throw new TokenException("Use finishVerify for verify operations.");
+      }
+      acquire();
+      boolean sessionValid = false;
+      try {
+        byte[] result = (type_ == DIGEST) ? session_.digestFinal() : session_.signFinal();
+        sessionValid = true;
+        return result;
+      } finally {
+        release(sessionValid);
+      }
+    }
+
+    /**
+     * Finish a verify operation. This method returns normally, if the signature is valid.
+     *
+     * @param signature
+     *          The signature value.
+     * @exception TokenException
+     *              If the signature is invalid or verification failed.
+     */
+    public void finishVerify(byte[] signature) throws TokenException {
+      if (type_ != VERIFY) {
+        throw new TokenException("Use finish for digest and sign operations.");
+      }
+      acquire();
+      boolean sessionValid = false;
+      try {
+        session_.verifyFinal(signature);
+        sessionValid = true;
+      } catch (PKCS11Exception ex) {
+        // the operation is terminated by verifyFinal in any case
+        sessionValid = (ex.getErrorCode() == PKCS11Constants.CKR_SIGNATURE_INVALID)
+            || (ex.getErrorCode() == PKCS11Constants.CKR_SIGNATURE_LEN_RANGE);
+        throw ex;
+      } finally {
+        release(sessionValid);
+      }
+    }
+
+    /**
+     * Abort this operation and release its session.
+     */
+    public void abort() {
+      if ((session_ != null) && !finished_) {
+        release(terminate(session_));
+      }
+      finished_ = true;
+      state_ = null;
+    }
+
+    /**
+     * Get a session and initialize the operation on it, or restore the saved state.
+     *
+     * @exception TokenException
+     *              If the operation is finished or no session could be prepared.
+     */
+    protected void acquire() throws TokenException {
+      if (finished_) {
+        throw new PKCS11Exception(PKCS11Constants.CKR_OPERATION_NOT_INITIALIZED);
+      }
+      if (session_ != null) {
+        return;
+      }
+      Session session = pool_.borrowSession();
+      try {
+        if (!initialized_) {
+          if (type_ == DIGEST) {
+            session.digestInit(mechanism_);
+          } else if (type_ == SIGN) {
+            session.signInit(mechanism_, key_);
+          } else {
+            session.verifyInit(mechanism_, key_);
+          }
+          initialized_ = true;
+        } else {
+          long start = System.nanoTime();
+          restoreState(session);
+          statistics_.resumeNanos_.add(System.nanoTime() - start);
+          statistics_.resumptions_.increment();
+          state_ = null;
+        }
+      } catch (TokenException ex) {
+        pool_.invalidateSession(session);
+        finished_ = true;
+        throw ex;
+      }
+      session_ = session;
+      sliceStart_ = System.nanoTime();
+    }
+
+    /**
+     * Restore the saved state on the given session. The key is passed as authentication key, unless
+     * the module was found to reject it; the other form is tried, if the module complains.
+     *
+     * @param session
+     *          The session.
+     * @exception TokenException
+     *              If restoring the state failed.
+     */
+    protected void restoreState(Session session) throws TokenException {
+      boolean withKey = (key_ != null) && !keyNotNeeded_;
+      try {
+        session.setOperationState(state_, null, withKey ? key_ : null);
+      } catch (PKCS11Exception ex) {
+        if (withKey && (ex.getErrorCode() == PKCS11Constants.CKR_KEY_NOT_NEEDED)) {
+          keyNotNeeded_ = true;
+          session.setOperationState(state_, null, null);
+        } else if (!withKey && (key_ != null)
+            && (ex.getErrorCode() == PKCS11Constants.CKR_KEY_NEEDED)) {
+          keyNotNeeded_ = false;
+          session.setOperationState(state_, null, key_);
+        } else {
+          throw ex;
+        }
+      }
+    }
+
+    /**
+     * Save the operation state, end the operation on the current session and give the session back
+     * to the pool. If the state can not be saved, the operation keeps its session.
+     *
+     * @exception TokenException
+     *              If saving the state failed for another reason than missing support.
+     */
+    protected void suspend() throws TokenException {
+      long start = System.nanoTime();
+      byte[] state;
+      try {
+        state = session_.getOperationState();
+      } catch (PKCS11Exception ex) {
+        if (!isUnsupported(ex.getErrorCode())) {
+          release(false);
+          throw ex;
+        }
+        markUnsaveable(mechanism_, ex.getErrorCode());
+        statistics_.failedSuspensions_.increment();
+        migratable_ = false;
+        return;
+      }
+      boolean sessionValid = terminate(session_);
+      Session session = session_;
+      session_ = null;
+      state_ = state;
+      if (sessionValid) {
+        pool_.returnSession(session);
+      } else {
+        pool_.invalidateSession(session);
+      }
+      statistics_.suspendNanos_.add(System.nanoTime() - start);
+      statistics_.stateBytes_.add(state.length);
+      statistics_.suspensions_.increment();
+    }
+
+    /**
+     * End the active operation on the given session and discard its result. C_SessionCancel is
+     * used, if the module supports it; otherwise the final call of the operation.
+     *
+     * @param session
+     *          The session.
+     * @return True, if the session has no active operation afterwards.
+     */
+    protected boolean terminate(Session session) {
+      if (sessionCancelSupported_) {
+        long flags = (type_ == DIGEST) ? PKCS11Constants.CKF_DIGEST
+            : (type_ == SIGN) ? PKCS11Constants.CKF_SIGN : PKCS11Constants.CKF_VERIFY;
+        try {
+          session.sessionCancel(flags);
+          return true;
+        } catch (PKCS11Exception ex) {
+          // only a module without C_SessionCancel, e.g. before version 3.0, is never asked again
+          if (ex.getErrorCode() == PKCS11Constants.CKR_FUNCTION_NOT_SUPPORTED) {
+            sessionCancelSupported_ = false;
+          }
+        } catch (TokenException ex) {
+          // end the operation with its final call
+        }
+      }
+      try {
+        if (type_ == DIGEST) {
+          session.digestFinal();
+        } else if (type_ == SIGN) {
+          session.signFinal();
+        } else {
+          session.verifyFinal(new byte[0]);
+        }
+        return true;
+      } catch (PKCS11Exception ex) {
+        // a failing final call terminates the operation as well, unless the session broke
+        return (ex.getErrorCode() == PKCS11Constants.CKR_SIGNATURE_INVALID)
+            || (ex.getErrorCode() == PKCS11Constants.CKR_SIGNATURE_LEN_RANGE);
+      } catch (TokenException ex) {
+        return false;
+      }
+    }
+
+    /**
+     * Give the current session back and mark this operation finished.
+     *
+     * @param sessionValid
+     *          False, if the session must be closed because its state is unknown.
+     */
+    protected void release(boolean sessionValid) {
+      Session session = session_;
+      session_ = null;
+      finished_ = true;
+      if (session == null) {
+        return;
+      }
+      if (sessionValid) {
+        pool_.returnSession(session);
+      } else {
+        pool_.invalidateSession(session);
+      }
+    }
+
+  }
+
+  /**
+   * The pool to take the sessions from.
+   */
+  protected SessionPool pool_;
+
+  /**
+   * The time an operation may hold a session before yielding it, in nanoseconds.
+   */
+  protected long timeSliceNanos_;
+
+  /**
+   * One of MIGRATION_UNKNOWN, MIGRATION_SUPPORTED or MIGRATION_UNSUPPORTED.
+   */
+  protected volatile int migrationSupport_ = MIGRATION_UNKNOWN;
+
+  /**
+   * The codes of the mechanisms for which saving the operation state failed.
+   */
+  protected final Set<Long> unsaveableMechanisms_ = ConcurrentHashMap.newKeySet();
+
+  /**
+   * True, if the module rejected the key when restoring a state with CKR_KEY_NOT_NEEDED.
+   */
+  protected volatile boolean keyNotNeeded_;
+
+  /**
+   * False, after the module reported C_SessionCancel as not supported; operations are ended with
+   * their final call then.
+   */
+  protected volatile boolean sessionCancelSupported_ = true;
+
+  /**
+   * The counters of this scheduler.
+   */
+  protected final Statistics statistics_ = new Statistics();
+
+  /**
+   * Create a new scheduler for the sessions of the given pool.
+   *
+   * @param pool
+   *          The pool to take the sessions from.
+   * @param timeSlice
+   *          The time an operation may hold a session while others wait.
+   * @param unit
+   *          The unit of the time slice.
+   * @preconditions (pool != null) and (timeSlice > 0) and (unit != null)
+   */
+  public OperationScheduler(SessionPool pool, long timeSlice, TimeUnit unit) {
+    if (pool == null) {
+      throw new NullPointerException("Argument \"pool\" must not be null.");
+    }
+    if (timeSlice <= 0) {
+      throw new IllegalArgumentException("Argument \"timeSlice\" must be positive.");
+    }
+    pool_ = pool;
+    timeSliceNanos_ = unit.toNanos(timeSlice);
+  }
+
+  /**
+   * Get the pool of this scheduler.
+   *
+   * @return The session pool.
+   * @postconditions (result != null)
+   */
+  public SessionPool getPool() {
+    return pool_;
+  }
+
+  /**
+   * Get the counters of this scheduler.
+   *
+   * @return The statistics.
+   * @postconditions (result != null)
+   */
+  public Statistics getStatistics() {
+    return statistics_;
+  }
+
+  /**
+   * Get the result of the capability probe.
+   *
+   * @return MIGRATION_UNKNOWN, MIGRATION_SUPPORTED or MIGRATION_UNSUPPORTED.
+   */
+  public int getMigrationSupport() {
+    return migrationSupport_;
+  }
+
+  /**
+   * Start a multipart digest operation.
+   *
+   * @param mechanism
+   *          The digest mechanism.
+   * @return The operation.
+   * @exception TokenException
+   *              If probing the module failed.
+   * @preconditions (mechanism != null)
+   * @postconditions (result != null)
+   */
+  public StreamOperation startDigest(Mechanism mechanism) throws TokenException {
+    probeIfUnknown();
+    return new StreamOperation(DIGEST, mechanism, null);
+  }
+
+  /**
+   * Start a multipart sign operation.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The signing key.
+   * @return The operation.
+   * @exception TokenException
+   *              If probing the module failed.
+   * @preconditions (mechanism != null) and (key != null)
+   * @postconditions (result != null)
+   */
+  public StreamOperation startSign(Mechanism mechanism, Key key) throws TokenException {
+    probeIfUnknown();
+    return new StreamOperation(SIGN, mechanism, key);
+  }
+
+  /**
+   * Start a multipart verify operation.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The verification key.
+   * @return The operation.
+   * @exception TokenException
+   *              If probing the module failed.
+   * @preconditions (mechanism != null) and (key != null)
+   * @postconditions (result != null)
+   */
+  public StreamOperation startVerify(Mechanism mechanism, Key key) throws TokenException {
+    probeIfUnknown();
+    return new StreamOperation(VERIFY, mechanism, key);
+  }
+
+  /**
+   * Check, if the module can save and restore operation states. The probe runs a short digest
+   * operation with a digest mechanism of the token, saves its state, ends the operation and
+   * restores the state on the same session. The result is remembered.
+   *
+   * @return True, if operation states can be saved and restored.
+   * @exception TokenException
+   *              If the probe failed for another reason than missing support.
+   */
+  public boolean probeMigrationSupport() throws TokenException {
+    Mechanism digestMechanism = null;
+    Mechanism[] mechanisms = pool_.getToken().getMechanismList();
+    for (int i = 0; i < mechanisms.length; i++) {
+      if (mechanisms[i].isDigestMechanism()) {
+        digestMechanism = mechanisms[i];
+        break;
+      }
+    }
+    if (digestMechanism == null) {
+      // nothing to probe with; stay pessimistic
+      migrationSupport_ = MIGRATION_UNSUPPORTED;
+      return false;
+    }
+
+    Session session = pool_.borrowSession();
+    boolean sessionValid = false;
+    try {
+      session.digestInit(digestMechanism);
+      session.digestUpdate(new byte[16]);
+      byte[] state = session.getOperationState();
+      session.digestFinal();
+      session.setOperationState(state, null, null);
+      session.digestFinal();
+      sessionValid = true;
+      migrationSupport_ = MIGRATION_SUPPORTED;
+    } catch (PKCS11Exception ex) {
+      if (!isUnsupported(ex.getErrorCode())) {
+        throw ex;
+      }
+      migrationSupport_ = MIGRATION_UNSUPPORTED;
+    } finally {
+      if (sessionValid) {
+        pool_.returnSession(session);
+      } else {
+        pool_.invalidateSession(session);
+      }
+    }
+
+    return migrationSupport_ == MIGRATION_SUPPORTED;
+  }
+
+  /**
+   * Run the capability probe, if it has not run yet.
+   *
+   * @exception TokenException
+   *              If the probe failed.
+   */
+  protected void probeIfUnknown() throws TokenException {
+    if (migrationSupport_ == MIGRATION_UNKNOWN) {
+      probeMigrationSupport();
+    }
+  }
+
+  /**
+   * Check, if operations with the given mechanism may be migrated.
+   *
+   * @param mechanism
+   *          The mechanism.
+   * @return True, if the module supports operation states and saving failed not yet for this
+   *         mechanism.
+   */
+  protected boolean isMigratable(Mechanism mechanism) {
+    return (migrationSupport_ == MIGRATION_SUPPORTED)
+        && !unsaveableMechanisms_.contains(Long.valueOf(mechanism.getMechanismCode()));
+  }
+
+  /**
+   * Remember that the state of an operation with the given mechanism could not be saved.
+   *
+   * @param mechanism
+   *          The mechanism.
+   * @param errorCode
+   *          The error code of the failed C_GetOperationState call.
+   */
+  protected void markUnsaveable(Mechanism mechanism, long errorCode) {
+    if (errorCode == PKCS11Constants.CKR_FUNCTION_NOT_SUPPORTED) {
+      migrationSupport_ = MIGRATION_UNSUPPORTED;
+    } else {
+      unsaveableMechanisms_.add(Long.valueOf(mechanism.getMechanismCode()));
+    }
+  }
+
+  /**
+   * Check, if the given error code means that operation states are not supported.
+   *
+   * @param errorCode
+   *          The error code.
+   * @return True, for CKR_STATE_UNSAVEABLE, CKR_FUNCTION_NOT_SUPPORTED and
+   *         CKR_SAVED_STATE_INVALID.
+   */
+  protected static boolean isUnsupported(long errorCode) {
+    return (errorCode == PKCS11Constants.CKR_STATE_UNSAVEABLE)
+        || (errorCode == PKCS11Constants.CKR_FUNCTION_NOT_SUPPORTED)
+        || (errorCode == PKCS11Constants.CKR_SAVED_STATE_INVALID);
+  }
+
+}
@@ -0,0 +1,480 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.parameters.Parameters;
+import iaik.pkcs.pkcs11.parameters.RSAPkcsParameters;
+import iaik.pkcs.pkcs11.parameters.RSAPkcsPssParameters;
+import iaik.pkcs.pkcs11.wrapper.Functions;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Signs data with hash-and-sign mechanisms like SHA256_RSA_PKCS, SHA256_RSA_PKCS_PSS or
+ * ECDSA_SHA256 by computing the hash in the JVM and sending only the digest to the token. The
+ * digest is signed with the corresponding raw mechanism: RSA_PKCS with a DigestInfo prefix,
+ * RSA_PKCS_PSS with RSAPkcsPssParameters or plain ECDSA. Which way is taken is decided from the
+ * mechanism list of the token; if the token does not support the raw mechanism, the data is signed
+ * with the requested mechanism as usual. This makes the cost of a signature on the token
+ * independent of the message size.
+ *
+ * <pre>
+ * <code>
+ *   PrehashSigner signer = new PrehashSigner(token);
+ *   byte[] signatureValue = signer.sign(session, Mechanism.get(PKCS11Constants.CKM_SHA256_RSA_PKCS),
+ *       privateSignatureKey, data);
+ * </code>
+ * </pre>
+ *
+ * For data that arrives in pieces, the application can get a MessageDigest from
+ * createMessageDigest, feed in the data and pass the result to signDigest. Objects of this class
+ * are thread-safe and should be shared by all users of a token.
+ *
+ * @see iaik.pkcs.pkcs11.Session#signInit(Mechanism, Key)
+ * @version 1.0
+ * @invariants (token_ != null)
+ */
+public class PrehashSigner {
+
+  /**
+   * The families of raw signature mechanisms a hash-and-sign mechanism can be mapped to.
+   */
+  protected static final int FAMILY_RSA_PKCS = 0;
+  protected static final int FAMILY_RSA_PKCS_PSS = 1;
+  protected static final int FAMILY_ECDSA = 2;
+
+  /**
+   * Describes how a hash-and-sign mechanism is split into hashing and signing.
+   */
+  protected static class HashAndSign {
+
+    /**
+     * The JCA name of the hash algorithm.
+     */
+    protected final String digestAlgorithm_;
+
+    /**
+     * The PKCS#11 code of the hash mechanism.
+     */
+    protected final long hashMechanism_;
+
+    /**
+     * The mask generation function matching the hash, used for default PSS parameters.
+     */
+    protected final long mgf_;
+
+    /**
+     * The family of the raw signature mechanism.
+     */
+    protected final int family_;
+
+    /**
+     * The DER encoded DigestInfo up to the hash value, only for FAMILY_RSA_PKCS.
+     */
+    protected final byte[] digestInfoPrefix_;
+
+    protected HashAndSign(String digestAlgorithm, long hashMechanism, long mgf, int family,
+        byte[] digestInfoPrefix) {
+      digestAlgorithm_ = digestAlgorithm;
+      hashMechanism_ = hashMechanism;
+      mgf_ = mgf;
+      family_ = family;
+      digestInfoPrefix_ = digestInfoPrefix;
+    }
+
+    /**
+     * Get the code of the raw signature mechanism.
+     *
+     * @return The code of the raw mechanism.
+     */
+    protected long getRawMechanism() {
+      switch (family_) {
+      case FAMILY_RSA_PKCS:
+        return PKCS11Constants.CKM_RSA_PKCS;
+      case FAMILY_RSA_PKCS_PSS:
+        return PKCS11Constants.CKM_RSA_PKCS_PSS;
+      default:
+        return PKCS11Constants.CKM_ECDSA;
+      }
+    }
+
+  }
+
+  /**
+   * The DigestInfo prefixes as defined in PKCS#1 v2.2, section 9.2, note 1.
+   */
+  private static final byte[] SHA1_PREFIX = toBytes(
+      "3021300906052b0e03021a05000414");
+  private static final byte[] SHA224_PREFIX = toBytes(
+      "302d300d06096086480165030402040500041c");
+  private static final byte[] SHA256_PREFIX = toBytes(
+      "3031300d060960864801650304020105000420");
+  private static final byte[] SHA384_PREFIX = toBytes(
+      "3041300d060960864801650304020205000430");
+  private static final byte[] SHA512_PREFIX = toBytes(
+      "3051300d060960864801650304020305000440");
+  private static final byte[] SHA3_224_PREFIX = toBytes(
+      "302d300d06096086480165030402070500041c");
+  private static final byte[] SHA3_256_PREFIX = toBytes(
+      "3031300d060960864801650304020805000420");
+  private static final byte[] SHA3_384_PREFIX = toBytes(
+      "3041300d060960864801650304020905000430");
+  private static final byte[] SHA3_512_PREFIX = toBytes(
+      "3051300d060960864801650304020a05000440");
+
+  /**
+   * Maps the code of a hash-and-sign mechanism to its HashAndSign description.
+   */
+  protected static final Map<Long, HashAndSign> HASH_AND_SIGN_MECHANISMS = new HashMap<Long, HashAndSign>();
+
+  static {
+    rsa(PKCS11Constants.CKM_SHA1_RSA_PKCS, PKCS11Constants.CKM_SHA1_RSA_PKCS_PSS, "SHA-1",
+        PKCS11Constants.CKM_SHA_1, PKCS11Constants.CKG_MGF1_SHA1, SHA1_PREFIX);
+    rsa(PKCS11Constants.CKM_SHA224_RSA_PKCS, PKCS11Constants.CKM_SHA224_RSA_PKCS_PSS,
+        "SHA-224", PKCS11Constants.CKM_SHA224, PKCS11Constants.CKG_MGF1_SHA224, SHA224_PREFIX);
+    rsa(PKCS11Constants.CKM_SHA256_RSA_PKCS, PKCS11Constants.CKM_SHA256_RSA_PKCS_PSS,
+        "SHA-256", PKCS11Constants.CKM_SHA256, PKCS11Constants.CKG_MGF1_SHA256, SHA256_PREFIX);
+    rsa(PKCS11Constants.CKM_SHA384_RSA_PKCS, PKCS11Constants.CKM_SHA384_RSA_PKCS_PSS,
+        "SHA-384", PKCS11Constants.CKM_SHA384, PKCS11Constants.CKG_MGF1_SHA384, SHA384_PREFIX);
+    rsa(PKCS11Constants.CKM_SHA512_RSA_PKCS, PKCS11Constants.CKM_SHA512_RSA_PKCS_PSS,
+        "SHA-512", PKCS11Constants.CKM_SHA512, PKCS11Constants.CKG_MGF1_SHA512, SHA512_PREFIX);
+    rsa(PKCS11Constants.CKM_SHA3_224_RSA_PKCS, PKCS11Constants.CKM_SHA3_224_RSA_PKCS_PSS,
+        "SHA3-224", PKCS11Constants.CKM_SHA3_224, PKCS11Constants.CKG_MGF1_SHA3_224,
+        SHA3_224_PREFIX);
+    rsa(PKCS11Constants.CKM_SHA3_256_RSA_PKCS, PKCS11Constants.CKM_SHA3_256_RSA_PKCS_PSS,
+        "SHA3-256", PKCS11Constants.CKM_SHA3_256, PKCS11Constants.CKG_MGF1_SHA3_256,
+        SHA3_256_PREFIX);
+    rsa(PKCS11Constants.CKM_SHA3_384_RSA_PKCS, PKCS11Constants.CKM_SHA3_384_RSA_PKCS_PSS,
+        "SHA3-384", PKCS11Constants.CKM_SHA3_384, PKCS11Constants.CKG_MGF1_SHA3_384,
+        SHA3_384_PREFIX);
+    rsa(PKCS11Constants.CKM_SHA3_512_RSA_PKCS, PKCS11Constants.CKM_SHA3_512_RSA_PKCS_PSS,
+        "SHA3-512", PKCS11Constants.CKM_SHA3_512, PKCS11Constants.CKG_MGF1_SHA3_512,
+        SHA3_512_PREFIX);
+    ecdsa(PKCS11Constants.CKM_ECDSA_SHA1, "SHA-1", PKCS11Constants.CKM_SHA_1);
+    ecdsa(PKCS11Constants.CKM_ECDSA_SHA224, "SHA-224", PKCS11Constants.CKM_SHA224);
+    ecdsa(PKCS11Constants.CKM_ECDSA_SHA256, "SHA-256", PKCS11Constants.CKM_SHA256);
+    ecdsa(PKCS11Constants.CKM_ECDSA_SHA384, "SHA-384", PKCS11Constants.CKM_SHA384);
+    ecdsa(PKCS11Constants.CKM_ECDSA_SHA512, "SHA-512", PKCS11Constants.CKM_SHA512);
+    ecdsa(PKCS11Constants.CKM_ECDSA_SHA3_224, "SHA3-224", PKCS11Constants.CKM_SHA3_224);
+    ecdsa(PKCS11Constants.CKM_ECDSA_SHA3_256, "SHA3-256", PKCS11Constants.CKM_SHA3_256);
+    ecdsa(PKCS11Constants.CKM_ECDSA_SHA3_384, "SHA3-384", PKCS11Constants.CKM_SHA3_384);
+    ecdsa(PKCS11Constants.CKM_ECDSA_SHA3_512, "SHA3-512", PKCS11Constants.CKM_SHA3_512);
+  }
+
+  /**
+   * The token whose mechanism list decides which raw mechanisms can be used.
+   */
+  protected Token token_;
+
+  /**
+   * The codes of the mechanisms supported by the token; read on first use.
+   */
+  private volatile Set<Long> supportedMechanisms_;
+
+  /**
+   * Constructor taking the token to sign on.
+   *
+   * @param token
+   *          The token whose keys are used for signing.
+   * @preconditions (token != null)
+   */
+  public PrehashSigner(Token token) {
+    if (token == null) {
+      throw new NullPointerException("Argument \"token\" must not be null.");
+    }
+    token_ = token;
+  }
+
+  /**
+   * Get the token of this signer.
+   *
+   * @return The token this signer works with.
+   */
+  public Token getToken() {
+    return token_;
+  }
+
+  /**
+   * Check, if the given mechanism is signed by hashing in the JVM. This is the case, if it is a
+   * hash-and-sign mechanism known to this class and the token supports the corresponding raw
+   * mechanism.
+   *
+   * @param mechanism
+   *          The hash-and-sign mechanism; e.g. SHA256_RSA_PKCS.
+   * @return True, if signatures with this mechanism are created from a digest computed in the JVM.
+   * @exception TokenException
+   *              If reading the mechanism list of the token fails.
+   * @preconditions (mechanism != null)
+   */
+  public boolean isPrehashed(Mechanism mechanism) throws TokenException {
+    return getPrehashDescription(mechanism) != null;
+  }
+
+  /**
+   * Create a new MessageDigest for the hash algorithm of the given hash-and-sign mechanism. The
+   * application can feed in the data piece by piece and pass the digest to signDigest afterwards.
+   *
+   * @param mechanism
+   *          The hash-and-sign mechanism; e.g. SHA256_RSA_PKCS.
+   * @return A new MessageDigest object for the hash algorithm of this mechanism.
+   * @exception TokenException
+   *              If the mechanism is not signed by hashing in the JVM. See isPrehashed.
+   * @preconditions (mechanism != null)
+   * @postconditions (result != null)
+   */
+  public MessageDigest createMessageDigest(Mechanism mechanism) throws TokenException {
+    HashAndSign description = getPrehashDescription(mechanism);
+    if (description == null) {
+      throw new TokenException("Mechanism " + mechanism.getName()
+          + " can not be signed with a digest computed in the JVM.");
+    }
+
+    return newMessageDigest(description);
+  }
+
+  /**
+   * Signs the given data with the given key. If the mechanism is signed by hashing in the JVM (see
+   * isPrehashed), only the digest is sent to the token; otherwise the data is signed with the
+   * given mechanism on the token.
+   *
+   * @param session
+   *          The session to sign with.
+   * @param mechanism
+   *          The signature mechanism; e.g. SHA256_RSA_PKCS. The parameters of PSS mechanisms are
+   *          taken over for the raw mechanism.
+   * @param key
+   *          The signing key.
+   * @param data
+   *          The data to sign.
+   * @return The signature value.
+   * @exception TokenException
+   *              If signing the data failed.
+   * @preconditions (session != null) and (mechanism != null) and (key != null) and (data != null)
+   * @postconditions (result != null)
+   */
+  public byte[] sign(Session session, Mechanism mechanism, Key key, byte[] data)
+      throws TokenException {
+    HashAndSign description = getPrehashDescription(mechanism);
+    if (description == null) {
+      session.signInit(mechanism, key);
+      return session.sign(data);
+    }
+
+    return signDigest(session, mechanism, key, newMessageDigest(description).digest(data));
+  }
+
+  /**
+   * Signs a digest that was computed in the JVM; e.g. with a MessageDigest from
+   * createMessageDigest. The resulting signature is the same as the one the token computes for the
+   * given hash-and-sign mechanism over the original data.
+   *
+   * @param session
+   *          The session to sign with.
+   * @param mechanism
+   *          The hash-and-sign mechanism; e.g. SHA256_RSA_PKCS.
+   * @param key
+   *          The signing key.
+   * @param digest
+   *          The hash value of the data to sign.
+   * @return The signature value.
+   * @exception TokenException
+   *              If the mechanism is not signed by hashing in the JVM, if the digest has the wrong
+   *              length or if signing failed.
+   * @preconditions (session != null) and (mechanism != null) and (key != null) and (digest != null)
+   * @postconditions (result != null)
+   */
+  public byte[] signDigest(Session session, Mechanism mechanism, Key key, byte[] digest)
+      throws TokenException {
+    HashAndSign description = getPrehashDescription(mechanism);
+    if (description == null) {
+      throw new TokenException("Mechanism " + mechanism.getName()
+          + " can not be signed with a digest computed in the JVM.");
+    }
+    int digestLength = newMessageDigest(description).getDigestLength();
+    if (digest.length != digestLength) {
+      throw new TokenException("Digest for " + mechanism.getName() + " must be " + digestLength
+          + " bytes long, but is " + digest.length + " bytes long.");
+    }
+
+    Mechanism rawMechanism = Mechanism.get(description.getRawMechanism());
+    byte[] toBeSigned;
+    if (description.family_ == FAMILY_RSA_PKCS) {
+      byte[] prefix = description.digestInfoPrefix_;
+      toBeSigned = new byte[prefix.length + digest.length];
+      System.arraycopy(prefix, 0, toBeSigned, 0, prefix.length);
+      System.arraycopy(digest, 0, toBeSigned, prefix.length, digest.length);
+    } else if (description.family_ == FAMILY_RSA_PKCS_PSS) {
+      rawMechanism.setParameters(getPssParameters(mechanism, description, digestLength));
+      toBeSigned = digest;
+    } else {
+      toBeSigned = digest;
+    }
+
+    session.signInit(rawMechanism, key);
+    return session.sign(toBeSigned);
+  }
+
+  /**
+   * Get the description of the given mechanism, if it is signed by hashing in the JVM.
+   *
+   * @param mechanism
+   *          The mechanism to look up.
+   * @return The description or null, if the mechanism is signed on the token as it is.
+   * @exception TokenException
+   *              If reading the mechanism list of the token fails.
+   */
+  protected HashAndSign getPrehashDescription(Mechanism mechanism) throws TokenException {
+    HashAndSign description = HASH_AND_SIGN_MECHANISMS
+        .get(Long.valueOf(mechanism.getMechanismCode()));
+    if (description == null) {
+      return null;
+    }
+
+    return getSupportedMechanisms().contains(Long.valueOf(description.getRawMechanism()))
+        ? description : null;
+  }
+
+  /**
+   * Get the codes of all mechanisms of the token. The list is read once and kept.
+   *
+   * @return The set of supported mechanism codes.
+   * @exception TokenException
+   *              If reading the mechanism list of the token fails.
+   */
+  protected Set<Long> getSupportedMechanisms() throws TokenException {
+    Set<Long> supportedMechanisms = supportedMechanisms_;
+    if (supportedMechanisms == null) {
+      Mechanism[] mechanisms = token_.getMechanismList();
+      supportedMechanisms = new HashSet<Long>(mechanisms.length * 2);
+      for (int i = 0; i < mechanisms.length; i++) {
+        supportedMechanisms.add(Long.valueOf(mechanisms[i].getMechanismCode()));
+      }
+      supportedMechanisms_ = supportedMechanisms;
+    }
+
+    return supportedMechanisms;
+  }
+
+  /**
+   * Get the PSS parameters for the raw RSA_PKCS_PSS mechanism. These are the parameters of the given
+   * mechanism, or defaults with the hash algorithm, the matching MGF1 and a salt as long as the
+   * digest, if the given mechanism has none.
+   *
+   * @param mechanism
+   *          The hash-and-sign PSS mechanism.
+   * @param description
+   *          Its description.
+   * @param digestLength
+   *          The length of the digest in bytes.
+   * @return The parameters for RSA_PKCS_PSS.
+   * @exception TokenException
+   *              If the given parameters do not use the hash algorithm of the mechanism.
+   */
+  protected Parameters getPssParameters(Mechanism mechanism, HashAndSign description,
+      int digestLength) throws TokenException {
+    Parameters parameters = mechanism.getParameters();
+    if (parameters == null) {
+      return new RSAPkcsPssParameters(Mechanism.get(description.hashMechanism_),
+          description.mgf_, digestLength);
+    }
+    if (parameters instanceof RSAPkcsParameters) {
+      Mechanism hashAlgorithm = ((RSAPkcsParameters) parameters).getHashAlgorithm();
+      if (hashAlgorithm.getMechanismCode() != description.hashMechanism_) {
+        throw new TokenException("Hash algorithm "
+            + Functions.mechanismCodeToString(hashAlgorithm.getMechanismCode())
+            + " in the parameters does not match mechanism " + mechanism.getName() + ".");
+      }
+    }
+
+    return parameters;
+  }
+
+  /**
+   * Create a new MessageDigest for the hash algorithm of the description.
+   *
+   * @param description
+   *          The description of a hash-and-sign mechanism.
+   * @return The new MessageDigest.
+   * @exception TokenException
+   *              If the JVM does not provide the hash algorithm.
+   */
+  protected static MessageDigest newMessageDigest(HashAndSign description)
+      throws TokenException {
+    try {
+      return MessageDigest.getInstance(description.digestAlgorithm_);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new TokenException("Hash algorithm " + description.digestAlgorithm_
+          + " is not available in this JVM.", ex);
+    }
+  }
+
+  private static void rsa(long pkcsMechanism, long pssMechanism, String digestAlgorithm,
+      long hashMechanism, long mgf, byte[] digestInfoPrefix) {
+    HASH_AND_SIGN_MECHANISMS.put(Long.valueOf(pkcsMechanism), new HashAndSign(digestAlgorithm,
+        hashMechanism, mgf, FAMILY_RSA_PKCS, digestInfoPrefix));
+    HASH_AND_SIGN_MECHANISMS.put(Long.valueOf(pssMechanism), new HashAndSign(digestAlgorithm,
+        hashMechanism, mgf, FAMILY_RSA_PKCS_PSS, null));
+  }
+
+  private static void ecdsa(long ecdsaMechanism, String digestAlgorithm, long hashMechanism) {
+    HASH_AND_SIGN_MECHANISMS.put(Long.valueOf(ecdsaMechanism), new HashAndSign(digestAlgorithm,
+        hashMechanism, 0L, FAMILY_ECDSA, null));
+  }
+
+  private static byte[] toBytes(String hexString) {
+    byte[] bytes = new byte[hexString.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hexString.substring(2 * i, 2 * i + 2), 16);
+    }
+
+    return bytes;
+  }
+
+}
@@ -0,0 +1,583 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.PrehashSigner.HashAndSign;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.ECDSAPublicKey;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.PublicKey;
+import iaik.pkcs.pkcs11.objects.RSAPublicKey;
+import iaik.pkcs.pkcs11.parameters.Parameters;
+import iaik.pkcs.pkcs11.parameters.RSAPkcsOaepParameters;
+import iaik.pkcs.pkcs11.parameters.RSAPkcsPssParameters;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+
+/**
+ * Performs public-key operations in the JVM instead of on the token. Verifying signatures,
+ * encrypting with a public key and wrapping extractable keys with a public key involve no secrets,
+ * so they need not occupy the token. This class converts RSA public keys (modulus and public
+ * exponent) and EC public keys (EC parameters and EC point) into java.security.PublicKey objects
+ * with KeyMaterialDecoder, which memoizes them in the key objects, and executes the operation with
+ * the equivalent JDK algorithm. The operation is routed by the mechanism code; operations with
+ * mechanisms that have no JDK equivalent are passed on to the given session unchanged, so an
+ * application can use this class in place of the corresponding Session methods.
+ *
+ * <pre>
+ * <code>
+ *   PublicKeyOffload offload = new PublicKeyOffload();
+ *   // throws a PKCS11Exception with CKR_SIGNATURE_INVALID, like Session.verify
+ *   offload.verify(session, Mechanism.get(PKCS11Constants.CKM_SHA256_RSA_PKCS), rsaPublicKey,
+ *       data, signatureValue);
+ * </code>
+ * </pre>
+ *
+ * The key objects passed in should have their attributes read; i.e. they should come from
+ * findObjects or getAttributeValues. Objects of this class are thread-safe.
+ *
+ * @version 1.0
+ */
+public class PublicKeyOffload {
+
+  /**
+   * Maps the MGF1 codes of PKCS#11 to the names of the JCA hash algorithms.
+   */
+  protected static final Map<Long, String> MGF_DIGEST_NAMES = new HashMap<Long, String>();
+
+  static {
+    MGF_DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKG_MGF1_SHA1), "SHA-1");
+    MGF_DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKG_MGF1_SHA224), "SHA-224");
+    MGF_DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKG_MGF1_SHA256), "SHA-256");
+    MGF_DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKG_MGF1_SHA384), "SHA-384");
+    MGF_DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKG_MGF1_SHA512), "SHA-512");
+    MGF_DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKG_MGF1_SHA3_224), "SHA3-224");
+    MGF_DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKG_MGF1_SHA3_256), "SHA3-256");
+    MGF_DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKG_MGF1_SHA3_384), "SHA3-384");
+    MGF_DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKG_MGF1_SHA3_512), "SHA3-512");
+  }
+
+  /**
+   * Maps the codes of hash mechanisms to the names of the JCA hash algorithms.
+   */
+  protected static final Map<Long, String> DIGEST_NAMES = new HashMap<Long, String>();
+
+  static {
+    DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKM_SHA_1), "SHA-1");
+    DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKM_SHA224), "SHA-224");
+    DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKM_SHA256), "SHA-256");
+    DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKM_SHA384), "SHA-384");
+    DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKM_SHA512), "SHA-512");
+    DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKM_SHA3_224), "SHA3-224");
+    DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKM_SHA3_256), "SHA3-256");
+    DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKM_SHA3_384), "SHA3-384");
+    DIGEST_NAMES.put(Long.valueOf(PKCS11Constants.CKM_SHA3_512), "SHA3-512");
+  }
+
+  /**
+   * Check, if an operation with the given mechanism and key is executed in the JVM.
+   *
+   * @param mechanism
+   *          The mechanism of the operation.
+   * @param key
+   *          The public key of the operation.
+   * @return True, if the key is an RSA or EC public key and there is a JDK algorithm for the
+   *         mechanism.
+   * @preconditions (mechanism != null)
+   */
+  public boolean isOffloaded(Mechanism mechanism, Key key) {
+    long code = mechanism.getMechanismCode();
+    if (key instanceof RSAPublicKey) {
+      return (getRsaSignatureAlgorithm(code) != null) || isRsaEncryptionMechanism(code);
+    } else if (key instanceof ECDSAPublicKey) {
+      return getEcSignatureAlgorithm(code) != null;
+    }
+
+    return false;
+  }
+
+  /**
+   * Get the java.security.PublicKey for the given token public key. The conversion is memoized in
+   * the attributes of the key object by KeyMaterialDecoder; converting the same object again
+   * returns the same JDK key, as long as its key material is unchanged. EC curves are shared per
+   * encoding.
+   *
+   * @param key
+   *          An RSAPublicKey or ECDSAPublicKey with its attributes read.
+   * @return The equivalent JDK public key.
+   * @exception TokenException
+   *              If the key is of another type, misses its key material or can not be converted.
+   * @preconditions (key != null)
+   * @postconditions (result != null)
+   */
+  public java.security.PublicKey getJavaPublicKey(PublicKey key) throws TokenException {
+    if (!(key instanceof RSAPublicKey) && !(key instanceof ECDSAPublicKey)) {
+      throw new TokenException("Unsupported public key type " + key.getClass().getName() + ".");
+    }
+
+    return KeyMaterialDecoder.getPublicKey(key);
+  }
+
+  /**
+   * Verifies the signature over the given data. Like Session.verify, this method returns normally,
+   * if the signature is valid, and throws a PKCS11Exception with the error code
+   * CKR_SIGNATURE_INVALID otherwise. If the operation can not be performed in the JVM (see
+   * isOffloaded), it is performed with the given session.
+   *
+   * @param session
+   *          The session to use, if the operation can not be performed in the JVM.
+   * @param mechanism
+   *          The signature mechanism; e.g. SHA256_RSA_PKCS, RSA_PKCS with a DigestInfo as data, or
+   *          ECDSA with a hash as data.
+   * @param key
+   *          The public key to verify with.
+   * @param data
+   *          The signed data.
+   * @param signature
+   *          The signature value.
+   * @exception TokenException
+   *              If the signature is invalid or the verification failed.
+   * @preconditions (session != null) and (mechanism != null) and (key != null) and (data != null)
+   *                and (signature != null)
+   */
+  public void verify(Session session, Mechanism mechanism, PublicKey key, byte[] data,
+      byte[] signature) throws TokenException {
+    Signature verifier = createVerifier(mechanism, key);
+    if (verifier == null) {
+      session.verifyInit(mechanism, key);
+      session.verify(data, signature);
+      return;
+    }
+
+    boolean valid;
+    try {
+      verifier.update(data);
+      valid = verifier.verify(signature);
+    } catch (GeneralSecurityException ex) {
+      // malformed signature values are invalid signatures
+      valid = false;
+    }
+    if (!valid) {
+      throw new PKCS11Exception(PKCS11Constants.CKR_SIGNATURE_INVALID);
+    }
+  }
+
+  /**
+   * Encrypts the given data with the public key. Supported in the JVM are RSA_PKCS, RSA_PKCS_OAEP
+   * and RSA_X_509; with other mechanisms, the data is encrypted with the given session.
+   *
+   * @param session
+   *          The session to use, if the operation can not be performed in the JVM.
+   * @param mechanism
+   *          The encryption mechanism.
+   * @param key
+   *          The public key to encrypt with.
+   * @param data
+   *          The data to encrypt.
+   * @return The encrypted data.
+   * @exception TokenException
+   *              If encrypting failed.
+   * @preconditions (session != null) and (mechanism != null) and (key != null) and (data != null)
+   * @postconditions (result != null)
+   */
+  public byte[] encrypt(Session session, Mechanism mechanism, PublicKey key, byte[] data)
+      throws TokenException {
+    if (!(key instanceof RSAPublicKey)
+        || !isRsaEncryptionMechanism(mechanism.getMechanismCode())) {
+      session.encryptInit(mechanism, key);
+      return session.encrypt(data);
+    }
+
+    try {
+      return createCipher(mechanism, key).doFinal(data);
+    } catch (GeneralSecurityException ex) {
+      throw toPKCS11Exception(ex, PKCS11Constants.CKR_DATA_LEN_RANGE,
+          PKCS11Constants.CKR_KEY_TYPE_INCONSISTENT);
+    }
+  }
+
+  /**
+   * Wraps the given key with the public key. The operation is performed in the JVM, if the key value
+   * of the key to wrap is available as a non-sensitive attribute of the given object, the mechanism
+   * is an RSA encryption mechanism and the attributes read show that the token would permit the
+   * operation: CKA_WRAP of the wrapping key and CKA_EXTRACTABLE of the key must be true, and if
+   * CKA_WRAP_WITH_TRUSTED of the key is true, CKA_TRUSTED of the wrapping key must be true too. In
+   * any other case, the key is wrapped with the given session, which enforces these rules itself.
+   *
+   * @param session
+   *          The session to use, if the operation can not be performed in the JVM.
+   * @param mechanism
+   *          The wrapping mechanism; e.g. RSA_PKCS_OAEP.
+   * @param wrappingKey
+   *          The public key to wrap with.
+   * @param key
+   *          The key to wrap.
+   * @return The wrapped key.
+   * @exception TokenException
+   *              If wrapping the key failed.
+   * @preconditions (session != null) and (mechanism != null) and (wrappingKey != null) and (key !=
+   *                null)
+   * @postconditions (result != null)
+   */
+  public byte[] wrapKey(Session session, Mechanism mechanism, PublicKey wrappingKey, Key key)
+      throws TokenException {
+    byte[] keyValue = null;
+    Attribute valueAttribute = key.getAttribute(PKCS11Constants.CKA_VALUE);
+    if ((valueAttribute instanceof ByteArrayAttribute) && valueAttribute.isPresent()
+        && !valueAttribute.isSensitive()) {
+      keyValue = ((ByteArrayAttribute) valueAttribute).getByteArrayValue();
+    }
+    if ((keyValue == null) || !(wrappingKey instanceof RSAPublicKey)
+        || !isRsaEncryptionMechanism(mechanism.getMechanismCode())
+        || !isWrapPermitted(wrappingKey, key)) {
+      return session.wrapKey(mechanism, wrappingKey, key);
+    }
+
+    try {
+      return createCipher(mechanism, wrappingKey).doFinal(keyValue);
+    } catch (GeneralSecurityException ex) {
+      throw toPKCS11Exception(ex, PKCS11Constants.CKR_KEY_SIZE_RANGE,
+          PKCS11Constants.CKR_WRAPPING_KEY_TYPE_INCONSISTENT);
+    }
+  }
+
+  /**
+   * Check, if the attributes read from the keys show that the token permits wrapping the key with
+   * the wrapping key. Attributes which were not read count as false.
+   *
+   * @param wrappingKey
+   *          The public key to wrap with.
+   * @param key
+   *          The key to wrap.
+   * @return True, if the key may be wrapped in the JVM.
+   */
+  protected boolean isWrapPermitted(PublicKey wrappingKey, Key key) {
+    if (!isTrue(wrappingKey, PKCS11Constants.CKA_WRAP)
+        || !isTrue(key, PKCS11Constants.CKA_EXTRACTABLE)) {
+      return false;
+    }
+
+    return !isTrue(key, PKCS11Constants.CKA_WRAP_WITH_TRUSTED)
+        || isTrue(wrappingKey, PKCS11Constants.CKA_TRUSTED);
+  }
+
+  /**
+   * Check, if the given boolean attribute of the object is present and true.
+   *
+   * @param object
+   *          The object.
+   * @param type
+   *          The attribute type.
+   * @return True, if the attribute is present and true.
+   */
+  protected boolean isTrue(Key object, long type) {
+    Attribute attribute = object.getAttribute(type);
+
+    return (attribute instanceof BooleanAttribute) && attribute.isPresent()
+        && !attribute.isSensitive()
+        && Boolean.TRUE.equals(((BooleanAttribute) attribute).getBooleanValue());
+  }
+
+  /**
+   * Convert an exception of the JDK into a PKCS11Exception with the matching error code. The
+   * original exception becomes the cause.
+   *
+   * @param ex
+   *          The exception of the JDK.
+   * @param dataErrorCode
+   *          The error code, if the input has an illegal length or format.
+   * @param keyErrorCode
+   *          The error code, if the JDK rejected the key.
+   * @return The PKCS11Exception.
+   */
+  protected PKCS11Exception toPKCS11Exception(GeneralSecurityException ex, long dataErrorCode,
+      long keyErrorCode) {
+    long errorCode;
+    if ((ex instanceof IllegalBlockSizeException) || (ex instanceof BadPaddingException)) {
+      errorCode = dataErrorCode;
+    } else if (ex instanceof InvalidKeyException) {
+      errorCode = keyErrorCode;
+    } else if (ex instanceof InvalidAlgorithmParameterException) {
+      errorCode = PKCS11Constants.CKR_MECHANISM_PARAM_INVALID;
+    } else if ((ex instanceof NoSuchAlgorithmException) || (ex instanceof NoSuchPaddingException)) {
+      errorCode = PKCS11Constants.CKR_MECHANISM_INVALID;
+    } else {
+      errorCode = PKCS11Constants.CKR_GENERAL_ERROR;
+    }
+    PKCS11Exception pkcs11Exception = new PKCS11Exception(errorCode);
+    pkcs11Exception.initCause(ex);
+
+    return pkcs11Exception;
+  }
+
+  /**
+   * Create and initialize a Signature object for verification.
+   *
+   * @param mechanism
+   *          The signature mechanism.
+   * @param key
+   *          The public key.
+   * @return The initialized Signature object or null, if the operation is not performed in the JVM.
+   * @exception TokenException
+   *              If the key can not be converted or the JDK algorithm is not available.
+   */
+  protected Signature createVerifier(Mechanism mechanism, PublicKey key)
+      throws TokenException {
+    long code = mechanism.getMechanismCode();
+    String algorithm;
+    if (key instanceof RSAPublicKey) {
+      algorithm = getRsaSignatureAlgorithm(code);
+    } else if (key instanceof ECDSAPublicKey) {
+      algorithm = getEcSignatureAlgorithm(code);
+    } else {
+      algorithm = null;
+    }
+    if (algorithm == null) {
+      return null;
+    }
+
+    try {
+      Signature verifier = Signature.getInstance(algorithm);
+      if ("RSASSA-PSS".equals(algorithm)) {
+        verifier.setParameter(getPssParameterSpec(mechanism));
+      }
+      verifier.initVerify(getJavaPublicKey(key));
+      return verifier;
+    } catch (GeneralSecurityException ex) {
+      throw new TokenException("Can not verify with " + mechanism.getName() + " in the JVM.",
+          ex);
+    }
+  }
+
+  /**
+   * Create and initialize a Cipher object for RSA encryption.
+   *
+   * @param mechanism
+   *          RSA_PKCS, RSA_PKCS_OAEP or RSA_X_509.
+   * @param key
+   *          The RSA public key.
+   * @return The initialized Cipher object.
+   * @exception TokenException
+   *              If the key can not be converted or the parameters are not supported.
+   * @exception GeneralSecurityException
+   *              If the JDK can not initialize the cipher.
+   */
+  protected Cipher createCipher(Mechanism mechanism, PublicKey key)
+      throws TokenException, GeneralSecurityException {
+    long code = mechanism.getMechanismCode();
+    Cipher cipher;
+    if (code == PKCS11Constants.CKM_RSA_PKCS) {
+      cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+      cipher.init(Cipher.ENCRYPT_MODE, getJavaPublicKey(key));
+    } else if (code == PKCS11Constants.CKM_RSA_X_509) {
+      cipher = Cipher.getInstance("RSA/ECB/NoPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, getJavaPublicKey(key));
+    } else {
+      Parameters parameters = mechanism.getParameters();
+      if (!(parameters instanceof RSAPkcsOaepParameters)) {
+        throw new TokenException("Mechanism " + mechanism.getName()
+            + " requires RSAPkcsOaepParameters.");
+      }
+      RSAPkcsOaepParameters oaepParameters = (RSAPkcsOaepParameters) parameters;
+      byte[] label = oaepParameters.getSourceData();
+      OAEPParameterSpec spec = new OAEPParameterSpec(
+          getDigestName(oaepParameters.getHashAlgorithm().getMechanismCode()), "MGF1",
+          new MGF1ParameterSpec(getMgfDigestName(oaepParameters.getMaskGenerationFunction())),
+          (label != null) ? new PSource.PSpecified(label) : PSource.PSpecified.DEFAULT);
+      cipher = Cipher.getInstance("RSA/ECB/OAEPPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, getJavaPublicKey(key), spec);
+    }
+
+    return cipher;
+  }
+
+  /**
+   * Get the JDK parameters for a hash-and-sign PSS mechanism.
+   *
+   * @param mechanism
+   *          The PSS mechanism; e.g. SHA256_RSA_PKCS_PSS.
+   * @return The equivalent PSS parameters.
+   * @exception TokenException
+   *              If the mechanism has no RSAPkcsPssParameters.
+   */
+  protected PSSParameterSpec getPssParameterSpec(Mechanism mechanism) throws TokenException {
+    Parameters parameters = mechanism.getParameters();
+    if (!(parameters instanceof RSAPkcsPssParameters)) {
+      throw new TokenException("Mechanism " + mechanism.getName()
+          + " requires RSAPkcsPssParameters.");
+    }
+    RSAPkcsPssParameters pssParameters = (RSAPkcsPssParameters) parameters;
+
+    return new PSSParameterSpec(
+        getDigestName(pssParameters.getHashAlgorithm().getMechanismCode()), "MGF1",
+        new MGF1ParameterSpec(getMgfDigestName(pssParameters.getMaskGenerationFunction())),
+        (int) pssParameters.getSaltLength(), PSSParameterSpec.TRAILER_FIELD_BC);
+  }
+
+  /**
+   * Get the JCA signature algorithm for an RSA mechanism.
+   *
+   * @param mechanismCode
+   *          The mechanism code.
+   * @return The algorithm name or null, if there is no JDK equivalent.
+   */
+  protected static String getRsaSignatureAlgorithm(long mechanismCode) {
+    if (mechanismCode == PKCS11Constants.CKM_RSA_PKCS) {
+      return "NONEwithRSA";
+    }
+    HashAndSign description = PrehashSigner.HASH_AND_SIGN_MECHANISMS
+        .get(Long.valueOf(mechanismCode));
+    if (description == null) {
+      return null;
+    } else if (description.family_ == PrehashSigner.FAMILY_RSA_PKCS) {
+      return getJcaDigestPrefix(description.digestAlgorithm_) + "withRSA";
+    } else if (description.family_ == PrehashSigner.FAMILY_RSA_PKCS_PSS) {
+      return "RSASSA-PSS";
+    }
+
+    return null;
+  }
+
+  /**
+   * Get the JCA signature algorithm for an ECDSA mechanism. PKCS#11 encodes ECDSA signatures as
+   * r || s, which is the P1363 format of the JDK.
+   *
+   * @param mechanismCode
+   *          The mechanism code.
+   * @return The algorithm name or null, if there is no JDK equivalent.
+   */
+  protected static String getEcSignatureAlgorithm(long mechanismCode) {
+    if (mechanismCode == PKCS11Constants.CKM_ECDSA) {
+      return "NONEwithECDSAinP1363Format";
+    }
+    HashAndSign description = PrehashSigner.HASH_AND_SIGN_MECHANISMS
+        .get(Long.valueOf(mechanismCode));
+    if ((description != null) && (description.family_ == PrehashSigner.FAMILY_ECDSA)) {
+      return getJcaDigestPrefix(description.digestAlgorithm_) + "withECDSAinP1363Format";
+    }
+
+    return null;
+  }
+
+  /**
+   * Check, if the mechanism is an RSA encryption mechanism the JDK supports.
+   *
+   * @param mechanismCode
+   *          The mechanism code.
+   * @return True for RSA_PKCS, RSA_PKCS_OAEP and RSA_X_509.
+   */
+  protected static boolean isRsaEncryptionMechanism(long mechanismCode) {
+    return (mechanismCode == PKCS11Constants.CKM_RSA_PKCS)
+        || (mechanismCode == PKCS11Constants.CKM_RSA_PKCS_OAEP)
+        || (mechanismCode == PKCS11Constants.CKM_RSA_X_509);
+  }
+
+  /**
+   * Get the name of the hash algorithm as used in JCA signature algorithm names; e.g. SHA256 for
+   * SHA-256 but SHA3-256 for SHA3-256.
+   *
+   * @param digestAlgorithm
+   *          The JCA name of the hash algorithm.
+   * @return The name as used in signature algorithm names.
+   */
+  protected static String getJcaDigestPrefix(String digestAlgorithm) {
+    return digestAlgorithm.startsWith("SHA-") ? "SHA" + digestAlgorithm.substring(4)
+        : digestAlgorithm;
+  }
+
+  /**
+   * Get the JCA name of the hash mechanism.
+   *
+   * @param hashMechanism
+   *          The code of the hash mechanism.
+   * @return The JCA name.
+   * @exception TokenException
+   *              If the hash mechanism is unknown.
+   */
+  protected static String getDigestName(long hashMechanism) throws TokenException {
+    String name = DIGEST_NAMES.get(Long.valueOf(hashMechanism));
+    if (name == null) {
+      throw new PKCS11Exception(PKCS11Constants.CKR_MECHANISM_PARAM_INVALID);
+    }
+
+    return name;
+  }
+
+  /**
+   * Get the JCA name of the hash algorithm of the MGF1 function.
+   *
+   * @param mgf
+   *          The CKG_MGF1 code.
+   * @return The JCA name.
+   * @exception TokenException
+   *              If the MGF code is unknown.
+   */
+  protected static String getMgfDigestName(long mgf) throws TokenException {
+    String name = MGF_DIGEST_NAMES.get(Long.valueOf(mgf));
+    if (name == null) {
+      throw new PKCS11Exception(PKCS11Constants.CKR_MECHANISM_PARAM_INVALID);
+    }
+
+    return name;
+  }
+
+}
@@ -0,0 +1,302 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.KeyTypeAttribute;
+import iaik.pkcs.pkcs11.objects.Object;
+import iaik.pkcs.pkcs11.objects.ObjectClassAttribute;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Executes idempotent single-part operations with sessions of a pool and retries them after
+ * transient errors as defined by a RetryPolicy. Before a retry, it waits the backoff of the policy
+ * and repairs what the error broke: a session that failed is closed by the pool, and the retry
+ * borrows another one; after CKR_USER_NOT_LOGGED_IN or the loss of a session, device or token,
+ * the login manager checks the login again; and after an error that may have made object handles
+ * stale, the key of a KeyOperation is looked up again by its object class, key type and CKA_ID.
+ *
+ * <pre>
+ * <code>
+ *   RetryExecutor executor = new RetryExecutor(sessionPool, new RetryPolicy());
+ *   executor.setLoginManager(token.getLoginManager());
+ *   byte[] signatureValue = executor.execute(privateKey,
+ *       new RetryExecutor.KeyOperation&lt;byte[]&gt;() {
+ *     public byte[] execute(Session session, Key key) throws TokenException {
+ *       session.signInit(mechanism, key);
+ *       return session.sign(data);
+ *     }
+ *   });
+ * </code>
+ * </pre>
+ *
+ * Only pass operations that can be repeated without harm; i.e. single-part operations like sign,
+ * verify, encrypt, decrypt and digest, or reading attributes. Operations that create or destroy
+ * objects may have been performed by the device although the call failed.
+ *
+ * @see RetryPolicy
+ * @version 1.0
+ * @invariants (sessionPool_ != null) and (retryPolicy_ != null)
+ */
+public class RetryExecutor {
+
+  /**
+   * An operation with a key of the token. The key passed to the operation may be another object
+   * than the one given to RetryExecutor.execute, if the key was looked up again.
+   */
+  public interface KeyOperation<T> {
+
+    /**
+     * Perform the operation.
+     *
+     * @param session
+     *          The session to use.
+     * @param key
+     *          The key to use.
+     * @return The result of the operation.
+     * @exception TokenException
+     *              If the operation fails.
+     */
+    public T execute(Session session, Key key) throws TokenException;
+
+  }
+
+  /**
+   * The pool to borrow the sessions from.
+   */
+  protected SessionPool sessionPool_;
+
+  /**
+   * The policy deciding on retries.
+   */
+  protected RetryPolicy retryPolicy_;
+
+  /**
+   * The login manager to log in with or null, if the application handles the login.
+   */
+  protected volatile LoginManager loginManager_;
+
+  /**
+   * Create a new executor.
+   *
+   * @param sessionPool
+   *          The pool to borrow sessions from.
+   * @param retryPolicy
+   *          The policy deciding on retries.
+   * @preconditions (sessionPool != null) and (retryPolicy != null)
+   */
+  public RetryExecutor(SessionPool sessionPool, RetryPolicy retryPolicy) {
+    if (sessionPool == null) {
+      throw new NullPointerException("Argument \"sessionPool\" must not be null.");
+    }
+    if (retryPolicy == null) {
+      throw new NullPointerException("Argument \"retryPolicy\" must not be null.");
+    }
+    sessionPool_ = sessionPool;
+    retryPolicy_ = retryPolicy;
+  }
+
+  /**
+   * Get the policy of this executor.
+   *
+   * @return The retry policy.
+   * @postconditions (result != null)
+   */
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy_;
+  }
+
+  /**
+   * Set the login manager. If set, each attempt makes sure that the token is logged in, and
+   * CKR_USER_NOT_LOGGED_IN makes the manager log in again before the retry.
+   *
+   * @param loginManager
+   *          The login manager of the token or null, if the application handles the login.
+   */
+  public void setLoginManager(LoginManager loginManager) {
+    loginManager_ = loginManager;
+  }
+
+  /**
+   * Execute an idempotent operation and retry it after transient errors.
+   *
+   * @param operation
+   *          The operation.
+   * @return The result of the operation.
+   * @exception TokenException
+   *              If the operation failed with a permanent error, or if the attempts or the time of
+   *              the policy are exhausted; the exception of the last attempt is thrown.
+   * @preconditions (operation != null)
+   */
+  public <T> T execute(final SessionPool.SessionOperation<T> operation) throws TokenException {
+    if (operation == null) {
+      throw new NullPointerException("Argument \"operation\" must not be null.");
+    }
+
+    return execute(null, new KeyOperation<T>() {
+      public T execute(Session session, Key key) throws TokenException {
+        return operation.execute(session);
+      }
+    });
+  }
+
+  /**
+   * Execute an idempotent operation with the given key and retry it after transient errors. If an
+   * attempt failed with an error that may have made the object handle of the key stale, the key is
+   * looked up again by its object class, key type and CKA_ID; therefore, the key object should
+   * have the ID attribute set, as keys found with Session.findObjects do.
+   *
+   * @param key
+   *          The key of the operation or null.
+   * @param operation
+   *          The operation.
+   * @return The result of the operation.
+   * @exception TokenException
+   *              If the operation failed with a permanent error, if the attempts or the time of the
+   *              policy are exhausted, or if the key cannot be found again.
+   * @preconditions (operation != null)
+   */
+  public <T> T execute(Key key, final KeyOperation<T> operation) throws TokenException {
+    if (operation == null) {
+      throw new NullPointerException("Argument \"operation\" must not be null.");
+    }
+    long deadline = System.currentTimeMillis() + retryPolicy_.getDeadlineMillis();
+    final Key[] currentKey = new Key[] { key };
+    boolean resolveKey = false;
+    for (int attempt = 1;; attempt++) {
+      final boolean resolve = resolveKey;
+      try {
+        return sessionPool_.execute(new SessionPool.SessionOperation<T>() {
+          public T execute(Session session) throws TokenException {
+            LoginManager loginManager = loginManager_;
+            if (loginManager != null) {
+              loginManager.ensureLoggedIn(session);
+            }
+            if (resolve && (currentKey[0] != null)) {
+              currentKey[0] = resolveKey(session, currentKey[0]);
+            }
+            return operation.execute(session, currentKey[0]);
+          }
+        });
+      } catch (PKCS11Exception ex) {
+        long errorCode = ex.getErrorCode();
+        LoginManager loginManager = loginManager_;
+        if ((loginManager != null) && retryPolicy_.isLoginFailure(errorCode)) {
+          // the cached login state may be stale, whether the call is retried or not
+          loginManager.invalidate();
+        }
+        if (!retryPolicy_.isRetryable(errorCode) || (attempt >= retryPolicy_.getMaxAttempts())) {
+          throw ex;
+        }
+        long backoff = retryPolicy_.getBackoffMillis(attempt);
+        if (System.currentTimeMillis() + backoff >= deadline) {
+          throw ex;
+        }
+        if ((errorCode == PKCS11Constants.CKR_USER_NOT_LOGGED_IN) && (loginManager == null)) {
+          throw ex;
+        }
+        resolveKey = resolveKey || retryPolicy_.isHandleFailure(errorCode);
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException iex) {
+          Thread.currentThread().interrupt();
+          throw new TokenException("Interrupted while waiting to retry.", ex);
+        }
+      }
+    }
+  }
+
+  /**
+   * Look up the given key again by its object class, key type and CKA_ID.
+   *
+   * @param session
+   *          The session to search with.
+   * @param key
+   *          The key as used by the failed attempt.
+   * @return The key found.
+   * @exception TokenException
+   *              If the key has no ID or the search does not find exactly one key.
+   * @preconditions (session != null) and (key != null)
+   * @postconditions (result != null)
+   */
+  protected Key resolveKey(Session session, Key key) throws TokenException {
+    ByteArrayAttribute id = key.getId();
+    if (!id.isPresent() || (id.getByteArrayValue() == null)) {
+      throw new TokenException("The handle of the key may be stale and the key has no ID to find "
+          + "it again.");
+    }
+    GenericTemplate template = new GenericTemplate();
+    if (key.getObjectClass().isPresent()) {
+      ObjectClassAttribute objectClass = new ObjectClassAttribute();
+      objectClass.setLongValue(key.getObjectClass().getLongValue());
+      template.addAttribute(objectClass);
+    }
+    if (key.getKeyType().isPresent()) {
+      KeyTypeAttribute keyType = new KeyTypeAttribute();
+      keyType.setLongValue(key.getKeyType().getLongValue());
+      template.addAttribute(keyType);
+    }
+    ByteArrayAttribute idTemplate = new ByteArrayAttribute(Attribute.ID);
+    idTemplate.setByteArrayValue(id.getByteArrayValue());
+    template.addAttribute(idTemplate);
+
+    Object[] objects;
+    session.findObjectsInit(template);
+    try {
+      objects = session.findObjects(2);
+    } finally {
+      session.findObjectsFinal();
+    }
+    if ((objects.length != 1) || !(objects[0] instanceof Key)) {
+      throw new TokenException("Looking up the key by its ID found " + objects.length
+          + " objects instead of one.");
+    }
+
+    return (Key) objects[0];
+  }
+
+}
@@ -0,0 +1,285 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.wrapper.Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which PKCS#11 errors are transient and how often and how long a RetryExecutor retries an
+ * operation that failed with such an error. By default, CKR_DEVICE_ERROR,
+ * CKR_SESSION_HANDLE_INVALID, CKR_SESSION_CLOSED, CKR_OBJECT_HANDLE_INVALID, CKR_KEY_HANDLE_INVALID
+ * and CKR_USER_NOT_LOGGED_IN are retryable; network HSMs return them, if a connection to the
+ * device was lost and re-established. All other errors are passed to the application at once.
+ *
+ * The delay before retry n is a random value between half and all of initialBackoff * 2^(n-1),
+ * capped at maxBackoff. The random part keeps clients that failed at the same time from retrying
+ * at the same time. No retry is started after the deadline of the call has passed.
+ *
+ * @see RetryExecutor
+ * @version 1.0
+ * @invariants (retryableErrors_ != null)
+ */
+public class RetryPolicy {
+
+  /**
+   * The error codes of the retryable errors.
+   */
+  protected final Set<Long> retryableErrors_ = ConcurrentHashMap.newKeySet();
+
+  /**
+   * The maximum number of attempts including the first one.
+   */
+  protected volatile int maxAttempts_ = 3;
+
+  /**
+   * The delay before the first retry in milliseconds.
+   */
+  protected volatile long initialBackoffMillis_ = 50L;
+
+  /**
+   * The maximum delay between two attempts in milliseconds.
+   */
+  protected volatile long maxBackoffMillis_ = 2000L;
+
+  /**
+   * The maximum time for all attempts of one call in milliseconds.
+   */
+  protected volatile long deadlineMillis_ = 10000L;
+
+  /**
+   * Create a new policy with the default retryable errors and limits.
+   */
+  public RetryPolicy() {
+    setRetryable(PKCS11Constants.CKR_DEVICE_ERROR, true);
+    setRetryable(PKCS11Constants.CKR_SESSION_HANDLE_INVALID, true);
+    setRetryable(PKCS11Constants.CKR_SESSION_CLOSED, true);
+    setRetryable(PKCS11Constants.CKR_OBJECT_HANDLE_INVALID, true);
+    setRetryable(PKCS11Constants.CKR_KEY_HANDLE_INVALID, true);
+    setRetryable(PKCS11Constants.CKR_USER_NOT_LOGGED_IN, true);
+  }
+
+  /**
+   * Check, if an operation that failed with the given error may be retried.
+   *
+   * @param errorCode
+   *          The error code of the PKCS11Exception.
+   * @return True, if the error is transient.
+   */
+  public boolean isRetryable(long errorCode) {
+    return retryableErrors_.contains(Long.valueOf(errorCode));
+  }
+
+  /**
+   * Set whether operations that failed with the given error may be retried.
+   *
+   * @param errorCode
+   *          The error code; e.g. PKCS11Constants.CKR_DEVICE_MEMORY.
+   * @param retryable
+   *          True, to retry on this error.
+   */
+  public void setRetryable(long errorCode, boolean retryable) {
+    if (retryable) {
+      retryableErrors_.add(Long.valueOf(errorCode));
+    } else {
+      retryableErrors_.remove(Long.valueOf(errorCode));
+    }
+  }
+
+  /**
+   * Check, if the given error invalidates the session it occurred in. Operations failing with such
+   * an error are retried in a new session.
+   *
+   * @param errorCode
+   *          The error code of the PKCS11Exception.
+   * @return True, if the session is unusable.
+   */
+  public boolean isSessionFailure(long errorCode) {
+    return (errorCode == PKCS11Constants.CKR_SESSION_HANDLE_INVALID)
+        || (errorCode == PKCS11Constants.CKR_SESSION_CLOSED)
+        || (errorCode == PKCS11Constants.CKR_DEVICE_ERROR);
+  }
+
+  /**
+   * Check, if the given error may mean that the login state of the token was lost; i.e. if the
+   * session failed, the device or token was removed, or the user is not logged in any more. The
+   * cached login state is forgotten after such an error.
+   *
+   * @param errorCode
+   *          The error code of the PKCS11Exception.
+   * @return True, if the login must be checked again.
+   */
+  public boolean isLoginFailure(long errorCode) {
+    return (errorCode == PKCS11Constants.CKR_USER_NOT_LOGGED_IN)
+        || (errorCode == PKCS11Constants.CKR_DEVICE_REMOVED)
+        || (errorCode == PKCS11Constants.CKR_TOKEN_NOT_PRESENT)
+        || isSessionFailure(errorCode);
+  }
+
+  /**
+   * Check, if the given error may mean that the object handles used by the operation are stale.
+   * The keys of operations failing with such an error are looked up again before the retry.
+   *
+   * @param errorCode
+   *          The error code of the PKCS11Exception.
+   * @return True, if the handles must be resolved again.
+   */
+  public boolean isHandleFailure(long errorCode) {
+    return (errorCode == PKCS11Constants.CKR_OBJECT_HANDLE_INVALID)
+        || (errorCode == PKCS11Constants.CKR_KEY_HANDLE_INVALID)
+        || isSessionFailure(errorCode);
+  }
+
+  /**
+   * Get the maximum number of attempts of one call.
+   *
+   * @return The number of attempts including the first one.
+   */
+  public int getMaxAttempts() {
+    return maxAttempts_;
+  }
+
+  /**
+   * Set the maximum number of attempts of one call.
+   *
+   * @param maxAttempts
+   *          The number of attempts including the first one; 1 disables retries.
+   * @preconditions (maxAttempts >= 1)
+   */
+  public void setMaxAttempts(int maxAttempts) {
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("Argument \"maxAttempts\" must be at least 1.");
+    }
+    maxAttempts_ = maxAttempts;
+  }
+
+  /**
+   * Set the delays between attempts.
+   *
+   * @param initialBackoffMillis
+   *          The delay before the first retry in milliseconds.
+   * @param maxBackoffMillis
+   *          The maximum delay in milliseconds.
+   * @preconditions (initialBackoffMillis >= 0) and (maxBackoffMillis >= initialBackoffMillis)
+   */
+  public void setBackoff(long initialBackoffMillis, long maxBackoffMillis) {
+    if ((initialBackoffMillis < 0L) || (maxBackoffMillis < initialBackoffMillis)) {
+      throw new IllegalArgumentException("Invalid backoff " + initialBackoffMillis + " to "
+          + maxBackoffMillis + " ms.");
+    }
+    initialBackoffMillis_ = initialBackoffMillis;
+    maxBackoffMillis_ = maxBackoffMillis;
+  }
+
+  /**
+   * Get the maximum time for all attempts of one call.
+   *
+   * @return The deadline in milliseconds after the start of the call.
+   */
+  public long getDeadlineMillis() {
+    return deadlineMillis_;
+  }
+
+  /**
+   * Set the maximum time for all attempts of one call. A running attempt is not interrupted at the
+   * deadline; only no further attempt is started.
+   *
+   * @param deadlineMillis
+   *          The deadline in milliseconds after the start of the call.
+   * @preconditions (deadlineMillis > 0)
+   */
+  public void setDeadlineMillis(long deadlineMillis) {
+    if (deadlineMillis <= 0L) {
+      throw new IllegalArgumentException("Argument \"deadlineMillis\" must be positive.");
+    }
+    deadlineMillis_ = deadlineMillis;
+  }
+
+  /**
+   * Get the delay before the given retry.
+   *
+   * @param retry
+   *          The number of the retry; 1 for the first retry.
+   * @return The delay in milliseconds.
+   * @preconditions (retry >= 1)
+   */
+  public long getBackoffMillis(int retry) {
+    long backoff = initialBackoffMillis_;
+    for (int i = 1; (i < retry) && (backoff < maxBackoffMillis_); i++) {
+      backoff *= 2L;
+    }
+    backoff = Math.min(backoff, maxBackoffMillis_);
+    long half = backoff / 2L;
+
+    return half + ThreadLocalRandom.current().nextLong(backoff - half + 1L);
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return The string representation of object
+   */
+  public String toString() {
+    StringBuffer buffer = new StringBuffer();
+
+    buffer.append("Max Attempts: ");
+    buffer.append(maxAttempts_);
+    buffer.append(Constants.NEWLINE);
+    buffer.append("Backoff: ");
+    buffer.append(initialBackoffMillis_);
+    buffer.append(" to ");
+    buffer.append(maxBackoffMillis_);
+    buffer.append(" ms");
+    buffer.append(Constants.NEWLINE);
+    buffer.append("Deadline: ");
+    buffer.append(deadlineMillis_);
+    buffer.append(" ms");
+
+    return buffer.toString();
+  }
+
+}
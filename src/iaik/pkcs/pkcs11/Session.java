@@ -174,6 +174,12 @@ public class Session {
    */
   protected long sessionHandle_;
 
+  /**
+   * The mechanism code of the operation initialized last in this session or -1. Only used to
+   * describe the operation in SessionOperationEvents.
+   */
+  protected long activeMechanismCode_ = -1L;
+
   /**
    * The token to perform the operations on.
    */
@@ -315,6 +321,20 @@ public class Session {
     pkcs11Module_.C_SessionCancel(sessionHandle_, flags);
   }
 
+  /**
+   * Terminates the active session based operations given by the flags; e.g. CKF_SIGN to cancel an
+   * active sign operation without computing its result. Requires a module of PKCS#11 version 3.0.
+   *
+   * @param flags
+   *          The operations to cancel as bit mask of CKF_DIGEST, CKF_SIGN, CKF_VERIFY, etc.
+   * @exception TokenException
+   *              If terminating the operations failed; e.g. with CKR_FUNCTION_NOT_SUPPORTED, if
+   *              the module does not support C_SessionCancel.
+   */
+  public void sessionCancel(long flags) throws TokenException {
+    pkcs11Module_.C_SessionCancel(sessionHandle_, flags);
+  }
+
   /**
    * Get the Module which this Session object operates with.
    * 
@@ -357,18 +377,22 @@ public class Session {
    *          The previously saved state as returned by getOperationState().
    * @param encryptionKey
    *          A encryption or decryption key, if a encryption or decryption operation was saved
-   *          which should be continued, but the keys could not be saved.
+   *          which should be continued, but the keys could not be saved. May be null.
    * @param authenticationKey
    *          A signing, verification of MAC key, if a signing, verification or MAC operation needs
-   *          to be restored that could not save the key.
+   *          to be restored that could not save the key. May be null.
    * @exception TokenException
    *              If restoring the state fails.
    * @see #getOperationState()
    */
   public void setOperationState(byte[] operationState, Key encryptionKey,
       Key authenticationKey) throws TokenException {
-    pkcs11Module_.C_SetOperationState(sessionHandle_, operationState,
-        encryptionKey.getObjectHandle(), authenticationKey.getObjectHandle());
+    long encryptionKeyHandle = (encryptionKey != null) ? encryptionKey.getObjectHandle()
+        : PKCS11Constants.CK_INVALID_HANDLE;
+    long authenticationKeyHandle = (authenticationKey != null) ? authenticationKey
+        .getObjectHandle() : PKCS11Constants.CK_INVALID_HANDLE;
+    pkcs11Module_.C_SetOperationState(sessionHandle_, operationState, encryptionKeyHandle,
+        authenticationKeyHandle);
   }
 
   /**
@@ -418,6 +442,21 @@ public class Session {
     pkcs11Module_.C_LoginUser(sessionHandle_, lUserType, pin, username, useUtf8Encoding_);
   }
 
+  /**
+   * Performs a context specific login (CKU_CONTEXT_SPECIFIC) for the operation just initialized in
+   * this session. Keys with CKA_ALWAYS_AUTHENTICATE set to true require this login after each
+   * signInit or decryptInit.
+   *
+   * @param pin
+   *          The user-PIN or null, if the token has a protected authentication path.
+   * @exception TokenException
+   *              If login fails.
+   */
+  public void contextSpecificLogin(char[] pin) throws TokenException {
+    pkcs11Module_.C_Login(sessionHandle_, PKCS11Constants.CKU_CONTEXT_SPECIFIC, pin,
+        useUtf8Encoding_);
+  }
+
   /**
    * Logs out this session.
    * 
@@ -460,11 +499,21 @@ public class Session {
    * @postconditions (result != null)
    */
   public Object createObject(Object templateObject) throws TokenException {
-    CK_ATTRIBUTE[] ckAttributes = Object.getSetAttributes(templateObject);
-    long objectHandle = pkcs11Module_.C_CreateObject(sessionHandle_, ckAttributes,
-        useUtf8Encoding_);
-
-    return Object.getInstance(this, objectHandle);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "createObject", -1L, 0);
+    try {
+      CK_ATTRIBUTE[] ckAttributes = Object.getSetAttributes(templateObject);
+      long objectHandle = pkcs11Module_.C_CreateObject(sessionHandle_, ckAttributes,
+          useUtf8Encoding_);
+      Object newObject = Object.getInstance(this, objectHandle);
+      SessionOperationEvent.succeeded(event, 1);
+
+      return newObject;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -537,9 +586,59 @@ public class Session {
    * @postconditions (result != null)
    */
   public Object getAttributeValues(Object objectToRead) throws TokenException {
-    long objectHandle = objectToRead.getObjectHandle();
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "getAttributeValues", -1L,
+        0);
+    try {
+      long objectHandle = objectToRead.getObjectHandle();
+      Object object = Object.getInstance(this, objectHandle);
+      SessionOperationEvent.succeeded(event, 1);
+
+      return object;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
+  }
+
+  /**
+   * Reads the given attributes of an object with one C_GetAttributeValue call. Unlike
+   * getAttributeValues(Object), this method creates no Object; the values are set into the pValue
+   * fields of the given structures. Use it, if the caller needs only a few raw values.
+   * 
+   * @param objectHandle
+   *          The handle of the object to read.
+   * @param attributes
+   *          The attributes to read; their type fields must be set.
+   * @exception TokenException
+   *              If reading the attributes fails; e.g. with CKR_ATTRIBUTE_TYPE_INVALID, if the
+   *              object does not have one of them.
+   * @preconditions (attributes != null)
+   */
+  public void getAttributeValues(long objectHandle, CK_ATTRIBUTE[] attributes)
+      throws TokenException {
+    pkcs11Module_.C_GetAttributeValue(sessionHandle_, objectHandle, attributes,
+        useUtf8Encoding_);
+  }
+
+  /**
+   * Reads the value of one byte array attribute of an object; e.g. CKA_VALUE or CKA_MODULUS.
+   * 
+   * @param objectHandle
+   *          The handle of the object to read.
+   * @param type
+   *          The attribute type.
+   * @return The value or null, if it is empty.
+   * @exception TokenException
+   *              If reading the attribute fails.
+   */
+  public byte[] getByteArrayAttributeValue(long objectHandle, long type) throws TokenException {
+    CK_ATTRIBUTE[] attributes = new CK_ATTRIBUTE[] { new CK_ATTRIBUTE() };
+    attributes[0].type = type;
+    getAttributeValues(objectHandle, attributes);
 
-    return Object.getInstance(this, objectHandle);
+    return (byte[]) attributes[0].pValue;
   }
 
   /**
@@ -612,24 +711,51 @@ public class Session {
    * @postconditions (result != null)
    */
   public Object[] findObjects(int maxObjectCount) throws TokenException {
-    Vector foundObjects = new Vector();
-    long[] objectHandles = pkcs11Module_.C_FindObjects(sessionHandle_, maxObjectCount);
-
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "findObjects", -1L, 0);
     try {
-      for (int i = 0; i < objectHandles.length; i++) {
-        Object object = Object.getInstance(this, objectHandles[i]);
-        foundObjects.addElement(object);
+      Vector foundObjects = new Vector();
+      long[] objectHandles = pkcs11Module_.C_FindObjects(sessionHandle_, maxObjectCount);
+
+      try {
+        for (int i = 0; i < objectHandles.length; i++) {
+          Object object = Object.getInstance(this, objectHandles[i]);
+          foundObjects.addElement(object);
+        }
+        Object[] objectArray = new Object[foundObjects.size()];
+        foundObjects.copyInto(objectArray);
+        SessionOperationEvent.succeeded(event, objectArray.length);
+
+        return objectArray;
+      } catch (TokenException e) {
+        // encapsulate exception to signal a cause other than C_FindObjects
+        throw new TokenException(e);
       }
-      Object[] objectArray = new Object[foundObjects.size()];
-      foundObjects.copyInto(objectArray);
-
-      return objectArray;
-    } catch (TokenException e) {
-      // encapsulate exception to signal a cause other than C_FindObjects
-      throw new TokenException(e);
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
     }
   }
 
+  /**
+   * Finds objects that match the template object passed to findObjectsInit and returns only their
+   * handles. Unlike findObjects, this method does not read the attributes of the found objects;
+   * use it, if the caller reads only the attributes it needs.
+   * 
+   * @param maxObjectCount
+   *          Specifies how many handles to return with this call.
+   * @return An array of object handles. The maximum size of this array is maxObjectCount, the
+   *         minimum length is 0. Never returns null.
+   * @exception TokenException
+   *              If PKCS11 FindObjects went wrong.
+   * 
+   * @postconditions (result != null)
+   */
+  public long[] findObjectHandles(int maxObjectCount) throws TokenException {
+    return pkcs11Module_.C_FindObjects(sessionHandle_, maxObjectCount);
+  }
+
   /**
    * Finalizes a find operation. The application must call this method to finalize a find operation
    * before attempting to start any other operation.
@@ -668,6 +794,7 @@ public class Session {
 
     pkcs11Module_.C_EncryptInit(sessionHandle_, ckMechanism, key.getObjectHandle(),
         useUtf8Encoding_);
+    activeMechanismCode_ = ckMechanism.mechanism;
   }
 
   /**
@@ -685,7 +812,19 @@ public class Session {
    * @postconditions (result != null)
    */
   public byte[] encrypt(byte[] data) throws TokenException {
-    return pkcs11Module_.C_Encrypt(sessionHandle_, data);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "encrypt",
+        activeMechanismCode_, data.length);
+    try {
+      byte[] result = pkcs11Module_.C_Encrypt(sessionHandle_, data);
+      SessionOperationEvent.succeeded(event, result.length);
+
+      return result;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -719,7 +858,19 @@ public class Session {
    * @postconditions (result != null)
    */
   public byte[] encryptFinal() throws TokenException {
-    return pkcs11Module_.C_EncryptFinal(sessionHandle_);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "encryptFinal",
+        activeMechanismCode_, 0);
+    try {
+      byte[] result = pkcs11Module_.C_EncryptFinal(sessionHandle_);
+      SessionOperationEvent.succeeded(event, result.length);
+
+      return result;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
 
@@ -861,6 +1012,7 @@ public class Session {
 
     pkcs11Module_.C_DecryptInit(sessionHandle_, ckMechanism, key.getObjectHandle(),
         useUtf8Encoding_);
+    activeMechanismCode_ = ckMechanism.mechanism;
   }
 
   /**
@@ -878,7 +1030,19 @@ public class Session {
    * @postconditions (result != null)
    */
   public byte[] decrypt(byte[] data) throws TokenException {
-    return pkcs11Module_.C_Decrypt(sessionHandle_, data);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "decrypt",
+        activeMechanismCode_, data.length);
+    try {
+      byte[] result = pkcs11Module_.C_Decrypt(sessionHandle_, data);
+      SessionOperationEvent.succeeded(event, result.length);
+
+      return result;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -912,7 +1076,19 @@ public class Session {
    * @postconditions (result != null)
    */
   public byte[] decryptFinal() throws TokenException {
-    return pkcs11Module_.C_DecryptFinal(sessionHandle_);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "decryptFinal",
+        activeMechanismCode_, 0);
+    try {
+      byte[] result = pkcs11Module_.C_DecryptFinal(sessionHandle_);
+      SessionOperationEvent.succeeded(event, result.length);
+
+      return result;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -1030,6 +1206,7 @@ public class Session {
         : null;
 
     pkcs11Module_.C_DigestInit(sessionHandle_, ckMechanism, useUtf8Encoding_);
+    activeMechanismCode_ = ckMechanism.mechanism;
   }
 
   /**
@@ -1046,7 +1223,19 @@ public class Session {
    * @postconditions (result != null)
    */
   public byte[] digest(byte[] data) throws TokenException {
-    return pkcs11Module_.C_Digest(sessionHandle_, data);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "digest",
+        activeMechanismCode_, data.length);
+    try {
+      byte[] result = pkcs11Module_.C_Digest(sessionHandle_, data);
+      SessionOperationEvent.succeeded(event, result.length);
+
+      return result;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -1094,7 +1283,19 @@ public class Session {
    * @postconditions (result != null)
    */
   public byte[] digestFinal() throws TokenException {
-    return pkcs11Module_.C_DigestFinal(sessionHandle_);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "digestFinal",
+        activeMechanismCode_, 0);
+    try {
+      byte[] result = pkcs11Module_.C_DigestFinal(sessionHandle_);
+      SessionOperationEvent.succeeded(event, result.length);
+
+      return result;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -1125,6 +1326,26 @@ public class Session {
 
     pkcs11Module_.C_SignInit(sessionHandle_, ckMechanism, key.getObjectHandle(),
         useUtf8Encoding_);
+    activeMechanismCode_ = ckMechanism.mechanism;
+  }
+
+  /**
+   * Initializes a new signing operation with a prepared mechanism structure and a key handle.
+   * Applications signing many times with the same mechanism and key build the structure once; this
+   * saves converting the mechanism and its parameters for each operation. The structure must not be
+   * modified while it is in use.
+   * 
+   * @param ckMechanism
+   *          The prepared mechanism structure.
+   * @param keyHandle
+   *          The object handle of the signing key.
+   * @exception TokenException
+   *              If initializing this operation failed.
+   * @preconditions (ckMechanism != null)
+   */
+  public void signInit(CK_MECHANISM ckMechanism, long keyHandle) throws TokenException {
+    pkcs11Module_.C_SignInit(sessionHandle_, ckMechanism, keyHandle, useUtf8Encoding_);
+    activeMechanismCode_ = ckMechanism.mechanism;
   }
 
   /**
@@ -1141,7 +1362,19 @@ public class Session {
    * @postconditions (result != null)
    */
   public byte[] sign(byte[] data) throws TokenException {
-    return pkcs11Module_.C_Sign(sessionHandle_, data);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "sign",
+        activeMechanismCode_, data.length);
+    try {
+      byte[] result = pkcs11Module_.C_Sign(sessionHandle_, data);
+      SessionOperationEvent.succeeded(event, result.length);
+
+      return result;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -1173,7 +1406,19 @@ public class Session {
    * @postconditions (result != null)
    */
   public byte[] signFinal() throws TokenException {
-    return pkcs11Module_.C_SignFinal(sessionHandle_);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "signFinal",
+        activeMechanismCode_, 0);
+    try {
+      byte[] result = pkcs11Module_.C_SignFinal(sessionHandle_);
+      SessionOperationEvent.succeeded(event, result.length);
+
+      return result;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -1322,6 +1567,7 @@ public class Session {
 
     pkcs11Module_.C_VerifyInit(sessionHandle_, ckMechanism, key.getObjectHandle(),
         useUtf8Encoding_);
+    activeMechanismCode_ = ckMechanism.mechanism;
   }
 
   /**
@@ -1342,7 +1588,17 @@ public class Session {
    * 
    */
   public void verify(byte[] data, byte[] signature) throws TokenException {
-    pkcs11Module_.C_Verify(sessionHandle_, data, signature);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "verify",
+        activeMechanismCode_, data.length);
+    try {
+      pkcs11Module_.C_Verify(sessionHandle_, data, signature);
+      SessionOperationEvent.succeeded(event, 0);
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -1378,7 +1634,17 @@ public class Session {
    * @postconditions (result != null)
    */
   public void verifyFinal(byte[] signature) throws TokenException {
-    pkcs11Module_.C_VerifyFinal(sessionHandle_, signature);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "verifyFinal",
+        activeMechanismCode_, signature.length);
+    try {
+      pkcs11Module_.C_VerifyFinal(sessionHandle_, signature);
+      SessionOperationEvent.succeeded(event, 0);
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -1595,12 +1861,23 @@ public class Session {
     Parameters parameters = mechanism.getParameters();
     ckMechanism.pParameter = (parameters != null) ? parameters.getPKCS11ParamsObject()
         : null;
-    CK_ATTRIBUTE[] ckAttributes = Object.getSetAttributes(template);
-
-    long objectHandle = pkcs11Module_.C_GenerateKey(sessionHandle_, ckMechanism,
-        ckAttributes, useUtf8Encoding_);
-
-    return Object.getInstance(this, objectHandle);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "generateKey",
+        ckMechanism.mechanism, 0);
+    try {
+      CK_ATTRIBUTE[] ckAttributes = Object.getSetAttributes(template);
+
+      long objectHandle = pkcs11Module_.C_GenerateKey(sessionHandle_, ckMechanism,
+          ckAttributes, useUtf8Encoding_);
+      Object newKey = Object.getInstance(this, objectHandle);
+      SessionOperationEvent.succeeded(event, 1);
+
+      return newKey;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -1628,17 +1905,103 @@ public class Session {
     Parameters parameters = mechanism.getParameters();
     ckMechanism.pParameter = (parameters != null) ? parameters.getPKCS11ParamsObject()
         : null;
-    CK_ATTRIBUTE[] ckPublicKeyAttributes = Object.getSetAttributes(publicKeyTemplate);
-    CK_ATTRIBUTE[] ckPrivateKeyAttributes = Object.getSetAttributes(privateKeyTemplate);
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "generateKeyPair",
+        ckMechanism.mechanism, 0);
+    try {
+      CK_ATTRIBUTE[] ckPublicKeyAttributes = Object.getSetAttributes(publicKeyTemplate);
+      CK_ATTRIBUTE[] ckPrivateKeyAttributes = Object.getSetAttributes(privateKeyTemplate);
 
-    long[] objectHandles = pkcs11Module_.C_GenerateKeyPair(sessionHandle_, ckMechanism,
-        ckPublicKeyAttributes, ckPrivateKeyAttributes, useUtf8Encoding_);
+      long[] objectHandles = pkcs11Module_.C_GenerateKeyPair(sessionHandle_, ckMechanism,
+          ckPublicKeyAttributes, ckPrivateKeyAttributes, useUtf8Encoding_);
 
 
-    PublicKey publicKey = (PublicKey) Object.getInstance(this, objectHandles[0]);
-    PrivateKey privateKey = (PrivateKey) Object.getInstance(this, objectHandles[1]);
+      PublicKey publicKey = (PublicKey) Object.getInstance(this, objectHandles[0]);
+      PrivateKey privateKey = (PrivateKey) Object.getInstance(this, objectHandles[1]);
+      SessionOperationEvent.succeeded(event, 2);
 
-    return new KeyPair(publicKey, privateKey);
+      return new KeyPair(publicKey, privateKey);
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
+  }
+
+  /**
+   * Generate a new secret key from precompiled attributes and return only its handle. Unlike
+   * generateKey, this method does not read the attributes of the new key; applications that
+   * generate many keys with the same template compile it once with Object.getSetAttributes.
+   * 
+   * @param mechanism
+   *          The mechanism to generate a key for; e.g. CKM_AES_KEY_GEN.
+   * @param attributes
+   *          The attributes of the new key or null.
+   * @return The object handle of the new key.
+   * @exception TokenException
+   *              If generating the key failed.
+   * @preconditions (mechanism != null)
+   */
+  public long generateKeyHandle(Mechanism mechanism, CK_ATTRIBUTE[] attributes)
+      throws TokenException {
+    CK_MECHANISM ckMechanism = new CK_MECHANISM();
+    ckMechanism.mechanism = mechanism.getMechanismCode();
+    Parameters parameters = mechanism.getParameters();
+    ckMechanism.pParameter = (parameters != null) ? parameters.getPKCS11ParamsObject()
+        : null;
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "generateKey",
+        ckMechanism.mechanism, 0);
+    try {
+      long objectHandle = pkcs11Module_.C_GenerateKey(sessionHandle_, ckMechanism, attributes,
+          useUtf8Encoding_);
+      SessionOperationEvent.succeeded(event, 1);
+
+      return objectHandle;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
+  }
+
+  /**
+   * Generate a new key-pair from precompiled attributes and return only the handles. Unlike
+   * generateKeyPair, this method does not read the attributes of the new keys.
+   * 
+   * @param mechanism
+   *          The mechanism to generate a key-pair for; e.g. CKM_EC_KEY_PAIR_GEN.
+   * @param publicKeyAttributes
+   *          The attributes of the new public key or null.
+   * @param privateKeyAttributes
+   *          The attributes of the new private key or null.
+   * @return The object handles of the public key and the private key, in this order.
+   * @exception TokenException
+   *              If generating the key-pair failed.
+   * @preconditions (mechanism != null)
+   * @postconditions (result != null) and (result.length == 2)
+   */
+  public long[] generateKeyPairHandles(Mechanism mechanism, CK_ATTRIBUTE[] publicKeyAttributes,
+      CK_ATTRIBUTE[] privateKeyAttributes) throws TokenException {
+    CK_MECHANISM ckMechanism = new CK_MECHANISM();
+    ckMechanism.mechanism = mechanism.getMechanismCode();
+    Parameters parameters = mechanism.getParameters();
+    ckMechanism.pParameter = (parameters != null) ? parameters.getPKCS11ParamsObject()
+        : null;
+    SessionOperationEvent event = SessionOperationEvent.begin(this, "generateKeyPair",
+        ckMechanism.mechanism, 0);
+    try {
+      long[] objectHandles = pkcs11Module_.C_GenerateKeyPair(sessionHandle_, ckMechanism,
+          publicKeyAttributes, privateKeyAttributes, useUtf8Encoding_);
+      SessionOperationEvent.succeeded(event, 2);
+
+      return objectHandles;
+    } catch (TokenException ex) {
+      SessionOperationEvent.failed(event, ex);
+      throw ex;
+    } finally {
+      SessionOperationEvent.end(event);
+    }
   }
 
   /**
@@ -1702,6 +2065,28 @@ public class Session {
     return (Key) Object.getInstance(this, objectHandle);
   }
 
+  /**
+   * Derive a new key from a base key with a prepared mechanism structure and precompiled attributes,
+   * and return only the handle of the new key. Unlike deriveKey, this method does not read the
+   * attributes of the new key. The structure must not be modified while it is in use.
+   * 
+   * @param ckMechanism
+   *          The prepared mechanism structure; e.g. CKM_ECDH1_DERIVE with CK_ECDH1_DERIVE_PARAMS.
+   * @param baseKeyHandle
+   *          The object handle of the base key.
+   * @param attributes
+   *          The attributes of the new key or null.
+   * @return The object handle of the new key.
+   * @exception TokenException
+   *              If deriving the key failed.
+   * @preconditions (ckMechanism != null)
+   */
+  public long deriveKeyHandle(CK_MECHANISM ckMechanism, long baseKeyHandle,
+      CK_ATTRIBUTE[] attributes) throws TokenException {
+    return pkcs11Module_.C_DeriveKey(sessionHandle_, ckMechanism, baseKeyHandle, attributes,
+        useUtf8Encoding_);
+  }
+
   /**
    * Derives a new key from a specified base key unsing the given mechanism. After deriving a new
    * key from the base key, a new key object is created and a representation of it is returned. The
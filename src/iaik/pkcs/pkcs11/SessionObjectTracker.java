@@ -0,0 +1,524 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.Object;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Destroys session objects that are not needed any more. Each tracked object has an owner, a Java
+ * object that uses it; e.g. the Java key wrapping a derived key. When the owner becomes
+ * unreachable or the time to live of the object expires, whichever comes first, the object is
+ * scheduled for destruction. A background thread destroys the scheduled objects in batches with
+ * an ObjectDestroyer.
+ *
+ * <pre>
+ * <code>
+ *   SessionObjectTracker tracker = new SessionObjectTracker(new ObjectDestroyer(pool, 4), 1000,
+ *       256);
+ *   Key derivedKey = tracker.deriveKey(session, sessionKeyHolder, mechanism, baseKey, template,
+ *       600000);
+ * </code>
+ * </pre>
+ *
+ * The methods createObject, deriveKey and unwrapKey track the new object only if the template
+ * does not request a token object. Session objects are destroyed by the token when the session
+ * that created them is closed, and the token may reuse the handle; therefore, create tracked
+ * objects with long-lived sessions, e.g. sessions of a pool, and untrack the objects of a session
+ * before closing it.
+ *
+ * @version 1.0
+ * @invariants (destroyer_ != null) and (cleaner_ != null) and (scheduler_ != null)
+ */
+public class SessionObjectTracker {
+
+  /**
+   * A tracked object.
+   */
+  protected static class Entry {
+
+    protected final Cleaner.Cleanable cleanable_;
+
+    /**
+     * True, if the object has a time to live.
+     */
+    protected final boolean expires_;
+
+    /**
+     * The time the object expires, as of System.nanoTime(); only valid, if expires_ is true.
+     */
+    protected final long expiryNanos_;
+
+    protected Entry(Cleaner.Cleanable cleanable, boolean expires, long expiryNanos) {
+      cleanable_ = cleanable;
+      expires_ = expires;
+      expiryNanos_ = expiryNanos;
+    }
+
+  }
+
+  /**
+   * The action run by the cleaner when an owner became unreachable. It must not refer to the
+   * owner. It removes only its own entry; if the handle was reused for a newer tracked object, that
+   * object stays alive.
+   */
+  protected static class OwnerGone implements Runnable {
+
+    protected final SessionObjectTracker tracker_;
+
+    protected final Long objectHandle_;
+
+    protected volatile Entry entry_;
+
+    protected OwnerGone(SessionObjectTracker tracker, Long objectHandle) {
+      tracker_ = tracker;
+      objectHandle_ = objectHandle;
+    }
+
+    public void run() {
+      Entry entry = entry_;
+      if ((entry != null) && tracker_.tracked_.remove(objectHandle_, entry)) {
+        tracker_.pending_.add(objectHandle_);
+      }
+    }
+
+  }
+
+  /**
+   * The cleaner notified when owners become unreachable; shared by all trackers.
+   */
+  protected static final Cleaner cleaner_ = Cleaner.create();
+
+  /**
+   * The destroyer of the objects.
+   */
+  protected ObjectDestroyer destroyer_;
+
+  /**
+   * The maximum number of objects destroyed in one batch.
+   */
+  protected int batchSize_;
+
+  /**
+   * The tracked objects. The key of this table is the object handle.
+   */
+  protected final Map<Long, Entry> tracked_ = new ConcurrentHashMap<Long, Entry>();
+
+  /**
+   * The handles of the objects scheduled for destruction.
+   */
+  protected final ConcurrentLinkedQueue<Long> pending_ = new ConcurrentLinkedQueue<Long>();
+
+  /**
+   * The number of objects destroyed.
+   */
+  protected final AtomicLong destroyedCount_ = new AtomicLong();
+
+  /**
+   * The number of objects that could not be destroyed.
+   */
+  protected final AtomicLong failedCount_ = new AtomicLong();
+
+  /**
+   * The thread destroying the scheduled objects.
+   */
+  protected ScheduledExecutorService scheduler_;
+
+  /**
+   * Create a new tracker.
+   *
+   * @param destroyer
+   *          The destroyer of the objects.
+   * @param flushIntervalMillis
+   *          The interval in milliseconds in which scheduled objects are destroyed.
+   * @param batchSize
+   *          The maximum number of objects destroyed in one batch.
+   * @preconditions (destroyer != null) and (flushIntervalMillis > 0) and (batchSize > 0)
+   */
+  public SessionObjectTracker(ObjectDestroyer destroyer, long flushIntervalMillis,
+      int batchSize) {
+    if (destroyer == null) {
+      throw new NullPointerException("Argument \"destroyer\" must not be null.");
+    }
+    if ((flushIntervalMillis <= 0L) || (batchSize <= 0)) {
+      throw new IllegalArgumentException("The flush interval and batch size must be positive.");
+    }
+    destroyer_ = destroyer;
+    batchSize_ = batchSize;
+    scheduler_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "PKCS11-object-tracker");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    scheduler_.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        flush();
+      }
+    }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Track the given session object. If an object with the same handle is still tracked, e.g.
+   * because the module reused the handle of a destroyed object, its entry is replaced.
+   *
+   * @param owner
+   *          The Java object using the session object or null, if only the time to live applies.
+   * @param object
+   *          The session object.
+   * @param timeToLiveMillis
+   *          The time to live in milliseconds or 0 for no time limit.
+   * @preconditions (object != null) and (timeToLiveMillis >= 0)
+   *                and ((owner != null) or (timeToLiveMillis > 0))
+   */
+  public void track(java.lang.Object owner, Object object, long timeToLiveMillis) {
+    if (object == null) {
+      throw new NullPointerException("Argument \"object\" must not be null.");
+    }
+    if ((timeToLiveMillis < 0L) || ((owner == null) && (timeToLiveMillis == 0L))) {
+      throw new IllegalArgumentException("An object needs an owner or a time to live.");
+    }
+    Long objectHandle = Long.valueOf(object.getObjectHandle());
+    OwnerGone ownerGone = new OwnerGone(this, objectHandle);
+    Cleaner.Cleanable cleanable = (owner != null) ? cleaner_.register(owner, ownerGone) : null;
+    // nanoTime is not affected by changes of the wall clock
+    Entry entry = new Entry(cleanable, timeToLiveMillis > 0L, System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis));
+    ownerGone.entry_ = entry;
+    Entry previous = tracked_.put(objectHandle, entry);
+    if ((previous != null) && (previous.cleanable_ != null)) {
+      // the previous entry is replaced already; thus, its cleaning action does nothing
+      previous.cleanable_.clean();
+    }
+    Reference.reachabilityFence(owner);
+  }
+
+  /**
+   * Stop tracking the given object; e.g. after the application destroyed it.
+   *
+   * @param object
+   *          The object.
+   * @preconditions (object != null)
+   */
+  public void untrack(Object object) {
+    Entry entry = tracked_.remove(Long.valueOf(object.getObjectHandle()));
+    if ((entry != null) && (entry.cleanable_ != null)) {
+      // removing the entry first makes the cleaning action do nothing
+      entry.cleanable_.clean();
+    }
+  }
+
+  /**
+   * Schedule the given object for destruction now, regardless of its owner and time to live.
+   *
+   * @param object
+   *          The object.
+   * @preconditions (object != null)
+   */
+  public void release(Object object) {
+    Long objectHandle = Long.valueOf(object.getObjectHandle());
+    Entry entry = tracked_.remove(objectHandle);
+    if (entry != null) {
+      if (entry.cleanable_ != null) {
+        entry.cleanable_.clean();
+      }
+      pending_.add(objectHandle);
+    }
+  }
+
+  /**
+   * Schedule the object with the given handle for destruction with the next batch. Unlike release,
+   * this method also accepts objects that are not tracked; e.g. a derived key whose value was read
+   * and which is not needed any more.
+   *
+   * @param objectHandle
+   *          The object handle.
+   */
+  public void destroyLater(long objectHandle) {
+    Long handle = Long.valueOf(objectHandle);
+    Entry entry = tracked_.remove(handle);
+    if ((entry != null) && (entry.cleanable_ != null)) {
+      entry.cleanable_.clean();
+    }
+    pending_.add(handle);
+  }
+
+  /**
+   * Create an object and track it, if it is a session object.
+   *
+   * @param session
+   *          The session to create the object with.
+   * @param owner
+   *          The Java object using the new object or null.
+   * @param template
+   *          The template of the new object.
+   * @param timeToLiveMillis
+   *          The time to live in milliseconds or 0 for no time limit.
+   * @return The new object.
+   * @exception TokenException
+   *              If creating the object fails.
+   * @preconditions (session != null) and (template != null)
+   */
+  public Object createObject(Session session, java.lang.Object owner, Object template,
+      long timeToLiveMillis) throws TokenException {
+    Object object = session.createObject(template);
+    trackSessionObject(owner, template, object, timeToLiveMillis);
+
+    return object;
+  }
+
+  /**
+   * Derive a key and track it, if it is a session object.
+   *
+   * @param session
+   *          The session to derive the key with.
+   * @param owner
+   *          The Java object using the new key or null.
+   * @param mechanism
+   *          The derivation mechanism.
+   * @param baseKey
+   *          The base key.
+   * @param template
+   *          The template of the new key.
+   * @param timeToLiveMillis
+   *          The time to live in milliseconds or 0 for no time limit.
+   * @return The derived key.
+   * @exception TokenException
+   *              If deriving the key fails.
+   * @preconditions (session != null) and (mechanism != null) and (baseKey != null)
+   *                and (template != null)
+   */
+  public Key deriveKey(Session session, java.lang.Object owner, Mechanism mechanism,
+      Key baseKey, Key template, long timeToLiveMillis) throws TokenException {
+    Key key = session.deriveKey(mechanism, baseKey, template);
+    if (key != null) {
+      trackSessionObject(owner, template, key, timeToLiveMillis);
+    }
+
+    return key;
+  }
+
+  /**
+   * Unwrap a key and track it, if it is a session object.
+   *
+   * @param session
+   *          The session to unwrap the key with.
+   * @param owner
+   *          The Java object using the new key or null.
+   * @param mechanism
+   *          The unwrapping mechanism.
+   * @param unwrappingKey
+   *          The unwrapping key.
+   * @param wrappedKey
+   *          The wrapped key.
+   * @param template
+   *          The template of the new key.
+   * @param timeToLiveMillis
+   *          The time to live in milliseconds or 0 for no time limit.
+   * @return The unwrapped key.
+   * @exception TokenException
+   *              If unwrapping the key fails.
+   * @preconditions (session != null) and (mechanism != null) and (unwrappingKey != null)
+   *                and (wrappedKey != null) and (template != null)
+   */
+  public Key unwrapKey(Session session, java.lang.Object owner, Mechanism mechanism,
+      Key unwrappingKey, byte[] wrappedKey, Object template, long timeToLiveMillis)
+      throws TokenException {
+    Key key = session.unwrapKey(mechanism, unwrappingKey, wrappedKey, template);
+    trackSessionObject(owner, template, key, timeToLiveMillis);
+
+    return key;
+  }
+
+  /**
+   * Destroy the objects whose owner became unreachable or whose time to live expired. The
+   * background thread calls this method regularly.
+   */
+  public void flush() {
+    long now = System.nanoTime();
+    Iterator<Map.Entry<Long, Entry>> entries = tracked_.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Long, Entry> entry = entries.next();
+      Entry value = entry.getValue();
+      if (value.expires_ && (value.expiryNanos_ - now <= 0L)
+          && tracked_.remove(entry.getKey(), value)) {
+        if (value.cleanable_ != null) {
+          value.cleanable_.clean();
+        }
+        pending_.add(entry.getKey());
+      }
+    }
+
+    List<Long> batch = new ArrayList<Long>(batchSize_);
+    Long objectHandle;
+    while ((objectHandle = pending_.poll()) != null) {
+      batch.add(objectHandle);
+      if (batch.size() == batchSize_) {
+        destroyBatch(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      destroyBatch(batch);
+    }
+  }
+
+  /**
+   * Stop the background thread and destroy all tracked and scheduled objects.
+   */
+  public void close() {
+    scheduler_.shutdown();
+    try {
+      scheduler_.awaitTermination(1L, TimeUnit.MINUTES);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    Iterator<Long> objectHandles = tracked_.keySet().iterator();
+    while (objectHandles.hasNext()) {
+      Long objectHandle = objectHandles.next();
+      Entry entry = tracked_.remove(objectHandle);
+      if (entry != null) {
+        if (entry.cleanable_ != null) {
+          entry.cleanable_.clean();
+        }
+        pending_.add(objectHandle);
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Get the number of tracked objects not scheduled for destruction yet.
+   *
+   * @return The number of objects.
+   */
+  public int getTrackedCount() {
+    return tracked_.size();
+  }
+
+  /**
+   * Get the number of objects destroyed by this tracker.
+   *
+   * @return The number of objects.
+   */
+  public long getDestroyedCount() {
+    return destroyedCount_.get();
+  }
+
+  /**
+   * Get the number of objects this tracker failed to destroy.
+   *
+   * @return The number of objects.
+   */
+  public long getFailedCount() {
+    return failedCount_.get();
+  }
+
+  /**
+   * Track a new object, unless its template requests a token object. Objects created with the
+   * methods of this tracker are tracked this way; callers creating objects otherwise may use it
+   * too.
+   *
+   * @param owner
+   *          The Java object using the new object or null.
+   * @param template
+   *          The template the object was created with.
+   * @param object
+   *          The new object.
+   * @param timeToLiveMillis
+   *          The time to live in milliseconds or 0 for no time limit.
+   */
+  public void trackSessionObject(java.lang.Object owner, Object template, Object object,
+      long timeToLiveMillis) {
+    Attribute token = (template != null) ? template.getAttribute(PKCS11Constants.CKA_TOKEN)
+        : null;
+    if ((token instanceof BooleanAttribute) && token.isPresent()
+        && Boolean.TRUE.equals(((BooleanAttribute) token).getBooleanValue())) {
+      return;
+    }
+    if ((owner != null) || (timeToLiveMillis > 0L)) {
+      track(owner, object, timeToLiveMillis);
+    }
+  }
+
+  /**
+   * Destroy a batch of objects.
+   *
+   * @param batch
+   *          The handles of the objects.
+   */
+  protected void destroyBatch(List<Long> batch) {
+    long[] objectHandles = new long[batch.size()];
+    for (int i = 0; i < objectHandles.length; i++) {
+      objectHandles[i] = batch.get(i).longValue();
+    }
+    try {
+      destroyedCount_.addAndGet(destroyer_.destroyObjects(objectHandles));
+    } catch (ObjectsNotDestroyedException ex) {
+      // the objects are gone with their sessions at the latest; count the failures only
+      destroyedCount_.addAndGet(ex.getDestroyedCount());
+      failedCount_.addAndGet(ex.getFailedCount());
+    } catch (TokenException ex) {
+      failedCount_.addAndGet(objectHandles.length);
+    }
+  }
+
+}
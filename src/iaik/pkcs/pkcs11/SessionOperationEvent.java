@@ -0,0 +1,202 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.wrapper.Functions;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event for a cryptographic or object operation of a Session. The duration
+ * covers the work of this library, i.e. converting templates and reading the attributes of new
+ * objects, and the native call. Compared with the PKCS11CallEvent of the same thread, it shows how
+ * much time is spent in Java and how much in the module. Failed operations are recorded too;
+ * their result is the PKCS#11 error or the name of the exception. Emitting this event costs nearly
+ * nothing while it is disabled.
+ *
+ * @see iaik.pkcs.pkcs11.wrapper.PKCS11CallEvent
+ * @version 1.0
+ */
+@Name(SessionOperationEvent.NAME)
+@Label("PKCS#11 Session Operation")
+@Category({ "PKCS#11" })
+@Description("An operation of an iaik.pkcs.pkcs11.Session")
+public class SessionOperationEvent extends Event {
+
+  /**
+   * The name of this event type.
+   */
+  public static final String NAME = "iaik.pkcs11.SessionOperation";
+
+  /**
+   * The name of the operation; e.g. sign.
+   */
+  @Label("Operation")
+  public String operation;
+
+  /**
+   * The slot ID of the token of the session.
+   */
+  @Label("Slot")
+  public long slotId;
+
+  /**
+   * The session handle.
+   */
+  @Label("Session Handle")
+  public long sessionHandle;
+
+  /**
+   * The name of the mechanism; e.g. CKM_SHA256_RSA_PKCS.
+   */
+  @Label("Mechanism")
+  public String mechanism;
+
+  /**
+   * The size of the input data.
+   */
+  @Label("Input Size")
+  @DataAmount(DataAmount.BYTES)
+  public int inputSize;
+
+  /**
+   * The size of the output data or the number of returned objects.
+   */
+  @Label("Output Size")
+  public int outputSize;
+
+  /**
+   * The result of the operation; e.g. CKR_OK or CKR_SIGNATURE_INVALID.
+   */
+  @Label("Result")
+  public String result;
+
+  /**
+   * Start an event for an operation of the given session.
+   *
+   * @param session
+   *          The session.
+   * @param operation
+   *          The name of the operation.
+   * @param mechanismCode
+   *          The mechanism code or -1, if the operation has no mechanism.
+   * @param inputSize
+   *          The size of the input data.
+   * @return The started event or null, if this event type is disabled.
+   */
+  static SessionOperationEvent begin(Session session, String operation, long mechanismCode,
+      int inputSize) {
+    SessionOperationEvent event = new SessionOperationEvent();
+    if (!event.isEnabled()) {
+      return null;
+    }
+    event.operation = operation;
+    event.slotId = session.getToken().getSlot().getSlotID();
+    event.sessionHandle = session.getSessionHandle();
+    event.mechanism = (mechanismCode != -1L) ? Functions.mechanismCodeToString(mechanismCode)
+        : null;
+    event.inputSize = inputSize;
+    event.begin();
+
+    return event;
+  }
+
+  /**
+   * Record the success of the operation of the given event.
+   *
+   * @param event
+   *          The event as returned by begin; may be null.
+   * @param outputSize
+   *          The size of the output data.
+   */
+  static void succeeded(SessionOperationEvent event, int outputSize) {
+    if (event == null) {
+      return;
+    }
+    event.outputSize = outputSize;
+    event.result = "CKR_OK";
+  }
+
+  /**
+   * Record the failure of the operation of the given event.
+   *
+   * @param event
+   *          The event as returned by begin; may be null.
+   * @param exception
+   *          The exception the operation failed with.
+   */
+  static void failed(SessionOperationEvent event, TokenException exception) {
+    if (event == null) {
+      return;
+    }
+    event.result = (exception instanceof PKCS11Exception) ? exception.getMessage() : exception
+        .getClass().getName();
+  }
+
+  /**
+   * End and commit the given event. Call it in a finally block; if neither succeeded nor failed
+   * was called, the operation failed with an unchecked exception.
+   *
+   * @param event
+   *          The event as returned by begin; may be null.
+   */
+  static void end(SessionOperationEvent event) {
+    if (event == null) {
+      return;
+    }
+    event.end();
+    if (event.shouldCommit()) {
+      if (event.result == null) {
+        event.result = "unchecked exception";
+      }
+      event.commit();
+    }
+  }
+
+}
@@ -0,0 +1,485 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of sessions of one token. Opening a session is a comparatively expensive call
+ * into the module, and most modules limit the number of sessions per token; a pool lets many
+ * threads share a fixed number of sessions. A thread borrows a session, uses it exclusively and
+ * returns it afterwards; the simplest way to do this is the execute method.
+ *
+ * <pre>
+ * <code>
+ *   SessionPool pool = new SessionPool(token, Token.SessionReadWriteBehavior.RO_SESSION, 8);
+ *   byte[] signatureValue = pool.execute(new SessionPool.SessionOperation&lt;byte[]&gt;() {
+ *     public byte[] execute(Session session) throws TokenException {
+ *       session.signInit(mechanism, privateKey);
+ *       return session.sign(data);
+ *     }
+ *   });
+ * </code>
+ * </pre>
+ *
+ * Waiting threads are served in arrival order. Sessions are opened lazily, up to the maximum
+ * number of sessions. The pool counts the borrowed sessions and the time threads waited for them;
+ * see SessionPoolMXBean. Objects of this class are thread-safe.
+ *
+ * @version 1.0
+ * @invariants (token_ != null) and (maxSessions_ > 0)
+ */
+public class SessionPool implements SessionPoolMXBean {
+
+  /**
+   * An operation that runs with a session borrowed from the pool.
+   *
+   * @version 1.0
+   */
+  public interface SessionOperation<T> {
+
+    /**
+     * Perform the operation. The session is used exclusively by the calling thread for the
+     * duration of this call. The implementation must not close the session and must leave no
+     * cryptographic operation active in it.
+     *
+     * @param session
+     *          The borrowed session.
+     * @return The result of the operation.
+     * @exception TokenException
+     *              If the operation failed.
+     */
+    public T execute(Session session) throws TokenException;
+
+  }
+
+  /**
+   * The token the sessions belong to.
+   */
+  protected Token token_;
+
+  /**
+   * True, to open read-write sessions.
+   */
+  protected boolean rwSession_;
+
+  /**
+   * The maximum number of sessions this pool opens.
+   */
+  protected int maxSessions_;
+
+  /**
+   * One permit per session which may be borrowed. Fair, to serve waiting threads in order.
+   */
+  protected final Semaphore permits_;
+
+  /**
+   * The open sessions which are currently not borrowed.
+   */
+  protected final LinkedBlockingDeque<Session> idleSessions_ = new LinkedBlockingDeque<Session>();
+
+  /**
+   * The number of sessions currently open, borrowed or idle.
+   */
+  protected final AtomicInteger openSessions_ = new AtomicInteger();
+
+  /**
+   * True, after close was called.
+   */
+  protected volatile boolean closed_;
+
+  /**
+   * The times threads waited for a permit.
+   */
+  protected final LatencyHistogram borrowWaitTimes_ = new LatencyHistogram();
+
+  /**
+   * Create a new pool for the given token.
+   *
+   * @param token
+   *          The token to open the sessions with.
+   * @param rwSession
+   *          Token.SessionReadWriteBehavior.RO_SESSION or
+   *          Token.SessionReadWriteBehavior.RW_SESSION.
+   * @param maxSessions
+   *          The maximum number of sessions open at a time. Must be positive.
+   * @preconditions (token != null) and (maxSessions > 0)
+   */
+  public SessionPool(Token token, boolean rwSession, int maxSessions) {
+    if (token == null) {
+      throw new NullPointerException("Argument \"token\" must not be null.");
+    }
+    if (maxSessions <= 0) {
+      throw new IllegalArgumentException("Argument \"maxSessions\" must be positive.");
+    }
+    token_ = token;
+    rwSession_ = rwSession;
+    maxSessions_ = maxSessions;
+    permits_ = new Semaphore(maxSessions, true);
+  }
+
+  /**
+   * Get the token of this pool.
+   *
+   * @return The token.
+   * @postconditions (result != null)
+   */
+  public Token getToken() {
+    return token_;
+  }
+
+  /**
+   * Get the maximum number of sessions of this pool.
+   *
+   * @return The maximum number of sessions.
+   */
+  public int getMaxSessions() {
+    return maxSessions_;
+  }
+
+  /**
+   * Get the number of sessions currently open.
+   *
+   * @return The number of borrowed and idle sessions.
+   */
+  public int getOpenSessionCount() {
+    return openSessions_.get();
+  }
+
+  /**
+   * Get the number of open sessions which are not borrowed.
+   *
+   * @return The number of idle sessions.
+   */
+  public int getIdleSessionCount() {
+    return idleSessions_.size();
+  }
+
+  /**
+   * Get an estimate of the number of threads waiting for a session.
+   *
+   * @return The number of waiting threads.
+   */
+  public int getWaitingThreadCount() {
+    return permits_.getQueueLength();
+  }
+
+  /**
+   * Get the number of sessions currently borrowed.
+   *
+   * @return The number of borrowed sessions.
+   */
+  public int getBorrowedSessionCount() {
+    return maxSessions_ - permits_.availablePermits();
+  }
+
+  /**
+   * Get the number of successful borrow calls since this pool was created.
+   *
+   * @return The number of borrowed sessions.
+   */
+  public long getBorrowCount() {
+    return borrowWaitTimes_.getCount();
+  }
+
+  /**
+   * Get the median time threads waited for a session.
+   *
+   * @return The approximated median in microseconds.
+   */
+  public long getBorrowWaitP50Micros() {
+    return borrowWaitTimes_.getPercentileNanos(0.5) / 1000L;
+  }
+
+  /**
+   * Get the 90th percentile of the time threads waited for a session.
+   *
+   * @return The approximated percentile in microseconds.
+   */
+  public long getBorrowWaitP90Micros() {
+    return borrowWaitTimes_.getPercentileNanos(0.9) / 1000L;
+  }
+
+  /**
+   * Get the 99th percentile of the time threads waited for a session.
+   *
+   * @return The approximated percentile in microseconds.
+   */
+  public long getBorrowWaitP99Micros() {
+    return borrowWaitTimes_.getPercentileNanos(0.99) / 1000L;
+  }
+
+  /**
+   * Borrow a session, waiting until one is available.
+   *
+   * @return The borrowed session. It must be given back with returnSession or invalidateSession.
+   * @exception TokenException
+   *              If the pool is closed, the thread was interrupted or opening a session failed.
+   * @postconditions (result != null)
+   */
+  public Session borrowSession() throws TokenException {
+    checkOpen();
+    long start = System.nanoTime();
+    try {
+      permits_.acquire();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new TokenException("Interrupted while waiting for a session.", ex);
+    }
+    borrowWaitTimes_.record(System.nanoTime() - start);
+
+    return takeSession();
+  }
+
+  /**
+   * Borrow a session, waiting at most the given time until one is available.
+   *
+   * @param timeout
+   *          The maximum time to wait.
+   * @param unit
+   *          The unit of the timeout.
+   * @return The borrowed session or null, if no session became available within the timeout.
+   * @exception TokenException
+   *              If the pool is closed, the thread was interrupted or opening a session failed.
+   */
+  public Session borrowSession(long timeout, TimeUnit unit) throws TokenException {
+    checkOpen();
+    long start = System.nanoTime();
+    try {
+      if (!permits_.tryAcquire(timeout, unit)) {
+        return null;
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new TokenException("Interrupted while waiting for a session.", ex);
+    }
+    borrowWaitTimes_.record(System.nanoTime() - start);
+
+    return takeSession();
+  }
+
+  /**
+   * Give a borrowed session back to the pool. The session must have no active cryptographic
+   * operation.
+   *
+   * @param session
+   *          The session as returned by borrowSession.
+   * @preconditions (session != null)
+   */
+  public void returnSession(Session session) {
+    if (closed_) {
+      closeQuietly(session);
+    } else {
+      idleSessions_.addFirst(session);
+      if (closed_ && idleSessions_.remove(session)) {
+        // close was called concurrently
+        closeQuietly(session);
+      }
+    }
+    permits_.release();
+  }
+
+  /**
+   * Give a borrowed session back to the pool after an operation that failed with the given error.
+   * The session is closed instead, if the error indicates that it is unusable; like execute does.
+   *
+   * @param session
+   *          The session as returned by borrowSession.
+   * @param failure
+   *          The error of the operation or null, if it succeeded.
+   * @preconditions (session != null)
+   */
+  public void returnSession(Session session, TokenException failure) {
+    if ((failure instanceof PKCS11Exception)
+        && isSessionFailure(((PKCS11Exception) failure).getErrorCode())) {
+      invalidateSession(session);
+    } else {
+      returnSession(session);
+    }
+  }
+
+  /**
+   * Close a borrowed session instead of giving it back; e.g. after it became unusable or its state
+   * is unknown. The next borrower gets a newly opened session.
+   *
+   * @param session
+   *          The session as returned by borrowSession.
+   * @preconditions (session != null)
+   */
+  public void invalidateSession(Session session) {
+    closeQuietly(session);
+    permits_.release();
+  }
+
+  /**
+   * Execute the given operation with a borrowed session. The session is returned after the
+   * operation; it is closed instead, if the operation failed with an error indicating that the
+   * session is unusable.
+   *
+   * @param operation
+   *          The operation to perform.
+   * @return The result of the operation.
+   * @exception TokenException
+   *              If no session could be borrowed or the operation failed.
+   * @preconditions (operation != null)
+   */
+  public <T> T execute(SessionOperation<T> operation) throws TokenException {
+    Session session = borrowSession();
+    boolean sessionValid = true;
+    try {
+      return operation.execute(session);
+    } catch (PKCS11Exception ex) {
+      sessionValid = !isSessionFailure(ex.getErrorCode());
+      throw ex;
+    } catch (RuntimeException ex) {
+      // the operation may have been left active
+      sessionValid = false;
+      throw ex;
+    } finally {
+      if (sessionValid) {
+        returnSession(session);
+      } else {
+        invalidateSession(session);
+      }
+    }
+  }
+
+  /**
+   * Close all idle sessions and refuse further borrowing. Sessions currently borrowed are closed
+   * when they are returned.
+   */
+  public void close() {
+    closed_ = true;
+    Session session;
+    while ((session = idleSessions_.pollFirst()) != null) {
+      closeQuietly(session);
+    }
+  }
+
+  /**
+   * Check, if the given error code means that the session can not be used any more.
+   *
+   * @param errorCode
+   *          The PKCS#11 error code.
+   * @return True, if the session should be discarded.
+   */
+  protected boolean isSessionFailure(long errorCode) {
+    return (errorCode == PKCS11Constants.CKR_SESSION_HANDLE_INVALID)
+        || (errorCode == PKCS11Constants.CKR_SESSION_CLOSED)
+        || (errorCode == PKCS11Constants.CKR_DEVICE_REMOVED)
+        || (errorCode == PKCS11Constants.CKR_DEVICE_ERROR)
+        || (errorCode == PKCS11Constants.CKR_TOKEN_NOT_PRESENT);
+  }
+
+  /**
+   * Take an idle session or open a new one. The caller must hold a permit; the permit is released
+   * again, if no session can be opened.
+   *
+   * @return The session.
+   * @exception TokenException
+   *              If opening a session failed.
+   */
+  protected Session takeSession() throws TokenException {
+    Session session = idleSessions_.pollFirst();
+    if (session != null) {
+      return session;
+    }
+    try {
+      session = openSession();
+    } catch (TokenException ex) {
+      permits_.release();
+      throw ex;
+    } catch (RuntimeException ex) {
+      permits_.release();
+      throw ex;
+    }
+    openSessions_.incrementAndGet();
+
+    return session;
+  }
+
+  /**
+   * Open a new session for this pool. Subclasses may override this method to prepare new sessions.
+   *
+   * @return The new session.
+   * @exception TokenException
+   *              If opening the session failed.
+   */
+  protected Session openSession() throws TokenException {
+    return token_.openSession(Token.SessionType.SERIAL_SESSION, rwSession_, null, null);
+  }
+
+  /**
+   * Close the given session and ignore errors.
+   *
+   * @param session
+   *          The session to close.
+   */
+  protected void closeQuietly(Session session) {
+    openSessions_.decrementAndGet();
+    try {
+      session.closeSession();
+    } catch (TokenException ex) {
+      // the session is discarded anyway
+    }
+  }
+
+  /**
+   * Throw an exception, if this pool is closed.
+   *
+   * @exception TokenException
+   *              If this pool is closed.
+   */
+  protected void checkOpen() throws TokenException {
+    if (closed_) {
+      throw new TokenException("The session pool is closed.");
+    }
+  }
+
+}
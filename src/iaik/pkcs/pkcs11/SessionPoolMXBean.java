@@ -0,0 +1,117 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+/**
+ * The management interface of a SessionPool. All values are taken from counters of the pool; reading
+ * them does not call the module.
+ *
+ * @see SessionPool
+ * @version 1.0
+ */
+public interface SessionPoolMXBean {
+
+  /**
+   * Get the maximum number of sessions of the pool.
+   *
+   * @return The maximum number of sessions.
+   */
+  public int getMaxSessions();
+
+  /**
+   * Get the number of sessions currently open.
+   *
+   * @return The number of borrowed and idle sessions.
+   */
+  public int getOpenSessionCount();
+
+  /**
+   * Get the number of open sessions which are not borrowed.
+   *
+   * @return The number of idle sessions.
+   */
+  public int getIdleSessionCount();
+
+  /**
+   * Get the number of sessions currently borrowed.
+   *
+   * @return The number of borrowed sessions.
+   */
+  public int getBorrowedSessionCount();
+
+  /**
+   * Get an estimate of the number of threads waiting for a session.
+   *
+   * @return The number of waiting threads.
+   */
+  public int getWaitingThreadCount();
+
+  /**
+   * Get the number of successful borrow calls since the pool was created.
+   *
+   * @return The number of borrowed sessions.
+   */
+  public long getBorrowCount();
+
+  /**
+   * Get the median time threads waited for a session.
+   *
+   * @return The approximated median in microseconds.
+   */
+  public long getBorrowWaitP50Micros();
+
+  /**
+   * Get the 90th percentile of the time threads waited for a session.
+   *
+   * @return The approximated percentile in microseconds.
+   */
+  public long getBorrowWaitP90Micros();
+
+  /**
+   * Get the 99th percentile of the time threads waited for a session.
+   *
+   * @return The approximated percentile in microseconds.
+   */
+  public long getBorrowWaitP99Micros();
+
+}
@@ -144,6 +144,23 @@ public class Token {
 
   }
 
+  /**
+   * The helpers shared by all Token objects of a slot. Slot.getToken and Module.getSlotList create
+   * new objects on each call; thus, the module keeps one state per slot ID. The fields are guarded
+   * by the lock of this object.
+   */
+  protected static class SharedState {
+
+    protected AdmissionController admissionController_;
+
+    protected ObjectResolver objectResolver_;
+
+    protected TokenInfoCache tokenInfoCache_;
+
+    protected CertificateIndex certificateIndex_;
+
+  }
+
   /**
    * The reference to the slot.
    */
@@ -160,6 +177,11 @@ public class Token {
    */
   private Boolean loginRequired_ = null;
 
+  /**
+   * The login manager of this token; created on demand.
+   */
+  protected LoginManager loginManager_;
+
   /**
    * The constructor that takes a reference to the module and the slot ID.
    * 
@@ -305,6 +327,12 @@ public class Token {
     char[] labelChars = Util.toPaddedCharArray(label, 32, ' ');
     slot_.getModule().getPKCS11Module().C_InitToken(slot_.getSlotID(), pin, labelChars,
         useUtf8Encoding_);
+    SharedState state = getSharedState();
+    synchronized (state) {
+      if (state.tokenInfoCache_ != null) {
+        state.tokenInfoCache_.invalidate();
+      }
+    }
   }
 
   /**
@@ -360,6 +388,105 @@ public class Token {
     slot_.getModule().getPKCS11Module().C_CloseAllSessions(slot_.getSlotID());
   }
 
+  /**
+   * Get the login manager of this token. It logs in once for all sessions of this token and
+   * performs context specific logins for keys that require them.
+   *
+   * @return The login manager of this token.
+   * @postconditions (result != null)
+   */
+  public synchronized LoginManager getLoginManager() {
+    if (loginManager_ == null) {
+      loginManager_ = new LoginManager(this);
+    }
+
+    return loginManager_;
+  }
+
+  /**
+   * Get the admission controller of this token. It limits the operations in flight on this token
+   * and admits waiting operations by priority class. All Token objects of the same slot and module
+   * share one controller.
+   *
+   * @return The admission controller of this token.
+   * @postconditions (result != null)
+   */
+  public AdmissionController getAdmissionController() {
+    SharedState state = getSharedState();
+    synchronized (state) {
+      if (state.admissionController_ == null) {
+        state.admissionController_ = new AdmissionController(this);
+      }
+
+      return state.admissionController_;
+    }
+  }
+
+  /**
+   * Get the state shared by all Token objects of this slot.
+   *
+   * @return The shared state.
+   * @postconditions (result != null)
+   */
+  protected SharedState getSharedState() {
+    return slot_.getModule().getTokenState(slot_.getSlotID());
+  }
+
+  /**
+   * Get the object resolver of this token. It caches the objects found by label or ID. All Token
+   * objects of the same slot and module share one resolver.
+   *
+   * @return The object resolver of this token.
+   * @postconditions (result != null)
+   */
+  public ObjectResolver getObjectResolver() {
+    SharedState state = getSharedState();
+    synchronized (state) {
+      if (state.objectResolver_ == null) {
+        state.objectResolver_ = new ObjectResolver(this);
+      }
+
+      return state.objectResolver_;
+    }
+  }
+
+  /**
+   * Get the token information cache of this token. Use it instead of getTokenInfo, if the
+   * information is read often; e.g. to monitor the free memory. All Token objects of the same slot
+   * and module share one cache.
+   *
+   * @return The token information cache of this token.
+   * @postconditions (result != null)
+   */
+  public TokenInfoCache getTokenInfoCache() {
+    SharedState state = getSharedState();
+    synchronized (state) {
+      if (state.tokenInfoCache_ == null) {
+        state.tokenInfoCache_ = new TokenInfoCache(this);
+      }
+
+      return state.tokenInfoCache_;
+    }
+  }
+
+  /**
+   * Get the certificate index of this token. The index is empty until it is loaded. All Token
+   * objects of the same slot and module share one index.
+   *
+   * @return The certificate index of this token.
+   * @postconditions (result != null)
+   */
+  public CertificateIndex getCertificateIndex() {
+    SharedState state = getSharedState();
+    synchronized (state) {
+      if (state.certificateIndex_ == null) {
+        state.certificateIndex_ = new CertificateIndex(this);
+      }
+
+      return state.certificateIndex_;
+    }
+  }
+
   public boolean isLoginRequired() throws TokenException {
       if (loginRequired_ == null) {
         loginRequired_ = Boolean.valueOf(getTokenInfo().isLoginRequired());
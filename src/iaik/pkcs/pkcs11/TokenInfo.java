@@ -273,17 +273,59 @@ public class TokenInfo implements Cloneable {
     model_ = new String(ckTokenInfo.model);
     serialNumber_ = new String(ckTokenInfo.serialNumber);
     maxSessionCount_ = ckTokenInfo.ulMaxSessionCount;
-    sessionCount_ = ckTokenInfo.ulSessionCount;
     maxRwSessionCount_ = ckTokenInfo.ulMaxRwSessionCount;
-    rwSessionCount_ = ckTokenInfo.ulRwSessionCount;
     maxPinLen_ = ckTokenInfo.ulMaxPinLen;
     minPinLen_ = ckTokenInfo.ulMinPinLen;
     totalPublicMemory_ = ckTokenInfo.ulTotalPublicMemory;
-    freePublicMemory_ = ckTokenInfo.ulFreePublicMemory;
     totalPrivateMemory_ = ckTokenInfo.ulTotalPrivateMemory;
-    freePrivateMemory_ = ckTokenInfo.ulFreePrivateMemory;
     hardwareVersion_ = new Version(ckTokenInfo.hardwareVersion);
     firmwareVersion_ = new Version(ckTokenInfo.firmwareVersion);
+    setDynamicFields(ckTokenInfo);
+  }
+
+  /**
+   * Constructor taking a CK_TOKEN_INFO object and a token information with the static fields. The
+   * label, manufacturer, model, serial number, limits and versions are taken from the static
+   * information; only the counters, free memory, time and flags are taken from the CK_TOKEN_INFO.
+   * 
+   * @param ckTokenInfo
+   *          A current CK_TOKEN_INFO object of the same token.
+   * @param staticInfo
+   *          A token information of the same token.
+   * @preconditions (ckTokenInfo != null) and (staticInfo != null)
+   */
+  protected TokenInfo(CK_TOKEN_INFO ckTokenInfo, TokenInfo staticInfo) {
+    if (ckTokenInfo == null) {
+      throw new NullPointerException("Argument \"ckTokenInfo\" must not be null.");
+    }
+    label_ = staticInfo.label_;
+    manufacturerID_ = staticInfo.manufacturerID_;
+    model_ = staticInfo.model_;
+    serialNumber_ = staticInfo.serialNumber_;
+    maxSessionCount_ = staticInfo.maxSessionCount_;
+    maxRwSessionCount_ = staticInfo.maxRwSessionCount_;
+    maxPinLen_ = staticInfo.maxPinLen_;
+    minPinLen_ = staticInfo.minPinLen_;
+    totalPublicMemory_ = staticInfo.totalPublicMemory_;
+    totalPrivateMemory_ = staticInfo.totalPrivateMemory_;
+    hardwareVersion_ = staticInfo.hardwareVersion_;
+    firmwareVersion_ = staticInfo.firmwareVersion_;
+    setDynamicFields(ckTokenInfo);
+  }
+
+  /**
+   * Set the fields that change while the token is in use; i.e. the session counters, the free
+   * memory, the time and the flags.
+   * 
+   * @param ckTokenInfo
+   *          The CK_TOKEN_INFO object as returned by C_GetTokenInfo.
+   * @preconditions (ckTokenInfo != null)
+   */
+  protected void setDynamicFields(CK_TOKEN_INFO ckTokenInfo) {
+    sessionCount_ = ckTokenInfo.ulSessionCount;
+    rwSessionCount_ = ckTokenInfo.ulRwSessionCount;
+    freePublicMemory_ = ckTokenInfo.ulFreePublicMemory;
+    freePrivateMemory_ = ckTokenInfo.ulFreePrivateMemory;
     time_ = Util.parseTime(ckTokenInfo.utcTime);
     rng_ = (ckTokenInfo.flags & PKCS11Constants.CKF_RNG) != 0L;
     writeProtected_ = (ckTokenInfo.flags & PKCS11Constants.CKF_WRITE_PROTECTED) != 0L;
@@ -0,0 +1,228 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.wrapper.CK_TOKEN_INFO;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches the token information of a token. The static part, i.e. label, manufacturer, model,
+ * serial number, limits and versions, is parsed once and kept until invalidate is called. The
+ * dynamic part, i.e. session counters, free memory, time and flags, is read again when it is
+ * older than the time to live. Only one thread reads the information at a time; while it does,
+ * other threads get the previous information instead of waiting or issuing a call of their own.
+ *
+ * <pre>
+ * <code>
+ *   TokenInfoCache tokenInfoCache = token.getTokenInfoCache();
+ *   tokenInfoCache.setTimeToLive(5000);
+ *   long freeMemory = tokenInfoCache.getTokenInfo().getFreePrivateMemory();
+ * </code>
+ * </pre>
+ *
+ * The returned TokenInfo objects are immutable and may be shared by threads.
+ *
+ * @see Token#getTokenInfoCache()
+ * @version 1.0
+ * @invariants (token_ != null)
+ */
+public class TokenInfoCache {
+
+  /**
+   * The token whose information this cache holds.
+   */
+  protected Token token_;
+
+  /**
+   * The maximum age of the dynamic part in milliseconds.
+   */
+  protected volatile long timeToLiveMillis_ = 1000L;
+
+  /**
+   * The token information whose static part is reused or null, if none was read yet.
+   */
+  protected volatile TokenInfo staticInfo_;
+
+  /**
+   * The current token information or null, if none was read yet.
+   */
+  protected volatile TokenInfo tokenInfo_;
+
+  /**
+   * The time the current token information was read, as of System.nanoTime().
+   */
+  protected volatile long readTime_;
+
+  /**
+   * Held by the thread reading the token information.
+   */
+  protected final ReentrantLock readLock_ = new ReentrantLock();
+
+  /**
+   * Create a new cache for the given token.
+   *
+   * @param token
+   *          The token.
+   * @preconditions (token != null)
+   */
+  protected TokenInfoCache(Token token) {
+    if (token == null) {
+      throw new NullPointerException("Argument \"token\" must not be null.");
+    }
+    token_ = token;
+  }
+
+  /**
+   * Set the time to live of the dynamic part.
+   *
+   * @param timeToLiveMillis
+   *          The maximum age in milliseconds; 0 reads the information on each call, except while
+   *          another thread reads it.
+   * @preconditions (timeToLiveMillis >= 0)
+   */
+  public void setTimeToLive(long timeToLiveMillis) {
+    if (timeToLiveMillis < 0L) {
+      throw new IllegalArgumentException("Argument \"timeToLiveMillis\" must not be negative.");
+    }
+    timeToLiveMillis_ = timeToLiveMillis;
+  }
+
+  /**
+   * Get the time to live of the dynamic part.
+   *
+   * @return The maximum age in milliseconds.
+   */
+  public long getTimeToLive() {
+    return timeToLiveMillis_;
+  }
+
+  /**
+   * Get the token information. It is read from the token, if the cached information is older
+   * than the time to live and no other thread is reading it at the moment.
+   *
+   * @return The token information.
+   * @exception TokenException
+   *              If reading the information fails.
+   * @postconditions (result != null)
+   */
+  public TokenInfo getTokenInfo() throws TokenException {
+    TokenInfo tokenInfo = tokenInfo_;
+    if ((tokenInfo != null)
+        && (System.nanoTime() - readTime_ < timeToLiveMillis_ * 1000000L)) {
+      return tokenInfo;
+    }
+    if (tokenInfo != null) {
+      if (!readLock_.tryLock()) {
+        // another thread reads it right now
+        return tokenInfo;
+      }
+    } else {
+      readLock_.lock();
+    }
+    try {
+      if ((tokenInfo_ != tokenInfo) && (tokenInfo_ != null)) {
+        // read by another thread meanwhile
+        return tokenInfo_;
+      }
+      return read();
+    } finally {
+      readLock_.unlock();
+    }
+  }
+
+  /**
+   * Read the token information now, regardless of its age.
+   *
+   * @return The token information.
+   * @exception TokenException
+   *              If reading the information fails.
+   * @postconditions (result != null)
+   */
+  public TokenInfo refresh() throws TokenException {
+    readLock_.lock();
+    try {
+      return read();
+    } finally {
+      readLock_.unlock();
+    }
+  }
+
+  /**
+   * Forget the cached information including the static part; e.g. after the token was
+   * initialized with a new label.
+   */
+  public void invalidate() {
+    readLock_.lock();
+    try {
+      staticInfo_ = null;
+      tokenInfo_ = null;
+    } finally {
+      readLock_.unlock();
+    }
+  }
+
+  /**
+   * Read the token information. The caller must hold the read lock.
+   *
+   * @return The token information.
+   * @exception TokenException
+   *              If reading the information fails.
+   */
+  protected TokenInfo read() throws TokenException {
+    CK_TOKEN_INFO ckTokenInfo = token_.getSlot().getModule().getPKCS11Module().C_GetTokenInfo(
+        token_.getSlot().getSlotID());
+    TokenInfo tokenInfo;
+    if (staticInfo_ == null) {
+      tokenInfo = new TokenInfo(ckTokenInfo);
+      staticInfo_ = tokenInfo;
+    } else {
+      tokenInfo = new TokenInfo(ckTokenInfo, staticInfo_);
+    }
+    readTime_ = System.nanoTime();
+    tokenInfo_ = tokenInfo;
+
+    return tokenInfo;
+  }
+
+}
@@ -0,0 +1,162 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.wrapper.CK_TOKEN_INFO;
+import iaik.pkcs.pkcs11.wrapper.CallStatisticsInterceptor;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+/**
+ * The management bean of a token. It is created and registered by ModuleMonitor.registerToken.
+ *
+ * @see ModuleMonitor
+ * @version 1.0
+ * @invariants (token_ != null) and (statistics_ != null)
+ */
+public class TokenMonitor implements TokenMonitorMXBean {
+
+  /**
+   * The monitored token.
+   */
+  protected Token token_;
+
+  /**
+   * The slot ID of the token.
+   */
+  protected long slotId_;
+
+  /**
+   * The statistics of the module of the token.
+   */
+  protected CallStatisticsInterceptor statistics_;
+
+  /**
+   * Create a new monitor for the given token.
+   *
+   * @param token
+   *          The token.
+   * @param statistics
+   *          The statistics interceptor installed on the module of the token.
+   * @preconditions (token != null) and (statistics != null)
+   */
+  protected TokenMonitor(Token token, CallStatisticsInterceptor statistics) {
+    token_ = token;
+    slotId_ = token.getSlot().getSlotID();
+    statistics_ = statistics;
+  }
+
+  public long getSlotId() {
+    return slotId_;
+  }
+
+  public String getLabel() {
+    CK_TOKEN_INFO tokenInfo = statistics_.getLastTokenInfo(slotId_);
+    return (tokenInfo != null) ? new String(tokenInfo.label).trim() : null;
+  }
+
+  public int getOpenSessionCount() {
+    return statistics_.getOpenSessionCount(slotId_, false);
+  }
+
+  public int getOpenRwSessionCount() {
+    return statistics_.getOpenSessionCount(slotId_, true);
+  }
+
+  public long getMaxSessionCount() {
+    CK_TOKEN_INFO tokenInfo = statistics_.getLastTokenInfo(slotId_);
+    return (tokenInfo != null) ? toValue(tokenInfo.ulMaxSessionCount) : -1L;
+  }
+
+  public long getMaxRwSessionCount() {
+    CK_TOKEN_INFO tokenInfo = statistics_.getLastTokenInfo(slotId_);
+    return (tokenInfo != null) ? toValue(tokenInfo.ulMaxRwSessionCount) : -1L;
+  }
+
+  public int getSessionUtilizationPercent() {
+    long maxSessionCount = getMaxSessionCount();
+    if (maxSessionCount <= 0L) {
+      return -1;
+    }
+
+    return (int) (100L * getOpenSessionCount() / maxSessionCount);
+  }
+
+  public boolean isLoggedIn() {
+    return statistics_.isLoggedIn(slotId_);
+  }
+
+  public long getFreePublicMemory() {
+    CK_TOKEN_INFO tokenInfo = statistics_.getLastTokenInfo(slotId_);
+    return (tokenInfo != null) ? toValue(tokenInfo.ulFreePublicMemory) : -1L;
+  }
+
+  public long getFreePrivateMemory() {
+    CK_TOKEN_INFO tokenInfo = statistics_.getLastTokenInfo(slotId_);
+    return (tokenInfo != null) ? toValue(tokenInfo.ulFreePrivateMemory) : -1L;
+  }
+
+  public long getTokenInfoAgeMillis() {
+    long time = statistics_.getLastTokenInfoTime(slotId_);
+    return (time != 0L) ? System.currentTimeMillis() - time : -1L;
+  }
+
+  public void refreshTokenInfo() {
+    try {
+      token_.getTokenInfo();
+    } catch (TokenException ex) {
+      throw new TokenRuntimeException(ex);
+    }
+  }
+
+  /**
+   * Map CK_UNAVAILABLE_INFORMATION to -1.
+   *
+   * @param value
+   *          A value of the token information.
+   * @return The value or -1, if the token does not provide it.
+   */
+  protected static long toValue(long value) {
+    return (value == PKCS11Constants.CK_UNAVAILABLE_INFORMATION) ? -1L : value;
+  }
+
+}
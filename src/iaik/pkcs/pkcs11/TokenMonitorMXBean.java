@@ -0,0 +1,137 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+/**
+ * The management interface of a token. The session and login values are tracked from the calls
+ * into the module; the limits and the memory values are those of the token information read last,
+ * see getTokenInfoAgeMillis and refreshTokenInfo.
+ *
+ * @see ModuleMonitor
+ * @version 1.0
+ */
+public interface TokenMonitorMXBean {
+
+  /**
+   * Get the ID of the slot of the token.
+   *
+   * @return The slot ID.
+   */
+  public long getSlotId();
+
+  /**
+   * Get the label of the token.
+   *
+   * @return The label or null, if no token information was read yet.
+   */
+  public String getLabel();
+
+  /**
+   * Get the number of sessions this application has open with the token.
+   *
+   * @return The number of sessions.
+   */
+  public int getOpenSessionCount();
+
+  /**
+   * Get the number of read-write sessions this application has open with the token.
+   *
+   * @return The number of read-write sessions.
+   */
+  public int getOpenRwSessionCount();
+
+  /**
+   * Get the maximum number of sessions the token allows.
+   *
+   * @return The maximum number, 0 for effectively infinite or -1, if unknown.
+   */
+  public long getMaxSessionCount();
+
+  /**
+   * Get the maximum number of read-write sessions the token allows.
+   *
+   * @return The maximum number, 0 for effectively infinite or -1, if unknown.
+   */
+  public long getMaxRwSessionCount();
+
+  /**
+   * Get the open sessions in percent of the maximum number of sessions.
+   *
+   * @return The percentage or -1, if the token has no known limit.
+   */
+  public int getSessionUtilizationPercent();
+
+  /**
+   * Check, if the token is logged in.
+   *
+   * @return True, if logged in.
+   */
+  public boolean isLoggedIn();
+
+  /**
+   * Get the free public memory of the token.
+   *
+   * @return The number of bytes or -1, if unknown.
+   */
+  public long getFreePublicMemory();
+
+  /**
+   * Get the free private memory of the token.
+   *
+   * @return The number of bytes or -1, if unknown.
+   */
+  public long getFreePrivateMemory();
+
+  /**
+   * Get the age of the token information the limits and memory values are taken from.
+   *
+   * @return The age in milliseconds or -1, if no token information was read yet.
+   */
+  public long getTokenInfoAgeMillis();
+
+  /**
+   * Read the token information from the token now.
+   */
+  public void refreshTokenInfo();
+
+}
@@ -44,6 +44,8 @@ package iaik.pkcs.pkcs11.objects;
 
 import iaik.pkcs.pkcs11.wrapper.Functions;
 
+import java.math.BigInteger;
+
 /**
  * Objects of this class represent a byte-array attribute of a PKCS#11 object as specified by
  * PKCS#11.
@@ -54,6 +56,38 @@ import iaik.pkcs.pkcs11.wrapper.Functions;
  */
 public class ByteArrayAttribute extends Attribute {
 
+  /**
+   * A value decoded from the byte-array value of this attribute.
+   */
+  protected static class Decoded {
+
+    /**
+     * The byte-array value the value was decoded from.
+     */
+    protected final byte[] source_;
+
+    /**
+     * The decoded value.
+     */
+    protected final java.lang.Object value_;
+
+    protected Decoded(byte[] source, java.lang.Object value) {
+      source_ = source;
+      value_ = value;
+    }
+
+  }
+
+  /**
+   * The memoized unsigned integer value or null.
+   */
+  protected Decoded bigIntegerValue_;
+
+  /**
+   * The memoized value set with setDecodedValue or null.
+   */
+  protected Decoded decodedValue_;
+
   /**
    * Default constructor - only for internal use in AttributeArrayAttribute.getValueString().
    */
@@ -94,6 +128,55 @@ public class ByteArrayAttribute extends Attribute {
     return (byte[]) ckAttribute_.pValue;
   }
 
+  /**
+   * Get the byte-array value of this attribute as unsigned big-endian integer; e.g. of CKA_MODULUS.
+   * The integer is computed once and returned again, as long as the value of this attribute is the
+   * same byte array.
+   * 
+   * @return The integer value or null, if the value is null.
+   */
+  public BigInteger getBigIntegerValue() {
+    byte[] value = (byte[]) ckAttribute_.pValue;
+    if (value == null) {
+      return null;
+    }
+    Decoded decoded = bigIntegerValue_;
+    if ((decoded != null) && (decoded.source_ == value)) {
+      return (BigInteger) decoded.value_;
+    }
+
+    BigInteger integer = new BigInteger(1, value);
+    bigIntegerValue_ = new Decoded(value, integer);
+
+    return integer;
+  }
+
+  /**
+   * Get the value memoized with setDecodedValue. The value is only returned, as long as the value
+   * of this attribute is the same byte array as when it was set.
+   * 
+   * @return The decoded value or null.
+   */
+  public java.lang.Object getDecodedValue() {
+    Decoded decoded = decodedValue_;
+    if ((decoded != null) && (decoded.source_ == ckAttribute_.pValue)) {
+      return decoded.value_;
+    }
+
+    return null;
+  }
+
+  /**
+   * Memoize a value decoded from the current byte-array value of this attribute; e.g. the JDK
+   * representation of the EC parameters.
+   * 
+   * @param value
+   *          The decoded value.
+   */
+  public void setDecodedValue(java.lang.Object value) {
+    decodedValue_ = new Decoded((byte[]) ckAttribute_.pValue, value);
+  }
+
   /**
    * Get a string representation of the value of this attribute.
    * 
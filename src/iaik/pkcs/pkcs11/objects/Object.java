@@ -287,6 +287,56 @@ public class Object implements Cloneable {
     return newObject;
   }
 
+  /**
+   * Read only the given attributes of the object with the given handle into the given object,
+   * with one C_GetAttributeValue call. Unlike getInstance, this method reads no other attributes;
+   * use it, if the application needs only a few attributes of many objects. Types for which the
+   * given object has no attribute are ignored. Attributes that the token object does not have or
+   * that are sensitive are marked not present. The object handle of the given object is set to the
+   * given handle.
+   * 
+   * @param session
+   *          The session to use for reading the attributes.
+   * @param objectHandle
+   *          The handle of the object which contains the attributes.
+   * @param object
+   *          The object receiving the attribute values; e.g. a new SecretKey.
+   * @param types
+   *          The types of the attributes to read.
+   * @exception PKCS11Exception
+   *              If getting the attributes failed.
+   * @preconditions (session != null) and (object != null) and (types != null)
+   */
+  public static void readAttributes(Session session, long objectHandle, Object object,
+      long[] types) throws PKCS11Exception {
+    if (object == null) {
+      throw new NullPointerException("Argument \"object\" must not be null.");
+    }
+    if (types == null) {
+      throw new NullPointerException("Argument \"types\" must not be null.");
+    }
+
+    Vector<Attribute> attributes = new Vector<Attribute>();
+    for (int i = 0; i < types.length; i++) {
+      Attribute attribute = object.getAttribute(types[i]);
+      if (attribute != null) {
+        attributes.addElement(attribute);
+      }
+    }
+    Attribute[] attributeArray = new Attribute[attributes.size()];
+    attributes.copyInto(attributeArray);
+    try {
+      getAttributeValues(session, objectHandle, attributeArray);
+    } catch (PKCS11Exception ex) {
+      if ((ex.getErrorCode() != PKCS11Constants.CKR_ATTRIBUTE_TYPE_INVALID)
+          && (ex.getErrorCode() != PKCS11Constants.CKR_ATTRIBUTE_SENSITIVE)) {
+        throw ex;
+      }
+      // the values read are set; the other attributes are marked not present
+    }
+    object.setObjectHandle(objectHandle);
+  }
+
   /**
    * Try to create an object which has no or an unknown object class attribute. This implementation
    * will try to use a vendor defined object builder, if such has been set. If this is impossible or
@@ -61,7 +61,8 @@ abstract public class RSAPkcsParameters implements Parameters {
 
   /**
    * This interface defines the available message generation function types as defined by PKCS#11:
-   * CKG_MGF1_SHA1, CKG_MGF1_SHA256, CKG_MGF1_SHA384 and CKG_MGF1_SHA512.
+   * CKG_MGF1_SHA1, CKG_MGF1_SHA224, CKG_MGF1_SHA256, CKG_MGF1_SHA384, CKG_MGF1_SHA512 and the
+   * CKG_MGF1_SHA3 variants.
    * 
    * @author Karl Scheibelhofer
    * @version 1.0
@@ -89,6 +90,31 @@ abstract public class RSAPkcsParameters implements Parameters {
      */
     static public final long SHA512 = PKCS11Constants.CKG_MGF1_SHA512;
 
+    /**
+     * The indentifier for CKG_MGF1_SHA224.
+     */
+    static public final long SHA224 = PKCS11Constants.CKG_MGF1_SHA224;
+
+    /**
+     * The indentifier for CKG_MGF1_SHA3_224.
+     */
+    static public final long SHA3_224 = PKCS11Constants.CKG_MGF1_SHA3_224;
+
+    /**
+     * The indentifier for CKG_MGF1_SHA3_256.
+     */
+    static public final long SHA3_256 = PKCS11Constants.CKG_MGF1_SHA3_256;
+
+    /**
+     * The indentifier for CKG_MGF1_SHA3_384.
+     */
+    static public final long SHA3_384 = PKCS11Constants.CKG_MGF1_SHA3_384;
+
+    /**
+     * The indentifier for CKG_MGF1_SHA3_512.
+     */
+    static public final long SHA3_512 = PKCS11Constants.CKG_MGF1_SHA3_512;
+
   }
 
   /**
@@ -117,10 +143,8 @@ abstract public class RSAPkcsParameters implements Parameters {
     if (hashAlgorithm == null) {
       throw new NullPointerException("Argument \"hashAlgorithm\" must not be null.");
     }
-    if ((maskGenerationFunction != MessageGenerationFunctionType.SHA1)
-        && (maskGenerationFunction != MessageGenerationFunctionType.SHA256)
-        && (maskGenerationFunction != MessageGenerationFunctionType.SHA384)
-        && (maskGenerationFunction != MessageGenerationFunctionType.SHA512)) {
+    if ((maskGenerationFunction < MessageGenerationFunctionType.SHA1)
+        || (maskGenerationFunction > MessageGenerationFunctionType.SHA3_512)) {
       throw new IllegalArgumentException(
           "Illegal value for argument\"maskGenerationFunction\": "
               + Functions.toHexString(maskGenerationFunction));
@@ -197,10 +221,8 @@ abstract public class RSAPkcsParameters implements Parameters {
    * 
    */
   public void setMaskGenerationFunction(long maskGenerationFunction) {
-    if ((maskGenerationFunction != MessageGenerationFunctionType.SHA1)
-        && (maskGenerationFunction != MessageGenerationFunctionType.SHA256)
-        && (maskGenerationFunction != MessageGenerationFunctionType.SHA384)
-        && (maskGenerationFunction != MessageGenerationFunctionType.SHA512)) {
+    if ((maskGenerationFunction < MessageGenerationFunctionType.SHA1)
+        || (maskGenerationFunction > MessageGenerationFunctionType.SHA3_512)) {
       throw new IllegalArgumentException(
           "Illegal value for argument\"maskGenerationFunction\": "
               + Functions.toHexString(maskGenerationFunction));
@@ -232,6 +254,16 @@ abstract public class RSAPkcsParameters implements Parameters {
       buffer.append("SHA-384");
     } else if (maskGenerationFunction_ == MessageGenerationFunctionType.SHA512) {
       buffer.append("SHA-512");
+    } else if (maskGenerationFunction_ == MessageGenerationFunctionType.SHA224) {
+      buffer.append("SHA-224");
+    } else if (maskGenerationFunction_ == MessageGenerationFunctionType.SHA3_224) {
+      buffer.append("SHA3-224");
+    } else if (maskGenerationFunction_ == MessageGenerationFunctionType.SHA3_256) {
+      buffer.append("SHA3-256");
+    } else if (maskGenerationFunction_ == MessageGenerationFunctionType.SHA3_384) {
+      buffer.append("SHA3-384");
+    } else if (maskGenerationFunction_ == MessageGenerationFunctionType.SHA3_512) {
+      buffer.append("SHA3-512");
     } else {
       buffer.append("<unknown>");
     }
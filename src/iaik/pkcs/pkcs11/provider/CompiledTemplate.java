@@ -0,0 +1,244 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.Object;
+import iaik.pkcs.pkcs11.wrapper.CK_ATTRIBUTE;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+/**
+ * A key generation template whose set attributes are converted to CK_ATTRIBUTE arrays once. The
+ * template objects are kept for creating the objects of the generated keys without reading their
+ * attributes from the token. Compiled templates are immutable and shared by all threads; the
+ * provider caches them per generator class and parameter set, since subclasses of the generators
+ * may create other templates.
+ *
+ * @see PKCS11Provider#getCompiledTemplate(String)
+ * @version 1.0
+ * @invariants (mechanism_ != null) and (keyTemplate_ != null)
+ */
+public class CompiledTemplate {
+
+  /**
+   * The key generation mechanism.
+   */
+  protected Mechanism mechanism_;
+
+  /**
+   * The template of the public key or null for secret keys.
+   */
+  protected Object publicKeyTemplate_;
+
+  /**
+   * The template of the private key or secret key.
+   */
+  protected Object keyTemplate_;
+
+  /**
+   * The set attributes of publicKeyTemplate_ or null.
+   */
+  protected CK_ATTRIBUTE[] publicKeyAttributes_;
+
+  /**
+   * The set attributes of keyTemplate_.
+   */
+  protected CK_ATTRIBUTE[] keyAttributes_;
+
+  /**
+   * The JCA parameters the template was created for or null.
+   */
+  protected AlgorithmParameterSpec parameterSpec_;
+
+  /**
+   * True, if the public key template sets CKA_TOKEN to true.
+   */
+  protected boolean publicKeyOnToken_;
+
+  /**
+   * True, if the private key or secret key template sets CKA_TOKEN to true.
+   */
+  protected boolean keyOnToken_;
+
+  /**
+   * Compile the given templates.
+   *
+   * @param mechanism
+   *          The key generation mechanism.
+   * @param publicKeyTemplate
+   *          The template of the public key or null for secret keys.
+   * @param keyTemplate
+   *          The template of the private key or secret key.
+   * @param parameterSpec
+   *          The JCA parameters the template was created for or null.
+   * @exception PKCS11Exception
+   *              If converting the attributes fails.
+   * @preconditions (mechanism != null) and (keyTemplate != null)
+   */
+  public CompiledTemplate(Mechanism mechanism, Object publicKeyTemplate, Object keyTemplate,
+      AlgorithmParameterSpec parameterSpec) throws PKCS11Exception {
+    if (mechanism == null) {
+      throw new NullPointerException("Argument \"mechanism\" must not be null.");
+    }
+    if (keyTemplate == null) {
+      throw new NullPointerException("Argument \"keyTemplate\" must not be null.");
+    }
+    mechanism_ = mechanism;
+    publicKeyTemplate_ = publicKeyTemplate;
+    keyTemplate_ = keyTemplate;
+    publicKeyAttributes_ = Object.getSetAttributes(publicKeyTemplate);
+    keyAttributes_ = Object.getSetAttributes(keyTemplate);
+    parameterSpec_ = parameterSpec;
+    publicKeyOnToken_ = isTokenObject(publicKeyTemplate);
+    keyOnToken_ = isTokenObject(keyTemplate);
+  }
+
+  /**
+   * Check, if the given template sets CKA_TOKEN to true.
+   *
+   * @param template
+   *          The template or null.
+   * @return True, if objects created with the template are token objects.
+   */
+  protected static boolean isTokenObject(Object template) {
+    Attribute token = (template != null) ? template.getAttribute(PKCS11Constants.CKA_TOKEN)
+        : null;
+
+    return (token instanceof BooleanAttribute) && token.isPresent()
+        && Boolean.TRUE.equals(((BooleanAttribute) token).getBooleanValue());
+  }
+
+  /**
+   * Get the key generation mechanism.
+   *
+   * @return The mechanism.
+   * @postconditions (result != null)
+   */
+  public Mechanism getMechanism() {
+    return mechanism_;
+  }
+
+  /**
+   * Get the compiled attributes of the public key. The array must not be modified.
+   *
+   * @return The attributes or null for secret keys.
+   */
+  public CK_ATTRIBUTE[] getPublicKeyAttributes() {
+    return publicKeyAttributes_;
+  }
+
+  /**
+   * Get the compiled attributes of the private key or secret key. The array must not be modified.
+   *
+   * @return The attributes.
+   */
+  public CK_ATTRIBUTE[] getKeyAttributes() {
+    return keyAttributes_;
+  }
+
+  /**
+   * Check, if the generated public key is a token object.
+   *
+   * @return True, if the public key template sets CKA_TOKEN to true.
+   */
+  public boolean isPublicKeyOnToken() {
+    return publicKeyOnToken_;
+  }
+
+  /**
+   * Check, if the generated private key or secret key is a token object.
+   *
+   * @return True, if the key template sets CKA_TOKEN to true.
+   */
+  public boolean isKeyOnToken() {
+    return keyOnToken_;
+  }
+
+  /**
+   * Get the JCA parameters the template was created for.
+   *
+   * @return The parameters or null.
+   */
+  public AlgorithmParameterSpec getParameterSpec() {
+    return parameterSpec_;
+  }
+
+  /**
+   * Create the object of a generated public key. It has the attributes of the template and the
+   * given handle.
+   *
+   * @param objectHandle
+   *          The handle of the generated key.
+   * @return The new object.
+   * @preconditions (publicKeyTemplate_ != null)
+   * @postconditions (result != null)
+   */
+  public Object newPublicKeyObject(long objectHandle) {
+    Object object = (Object) publicKeyTemplate_.clone();
+    object.setObjectHandle(objectHandle);
+
+    return object;
+  }
+
+  /**
+   * Create the object of a generated private key or secret key. It has the attributes of the
+   * template and the given handle.
+   *
+   * @param objectHandle
+   *          The handle of the generated key.
+   * @return The new object.
+   * @postconditions (result != null)
+   */
+  public Object newKeyObject(long objectHandle) {
+    Object object = (Object) keyTemplate_.clone();
+    object.setObjectHandle(objectHandle);
+
+    return object;
+  }
+
+}
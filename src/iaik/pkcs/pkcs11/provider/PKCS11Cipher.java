@@ -0,0 +1,995 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.LoginManager;
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.objects.AESSecretKey;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.parameters.GcmParameters;
+import iaik.pkcs.pkcs11.parameters.InitializationVectorParameters;
+import iaik.pkcs.pkcs11.parameters.RSAPkcsOaepParameters;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+import java.security.spec.MGF1ParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+
+/**
+ * A Cipher performing AES and RSA encryption and decryption on the token. Supported are
+ * AES/GCM/NoPadding, AES/CBC/NoPadding, AES/CBC/PKCS5Padding, AES/ECB/NoPadding,
+ * RSA/ECB/PKCS1Padding and RSA/ECB/OAEPPadding with the OAEP variants for SHA-1 and SHA-256.
+ *
+ * <pre>
+ * <code>
+ *   Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding", provider);
+ *   cipher.init(Cipher.ENCRYPT_MODE, aesKey);
+ *   cipher.updateAAD(header);
+ *   byte[] ciphertext = cipher.doFinal(plaintext);
+ *   byte[] iv = cipher.getIV();
+ * </code>
+ * </pre>
+ *
+ * Small updates are collected in a buffer of the chunk size of the provider; the token sees one
+ * encryptUpdate or decryptUpdate call per full buffer. If all data arrives with doFinal, the data
+ * is processed with a single encrypt or decrypt call. A pooled session is borrowed when the first
+ * full buffer is passed to the token or in doFinal, and it is returned with the end of the
+ * operation; an initialized cipher holds no session. If a cipher is dropped in the middle of an
+ * operation, a cleaner ends the operation and returns the session. Updates copy the input into the
+ * buffer, from ByteBuffers too; only doFinal passes an array given as a whole on without copying.
+ *
+ * AES keys must be PKCS11SecretKey objects. RSA decryption uses PKCS11PrivateKey.RSA objects;
+ * RSA encryption with a JDK public key involves no secret and is performed by the JDK cipher.
+ *
+ * @version 1.0
+ * @invariants (provider_ != null) and (algorithm_ != null) and (mode_ != null)
+ *             and (padding_ != null)
+ */
+public class PKCS11Cipher extends CipherSpi {
+
+  /**
+   * Ends the multipart operation of a cipher and returns its session to the pool. It is run by the
+   * cleaner, when the cipher became unreachable, or by abort. It must not refer to the cipher.
+   */
+  protected static class OperationEnd implements Runnable {
+
+    protected final SessionPool sessionPool_;
+
+    protected final Session session_;
+
+    protected final boolean encrypt_;
+
+    /**
+     * The registration of this action with the cleaner.
+     */
+    protected Cleaner.Cleanable cleanable_;
+
+    /**
+     * True, if the cipher finished the operation itself; then, this action does nothing.
+     */
+    protected volatile boolean detached_;
+
+    protected OperationEnd(SessionPool sessionPool, Session session, boolean encrypt) {
+      sessionPool_ = sessionPool;
+      session_ = session;
+      encrypt_ = encrypt;
+    }
+
+    public void run() {
+      if (detached_) {
+        return;
+      }
+      // the operation is ended with a final call whose result is dropped; closing the session
+      // instead would destroy the session objects created with it
+      TokenException failure = null;
+      try {
+        if (encrypt_) {
+          session_.encryptFinal();
+        } else {
+          session_.decryptFinal();
+        }
+      } catch (TokenException ex) {
+        // the operation is terminated anyway
+        failure = ex;
+      } catch (RuntimeException ex) {
+        sessionPool_.invalidateSession(session_);
+        return;
+      }
+      sessionPool_.returnSession(session_, failure);
+    }
+
+  }
+
+  /**
+   * An empty result.
+   */
+  protected static final byte[] EMPTY = new byte[0];
+
+  /**
+   * The cleaner ending the operations of abandoned ciphers; shared by all ciphers.
+   */
+  protected static final Cleaner cleaner_ = Cleaner.create();
+
+  /**
+   * The provider this cipher belongs to.
+   */
+  protected PKCS11Provider provider_;
+
+  /**
+   * "AES" or "RSA".
+   */
+  protected String algorithm_;
+
+  /**
+   * The mode of the transformation; e.g. "GCM".
+   */
+  protected String mode_;
+
+  /**
+   * The padding of the transformation; e.g. "NoPadding".
+   */
+  protected String padding_;
+
+  /**
+   * The encryption mechanism.
+   */
+  protected long mechanismCode_;
+
+  /**
+   * The hash algorithm of OAEP, if no OAEPParameterSpec is given; null for other paddings.
+   */
+  protected String oaepDigest_;
+
+  /**
+   * Cipher.ENCRYPT_MODE, Cipher.DECRYPT_MODE or 0, if not initialized.
+   */
+  protected int opmode_;
+
+  /**
+   * The key object on the token or null.
+   */
+  protected Key key_;
+
+  /**
+   * The JDK cipher for RSA encryption with a public key or null.
+   */
+  protected Cipher publicKeyCipher_;
+
+  /**
+   * The IV of the current operation or null.
+   */
+  protected byte[] iv_;
+
+  /**
+   * The tag length of GCM in bits.
+   */
+  protected int tagBits_;
+
+  /**
+   * The OAEP parameters or null.
+   */
+  protected OAEPParameterSpec oaepSpec_;
+
+  /**
+   * The OAEP parameters of the mechanism or null.
+   */
+  protected RSAPkcsOaepParameters oaepParameters_;
+
+  /**
+   * The additional authenticated data for GCM.
+   */
+  protected byte[] aad_ = EMPTY;
+
+  /**
+   * The number of bytes in aad_.
+   */
+  protected int aadLength_;
+
+  /**
+   * True, after a GCM encryption finished; the same IV must not be used again.
+   */
+  protected boolean reinitRequired_;
+
+  /**
+   * The data not yet passed to the token. For RSA, its size is the modulus length.
+   */
+  protected byte[] buffer_ = EMPTY;
+
+  /**
+   * The number of bytes in buffer_.
+   */
+  protected int bufferLength_;
+
+  /**
+   * True, if more RSA input was given than fits into the modulus.
+   */
+  protected boolean overflow_;
+
+  /**
+   * The number of bytes passed to the token minus the bytes the token returned; e.g. incomplete
+   * blocks.
+   */
+  protected long pendingLength_;
+
+  /**
+   * The session of the current multipart operation or null.
+   */
+  protected Session session_;
+
+  /**
+   * The action ending the current multipart operation, if the cipher is abandoned, or null.
+   */
+  protected OperationEnd operationEnd_;
+
+  /**
+   * Create a new cipher.
+   *
+   * @param provider
+   *          The provider this cipher belongs to.
+   * @param transformation
+   *          The transformation; e.g. "AES/GCM/NoPadding".
+   * @preconditions (provider != null) and (transformation != null)
+   */
+  public PKCS11Cipher(PKCS11Provider provider, String transformation) {
+    if (provider == null) {
+      throw new NullPointerException("Argument \"provider\" must not be null.");
+    }
+    String[] parts = transformation.split("/");
+    if (parts.length != 3) {
+      throw new IllegalArgumentException("Unsupported transformation " + transformation + ".");
+    }
+    provider_ = provider;
+    algorithm_ = parts[0];
+    mode_ = parts[1];
+    padding_ = parts[2];
+    if (transformation.equals("AES/GCM/NoPadding")) {
+      mechanismCode_ = PKCS11Constants.CKM_AES_GCM;
+    } else if (transformation.equals("AES/CBC/NoPadding")) {
+      mechanismCode_ = PKCS11Constants.CKM_AES_CBC;
+    } else if (transformation.equals("AES/CBC/PKCS5Padding")) {
+      mechanismCode_ = PKCS11Constants.CKM_AES_CBC_PAD;
+    } else if (transformation.equals("AES/ECB/NoPadding")) {
+      mechanismCode_ = PKCS11Constants.CKM_AES_ECB;
+    } else if (transformation.equals("RSA/ECB/PKCS1Padding")) {
+      mechanismCode_ = PKCS11Constants.CKM_RSA_PKCS;
+    } else if (transformation.equals("RSA/ECB/OAEPPadding")
+        || transformation.equals("RSA/ECB/OAEPWithSHA-1AndMGF1Padding")) {
+      mechanismCode_ = PKCS11Constants.CKM_RSA_PKCS_OAEP;
+      oaepDigest_ = "SHA-1";
+    } else if (transformation.equals("RSA/ECB/OAEPWithSHA-256AndMGF1Padding")) {
+      mechanismCode_ = PKCS11Constants.CKM_RSA_PKCS_OAEP;
+      oaepDigest_ = "SHA-256";
+    } else {
+      throw new IllegalArgumentException("Unsupported transformation " + transformation + ".");
+    }
+  }
+
+  protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+    if (!mode.equalsIgnoreCase(mode_)) {
+      throw new NoSuchAlgorithmException("Unsupported mode " + mode + ".");
+    }
+  }
+
+  protected void engineSetPadding(String padding) throws NoSuchPaddingException {
+    if (!padding.equalsIgnoreCase(padding_)) {
+      throw new NoSuchPaddingException("Unsupported padding " + padding + ".");
+    }
+  }
+
+  protected int engineGetBlockSize() {
+    return algorithm_.equals("AES") ? 16 : 0;
+  }
+
+  /**
+   * Get an upper bound of the output of the next update or doFinal call. It includes the data
+   * buffered in this object and held by the token.
+   *
+   * @param inputLen
+   *          The length of the input.
+   * @return The maximum length of the output.
+   */
+  protected int engineGetOutputSize(int inputLen) {
+    if (algorithm_.equals("RSA")) {
+      return buffer_.length;
+    }
+    long length = pendingLength_ + bufferLength_ + inputLen;
+    if (opmode_ == Cipher.ENCRYPT_MODE) {
+      if (mechanismCode_ == PKCS11Constants.CKM_AES_CBC_PAD) {
+        length = (length / 16 + 1) * 16;
+      } else if (mechanismCode_ == PKCS11Constants.CKM_AES_GCM) {
+        length += tagBits_ / 8;
+      }
+    }
+
+    return (int) Math.min(length, Integer.MAX_VALUE);
+  }
+
+  protected byte[] engineGetIV() {
+    return (iv_ != null) ? iv_.clone() : null;
+  }
+
+  protected AlgorithmParameters engineGetParameters() {
+    try {
+      AlgorithmParameters parameters;
+      if (iv_ != null && mode_.equals("GCM")) {
+        parameters = AlgorithmParameters.getInstance("GCM");
+        parameters.init(new GCMParameterSpec(tagBits_, iv_));
+      } else if (iv_ != null) {
+        parameters = AlgorithmParameters.getInstance("AES");
+        parameters.init(new IvParameterSpec(iv_));
+      } else if (oaepSpec_ != null) {
+        parameters = AlgorithmParameters.getInstance("OAEP");
+        parameters.init(oaepSpec_);
+      } else {
+        parameters = null;
+      }
+      return parameters;
+    } catch (GeneralSecurityException ex) {
+      throw new ProviderException("Can not encode the parameters.", ex);
+    }
+  }
+
+  protected int engineGetKeySize(java.security.Key key) throws InvalidKeyException {
+    if (key instanceof RSAKey) {
+      return ((RSAKey) key).getModulus().bitLength();
+    } else if ((key instanceof PKCS11SecretKey)
+        && (((PKCS11SecretKey) key).getTokenKey() instanceof AESSecretKey)) {
+      Long valueLength = ((AESSecretKey) ((PKCS11SecretKey) key).getTokenKey()).getValueLen()
+          .getLongValue();
+      if (valueLength != null) {
+        return 8 * valueLength.intValue();
+      }
+    }
+
+    throw new InvalidKeyException("Can not determine the key size.");
+  }
+
+  protected void engineInit(int opmode, java.security.Key key, SecureRandom random)
+      throws InvalidKeyException {
+    try {
+      engineInit(opmode, key, (AlgorithmParameterSpec) null, random);
+    } catch (InvalidAlgorithmParameterException ex) {
+      throw new InvalidKeyException(ex.getMessage(), ex);
+    }
+  }
+
+  protected void engineInit(int opmode, java.security.Key key, AlgorithmParameters params,
+      SecureRandom random) throws InvalidKeyException, InvalidAlgorithmParameterException {
+    AlgorithmParameterSpec spec = null;
+    if (params != null) {
+      try {
+        if (mode_.equals("GCM")) {
+          spec = params.getParameterSpec(GCMParameterSpec.class);
+        } else if (mode_.equals("CBC")) {
+          spec = params.getParameterSpec(IvParameterSpec.class);
+        } else if (oaepDigest_ != null) {
+          spec = params.getParameterSpec(OAEPParameterSpec.class);
+        } else {
+          throw new InvalidAlgorithmParameterException(getTransformation()
+              + " takes no parameters.");
+        }
+      } catch (InvalidParameterSpecException ex) {
+        throw new InvalidAlgorithmParameterException("Unsupported parameters.", ex);
+      }
+    }
+    engineInit(opmode, key, spec, random);
+  }
+
+  protected void engineInit(int opmode, java.security.Key key, AlgorithmParameterSpec params,
+      SecureRandom random) throws InvalidKeyException, InvalidAlgorithmParameterException {
+    if ((opmode != Cipher.ENCRYPT_MODE) && (opmode != Cipher.DECRYPT_MODE)) {
+      throw new UnsupportedOperationException("Only encryption and decryption are supported.");
+    }
+    abort();
+    opmode_ = 0;
+    key_ = null;
+    publicKeyCipher_ = null;
+    iv_ = null;
+    oaepSpec_ = null;
+    oaepParameters_ = null;
+    aadLength_ = 0;
+    reinitRequired_ = false;
+    overflow_ = false;
+    boolean encrypt = (opmode == Cipher.ENCRYPT_MODE);
+    SecureRandom ivRandom = (random != null) ? random : new SecureRandom();
+
+    if (algorithm_.equals("AES")) {
+      if (!(key instanceof PKCS11SecretKey) || !key.getAlgorithm().equals("AES")) {
+        throw new InvalidKeyException("AES key of a PKCS#11 provider required.");
+      }
+      if (mode_.equals("ECB")) {
+        if (params != null) {
+          throw new InvalidAlgorithmParameterException("ECB takes no parameters.");
+        }
+      } else if (mode_.equals("CBC")) {
+        if (params instanceof IvParameterSpec) {
+          iv_ = ((IvParameterSpec) params).getIV();
+          if (iv_.length != 16) {
+            throw new InvalidAlgorithmParameterException("The IV must have 16 bytes.");
+          }
+        } else if ((params == null) && encrypt) {
+          iv_ = new byte[16];
+          ivRandom.nextBytes(iv_);
+        } else {
+          throw new InvalidAlgorithmParameterException("IvParameterSpec required.");
+        }
+      } else {
+        if (params instanceof GCMParameterSpec) {
+          GCMParameterSpec gcmParams = (GCMParameterSpec) params;
+          iv_ = gcmParams.getIV();
+          tagBits_ = gcmParams.getTLen();
+          if ((iv_.length == 0) || (tagBits_ < 96) || (tagBits_ > 128) || (tagBits_ % 8 != 0)) {
+            throw new InvalidAlgorithmParameterException("Unsupported GCM parameters.");
+          }
+        } else if ((params == null) && encrypt) {
+          iv_ = new byte[12];
+          ivRandom.nextBytes(iv_);
+          tagBits_ = 128;
+        } else {
+          throw new InvalidAlgorithmParameterException("GCMParameterSpec required.");
+        }
+      }
+      key_ = ((PKCS11SecretKey) key).getTokenKey();
+      int chunkSize = provider_.getCipherChunkSize();
+      if (buffer_.length != chunkSize) {
+        buffer_ = new byte[chunkSize];
+      }
+    } else {
+      if (oaepDigest_ != null) {
+        if (params == null) {
+          oaepSpec_ = new OAEPParameterSpec(oaepDigest_, "MGF1", MGF1ParameterSpec.SHA1,
+              PSource.PSpecified.DEFAULT);
+        } else if (params instanceof OAEPParameterSpec) {
+          oaepSpec_ = (OAEPParameterSpec) params;
+        } else {
+          throw new InvalidAlgorithmParameterException("OAEPParameterSpec required.");
+        }
+        oaepParameters_ = toOaepParameters(oaepSpec_);
+      } else if (params != null) {
+        throw new InvalidAlgorithmParameterException("PKCS1Padding takes no parameters.");
+      }
+      if (encrypt && (key instanceof RSAPublicKey)) {
+        try {
+          if (oaepSpec_ != null) {
+            publicKeyCipher_ = Cipher.getInstance("RSA/ECB/OAEPPadding", "SunJCE");
+            publicKeyCipher_.init(Cipher.ENCRYPT_MODE, key, oaepSpec_, random);
+          } else {
+            publicKeyCipher_ = Cipher.getInstance("RSA/ECB/PKCS1Padding", "SunJCE");
+            publicKeyCipher_.init(Cipher.ENCRYPT_MODE, key, random);
+          }
+        } catch (GeneralSecurityException ex) {
+          throw new InvalidKeyException("Can not initialize the RSA encryption.", ex);
+        }
+      } else if (!encrypt && (key instanceof PKCS11PrivateKey.RSA)) {
+        key_ = ((PKCS11PrivateKey) key).getTokenKey();
+      } else {
+        throw new InvalidKeyException(encrypt ? "RSA public key required."
+            : "RSA private key of a PKCS#11 provider required.");
+      }
+      int modulusLength = (((RSAKey) key).getModulus().bitLength() + 7) / 8;
+      if (buffer_.length != modulusLength) {
+        buffer_ = new byte[modulusLength];
+      }
+    }
+    opmode_ = opmode;
+  }
+
+  protected void engineUpdateAAD(byte[] src, int offset, int len) {
+    checkState();
+    if (!mode_.equals("GCM")) {
+      throw new IllegalStateException(getTransformation() + " takes no AAD.");
+    }
+    if ((bufferLength_ > 0) || (session_ != null)) {
+      throw new IllegalStateException("AAD must be supplied before the data.");
+    }
+    if (aadLength_ + len > aad_.length) {
+      byte[] aad = new byte[Math.max(2 * aad_.length, aadLength_ + len)];
+      System.arraycopy(aad_, 0, aad, 0, aadLength_);
+      aad_ = aad;
+    }
+    System.arraycopy(src, offset, aad_, aadLength_, len);
+    aadLength_ += len;
+  }
+
+  protected void engineUpdateAAD(ByteBuffer src) {
+    byte[] aad = new byte[src.remaining()];
+    src.get(aad);
+    engineUpdateAAD(aad, 0, aad.length);
+  }
+
+  protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+    checkState();
+    byte[] output = EMPTY;
+    while (inputLen > 0) {
+      int count = Math.min(inputLen, buffer_.length - bufferLength_);
+      if (count == 0) {
+        // only RSA buffers fill up without being passed on
+        overflow_ = true;
+        break;
+      }
+      System.arraycopy(input, inputOffset, buffer_, bufferLength_, count);
+      bufferLength_ += count;
+      inputOffset += count;
+      inputLen -= count;
+      output = concat(output, flushIfFull());
+    }
+
+    return output;
+  }
+
+  protected int engineUpdate(byte[] input, int inputOffset, int inputLen, byte[] output,
+      int outputOffset) throws ShortBufferException {
+    if (output.length - outputOffset < engineGetOutputSize(inputLen)) {
+      throw new ShortBufferException("The output buffer is too short.");
+    }
+    byte[] result = engineUpdate(input, inputOffset, inputLen);
+    System.arraycopy(result, 0, output, outputOffset, result.length);
+
+    return result.length;
+  }
+
+  protected int engineUpdate(ByteBuffer input, ByteBuffer output) throws ShortBufferException {
+    if (output.remaining() < engineGetOutputSize(input.remaining())) {
+      throw new ShortBufferException("The output buffer is too short.");
+    }
+    byte[] result;
+    if (input.hasArray()) {
+      result = engineUpdate(input.array(), input.arrayOffset() + input.position(),
+          input.remaining());
+      input.position(input.limit());
+    } else {
+      checkState();
+      result = EMPTY;
+      while (input.hasRemaining()) {
+        int count = Math.min(input.remaining(), buffer_.length - bufferLength_);
+        if (count == 0) {
+          overflow_ = true;
+          input.position(input.limit());
+          break;
+        }
+        input.get(buffer_, bufferLength_, count);
+        bufferLength_ += count;
+        result = concat(result, flushIfFull());
+      }
+    }
+    output.put(result);
+
+    return result.length;
+  }
+
+  protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
+      throws IllegalBlockSizeException, BadPaddingException {
+    checkState();
+    byte[] data;
+    if ((bufferLength_ == 0) && (inputOffset == 0) && (input != null)
+        && (inputLen == input.length)) {
+      data = input;
+    } else {
+      data = new byte[bufferLength_ + inputLen];
+      System.arraycopy(buffer_, 0, data, 0, bufferLength_);
+      if (inputLen > 0) {
+        System.arraycopy(input, inputOffset, data, bufferLength_, inputLen);
+      }
+    }
+    bufferLength_ = 0;
+
+    try {
+      if (algorithm_.equals("RSA")) {
+        if (overflow_ || (data.length > buffer_.length)) {
+          throw new IllegalBlockSizeException("The data must not be longer than "
+              + buffer_.length + " bytes.");
+        }
+        if (publicKeyCipher_ != null) {
+          return publicKeyCipher_.doFinal(data);
+        }
+      }
+      if (session_ == null) {
+        return processSinglePart(data);
+      }
+      return finishMultiPart(data);
+    } finally {
+      overflow_ = false;
+      pendingLength_ = 0L;
+      aadLength_ = 0;
+      if (mode_.equals("GCM") && (opmode_ == Cipher.ENCRYPT_MODE)) {
+        reinitRequired_ = true;
+      }
+    }
+  }
+
+  protected int engineDoFinal(byte[] input, int inputOffset, int inputLen, byte[] output,
+      int outputOffset)
+      throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+    if (output.length - outputOffset < engineGetOutputSize(inputLen)) {
+      throw new ShortBufferException("The output buffer is too short.");
+    }
+    byte[] result = engineDoFinal(input, inputOffset, inputLen);
+    System.arraycopy(result, 0, output, outputOffset, result.length);
+
+    return result.length;
+  }
+
+  protected int engineDoFinal(ByteBuffer input, ByteBuffer output)
+      throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+    if (output.remaining() < engineGetOutputSize(input.remaining())) {
+      throw new ShortBufferException("The output buffer is too short.");
+    }
+    byte[] result;
+    if (input.hasArray()) {
+      result = engineDoFinal(input.array(), input.arrayOffset() + input.position(),
+          input.remaining());
+    } else {
+      byte[] data = new byte[input.remaining()];
+      input.duplicate().get(data);
+      result = engineDoFinal(data, 0, data.length);
+    }
+    input.position(input.limit());
+    output.put(result);
+
+    return result.length;
+  }
+
+  /**
+   * Pass the buffer to the token, if it is full. RSA buffers are never passed on before doFinal.
+   *
+   * @return The output of the token or an empty array.
+   * @exception ProviderException
+   *              If the token fails.
+   */
+  protected byte[] flushIfFull() {
+    if ((bufferLength_ < buffer_.length) || algorithm_.equals("RSA")) {
+      return EMPTY;
+    }
+    try {
+      startMultiPart();
+      byte[] output = concat(EMPTY, (opmode_ == Cipher.ENCRYPT_MODE) ? session_
+          .encryptUpdate(buffer_) : session_.decryptUpdate(buffer_));
+      pendingLength_ += bufferLength_ - output.length;
+      bufferLength_ = 0;
+      return output;
+    } catch (TokenException ex) {
+      abort();
+      throw new ProviderException("The token failed to process the data.", ex);
+    }
+  }
+
+  /**
+   * Process all data with one encrypt or decrypt call.
+   *
+   * @param data
+   *          The data.
+   * @return The result.
+   * @exception IllegalBlockSizeException
+   *              If the data length is wrong.
+   * @exception BadPaddingException
+   *              If the padding or the tag is wrong.
+   */
+  protected byte[] processSinglePart(final byte[] data)
+      throws IllegalBlockSizeException, BadPaddingException {
+    try {
+      return provider_.execute(new SessionPool.SessionOperation<byte[]>() {
+        public byte[] execute(Session session) throws TokenException {
+          initOperation(session);
+          return (opmode_ == Cipher.ENCRYPT_MODE) ? session.encrypt(data)
+              : session.decrypt(data);
+        }
+      });
+    } catch (TokenException ex) {
+      throw translate(ex);
+    }
+  }
+
+  /**
+   * Finish the multipart operation and return the session.
+   *
+   * @param data
+   *          The remaining data.
+   * @return The rest of the result.
+   * @exception IllegalBlockSizeException
+   *              If the data length is wrong.
+   * @exception BadPaddingException
+   *              If the padding or the tag is wrong.
+   */
+  protected byte[] finishMultiPart(byte[] data)
+      throws IllegalBlockSizeException, BadPaddingException {
+    Session session = session_;
+    session_ = null;
+    detachOperationEnd(true);
+    boolean encrypt = (opmode_ == Cipher.ENCRYPT_MODE);
+    try {
+      byte[] output = EMPTY;
+      if (data.length > 0) {
+        output = encrypt ? session.encryptUpdate(data) : session.decryptUpdate(data);
+      }
+      output = concat(output, encrypt ? session.encryptFinal() : session.decryptFinal());
+      provider_.getSessionPool().returnSession(session);
+      return output;
+    } catch (TokenException ex) {
+      // a failed final call terminates the operation; the session may be lost though
+      provider_.getSessionPool().returnSession(session, ex);
+      throw translate(ex);
+    } catch (RuntimeException ex) {
+      provider_.getSessionPool().invalidateSession(session);
+      throw ex;
+    }
+  }
+
+  /**
+   * Borrow a session and initialize the operation, unless done before.
+   *
+   * @exception TokenException
+   *              If borrowing the session, logging in or initializing fails.
+   */
+  protected void startMultiPart() throws TokenException {
+    if (session_ != null) {
+      return;
+    }
+    SessionPool sessionPool = provider_.getSessionPool();
+    Session session = sessionPool.borrowSession();
+    try {
+      sessionPool.getToken().getLoginManager().ensureLoggedIn(session);
+      initOperation(session);
+    } catch (TokenException ex) {
+      sessionPool.returnSession(session, ex);
+      throw ex;
+    } catch (RuntimeException ex) {
+      sessionPool.invalidateSession(session);
+      throw ex;
+    }
+    session_ = session;
+    operationEnd_ = new OperationEnd(sessionPool, session, opmode_ == Cipher.ENCRYPT_MODE);
+    operationEnd_.cleanable_ = cleaner_.register(this, operationEnd_);
+  }
+
+  /**
+   * Remove the registration of the action ending the current multipart operation.
+   *
+   * @param finished
+   *          True, if the caller ends the operation itself; false, to end it with the action now.
+   */
+  protected void detachOperationEnd(boolean finished) {
+    OperationEnd operationEnd = operationEnd_;
+    operationEnd_ = null;
+    if (operationEnd == null) {
+      return;
+    }
+    // cleaning unregisters the action and runs it once; a detached action does nothing
+    operationEnd.detached_ = finished;
+    operationEnd.cleanable_.clean();
+  }
+
+  /**
+   * Initialize the operation in the given session.
+   *
+   * @param session
+   *          The session.
+   * @exception TokenException
+   *              If initializing fails.
+   */
+  protected void initOperation(Session session) throws TokenException {
+    Mechanism mechanism = Mechanism.get(mechanismCode_);
+    if (mode_.equals("GCM")) {
+      byte[] aad = (aadLength_ > 0) ? Arrays.copyOf(aad_, aadLength_) : null;
+      mechanism.setParameters(new GcmParameters(iv_, aad, tagBits_));
+    } else if (mode_.equals("CBC")) {
+      mechanism.setParameters(new InitializationVectorParameters(iv_));
+    } else if (oaepParameters_ != null) {
+      mechanism.setParameters(oaepParameters_);
+    }
+    if (opmode_ == Cipher.ENCRYPT_MODE) {
+      session.encryptInit(mechanism, key_);
+    } else {
+      session.decryptInit(mechanism, key_);
+      LoginManager loginManager = provider_.getSessionPool().getToken().getLoginManager();
+      loginManager.authenticateKeyUse(session, key_);
+    }
+  }
+
+  /**
+   * End a multipart operation, if one is active, and return its session.
+   */
+  protected void abort() {
+    session_ = null;
+    bufferLength_ = 0;
+    pendingLength_ = 0L;
+    detachOperationEnd(false);
+  }
+
+  /**
+   * Check that the cipher is ready for data.
+   *
+   * @exception IllegalStateException
+   *              If the cipher is not initialized or a GCM encryption needs a new IV.
+   */
+  protected void checkState() {
+    if (opmode_ == 0) {
+      throw new IllegalStateException("The cipher is not initialized.");
+    }
+    if (reinitRequired_) {
+      throw new IllegalStateException("GCM encryption requires a new IV; initialize the cipher"
+          + " again.");
+    }
+  }
+
+  /**
+   * Translate a token error into the JCA exception. Errors concerning the data are thrown as
+   * checked exceptions; all other errors are returned as ProviderException.
+   *
+   * @param ex
+   *          The token error.
+   * @return The exception to throw, if the error does not concern the data.
+   * @exception IllegalBlockSizeException
+   *              If the data length is wrong.
+   * @exception BadPaddingException
+   *              If the padding or the GCM tag is wrong.
+   */
+  protected ProviderException translate(TokenException ex)
+      throws IllegalBlockSizeException, BadPaddingException {
+    long errorCode = (ex instanceof PKCS11Exception) ? ((PKCS11Exception) ex).getErrorCode()
+        : -1L;
+    if (mode_.equals("GCM") && (opmode_ == Cipher.DECRYPT_MODE)
+        && ((errorCode == PKCS11Constants.CKR_ENCRYPTED_DATA_INVALID)
+            || (errorCode == PKCS11Constants.CKR_AEAD_DECRYPT_FAILED))) {
+      BadPaddingException translated = new AEADBadTagException("The tag does not match.");
+      translated.initCause(ex);
+      throw translated;
+    } else if (errorCode == PKCS11Constants.CKR_ENCRYPTED_DATA_INVALID) {
+      BadPaddingException translated = new BadPaddingException("The padding is wrong.");
+      translated.initCause(ex);
+      throw translated;
+    } else if ((errorCode == PKCS11Constants.CKR_ENCRYPTED_DATA_LEN_RANGE)
+        || (errorCode == PKCS11Constants.CKR_DATA_LEN_RANGE)) {
+      IllegalBlockSizeException translated = new IllegalBlockSizeException(
+          "The data length is wrong.");
+      translated.initCause(ex);
+      throw translated;
+    }
+
+    return new ProviderException("The token failed to process the data.", ex);
+  }
+
+  /**
+   * Convert OAEP parameters.
+   *
+   * @param spec
+   *          The JCA parameters.
+   * @return The PKCS#11 parameters.
+   * @exception InvalidAlgorithmParameterException
+   *              If the hash algorithms are not supported.
+   */
+  protected static RSAPkcsOaepParameters toOaepParameters(OAEPParameterSpec spec)
+      throws InvalidAlgorithmParameterException {
+    if (!spec.getMGFAlgorithm().equalsIgnoreCase("MGF1")
+        || !(spec.getMGFParameters() instanceof MGF1ParameterSpec)
+        || !(spec.getPSource() instanceof PSource.PSpecified)) {
+      throw new InvalidAlgorithmParameterException("Unsupported OAEP parameters.");
+    }
+    String digest = spec.getDigestAlgorithm().toUpperCase();
+    String mgfDigest = ((MGF1ParameterSpec) spec.getMGFParameters()).getDigestAlgorithm()
+        .toUpperCase();
+    byte[] label = ((PSource.PSpecified) spec.getPSource()).getValue();
+    String[] names = { "SHA-1", "SHA-224", "SHA-256", "SHA-384", "SHA-512" };
+    long[] hashes = { PKCS11Constants.CKM_SHA_1, PKCS11Constants.CKM_SHA224,
+        PKCS11Constants.CKM_SHA256, PKCS11Constants.CKM_SHA384, PKCS11Constants.CKM_SHA512 };
+    long[] mgfs = { PKCS11Constants.CKG_MGF1_SHA1, PKCS11Constants.CKG_MGF1_SHA224,
+        PKCS11Constants.CKG_MGF1_SHA256, PKCS11Constants.CKG_MGF1_SHA384,
+        PKCS11Constants.CKG_MGF1_SHA512 };
+    long hash = -1L;
+    long mgf = -1L;
+    for (int i = 0; i < names.length; i++) {
+      if (digest.equals(names[i]) || digest.equals(names[i].replace("-", ""))) {
+        hash = hashes[i];
+      }
+      if (mgfDigest.equals(names[i]) || mgfDigest.equals(names[i].replace("-", ""))) {
+        mgf = mgfs[i];
+      }
+    }
+    if ((hash == -1L) || (mgf == -1L)) {
+      throw new InvalidAlgorithmParameterException("Unsupported OAEP hash algorithm.");
+    }
+
+    return new RSAPkcsOaepParameters(Mechanism.get(hash), mgf,
+        (label.length > 0) ? RSAPkcsOaepParameters.SourceType.DATA_SPECIFIED
+            : RSAPkcsOaepParameters.SourceType.EMPTY, (label.length > 0) ? label : null);
+  }
+
+  /**
+   * Get the transformation of this cipher.
+   *
+   * @return The transformation; e.g. "AES/GCM/NoPadding".
+   */
+  protected String getTransformation() {
+    return algorithm_ + "/" + mode_ + "/" + padding_;
+  }
+
+  /**
+   * Concatenate two arrays.
+   *
+   * @param first
+   *          The first array.
+   * @param second
+   *          The second array or null.
+   * @return The concatenation; one of the arrays, if the other is empty or null.
+   */
+  protected static byte[] concat(byte[] first, byte[] second) {
+    if ((second == null) || (second.length == 0)) {
+      return first;
+    } else if (first.length == 0) {
+      return second;
+    }
+    byte[] result = new byte[first.length + second.length];
+    System.arraycopy(first, 0, result, 0, first.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+
+    return result;
+  }
+
+}
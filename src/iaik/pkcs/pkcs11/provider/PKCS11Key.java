@@ -0,0 +1,126 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.objects.Key;
+
+/**
+ * A JCA key referring to a key object on the token. The key value never leaves the token;
+ * getEncoded returns null. The key object carries the attributes of its generation template but
+ * the object handle is only valid for sessions of the same application; keys that are no token
+ * objects vanish with the session that created them.
+ *
+ * @version 1.0
+ * @invariants (key_ != null) and (algorithm_ != null)
+ */
+public class PKCS11Key implements java.security.Key {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The key object on the token.
+   */
+  protected transient Key key_;
+
+  /**
+   * The JCA name of the algorithm of this key.
+   */
+  protected String algorithm_;
+
+  /**
+   * Create a new key.
+   *
+   * @param key
+   *          The key object on the token.
+   * @param algorithm
+   *          The JCA name of the algorithm; e.g. "RSA".
+   * @preconditions (key != null) and (algorithm != null)
+   */
+  protected PKCS11Key(Key key, String algorithm) {
+    if (key == null) {
+      throw new NullPointerException("Argument \"key\" must not be null.");
+    }
+    if (algorithm == null) {
+      throw new NullPointerException("Argument \"algorithm\" must not be null.");
+    }
+    key_ = key;
+    algorithm_ = algorithm;
+  }
+
+  /**
+   * Get the key object on the token.
+   *
+   * @return The key object.
+   * @postconditions (result != null)
+   */
+  public Key getTokenKey() {
+    return key_;
+  }
+
+  public String getAlgorithm() {
+    return algorithm_;
+  }
+
+  /**
+   * The key value is not available.
+   *
+   * @return Null.
+   */
+  public String getFormat() {
+    return null;
+  }
+
+  /**
+   * The key value is not available.
+   *
+   * @return Null.
+   */
+  public byte[] getEncoded() {
+    return null;
+  }
+
+  public String toString() {
+    return algorithm_ + " key, object handle " + key_.getObjectHandle();
+  }
+
+}
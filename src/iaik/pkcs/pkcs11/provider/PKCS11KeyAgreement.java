@@ -0,0 +1,380 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionObjectTracker;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.objects.AESSecretKey;
+import iaik.pkcs.pkcs11.objects.GenericSecretKey;
+import iaik.pkcs.pkcs11.objects.SecretKey;
+import iaik.pkcs.pkcs11.wrapper.CK_ECDH1_DERIVE_PARAMS;
+import iaik.pkcs.pkcs11.wrapper.CK_MECHANISM;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.math.BigInteger;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECParameterSpec;
+
+import javax.crypto.KeyAgreementSpi;
+import javax.crypto.ShortBufferException;
+
+/**
+ * An ECDH KeyAgreement with the private key on the token (CKM_ECDH1_DERIVE without key derivation
+ * function). The peer point is encoded and the mechanism structure is prepared once in doPhase;
+ * each generateSecret call then costs one C_DeriveKey call and, for extracted secrets, one
+ * C_GetAttributeValue call.
+ *
+ * <pre>
+ * <code>
+ *   KeyAgreement agreement = KeyAgreement.getInstance("ECDH", provider);
+ *   agreement.init(ecPrivateKey);
+ *   agreement.doPhase(peerPublicKey, true);
+ *   SecretKey aesKey = agreement.generateSecret("AES");
+ * </code>
+ * </pre>
+ *
+ * generateSecret() derives a non-sensitive generic secret, reads its value and schedules the
+ * object for destruction. generateSecret("AES") and generateSecret("Generic") leave the secret on
+ * the token and return a PKCS11SecretKey; the object is destroyed once the key becomes
+ * unreachable. In both cases, the session object tracker of the provider destroys the objects
+ * in batches in the background.
+ *
+ * @version 1.0
+ * @invariants (provider_ != null)
+ */
+public class PKCS11KeyAgreement extends KeyAgreementSpi {
+
+  /**
+   * The provider this agreement belongs to.
+   */
+  protected PKCS11Provider provider_;
+
+  /**
+   * The private key or null, if not initialized. It is kept, since a generated key is destroyed
+   * when its object becomes unreachable.
+   */
+  protected iaik.pkcs.pkcs11.objects.Key privateKey_;
+
+  /**
+   * The handle of the private key or -1, if not initialized.
+   */
+  protected long privateKeyHandle_ = -1L;
+
+  /**
+   * The curve of the private key.
+   */
+  protected ECParameterSpec params_;
+
+  /**
+   * The length of the shared secret in bytes; the field length of the curve.
+   */
+  protected int secretLength_;
+
+  /**
+   * The peer key of the last doPhase call or null.
+   */
+  protected ECPublicKey peerKey_;
+
+  /**
+   * The mechanism prepared for the peer key or null, if no phase was done since the last secret.
+   */
+  protected CK_MECHANISM ckMechanism_;
+
+  /**
+   * The mechanism prepared for the last peer key; reused, if the same key is given again.
+   */
+  protected CK_MECHANISM lastMechanism_;
+
+  /**
+   * Create a new key agreement.
+   *
+   * @param provider
+   *          The provider this agreement belongs to.
+   * @preconditions (provider != null)
+   */
+  public PKCS11KeyAgreement(PKCS11Provider provider) {
+    if (provider == null) {
+      throw new NullPointerException("Argument \"provider\" must not be null.");
+    }
+    provider_ = provider;
+  }
+
+  protected void engineInit(Key key, SecureRandom random) throws InvalidKeyException {
+    if (!(key instanceof PKCS11PrivateKey.EC)) {
+      throw new InvalidKeyException("EC private key of a PKCS#11 provider required.");
+    }
+    PKCS11PrivateKey.EC privateKey = (PKCS11PrivateKey.EC) key;
+    privateKey_ = privateKey.getTokenKey();
+    privateKeyHandle_ = privateKey_.getObjectHandle();
+    params_ = privateKey.getParams();
+    secretLength_ = (params_.getCurve().getField().getFieldSize() + 7) / 8;
+    peerKey_ = null;
+    ckMechanism_ = null;
+    lastMechanism_ = null;
+  }
+
+  protected void engineInit(Key key, AlgorithmParameterSpec params, SecureRandom random)
+      throws InvalidKeyException, InvalidAlgorithmParameterException {
+    if (params != null) {
+      throw new InvalidAlgorithmParameterException("ECDH takes no parameters.");
+    }
+    engineInit(key, random);
+  }
+
+  protected Key engineDoPhase(Key key, boolean lastPhase) throws InvalidKeyException {
+    if (privateKeyHandle_ == -1L) {
+      throw new IllegalStateException("The key agreement is not initialized.");
+    }
+    if (!lastPhase) {
+      throw new IllegalStateException("ECDH has only one phase.");
+    }
+    if (!(key instanceof ECPublicKey)) {
+      throw new InvalidKeyException("EC public key required.");
+    }
+    ECPublicKey peerKey = (ECPublicKey) key;
+    if ((peerKey == peerKey_) && (lastMechanism_ != null)) {
+      ckMechanism_ = lastMechanism_;
+      return null;
+    }
+    ECParameterSpec peerParams = peerKey.getParams();
+    if (!peerParams.getCurve().equals(params_.getCurve())
+        || !peerParams.getOrder().equals(params_.getOrder())) {
+      throw new InvalidKeyException("The peer key is on another curve.");
+    }
+
+    CK_ECDH1_DERIVE_PARAMS deriveParams = new CK_ECDH1_DERIVE_PARAMS();
+    deriveParams.kdf = PKCS11Constants.CKD_NULL;
+    deriveParams.pPublicData = encodePoint(peerKey);
+    CK_MECHANISM ckMechanism = new CK_MECHANISM();
+    ckMechanism.mechanism = PKCS11Constants.CKM_ECDH1_DERIVE;
+    ckMechanism.pParameter = deriveParams;
+    peerKey_ = peerKey;
+    lastMechanism_ = ckMechanism;
+    ckMechanism_ = ckMechanism;
+
+    return null;
+  }
+
+  /**
+   * Derive the shared secret and return its value. The derived object is destroyed in the
+   * background.
+   *
+   * @return The shared secret.
+   * @exception IllegalStateException
+   *              If no phase was done.
+   * @exception ProviderException
+   *              If the token fails.
+   */
+  protected byte[] engineGenerateSecret() {
+    final CK_MECHANISM ckMechanism = takeMechanism();
+    final CompiledTemplate template = getTemplate("Generic", false);
+    try {
+      return provider_.execute(new SessionPool.SessionOperation<byte[]>() {
+        public byte[] execute(Session session) throws TokenException {
+          long handle = session.deriveKeyHandle(ckMechanism, privateKeyHandle_,
+              template.getKeyAttributes());
+          try {
+            return session.getByteArrayAttributeValue(handle, PKCS11Constants.CKA_VALUE);
+          } finally {
+            provider_.getSessionObjectTracker().destroyLater(handle);
+          }
+        }
+      });
+    } catch (TokenException ex) {
+      throw new ProviderException("Deriving the shared secret failed.", ex);
+    }
+  }
+
+  protected int engineGenerateSecret(byte[] sharedSecret, int offset)
+      throws ShortBufferException {
+    if (sharedSecret.length - offset < secretLength_) {
+      throw new ShortBufferException("The shared secret needs " + secretLength_ + " bytes.");
+    }
+    byte[] secret = engineGenerateSecret();
+    System.arraycopy(secret, 0, sharedSecret, offset, secret.length);
+
+    return secret.length;
+  }
+
+  /**
+   * Derive the shared secret into a key that stays on the token. "AES" derives an AES key of 32
+   * bytes, or of 16 bytes for curves shorter than 256 bits, from the secret; "Generic" derives a
+   * generic secret of the full length for further derivation.
+   *
+   * @param algorithm
+   *          "AES" or "Generic".
+   * @return The key.
+   * @exception NoSuchAlgorithmException
+   *              If the algorithm is not supported.
+   * @exception ProviderException
+   *              If the token fails.
+   */
+  protected javax.crypto.SecretKey engineGenerateSecret(String algorithm)
+      throws NoSuchAlgorithmException {
+    boolean aes = algorithm.equalsIgnoreCase("AES");
+    if (!aes && !algorithm.equalsIgnoreCase("Generic")) {
+      throw new NoSuchAlgorithmException("Unsupported secret key algorithm " + algorithm + ".");
+    }
+    final CK_MECHANISM ckMechanism = takeMechanism();
+    final CompiledTemplate template = getTemplate(aes ? "AES" : "Generic", true);
+    try {
+      long handle = provider_.execute(new SessionPool.SessionOperation<Long>() {
+        public Long execute(Session session) throws TokenException {
+          return Long.valueOf(session.deriveKeyHandle(ckMechanism, privateKeyHandle_,
+              template.getKeyAttributes()));
+        }
+      }).longValue();
+      SecretKey tokenKey = (SecretKey) template.newKeyObject(handle);
+      PKCS11SecretKey key = new PKCS11SecretKey(tokenKey, aes ? "AES" : "Generic");
+      provider_.getSessionObjectTracker().track(tokenKey, tokenKey, 0L);
+      return key;
+    } catch (TokenException ex) {
+      throw new ProviderException("Deriving the shared secret failed.", ex);
+    }
+  }
+
+  /**
+   * Get the prepared mechanism and require a new phase for the next secret.
+   *
+   * @return The mechanism.
+   * @exception IllegalStateException
+   *              If no phase was done.
+   */
+  protected CK_MECHANISM takeMechanism() {
+    CK_MECHANISM ckMechanism = ckMechanism_;
+    if (ckMechanism == null) {
+      throw new IllegalStateException("doPhase must be called before generateSecret.");
+    }
+    ckMechanism_ = null;
+
+    return ckMechanism;
+  }
+
+  /**
+   * Get the compiled template of derived keys.
+   *
+   * @param type
+   *          "AES" or "Generic".
+   * @param sensitive
+   *          True, if the key stays on the token; false, if its value is read.
+   * @return The template.
+   */
+  protected CompiledTemplate getTemplate(String type, boolean sensitive) {
+    int length = type.equals("AES") ? ((secretLength_ >= 32) ? 32 : 16) : secretLength_;
+    String id = "ECDH:" + type + ":" + length + ":" + sensitive;
+    CompiledTemplate template = provider_.getCompiledTemplate(id);
+    if (template != null) {
+      return template;
+    }
+
+    SecretKey keyTemplate;
+    if (type.equals("AES")) {
+      AESSecretKey aesTemplate = new AESSecretKey();
+      aesTemplate.getValueLen().setLongValue(Long.valueOf(length));
+      aesTemplate.getEncrypt().setBooleanValue(Boolean.TRUE);
+      aesTemplate.getDecrypt().setBooleanValue(Boolean.TRUE);
+      keyTemplate = aesTemplate;
+    } else {
+      GenericSecretKey genericTemplate = new GenericSecretKey();
+      genericTemplate.getValueLen().setLongValue(Long.valueOf(length));
+      genericTemplate.getDerive().setBooleanValue(Boolean.TRUE);
+      genericTemplate.getSign().setBooleanValue(Boolean.TRUE);
+      keyTemplate = genericTemplate;
+    }
+    keyTemplate.getToken().setBooleanValue(Boolean.FALSE);
+    keyTemplate.getSensitive().setBooleanValue(Boolean.valueOf(sensitive));
+    keyTemplate.getExtractable().setBooleanValue(Boolean.valueOf(!sensitive));
+    try {
+      template = new CompiledTemplate(Mechanism.get(PKCS11Constants.CKM_ECDH1_DERIVE), null,
+          keyTemplate, null);
+    } catch (TokenException ex) {
+      throw new ProviderException("Can not compile the key template.", ex);
+    }
+
+    return provider_.putCompiledTemplate(id, template);
+  }
+
+  /**
+   * Encode the point of a public key uncompressed; 0x04, X and Y, each of the field length.
+   *
+   * @param key
+   *          The public key.
+   * @return The encoded point.
+   */
+  protected byte[] encodePoint(ECPublicKey key) {
+    byte[] encoded = new byte[1 + 2 * secretLength_];
+    encoded[0] = 0x04;
+    putUnsigned(key.getW().getAffineX(), encoded, 1);
+    putUnsigned(key.getW().getAffineY(), encoded, 1 + secretLength_);
+
+    return encoded;
+  }
+
+  /**
+   * Write a coordinate right-aligned into a field of the field length.
+   *
+   * @param value
+   *          The coordinate.
+   * @param encoded
+   *          The target array.
+   * @param offset
+   *          The offset of the field.
+   */
+  protected void putUnsigned(BigInteger value, byte[] encoded, int offset) {
+    byte[] bytes = value.toByteArray();
+    int start = (bytes[0] == 0) ? 1 : 0;
+    int length = bytes.length - start;
+    System.arraycopy(bytes, start, encoded, offset + secretLength_ - length, length);
+  }
+
+}
@@ -0,0 +1,259 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.objects.AESSecretKey;
+import iaik.pkcs.pkcs11.objects.GenericSecretKey;
+import iaik.pkcs.pkcs11.objects.SecretKey;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidParameterException;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.KeyGeneratorSpi;
+
+/**
+ * A KeyGenerator generating AES keys and HMAC keys on the token. The keys are returned as
+ * PKCS11SecretKey without reading any attribute of the new key object. HMAC keys are generic secret
+ * keys with the length of the hash output by default.
+ *
+ * <pre>
+ * <code>
+ *   KeyGenerator generator = KeyGenerator.getInstance("AES", provider);
+ *   generator.init(256);
+ *   SecretKey key = generator.generateKey();
+ * </code>
+ * </pre>
+ *
+ * The keys are sensitive session objects; they are destroyed when the token key object of the
+ * PKCS11SecretKey becomes unreachable. The engines of the provider keep that object while they use
+ * the key, so dropping the PKCS11SecretKey after initializing an engine is safe. Keys of
+ * subclasses whose template sets CKA_TOKEN to true are kept on the token. Like the templates of
+ * key-pairs, the templates are compiled once per generator class and key length and shared by all
+ * generators of the provider.
+ *
+ * @see PKCS11KeyPairGenerator
+ * @version 1.0
+ * @invariants (provider_ != null) and (algorithm_ != null)
+ */
+public class PKCS11KeyGenerator extends KeyGeneratorSpi {
+
+  /**
+   * The provider this generator belongs to.
+   */
+  protected PKCS11Provider provider_;
+
+  /**
+   * "AES" or the JCA name of an HMAC algorithm; e.g. "HmacSHA256".
+   */
+  protected String algorithm_;
+
+  /**
+   * The template for the next key; null, until initialized.
+   */
+  protected CompiledTemplate template_;
+
+  /**
+   * Create a new generator.
+   *
+   * @param provider
+   *          The provider this generator belongs to.
+   * @param algorithm
+   *          "AES", "HmacSHA1", "HmacSHA256", "HmacSHA384" or "HmacSHA512".
+   * @preconditions (provider != null) and (algorithm != null)
+   */
+  public PKCS11KeyGenerator(PKCS11Provider provider, String algorithm) {
+    if (provider == null) {
+      throw new NullPointerException("Argument \"provider\" must not be null.");
+    }
+    if (!algorithm.equals("AES") && (getDefaultHmacKeySize(algorithm) == 0)) {
+      throw new IllegalArgumentException("Unsupported algorithm " + algorithm + ".");
+    }
+    provider_ = provider;
+    algorithm_ = algorithm;
+  }
+
+  /**
+   * Parameters are not supported; use the key size.
+   *
+   * @param params
+   *          The parameters.
+   * @param random
+   *          Ignored.
+   * @exception InvalidAlgorithmParameterException
+   *              Always.
+   */
+  protected void engineInit(AlgorithmParameterSpec params, SecureRandom random)
+      throws InvalidAlgorithmParameterException {
+    throw new InvalidAlgorithmParameterException(algorithm_
+        + " key generation takes no parameters.");
+  }
+
+  /**
+   * Initialize with the default key size; 256 bits for AES, the hash output length for HMAC.
+   *
+   * @param random
+   *          Ignored; the token uses its own random number generator.
+   */
+  protected void engineInit(SecureRandom random) {
+    engineInit(algorithm_.equals("AES") ? 256 : getDefaultHmacKeySize(algorithm_), random);
+  }
+
+  /**
+   * Initialize with a key size.
+   *
+   * @param keysize
+   *          The key size in bits; 128, 192 or 256 for AES, a multiple of 8 for HMAC.
+   * @param random
+   *          Ignored; the token uses its own random number generator.
+   */
+  protected void engineInit(int keysize, SecureRandom random) {
+    boolean aes = algorithm_.equals("AES");
+    if (aes ? (keysize != 128) && (keysize != 192) && (keysize != 256)
+        : (keysize <= 0) || (keysize % 8 != 0)) {
+      throw new InvalidParameterException("Unsupported " + algorithm_ + " key size " + keysize
+          + ".");
+    }
+    String id = getClass().getName() + (aes ? ":AES:" : ":GENERIC:") + keysize;
+    template_ = provider_.getCompiledTemplate(id);
+    if (template_ == null) {
+      template_ = provider_.putCompiledTemplate(id, createTemplate(keysize / 8));
+    }
+  }
+
+  /**
+   * Generate a key on the token.
+   *
+   * @return The new key.
+   * @exception ProviderException
+   *              If generating the key fails.
+   */
+  protected javax.crypto.SecretKey engineGenerateKey() {
+    if (template_ == null) {
+      engineInit(null);
+    }
+    final CompiledTemplate template = template_;
+    try {
+      long handle = provider_.execute(new SessionPool.SessionOperation<Long>() {
+        public Long execute(Session session) throws TokenException {
+          return Long.valueOf(session.generateKeyHandle(template.getMechanism(),
+              template.getKeyAttributes()));
+        }
+      }).longValue();
+      SecretKey tokenKey = (SecretKey) template.newKeyObject(handle);
+      PKCS11SecretKey key = new PKCS11SecretKey(tokenKey, algorithm_);
+      provider_.getSessionObjectTracker().trackSessionObject(tokenKey, tokenKey, tokenKey, 0L);
+      return key;
+    } catch (TokenException ex) {
+      throw new ProviderException("Generating the " + algorithm_ + " key failed.", ex);
+    }
+  }
+
+  /**
+   * Create the template for keys of the given length.
+   *
+   * @param length
+   *          The length of the key value in bytes.
+   * @return The compiled template.
+   * @exception ProviderException
+   *              If compiling the template fails.
+   */
+  protected CompiledTemplate createTemplate(int length) {
+    SecretKey template;
+    long mechanismCode;
+    if (algorithm_.equals("AES")) {
+      AESSecretKey aesTemplate = new AESSecretKey();
+      aesTemplate.getValueLen().setLongValue(Long.valueOf(length));
+      aesTemplate.getEncrypt().setBooleanValue(Boolean.TRUE);
+      aesTemplate.getDecrypt().setBooleanValue(Boolean.TRUE);
+      aesTemplate.getWrap().setBooleanValue(Boolean.TRUE);
+      aesTemplate.getUnwrap().setBooleanValue(Boolean.TRUE);
+      template = aesTemplate;
+      mechanismCode = PKCS11Constants.CKM_AES_KEY_GEN;
+    } else {
+      GenericSecretKey genericTemplate = new GenericSecretKey();
+      genericTemplate.getValueLen().setLongValue(Long.valueOf(length));
+      genericTemplate.getSign().setBooleanValue(Boolean.TRUE);
+      genericTemplate.getVerify().setBooleanValue(Boolean.TRUE);
+      template = genericTemplate;
+      mechanismCode = PKCS11Constants.CKM_GENERIC_SECRET_KEY_GEN;
+    }
+    template.getToken().setBooleanValue(Boolean.FALSE);
+    template.getSensitive().setBooleanValue(Boolean.TRUE);
+
+    try {
+      return new CompiledTemplate(Mechanism.get(mechanismCode), null, template, null);
+    } catch (TokenException ex) {
+      throw new ProviderException("Can not compile the key template.", ex);
+    }
+  }
+
+  /**
+   * Get the default key size of the given HMAC algorithm; the output length of its hash.
+   *
+   * @param algorithm
+   *          The JCA name of the HMAC algorithm.
+   * @return The key size in bits or 0, if the algorithm is not supported.
+   */
+  protected static int getDefaultHmacKeySize(String algorithm) {
+    if (algorithm.equals("HmacSHA1")) {
+      return 160;
+    } else if (algorithm.equals("HmacSHA256")) {
+      return 256;
+    } else if (algorithm.equals("HmacSHA384")) {
+      return 384;
+    } else if (algorithm.equals("HmacSHA512")) {
+      return 512;
+    }
+
+    return 0;
+  }
+
+}
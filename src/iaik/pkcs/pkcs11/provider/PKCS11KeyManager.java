@@ -0,0 +1,397 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.CertificateIndex;
+import iaik.pkcs.pkcs11.KeyMaterialDecoder;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.objects.ECDSAPrivateKey;
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.Object;
+import iaik.pkcs.pkcs11.objects.ObjectClassAttribute;
+import iaik.pkcs.pkcs11.objects.PrivateKey;
+import iaik.pkcs.pkcs11.objects.RSAPrivateKey;
+import iaik.pkcs.pkcs11.wrapper.Functions;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.math.BigInteger;
+import java.net.Socket;
+import java.security.Principal;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedKeyManager;
+
+/**
+ * A key manager for TLS with the private keys on the token. Each private key with a certificate of
+ * the same CKA_ID becomes an alias; its name is the label of the key or, if the key has no unique
+ * label, the hexadecimal ID. The keys and chains are read once, when the key manager is created or
+ * refreshed, using the certificate index of the token; choosing an alias and getting its key and
+ * chain does not access the token.
+ *
+ * <pre>
+ * <code>
+ *   PKCS11Provider provider = new PKCS11Provider("PKCS11-HSM", sessionPool);
+ *   Security.addProvider(provider);
+ *   SSLContext context = SSLContext.getInstance("TLS");
+ *   context.init(new KeyManager[] { new PKCS11KeyManager(provider) }, trustManagers, null);
+ * </code>
+ * </pre>
+ *
+ * The returned private keys are PKCS11PrivateKey objects; the handshake signatures are created by
+ * the Signature services of the provider, which must be installed, because JSSE looks up the
+ * signature algorithms by name. These services hash in the JVM and sign the digest with a pooled
+ * session, so the number of concurrent handshakes is limited by the size of the pool. Objects of
+ * this class are thread-safe.
+ *
+ * @version 1.0
+ * @invariants (provider_ != null) and (aliases_ != null)
+ */
+public class PKCS11KeyManager extends X509ExtendedKeyManager {
+
+  /**
+   * A private key with its certificate chain.
+   */
+  protected static class Alias {
+
+    protected final PKCS11PrivateKey privateKey_;
+
+    protected final X509Certificate[] chain_;
+
+    protected Alias(PKCS11PrivateKey privateKey, X509Certificate[] chain) {
+      privateKey_ = privateKey;
+      chain_ = chain;
+    }
+
+  }
+
+  /**
+   * The attributes read of RSA private keys.
+   */
+  protected static final long[] RSA_ATTRIBUTE_TYPES = new long[] { PKCS11Constants.CKA_CLASS,
+      PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKA_LABEL, PKCS11Constants.CKA_ID,
+      PKCS11Constants.CKA_MODULUS };
+
+  /**
+   * The attributes read of EC private keys.
+   */
+  protected static final long[] EC_ATTRIBUTE_TYPES = new long[] { PKCS11Constants.CKA_CLASS,
+      PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKA_LABEL, PKCS11Constants.CKA_ID,
+      PKCS11Constants.CKA_EC_PARAMS };
+
+  /**
+   * The provider whose sessions and token are used.
+   */
+  protected PKCS11Provider provider_;
+
+  /**
+   * The aliases in the order found; replaced as a whole by refresh.
+   */
+  protected volatile Map<String, Alias> aliases_ = Collections.emptyMap();
+
+  /**
+   * Create a key manager for the keys on the token of the given provider and read the keys.
+   *
+   * @param provider
+   *          The provider.
+   * @exception TokenException
+   *              If reading the keys or certificates fails.
+   * @preconditions (provider != null)
+   */
+  public PKCS11KeyManager(PKCS11Provider provider) throws TokenException {
+    if (provider == null) {
+      throw new NullPointerException("Argument \"provider\" must not be null.");
+    }
+    provider_ = provider;
+    refresh();
+  }
+
+  /**
+   * Read the private keys and certificates of the token again; e.g. after a key or certificate was
+   * renewed. Handshakes in progress keep the keys they got.
+   *
+   * @exception TokenException
+   *              If reading the keys or certificates fails.
+   */
+  public void refresh() throws TokenException {
+    aliases_ = provider_.execute(new SessionPool.SessionOperation<Map<String, Alias>>() {
+      public Map<String, Alias> execute(Session session) throws TokenException {
+        return readAliases(session);
+      }
+    });
+  }
+
+  public String[] getClientAliases(String keyType, Principal[] issuers) {
+    return getAliases(keyType, issuers);
+  }
+
+  public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+    if (keyTypes == null) {
+      return null;
+    }
+    for (int i = 0; i < keyTypes.length; i++) {
+      String alias = chooseAlias(keyTypes[i], issuers);
+      if (alias != null) {
+        return alias;
+      }
+    }
+
+    return null;
+  }
+
+  public String chooseEngineClientAlias(String[] keyTypes, Principal[] issuers, SSLEngine engine) {
+    return chooseClientAlias(keyTypes, issuers, null);
+  }
+
+  public String[] getServerAliases(String keyType, Principal[] issuers) {
+    return getAliases(keyType, issuers);
+  }
+
+  public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+    return chooseAlias(keyType, issuers);
+  }
+
+  public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+    return chooseAlias(keyType, issuers);
+  }
+
+  public X509Certificate[] getCertificateChain(String alias) {
+    Alias entry = (alias != null) ? aliases_.get(alias) : null;
+
+    return (entry != null) ? entry.chain_.clone() : null;
+  }
+
+  public java.security.PrivateKey getPrivateKey(String alias) {
+    Alias entry = (alias != null) ? aliases_.get(alias) : null;
+
+    return (entry != null) ? entry.privateKey_ : null;
+  }
+
+  /**
+   * Get the first alias matching the key type and issuers.
+   *
+   * @param keyType
+   *          The key type as given by JSSE; e.g. RSA, EC, RSASSA-PSS or EC_RSA.
+   * @param issuers
+   *          The accepted issuers or null for any.
+   * @return The alias or null.
+   */
+  protected String chooseAlias(String keyType, Principal[] issuers) {
+    String[] aliases = getAliases(keyType, issuers);
+
+    return (aliases != null) ? aliases[0] : null;
+  }
+
+  /**
+   * Get all aliases matching the key type and issuers.
+   *
+   * @param keyType
+   *          The key type as given by JSSE; e.g. RSA, EC, RSASSA-PSS or EC_RSA.
+   * @param issuers
+   *          The accepted issuers or null for any.
+   * @return The aliases or null, if there is none.
+   */
+  protected String[] getAliases(String keyType, Principal[] issuers) {
+    if (keyType == null) {
+      return null;
+    }
+    // for the old TLS key types like EC_RSA, the first part is the algorithm of the key
+    int separator = keyType.indexOf('_');
+    String keyAlgorithm = (separator > 0) ? keyType.substring(0, separator) : keyType;
+    if (keyAlgorithm.equals("RSASSA-PSS")) {
+      keyAlgorithm = "RSA";
+    }
+    Set<Principal> issuerSet = ((issuers != null) && (issuers.length > 0))
+        ? new HashSet<Principal>(Arrays.asList(issuers)) : null;
+
+    List<String> matching = new ArrayList<String>();
+    Map<String, Alias> aliases = aliases_;
+    Iterator<Map.Entry<String, Alias>> entries = aliases.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<String, Alias> entry = entries.next();
+      Alias alias = entry.getValue();
+      if (alias.privateKey_.getAlgorithm().equals(keyAlgorithm)
+          && ((issuerSet == null) || isIssuedBy(alias.chain_, issuerSet))) {
+        matching.add(entry.getKey());
+      }
+    }
+
+    return matching.isEmpty() ? null : matching.toArray(new String[matching.size()]);
+  }
+
+  /**
+   * Check, if one of the certificates of a chain is issued by one of the given issuers.
+   *
+   * @param chain
+   *          The chain.
+   * @param issuers
+   *          The issuers.
+   * @return True, if an issuer matches.
+   */
+  protected static boolean isIssuedBy(X509Certificate[] chain, Set<Principal> issuers) {
+    for (int i = 0; i < chain.length; i++) {
+      if (issuers.contains(chain[i].getIssuerX500Principal())) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Read the RSA and EC private keys and their chains. Only the handles of the keys are searched
+   * for; of each key, only the attributes an alias needs are read afterwards.
+   *
+   * @param session
+   *          The session to read with.
+   * @return The aliases.
+   * @exception TokenException
+   *              If reading fails.
+   */
+  protected Map<String, Alias> readAliases(Session session) throws TokenException {
+    CertificateIndex index = provider_.getSessionPool().getToken().getCertificateIndex();
+    index.load(session);
+
+    GenericTemplate template = new GenericTemplate();
+    ObjectClassAttribute classAttribute = new ObjectClassAttribute();
+    classAttribute.setLongValue(Object.ObjectClass.PRIVATE_KEY);
+    template.addAttribute(classAttribute);
+    List<Long> handles = new ArrayList<Long>();
+    session.findObjectsInit(template);
+    try {
+      long[] found;
+      while ((found = session.findObjectHandles(100)).length > 0) {
+        for (int i = 0; i < found.length; i++) {
+          handles.add(Long.valueOf(found[i]));
+        }
+      }
+    } finally {
+      session.findObjectsFinal();
+    }
+    List<PrivateKey> keys = new ArrayList<PrivateKey>(handles.size());
+    for (int i = 0; i < handles.size(); i++) {
+      PrivateKey key = readKey(session, handles.get(i).longValue());
+      if (key != null) {
+        keys.add(key);
+      }
+    }
+
+    Set<String> labels = new HashSet<String>();
+    Set<String> duplicateLabels = new HashSet<String>();
+    for (int i = 0; i < keys.size(); i++) {
+      char[] label = keys.get(i).getLabel().getCharArrayValue();
+      if ((label != null) && !labels.add(new String(label))) {
+        duplicateLabels.add(new String(label));
+      }
+    }
+
+    Map<String, Alias> aliases = new LinkedHashMap<String, Alias>();
+    for (int i = 0; i < keys.size(); i++) {
+      PrivateKey key = keys.get(i);
+      CertificateIndex.Entry certificate = index.getByKey(key);
+      if (certificate == null) {
+        continue;
+      }
+      PKCS11PrivateKey privateKey;
+      if (key instanceof RSAPrivateKey) {
+        BigInteger modulus = ((RSAPrivateKey) key).getModulus().getBigIntegerValue();
+        if (modulus == null) {
+          continue;
+        }
+        privateKey = new PKCS11PrivateKey.RSA(key, modulus);
+      } else {
+        privateKey = new PKCS11PrivateKey.EC(key, KeyMaterialDecoder
+            .getECParameterSpec(((ECDSAPrivateKey) key).getEcdsaParams()));
+      }
+      char[] label = key.getLabel().getCharArrayValue();
+      String name = ((label != null) && !duplicateLabels.contains(new String(label)))
+          ? new String(label) : Functions.toHexString(key.getId().getByteArrayValue());
+      aliases.put(name, new Alias(privateKey, index.getChain(certificate.getCertificate())));
+    }
+
+    return Collections.unmodifiableMap(aliases);
+  }
+
+  /**
+   * Read the class, key type, label, CKA_ID and the modulus or EC parameters of the private key
+   * with the given handle.
+   *
+   * @param session
+   *          The session to read with.
+   * @param objectHandle
+   *          The handle of the private key.
+   * @return The key or null, if it is neither an RSA nor an EC key.
+   * @exception TokenException
+   *              If reading the attributes fails.
+   */
+  protected PrivateKey readKey(Session session, long objectHandle) throws TokenException {
+    PrivateKey key = new PrivateKey();
+    Object.readAttributes(session, objectHandle, key,
+        new long[] { PKCS11Constants.CKA_KEY_TYPE });
+    Long keyType = key.getKeyType().getLongValue();
+    if (Key.KeyType.RSA.equals(keyType)) {
+      key = new RSAPrivateKey();
+      Object.readAttributes(session, objectHandle, key, RSA_ATTRIBUTE_TYPES);
+    } else if (Key.KeyType.EC.equals(keyType)) {
+      key = new ECDSAPrivateKey();
+      Object.readAttributes(session, objectHandle, key, EC_ATTRIBUTE_TYPES);
+    } else {
+      return null;
+    }
+
+    return key;
+  }
+
+}
@@ -0,0 +1,459 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.objects.ECDSAPrivateKey;
+import iaik.pkcs.pkcs11.objects.ECDSAPublicKey;
+import iaik.pkcs.pkcs11.objects.PrivateKey;
+import iaik.pkcs.pkcs11.objects.PublicKey;
+import iaik.pkcs.pkcs11.objects.RSAPrivateKey;
+import iaik.pkcs.pkcs11.wrapper.Functions;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGeneratorSpi;
+import java.security.ProviderException;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.RSAKeyGenParameterSpec;
+
+/**
+ * A KeyPairGenerator generating RSA and EC key-pairs on the token. The private key stays on the
+ * token and is returned as PKCS11PrivateKey; the public key is returned as JDK public key. Of the
+ * new keys, only the modulus or EC point is read from the token; all other attributes are taken
+ * from the template. The templates are compiled once per parameter set and shared by all
+ * generators of the provider, and each key-pair is generated with a session borrowed from the
+ * pool; thus, many threads can generate key-pairs at the same time.
+ *
+ * <pre>
+ * <code>
+ *   KeyPairGenerator generator = KeyPairGenerator.getInstance("EC", provider);
+ *   generator.initialize(new ECGenParameterSpec("secp256r1"));
+ *   KeyPair keyPair = generator.generateKeyPair();
+ * </code>
+ * </pre>
+ *
+ * The keys are session objects with the private key being private and sensitive. The public key
+ * object is destroyed right after reading it; the private key is destroyed when its token key
+ * object, which the PKCS11PrivateKey and the engines using the key refer to, becomes unreachable.
+ * Subclasses can override createRsaTemplate and createEcTemplate to generate other keys; e.g.
+ * persistent keys for enrollment. Keys whose template sets CKA_TOKEN to true are kept on the
+ * token; they are neither destroyed nor tracked.
+ *
+ * @version 1.0
+ * @invariants (provider_ != null) and (algorithm_ != null)
+ */
+public class PKCS11KeyPairGenerator extends KeyPairGeneratorSpi {
+
+  /**
+   * The provider this generator belongs to.
+   */
+  protected PKCS11Provider provider_;
+
+  /**
+   * "RSA" or "EC".
+   */
+  protected String algorithm_;
+
+  /**
+   * The template for the next key-pair; null, until initialized.
+   */
+  protected CompiledTemplate template_;
+
+  /**
+   * Create a new generator.
+   *
+   * @param provider
+   *          The provider this generator belongs to.
+   * @param algorithm
+   *          "RSA" or "EC".
+   * @preconditions (provider != null) and (algorithm != null)
+   */
+  public PKCS11KeyPairGenerator(PKCS11Provider provider, String algorithm) {
+    if (provider == null) {
+      throw new NullPointerException("Argument \"provider\" must not be null.");
+    }
+    if (!algorithm.equals("RSA") && !algorithm.equals("EC")) {
+      throw new IllegalArgumentException("Unsupported algorithm " + algorithm + ".");
+    }
+    provider_ = provider;
+    algorithm_ = algorithm;
+  }
+
+  /**
+   * Initialize with a key size. For RSA, the public exponent is 65537; for EC, the key size
+   * selects one of the curves secp256r1, secp384r1 and secp521r1.
+   *
+   * @param keysize
+   *          The size of the modulus or the field in bits.
+   * @param random
+   *          Ignored; the token uses its own random number generator.
+   */
+  public void initialize(int keysize, SecureRandom random) {
+    try {
+      if (algorithm_.equals("RSA")) {
+        initialize(new RSAKeyGenParameterSpec(keysize, RSAKeyGenParameterSpec.F4), random);
+      } else if (keysize == 256) {
+        initialize(new ECGenParameterSpec("secp256r1"), random);
+      } else if (keysize == 384) {
+        initialize(new ECGenParameterSpec("secp384r1"), random);
+      } else if (keysize == 521) {
+        initialize(new ECGenParameterSpec("secp521r1"), random);
+      } else {
+        throw new InvalidParameterException("Unsupported EC key size " + keysize + ".");
+      }
+    } catch (InvalidAlgorithmParameterException ex) {
+      throw new InvalidParameterException(ex.getMessage());
+    }
+  }
+
+  /**
+   * Initialize with parameters; an RSAKeyGenParameterSpec for RSA and an ECGenParameterSpec with
+   * the name of the curve or an ECParameterSpec for EC.
+   *
+   * @param params
+   *          The parameters.
+   * @param random
+   *          Ignored; the token uses its own random number generator.
+   * @exception InvalidAlgorithmParameterException
+   *              If the parameters are not supported.
+   */
+  public void initialize(AlgorithmParameterSpec params, SecureRandom random)
+      throws InvalidAlgorithmParameterException {
+    if (algorithm_.equals("RSA")) {
+      if (!(params instanceof RSAKeyGenParameterSpec)) {
+        throw new InvalidAlgorithmParameterException("RSAKeyGenParameterSpec required.");
+      }
+      RSAKeyGenParameterSpec rsaParams = (RSAKeyGenParameterSpec) params;
+      String id = getClass().getName() + ":RSA:" + rsaParams.getKeysize() + ":"
+          + rsaParams.getPublicExponent();
+      template_ = provider_.getCompiledTemplate(id);
+      if (template_ == null) {
+        template_ = provider_.putCompiledTemplate(id, createRsaTemplate(rsaParams));
+      }
+    } else {
+      if (!(params instanceof ECGenParameterSpec) && !(params instanceof ECParameterSpec)) {
+        throw new InvalidAlgorithmParameterException(
+            "ECGenParameterSpec or ECParameterSpec required.");
+      }
+      byte[] encodedParams;
+      ECParameterSpec ecParams;
+      try {
+        AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+        parameters.init(params);
+        encodedParams = parameters.getEncoded();
+        ecParams = parameters.getParameterSpec(ECParameterSpec.class);
+      } catch (GeneralSecurityException ex) {
+        throw new InvalidAlgorithmParameterException("Unsupported EC parameters.", ex);
+      } catch (IOException ex) {
+        throw new InvalidAlgorithmParameterException("Can not encode EC parameters.", ex);
+      }
+      String id = getClass().getName() + ":EC:" + Functions.toHexString(encodedParams);
+      template_ = provider_.getCompiledTemplate(id);
+      if (template_ == null) {
+        template_ = provider_.putCompiledTemplate(id, createEcTemplate(encodedParams, ecParams));
+      }
+    }
+  }
+
+  /**
+   * Generate a key-pair on the token.
+   *
+   * @return The new key-pair.
+   * @exception ProviderException
+   *              If generating the key-pair fails.
+   */
+  public KeyPair generateKeyPair() {
+    if (template_ == null) {
+      initialize(algorithm_.equals("RSA") ? 2048 : 256, null);
+    }
+    final CompiledTemplate template = template_;
+    try {
+      return provider_.execute(new SessionPool.SessionOperation<KeyPair>() {
+        public KeyPair execute(Session session) throws TokenException {
+          long[] handles = session.generateKeyPairHandles(template.getMechanism(),
+              template.getPublicKeyAttributes(), template.getKeyAttributes());
+          return createKeyPair(session, template, handles[0], handles[1]);
+        }
+      });
+    } catch (TokenException ex) {
+      throw new ProviderException("Generating the " + algorithm_ + " key-pair failed.", ex);
+    }
+  }
+
+  /**
+   * Create the JCA key-pair for the generated keys. It reads the modulus or EC point of the public
+   * key; all other values come from the template. A public session object is destroyed right after
+   * reading it, since the public key is used in the JVM only. A private session object is tracked
+   * by the SessionObjectTracker of the provider; it is destroyed when its token key object becomes
+   * unreachable. Token objects are kept. If creating the key-pair fails, both keys are destroyed.
+   *
+   * @param session
+   *          The session the keys were generated with.
+   * @param template
+   *          The template of the keys.
+   * @param publicKeyHandle
+   *          The handle of the public key.
+   * @param privateKeyHandle
+   *          The handle of the private key.
+   * @return The key-pair.
+   * @exception TokenException
+   *              If reading the public key or converting it fails.
+   */
+  protected KeyPair createKeyPair(Session session, CompiledTemplate template,
+      long publicKeyHandle, long privateKeyHandle) throws TokenException {
+    boolean rsa = algorithm_.equals("RSA");
+    boolean created = false;
+    try {
+      KeyPair keyPair = createKeyPair(session, template, publicKeyHandle, privateKeyHandle, rsa);
+      created = true;
+      return keyPair;
+    } finally {
+      if (!created || !template.isPublicKeyOnToken()) {
+        destroyQuietly(session, publicKeyHandle);
+      }
+      if (!created) {
+        destroyQuietly(session, privateKeyHandle);
+      }
+    }
+  }
+
+  /**
+   * Destroy the given object; if this fails, schedule it for destruction with the
+   * SessionObjectTracker of the provider.
+   *
+   * @param session
+   *          The session to use.
+   * @param handle
+   *          The handle of the object.
+   */
+  protected void destroyQuietly(Session session, long handle) {
+    try {
+      session.getModule().getPKCS11Module().C_DestroyObject(session.getSessionHandle(), handle);
+    } catch (TokenException ex) {
+      provider_.getSessionObjectTracker().destroyLater(handle);
+    }
+  }
+
+  /**
+   * Read the public key and create the JCA key-pair.
+   *
+   * @param session
+   *          The session the keys were generated with.
+   * @param template
+   *          The template of the keys.
+   * @param publicKeyHandle
+   *          The handle of the public key.
+   * @param privateKeyHandle
+   *          The handle of the private key.
+   * @param rsa
+   *          True for RSA, false for EC keys.
+   * @return The key-pair.
+   * @exception TokenException
+   *              If reading the public key or converting it fails.
+   */
+  protected KeyPair createKeyPair(Session session, CompiledTemplate template,
+      long publicKeyHandle, long privateKeyHandle, boolean rsa) throws TokenException {
+    byte[] value = session.getByteArrayAttributeValue(publicKeyHandle,
+        rsa ? PKCS11Constants.CKA_MODULUS : PKCS11Constants.CKA_EC_POINT);
+
+    // the public key object may be destroyed; thus, the converted key refers to no handle
+    PublicKey publicKey = (PublicKey) template.newPublicKeyObject(-1);
+    if (rsa) {
+      ((iaik.pkcs.pkcs11.objects.RSAPublicKey) publicKey).getModulus().setByteArrayValue(value);
+    } else {
+      ((ECDSAPublicKey) publicKey).getEcPoint().setByteArrayValue(value);
+    }
+    java.security.PublicKey javaPublicKey = provider_.getPublicKeyOffload().getJavaPublicKey(
+        publicKey);
+
+    PrivateKey privateKey = (PrivateKey) template.newKeyObject(privateKeyHandle);
+    PKCS11PrivateKey javaPrivateKey;
+    if (rsa) {
+      javaPrivateKey = new PKCS11PrivateKey.RSA(privateKey,
+          ((RSAPublicKey) javaPublicKey).getModulus());
+    } else {
+      javaPrivateKey = new PKCS11PrivateKey.EC(privateKey,
+          (ECParameterSpec) template.getParameterSpec());
+    }
+    provider_.getSessionObjectTracker().trackSessionObject(privateKey, privateKey, privateKey, 0L);
+
+    return new KeyPair(javaPublicKey, javaPrivateKey);
+  }
+
+  /**
+   * Create the template for RSA key-pairs with the given parameters.
+   *
+   * @param params
+   *          The size of the modulus and the public exponent.
+   * @return The compiled template.
+   * @exception InvalidAlgorithmParameterException
+   *              If compiling the template fails.
+   */
+  protected CompiledTemplate createRsaTemplate(RSAKeyGenParameterSpec params)
+      throws InvalidAlgorithmParameterException {
+    iaik.pkcs.pkcs11.objects.RSAPublicKey publicKeyTemplate =
+        new iaik.pkcs.pkcs11.objects.RSAPublicKey();
+    setPublicKeyAttributes(publicKeyTemplate);
+    publicKeyTemplate.getEncrypt().setBooleanValue(Boolean.TRUE);
+    publicKeyTemplate.getWrap().setBooleanValue(Boolean.TRUE);
+    publicKeyTemplate.getModulusBits().setLongValue(Long.valueOf(params.getKeysize()));
+    publicKeyTemplate.getPublicExponent().setByteArrayValue(
+        toUnsignedBytes(params.getPublicExponent()));
+
+    RSAPrivateKey privateKeyTemplate = new RSAPrivateKey();
+    setPrivateKeyAttributes(privateKeyTemplate);
+    privateKeyTemplate.getDecrypt().setBooleanValue(Boolean.TRUE);
+    privateKeyTemplate.getUnwrap().setBooleanValue(Boolean.TRUE);
+
+    return compile(PKCS11Constants.CKM_RSA_PKCS_KEY_PAIR_GEN, publicKeyTemplate,
+        privateKeyTemplate, params);
+  }
+
+  /**
+   * Create the template for EC key-pairs on the given curve.
+   *
+   * @param encodedParams
+   *          The DER encoding of the curve; usually its object identifier.
+   * @param params
+   *          The curve.
+   * @return The compiled template.
+   * @exception InvalidAlgorithmParameterException
+   *              If compiling the template fails.
+   */
+  protected CompiledTemplate createEcTemplate(byte[] encodedParams, ECParameterSpec params)
+      throws InvalidAlgorithmParameterException {
+    ECDSAPublicKey publicKeyTemplate = new ECDSAPublicKey();
+    setPublicKeyAttributes(publicKeyTemplate);
+    publicKeyTemplate.getEcdsaParams().setByteArrayValue(encodedParams);
+
+    ECDSAPrivateKey privateKeyTemplate = new ECDSAPrivateKey();
+    setPrivateKeyAttributes(privateKeyTemplate);
+    privateKeyTemplate.getDerive().setBooleanValue(Boolean.TRUE);
+
+    return compile(PKCS11Constants.CKM_EC_KEY_PAIR_GEN, publicKeyTemplate, privateKeyTemplate,
+        params);
+  }
+
+  /**
+   * Set the attributes common to all public key templates.
+   *
+   * @param template
+   *          The template.
+   */
+  protected void setPublicKeyAttributes(PublicKey template) {
+    template.getToken().setBooleanValue(Boolean.FALSE);
+    template.getVerify().setBooleanValue(Boolean.TRUE);
+  }
+
+  /**
+   * Set the attributes common to all private key templates.
+   *
+   * @param template
+   *          The template.
+   */
+  protected void setPrivateKeyAttributes(PrivateKey template) {
+    template.getToken().setBooleanValue(Boolean.FALSE);
+    template.getPrivate().setBooleanValue(Boolean.TRUE);
+    template.getSensitive().setBooleanValue(Boolean.TRUE);
+    template.getSign().setBooleanValue(Boolean.TRUE);
+  }
+
+  /**
+   * Compile the given templates.
+   *
+   * @param mechanismCode
+   *          The key-pair generation mechanism.
+   * @param publicKeyTemplate
+   *          The public key template.
+   * @param privateKeyTemplate
+   *          The private key template.
+   * @param params
+   *          The JCA parameters.
+   * @return The compiled template.
+   * @exception InvalidAlgorithmParameterException
+   *              If compiling the template fails.
+   */
+  protected static CompiledTemplate compile(long mechanismCode, PublicKey publicKeyTemplate,
+      PrivateKey privateKeyTemplate, AlgorithmParameterSpec params)
+      throws InvalidAlgorithmParameterException {
+    try {
+      return new CompiledTemplate(Mechanism.get(mechanismCode), publicKeyTemplate,
+          privateKeyTemplate, params);
+    } catch (TokenException ex) {
+      throw new InvalidAlgorithmParameterException("Can not compile the key template.", ex);
+    }
+  }
+
+  /**
+   * Get the unsigned big-endian encoding of a positive integer.
+   *
+   * @param value
+   *          The integer.
+   * @return The encoding without leading zero byte.
+   */
+  protected static byte[] toUnsignedBytes(BigInteger value) {
+    byte[] bytes = value.toByteArray();
+    if ((bytes.length > 1) && (bytes[0] == 0)) {
+      byte[] unsigned = new byte[bytes.length - 1];
+      System.arraycopy(bytes, 1, unsigned, 0, unsigned.length);
+      bytes = unsigned;
+    }
+
+    return bytes;
+  }
+
+}
@@ -0,0 +1,420 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.objects.AESSecretKey;
+import iaik.pkcs.pkcs11.wrapper.CK_MECHANISM;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.ProviderException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+
+import javax.crypto.MacSpi;
+
+/**
+ * A Mac computing HMACs and AES-CMACs with secret keys on the token.
+ *
+ * <pre>
+ * <code>
+ *   Mac mac = Mac.getInstance("HmacSHA256", provider);
+ *   mac.init(hmacKey);
+ *   byte[] tag = mac.doFinal(message);
+ * </code>
+ * </pre>
+ *
+ * The input is collected in a buffer of this object; a Mac object is used by one thread at a
+ * time, so the buffer is in effect per thread. Inputs up to the single-part limit are signed with
+ * a pooled session in doFinal, with one C_SignInit and one C_Sign call. The mechanism structure
+ * and the key handle are prepared in init; thus, no conversion or attribute read happens between
+ * these calls. Longer inputs are passed to the token with one signUpdate call per update, with a
+ * session held until doFinal. If a Mac is dropped in the middle of such an operation, a cleaner
+ * ends the operation and returns the session.
+ *
+ * @version 1.0
+ * @invariants (provider_ != null) and (algorithm_ != null) and (ckMechanism_ != null)
+ */
+public class PKCS11Mac extends MacSpi implements Cloneable {
+
+  /**
+   * Ends the multipart operation of a Mac and returns its session to the pool. It is run by the
+   * cleaner, when the Mac became unreachable, or by engineReset. It must not refer to the Mac.
+   */
+  protected static class OperationEnd implements Runnable {
+
+    protected final SessionPool sessionPool_;
+
+    protected final Session session_;
+
+    /**
+     * The registration of this action with the cleaner.
+     */
+    protected Cleaner.Cleanable cleanable_;
+
+    /**
+     * True, if the Mac finished the operation itself; then, this action does nothing.
+     */
+    protected volatile boolean detached_;
+
+    protected OperationEnd(SessionPool sessionPool, Session session) {
+      sessionPool_ = sessionPool;
+      session_ = session;
+    }
+
+    public void run() {
+      if (detached_) {
+        return;
+      }
+      // end the operation; closing the session would destroy its session objects
+      TokenException failure = null;
+      try {
+        session_.signFinal();
+      } catch (TokenException ex) {
+        // the operation is terminated anyway
+        failure = ex;
+      } catch (RuntimeException ex) {
+        sessionPool_.invalidateSession(session_);
+        return;
+      }
+      sessionPool_.returnSession(session_, failure);
+    }
+
+  }
+
+  /**
+   * The number of bytes up to which the input is signed with a single sign call.
+   */
+  protected static final int SINGLE_PART_LIMIT = 8192;
+
+  /**
+   * The initial size of the input buffer.
+   */
+  protected static final int INITIAL_BUFFER_SIZE = 256;
+
+  /**
+   * The cleaner ending the operations of abandoned Macs; shared by all Macs.
+   */
+  protected static final Cleaner cleaner_ = Cleaner.create();
+
+  /**
+   * The provider this Mac belongs to.
+   */
+  protected PKCS11Provider provider_;
+
+  /**
+   * The JCA name of the algorithm; e.g. "HmacSHA256".
+   */
+  protected String algorithm_;
+
+  /**
+   * The prepared mechanism; it has no parameters. Each Mac prepares its own in the constructor.
+   */
+  protected CK_MECHANISM ckMechanism_;
+
+  /**
+   * The length of the MAC in bytes.
+   */
+  protected int macLength_;
+
+  /**
+   * The key or null, if not initialized. It is kept, since a generated key is destroyed when its
+   * object becomes unreachable.
+   */
+  protected iaik.pkcs.pkcs11.objects.Key key_;
+
+  /**
+   * The handle of the key or -1, if not initialized.
+   */
+  protected long keyHandle_ = -1L;
+
+  /**
+   * The input not yet passed to the token.
+   */
+  protected byte[] buffer_ = new byte[INITIAL_BUFFER_SIZE];
+
+  /**
+   * The number of bytes in buffer_.
+   */
+  protected int bufferLength_;
+
+  /**
+   * The session of a multipart operation or null.
+   */
+  protected Session session_;
+
+  /**
+   * The action ending the current multipart operation, if the Mac is abandoned, or null.
+   */
+  protected OperationEnd operationEnd_;
+
+  /**
+   * Create a new Mac.
+   *
+   * @param provider
+   *          The provider this Mac belongs to.
+   * @param algorithm
+   *          "HmacSHA1", "HmacSHA256", "HmacSHA384", "HmacSHA512" or "AESCMAC".
+   * @preconditions (provider != null) and (algorithm != null)
+   */
+  public PKCS11Mac(PKCS11Provider provider, String algorithm) {
+    if (provider == null) {
+      throw new NullPointerException("Argument \"provider\" must not be null.");
+    }
+    long mechanismCode;
+    if (algorithm.equals("HmacSHA1")) {
+      mechanismCode = PKCS11Constants.CKM_SHA_1_HMAC;
+      macLength_ = 20;
+    } else if (algorithm.equals("HmacSHA256")) {
+      mechanismCode = PKCS11Constants.CKM_SHA256_HMAC;
+      macLength_ = 32;
+    } else if (algorithm.equals("HmacSHA384")) {
+      mechanismCode = PKCS11Constants.CKM_SHA384_HMAC;
+      macLength_ = 48;
+    } else if (algorithm.equals("HmacSHA512")) {
+      mechanismCode = PKCS11Constants.CKM_SHA512_HMAC;
+      macLength_ = 64;
+    } else if (algorithm.equals("AESCMAC")) {
+      mechanismCode = PKCS11Constants.CKM_AES_CMAC;
+      macLength_ = 16;
+    } else {
+      throw new IllegalArgumentException("Unsupported algorithm " + algorithm + ".");
+    }
+    provider_ = provider;
+    algorithm_ = algorithm;
+    ckMechanism_ = new CK_MECHANISM();
+    ckMechanism_.mechanism = mechanismCode;
+  }
+
+  protected int engineGetMacLength() {
+    return macLength_;
+  }
+
+  protected void engineInit(Key key, AlgorithmParameterSpec params)
+      throws InvalidKeyException, InvalidAlgorithmParameterException {
+    if (params != null) {
+      throw new InvalidAlgorithmParameterException(algorithm_ + " takes no parameters.");
+    }
+    if (!(key instanceof PKCS11SecretKey)) {
+      throw new InvalidKeyException("Secret key of a PKCS#11 provider required.");
+    }
+    iaik.pkcs.pkcs11.objects.Key tokenKey = ((PKCS11SecretKey) key).getTokenKey();
+    if (algorithm_.equals("AESCMAC") && !(tokenKey instanceof AESSecretKey)) {
+      throw new InvalidKeyException("AES key required.");
+    }
+    engineReset();
+    key_ = tokenKey;
+    keyHandle_ = tokenKey.getObjectHandle();
+  }
+
+  protected void engineUpdate(byte input) {
+    engineUpdate(new byte[] { input }, 0, 1);
+  }
+
+  protected void engineUpdate(byte[] input, int offset, int len) {
+    checkInitialized();
+    if ((session_ == null) && (bufferLength_ + len <= SINGLE_PART_LIMIT)) {
+      ensureCapacity(bufferLength_ + len);
+      System.arraycopy(input, offset, buffer_, bufferLength_, len);
+      bufferLength_ += len;
+      return;
+    }
+    try {
+      startMultiPart();
+      if (bufferLength_ > 0) {
+        session_.signUpdate(Arrays.copyOf(buffer_, bufferLength_));
+        bufferLength_ = 0;
+      }
+      byte[] part = ((offset == 0) && (len == input.length)) ? input
+          : Arrays.copyOfRange(input, offset, offset + len);
+      session_.signUpdate(part);
+    } catch (TokenException ex) {
+      engineReset();
+      throw new ProviderException("Computing the MAC failed.", ex);
+    }
+  }
+
+  protected void engineUpdate(ByteBuffer input) {
+    if (input.hasArray()) {
+      engineUpdate(input.array(), input.arrayOffset() + input.position(), input.remaining());
+      input.position(input.limit());
+    } else {
+      super.engineUpdate(input);
+    }
+  }
+
+  protected byte[] engineDoFinal() {
+    checkInitialized();
+    final byte[] data = (bufferLength_ == buffer_.length) ? buffer_
+        : Arrays.copyOf(buffer_, bufferLength_);
+    bufferLength_ = 0;
+    Session session = session_;
+    session_ = null;
+    detachOperationEnd(true);
+    try {
+      if (session == null) {
+        return provider_.execute(new SessionPool.SessionOperation<byte[]>() {
+          public byte[] execute(Session session) throws TokenException {
+            session.signInit(ckMechanism_, keyHandle_);
+            return session.sign(data);
+          }
+        });
+      }
+      TokenException failure = null;
+      try {
+        if (data.length > 0) {
+          session.signUpdate(data);
+        }
+        return session.signFinal();
+      } catch (TokenException ex) {
+        failure = ex;
+        throw ex;
+      } finally {
+        provider_.getSessionPool().returnSession(session, failure);
+      }
+    } catch (TokenException ex) {
+      throw new ProviderException("Computing the MAC failed.", ex);
+    }
+  }
+
+  protected void engineReset() {
+    bufferLength_ = 0;
+    session_ = null;
+    detachOperationEnd(false);
+  }
+
+  /**
+   * Clone this Mac, unless a multipart operation is active.
+   *
+   * @return The clone.
+   * @exception CloneNotSupportedException
+   *              If a multipart operation is active; its state is on the token.
+   */
+  public java.lang.Object clone() throws CloneNotSupportedException {
+    if (session_ != null) {
+      throw new CloneNotSupportedException("A multipart operation is active.");
+    }
+    PKCS11Mac clone = (PKCS11Mac) super.clone();
+    clone.operationEnd_ = null;
+    clone.buffer_ = buffer_.clone();
+
+    return clone;
+  }
+
+  /**
+   * Borrow a session and initialize the operation, unless done before.
+   *
+   * @exception TokenException
+   *              If borrowing the session, logging in or initializing fails.
+   */
+  protected void startMultiPart() throws TokenException {
+    if (session_ != null) {
+      return;
+    }
+    SessionPool sessionPool = provider_.getSessionPool();
+    Session session = sessionPool.borrowSession();
+    try {
+      sessionPool.getToken().getLoginManager().ensureLoggedIn(session);
+      session.signInit(ckMechanism_, keyHandle_);
+    } catch (TokenException ex) {
+      sessionPool.returnSession(session, ex);
+      throw ex;
+    } catch (RuntimeException ex) {
+      sessionPool.invalidateSession(session);
+      throw ex;
+    }
+    session_ = session;
+    operationEnd_ = new OperationEnd(sessionPool, session);
+    operationEnd_.cleanable_ = cleaner_.register(this, operationEnd_);
+  }
+
+  /**
+   * Remove the registration of the action ending the current multipart operation.
+   *
+   * @param finished
+   *          True, if the caller ends the operation itself; false, to end it with the action now.
+   */
+  protected void detachOperationEnd(boolean finished) {
+    OperationEnd operationEnd = operationEnd_;
+    operationEnd_ = null;
+    if (operationEnd == null) {
+      return;
+    }
+    // cleaning unregisters the action and runs it once; a detached action does nothing
+    operationEnd.detached_ = finished;
+    operationEnd.cleanable_.clean();
+  }
+
+  /**
+   * Grow the buffer to hold at least the given number of bytes.
+   *
+   * @param capacity
+   *          The required capacity.
+   */
+  protected void ensureCapacity(int capacity) {
+    if (capacity > buffer_.length) {
+      buffer_ = Arrays.copyOf(buffer_, Math.min(Math.max(2 * buffer_.length, capacity),
+          SINGLE_PART_LIMIT));
+    }
+  }
+
+  /**
+   * Check that the Mac is initialized.
+   *
+   * @exception IllegalStateException
+   *              If not initialized.
+   */
+  protected void checkInitialized() {
+    if (keyHandle_ == -1L) {
+      throw new IllegalStateException("The MAC is not initialized.");
+    }
+  }
+
+}
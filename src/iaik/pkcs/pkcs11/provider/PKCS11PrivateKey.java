@@ -0,0 +1,115 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.objects.PrivateKey;
+
+import java.math.BigInteger;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.security.spec.ECParameterSpec;
+
+/**
+ * A JCA private key referring to a private key object on the token. The nested classes add the
+ * public parameters of RSA and EC keys, which other engines need, e.g. for the output length.
+ *
+ * @version 1.0
+ */
+public class PKCS11PrivateKey extends PKCS11Key implements java.security.PrivateKey {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * An RSA private key with its modulus.
+   */
+  public static class RSA extends PKCS11PrivateKey implements RSAKey {
+
+    private static final long serialVersionUID = 1L;
+
+    protected BigInteger modulus_;
+
+    public RSA(PrivateKey key, BigInteger modulus) {
+      super(key, "RSA");
+      modulus_ = modulus;
+    }
+
+    public BigInteger getModulus() {
+      return modulus_;
+    }
+
+  }
+
+  /**
+   * An EC private key with its curve.
+   */
+  public static class EC extends PKCS11PrivateKey implements ECKey {
+
+    private static final long serialVersionUID = 1L;
+
+    protected transient ECParameterSpec params_;
+
+    public EC(PrivateKey key, ECParameterSpec params) {
+      super(key, "EC");
+      params_ = params;
+    }
+
+    public ECParameterSpec getParams() {
+      return params_;
+    }
+
+  }
+
+  /**
+   * Create a new private key.
+   *
+   * @param key
+   *          The private key object on the token.
+   * @param algorithm
+   *          The JCA name of the algorithm; e.g. "RSA".
+   * @preconditions (key != null) and (algorithm != null)
+   */
+  public PKCS11PrivateKey(PrivateKey key, String algorithm) {
+    super(key, algorithm);
+  }
+
+}
@@ -0,0 +1,414 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.LoginManager;
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.ObjectDestroyer;
+import iaik.pkcs.pkcs11.PrehashSigner;
+import iaik.pkcs.pkcs11.PublicKeyOffload;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionObjectTracker;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A JCA provider for the operations of a token. All services of one provider instance share the
+ * sessions of the given pool; operations are executed with the login manager of the token, so the
+ * PIN must be set there, if the token requires a login.
+ *
+ * <pre>
+ * <code>
+ *   SessionPool sessionPool = new SessionPool(token, false, 8);
+ *   Provider provider = new PKCS11Provider("PKCS11-HSM", sessionPool);
+ *   SecureRandom random = SecureRandom.getInstance("PKCS11", provider);
+ * </code>
+ * </pre>
+ *
+ * The provider is not installed; pass it to the getInstance methods or install it with
+ * Security.addProvider.
+ *
+ * @version 1.0
+ * @invariants (sessionPool_ != null)
+ */
+public class PKCS11Provider extends Provider {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * A service whose implementations are created by the provider.
+   */
+  protected static class PKCS11Service extends Provider.Service {
+
+    protected PKCS11Service(PKCS11Provider provider, String type, String algorithm,
+        String className) {
+      super(provider, type, algorithm, className, null, null);
+    }
+
+    protected PKCS11Service(PKCS11Provider provider, String type, String algorithm,
+        String className, Map<String, String> attributes) {
+      super(provider, type, algorithm, className, null, attributes);
+    }
+
+    public Object newInstance(Object constructorParameter) throws NoSuchAlgorithmException {
+      return ((PKCS11Provider) getProvider()).newEngine(getType(), getAlgorithm());
+    }
+
+  }
+
+  /**
+   * The pool of sessions used by all services.
+   */
+  protected transient SessionPool sessionPool_;
+
+  /**
+   * The buffer of all SecureRandom instances; null, until first used.
+   */
+  protected transient RandomBuffer randomBuffer_;
+
+  /**
+   * Converts public keys read from the token into JDK public keys.
+   */
+  protected transient PublicKeyOffload publicKeyOffload_ = new PublicKeyOffload();
+
+  /**
+   * The compiled key generation templates. The key of this table is an ID of the parameter set;
+   * e.g. "RSA:2048:65537".
+   */
+  protected final transient ConcurrentHashMap<String, CompiledTemplate> compiledTemplates_ =
+      new ConcurrentHashMap<String, CompiledTemplate>();
+
+  /**
+   * The tracker destroying derived session objects; null, until first used.
+   */
+  protected transient SessionObjectTracker sessionObjectTracker_;
+
+  /**
+   * The signer of the Signature services.
+   */
+  protected transient PrehashSigner prehashSigner_;
+
+  /**
+   * The number of bytes ciphers collect before passing them to the token.
+   */
+  protected volatile int cipherChunkSize_ = 16384;
+
+  /**
+   * Create a new provider using the sessions of the given pool.
+   *
+   * @param name
+   *          The name of the provider.
+   * @param sessionPool
+   *          The pool of sessions with the token.
+   * @preconditions (name != null) and (sessionPool != null)
+   */
+  public PKCS11Provider(String name, SessionPool sessionPool) {
+    super(name, "1.0", "PKCS#11 token provider");
+    if (sessionPool == null) {
+      throw new NullPointerException("Argument \"sessionPool\" must not be null.");
+    }
+    sessionPool_ = sessionPool;
+    prehashSigner_ = new PrehashSigner(sessionPool.getToken());
+    // the JDK synchronizes SecureRandom calls unless the service is marked thread-safe
+    Map<String, String> threadSafe = new HashMap<String, String>();
+    threadSafe.put("ThreadSafe", "true");
+    putService(new PKCS11Service(this, "SecureRandom", "PKCS11",
+        PKCS11SecureRandom.class.getName(), threadSafe));
+    putService(new PKCS11Service(this, "KeyPairGenerator", "RSA",
+        PKCS11KeyPairGenerator.class.getName()));
+    putService(new PKCS11Service(this, "KeyPairGenerator", "EC",
+        PKCS11KeyPairGenerator.class.getName()));
+    String[] keyGeneratorAlgorithms = { "AES", "HmacSHA1", "HmacSHA256", "HmacSHA384",
+        "HmacSHA512" };
+    for (int i = 0; i < keyGeneratorAlgorithms.length; i++) {
+      putService(new PKCS11Service(this, "KeyGenerator", keyGeneratorAlgorithms[i],
+          PKCS11KeyGenerator.class.getName()));
+    }
+    String[] transformations = { "AES/GCM/NoPadding", "AES/CBC/NoPadding",
+        "AES/CBC/PKCS5Padding", "AES/ECB/NoPadding", "RSA/ECB/PKCS1Padding",
+        "RSA/ECB/OAEPPadding", "RSA/ECB/OAEPWithSHA-1AndMGF1Padding",
+        "RSA/ECB/OAEPWithSHA-256AndMGF1Padding" };
+    for (int i = 0; i < transformations.length; i++) {
+      putService(new PKCS11Service(this, "Cipher", transformations[i],
+          PKCS11Cipher.class.getName()));
+    }
+    String[] macAlgorithms = { "HmacSHA1", "HmacSHA256", "HmacSHA384", "HmacSHA512" };
+    for (int i = 0; i < macAlgorithms.length; i++) {
+      putService(new PKCS11Service(this, "Mac", macAlgorithms[i], PKCS11Mac.class.getName()));
+    }
+    if (isMechanismSupported(PKCS11Constants.CKM_AES_CMAC)) {
+      putService(new PKCS11Service(this, "Mac", "AESCMAC", PKCS11Mac.class.getName()));
+    }
+    putService(new PKCS11Service(this, "KeyAgreement", "ECDH",
+        PKCS11KeyAgreement.class.getName()));
+    // only for token keys; the JDK selects other providers for JDK keys and for verification
+    Map<String, String> privateKeyOnly = new HashMap<String, String>();
+    privateKeyOnly.put("SupportedKeyClasses", PKCS11PrivateKey.class.getName());
+    String[] signatureAlgorithms = { "SHA1withRSA", "SHA256withRSA", "SHA384withRSA",
+        "SHA512withRSA", "RSASSA-PSS", "SHA1withECDSA", "SHA256withECDSA", "SHA384withECDSA",
+        "SHA512withECDSA" };
+    for (int i = 0; i < signatureAlgorithms.length; i++) {
+      putService(new PKCS11Service(this, "Signature", signatureAlgorithms[i],
+          PKCS11Signature.class.getName(), privateKeyOnly));
+    }
+  }
+
+  /**
+   * Get the pool of sessions used by all services.
+   *
+   * @return The session pool.
+   * @postconditions (result != null)
+   */
+  public SessionPool getSessionPool() {
+    return sessionPool_;
+  }
+
+  /**
+   * Perform the given operation with a pooled session of a logged in token.
+   *
+   * @param operation
+   *          The operation.
+   * @return The result of the operation.
+   * @exception TokenException
+   *              If borrowing a session, logging in or the operation fails.
+   * @preconditions (operation != null)
+   */
+  public <T> T execute(final SessionPool.SessionOperation<T> operation) throws TokenException {
+    final LoginManager loginManager = sessionPool_.getToken().getLoginManager();
+    return sessionPool_.execute(new SessionPool.SessionOperation<T>() {
+      public T execute(Session session) throws TokenException {
+        return loginManager.execute(session, operation);
+      }
+    });
+  }
+
+  /**
+   * Get the converter of public keys shared by the services.
+   *
+   * @return The converter.
+   * @postconditions (result != null)
+   */
+  public PublicKeyOffload getPublicKeyOffload() {
+    return publicKeyOffload_;
+  }
+
+  /**
+   * Get a cached key generation template.
+   *
+   * @param id
+   *          The ID of the parameter set.
+   * @return The template or null, if none is cached for the ID.
+   * @preconditions (id != null)
+   */
+  public CompiledTemplate getCompiledTemplate(String id) {
+    return compiledTemplates_.get(id);
+  }
+
+  /**
+   * Cache a key generation template. If another thread cached one for the same ID first, that one
+   * is kept.
+   *
+   * @param id
+   *          The ID of the parameter set.
+   * @param template
+   *          The template.
+   * @return The cached template.
+   * @preconditions (id != null) and (template != null)
+   * @postconditions (result != null)
+   */
+  public CompiledTemplate putCompiledTemplate(String id, CompiledTemplate template) {
+    CompiledTemplate cached = compiledTemplates_.putIfAbsent(id, template);
+
+    return (cached != null) ? cached : template;
+  }
+
+  /**
+   * Get the number of bytes ciphers collect before passing them to the token.
+   *
+   * @return The chunk size in bytes.
+   */
+  public int getCipherChunkSize() {
+    return cipherChunkSize_;
+  }
+
+  /**
+   * Set the number of bytes ciphers collect before passing them to the token. Larger chunks save
+   * round trips; smaller chunks return output earlier. Ciphers use the new size when initialized
+   * the next time.
+   *
+   * @param chunkSize
+   *          The chunk size in bytes; a multiple of 16.
+   * @preconditions (chunkSize > 0) and (chunkSize % 16 == 0)
+   */
+  public void setCipherChunkSize(int chunkSize) {
+    if ((chunkSize <= 0) || (chunkSize % 16 != 0)) {
+      throw new IllegalArgumentException("The chunk size must be a positive multiple of 16.");
+    }
+    cipherChunkSize_ = chunkSize;
+  }
+
+  /**
+   * Get the signer of the Signature services. It hashes in the JVM, if the token supports the raw
+   * signature mechanisms.
+   *
+   * @return The signer.
+   * @postconditions (result != null)
+   */
+  public PrehashSigner getPrehashSigner() {
+    return prehashSigner_;
+  }
+
+  /**
+   * Get the tracker destroying the session objects derived by the services. It is created on first
+   * use and destroys objects in batches of up to 256 every 100 milliseconds.
+   *
+   * @return The tracker.
+   * @postconditions (result != null)
+   */
+  public synchronized SessionObjectTracker getSessionObjectTracker() {
+    if (sessionObjectTracker_ == null) {
+      sessionObjectTracker_ = new SessionObjectTracker(new ObjectDestroyer(sessionPool_, 2), 100L,
+          256);
+    }
+
+    return sessionObjectTracker_;
+  }
+
+  /**
+   * Get the random buffer of the SecureRandom service. It is created with blocks of 4096 bytes, a
+   * low-water mark of 4 blocks and without mixing on first use, unless set before.
+   *
+   * @return The random buffer.
+   * @postconditions (result != null)
+   */
+  public synchronized RandomBuffer getRandomBuffer() {
+    if (randomBuffer_ == null) {
+      randomBuffer_ = new RandomBuffer(sessionPool_, 4096, 4, false);
+    }
+
+    return randomBuffer_;
+  }
+
+  /**
+   * Set the random buffer of the SecureRandom service; e.g. to enable mixing with a DRBG. The
+   * previous buffer is closed, which stops its refill thread and overwrites its unserved bytes;
+   * SecureRandom instances created before fail afterwards. Thus, set the buffer before the first
+   * SecureRandom instance is created.
+   *
+   * @param randomBuffer
+   *          The random buffer.
+   * @preconditions (randomBuffer != null)
+   */
+  public synchronized void setRandomBuffer(RandomBuffer randomBuffer) {
+    if (randomBuffer == null) {
+      throw new NullPointerException("Argument \"randomBuffer\" must not be null.");
+    }
+    RandomBuffer previous = randomBuffer_;
+    randomBuffer_ = randomBuffer;
+    if ((previous != null) && (previous != randomBuffer)) {
+      previous.close();
+    }
+  }
+
+  /**
+   * Check, if the token lists the given mechanism.
+   *
+   * @param mechanismCode
+   *          The mechanism code.
+   * @return True, if the token supports the mechanism; false, if not or if the mechanism list
+   *         can not be read.
+   */
+  protected boolean isMechanismSupported(long mechanismCode) {
+    try {
+      Mechanism[] mechanisms = sessionPool_.getToken().getMechanismList();
+      for (int i = 0; i < mechanisms.length; i++) {
+        if (mechanisms[i].getMechanismCode() == mechanismCode) {
+          return true;
+        }
+      }
+    } catch (TokenException ex) {
+      // offer only the services every token has
+    }
+
+    return false;
+  }
+
+  /**
+   * Create a new implementation of the given service.
+   *
+   * @param type
+   *          The type of the service; e.g. "SecureRandom".
+   * @param algorithm
+   *          The algorithm of the service.
+   * @return The new implementation.
+   * @exception NoSuchAlgorithmException
+   *              If this provider has no such service.
+   */
+  protected Object newEngine(String type, String algorithm) throws NoSuchAlgorithmException {
+    if (type.equals("SecureRandom")) {
+      return new PKCS11SecureRandom(getRandomBuffer());
+    } else if (type.equals("KeyPairGenerator")) {
+      return new PKCS11KeyPairGenerator(this, algorithm);
+    } else if (type.equals("KeyGenerator")) {
+      return new PKCS11KeyGenerator(this, algorithm);
+    } else if (type.equals("Cipher")) {
+      return new PKCS11Cipher(this, algorithm);
+    } else if (type.equals("Mac")) {
+      return new PKCS11Mac(this, algorithm);
+    } else if (type.equals("KeyAgreement")) {
+      return new PKCS11KeyAgreement(this);
+    } else if (type.equals("Signature")) {
+      return new PKCS11Signature(this, algorithm);
+    }
+
+    throw new NoSuchAlgorithmException(type + "." + algorithm + " is not supported.");
+  }
+
+}
@@ -0,0 +1,104 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.TokenException;
+
+import java.security.ProviderException;
+import java.security.SecureRandomSpi;
+
+/**
+ * A SecureRandom implementation returning random bytes of a token. The bytes are served from a
+ * RandomBuffer shared by all instances of the same provider.
+ *
+ * @see RandomBuffer
+ * @version 1.0
+ * @invariants (randomBuffer_ != null)
+ */
+public class PKCS11SecureRandom extends SecureRandomSpi {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * The buffer the bytes are taken from.
+   */
+  protected RandomBuffer randomBuffer_;
+
+  /**
+   * Create a new instance.
+   *
+   * @param randomBuffer
+   *          The buffer the bytes are taken from.
+   * @preconditions (randomBuffer != null)
+   */
+  public PKCS11SecureRandom(RandomBuffer randomBuffer) {
+    if (randomBuffer == null) {
+      throw new NullPointerException("Argument \"randomBuffer\" must not be null.");
+    }
+    randomBuffer_ = randomBuffer;
+  }
+
+  protected void engineSetSeed(byte[] seed) {
+    try {
+      randomBuffer_.setSeed(seed);
+    } catch (TokenException ex) {
+      throw new ProviderException("Seeding the token failed.", ex);
+    }
+  }
+
+  protected void engineNextBytes(byte[] bytes) {
+    try {
+      randomBuffer_.nextBytes(bytes);
+    } catch (TokenException ex) {
+      throw new ProviderException("Generating random bytes failed.", ex);
+    }
+  }
+
+  protected byte[] engineGenerateSeed(int numBytes) {
+    byte[] seed = new byte[numBytes];
+    engineNextBytes(seed);
+
+    return seed;
+  }
+
+}
@@ -0,0 +1,437 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.PrehashSigner;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.parameters.RSAPkcsPssParameters;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.ProviderException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.SignatureSpi;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A signature with a private key on the token; e.g. for the handshake signatures of a TLS server
+ * using PKCS11KeyManager. If the token supports the raw mechanism, the data is hashed in the JVM
+ * and only the digest is signed on the token (see PrehashSigner); thus, a signature costs one
+ * C_SignInit and one C_Sign call with a pooled session, whatever the size of the data. Otherwise,
+ * the data is collected and signed with the hash-and-sign mechanism.
+ *
+ * <pre>
+ * <code>
+ *   Signature signature = Signature.getInstance("SHA256withECDSA", provider);
+ *   signature.initSign(privateKey);
+ *   signature.update(data);
+ *   byte[] signatureValue = signature.sign();
+ * </code>
+ * </pre>
+ *
+ * Supported are SHA1withRSA, SHA256withRSA, SHA384withRSA, SHA512withRSA, RSASSA-PSS and
+ * SHA1withECDSA to SHA512withECDSA. ECDSA signatures are DER encoded as the JDK expects them.
+ * Verification is left to the JDK providers; the services only accept PKCS11PrivateKey objects.
+ *
+ * @version 1.0
+ * @invariants (provider_ != null) and (algorithm_ != null)
+ */
+public class PKCS11Signature extends SignatureSpi {
+
+  /**
+   * The hash-and-sign mechanisms of the algorithms with fixed mechanism.
+   */
+  protected static final Map<String, Long> MECHANISMS = new HashMap<String, Long>();
+
+  static {
+    MECHANISMS.put("SHA1withRSA", Long.valueOf(PKCS11Constants.CKM_SHA1_RSA_PKCS));
+    MECHANISMS.put("SHA256withRSA", Long.valueOf(PKCS11Constants.CKM_SHA256_RSA_PKCS));
+    MECHANISMS.put("SHA384withRSA", Long.valueOf(PKCS11Constants.CKM_SHA384_RSA_PKCS));
+    MECHANISMS.put("SHA512withRSA", Long.valueOf(PKCS11Constants.CKM_SHA512_RSA_PKCS));
+    MECHANISMS.put("SHA1withECDSA", Long.valueOf(PKCS11Constants.CKM_ECDSA_SHA1));
+    MECHANISMS.put("SHA256withECDSA", Long.valueOf(PKCS11Constants.CKM_ECDSA_SHA256));
+    MECHANISMS.put("SHA384withECDSA", Long.valueOf(PKCS11Constants.CKM_ECDSA_SHA384));
+    MECHANISMS.put("SHA512withECDSA", Long.valueOf(PKCS11Constants.CKM_ECDSA_SHA512));
+  }
+
+  /**
+   * The PSS mechanism, hash mechanism and MGF of each digest algorithm.
+   */
+  protected static final Map<String, long[]> PSS_MECHANISMS = new HashMap<String, long[]>();
+
+  static {
+    PSS_MECHANISMS.put("SHA-1", new long[] { PKCS11Constants.CKM_SHA1_RSA_PKCS_PSS,
+        PKCS11Constants.CKM_SHA_1, PKCS11Constants.CKG_MGF1_SHA1 });
+    PSS_MECHANISMS.put("SHA-256", new long[] { PKCS11Constants.CKM_SHA256_RSA_PKCS_PSS,
+        PKCS11Constants.CKM_SHA256, PKCS11Constants.CKG_MGF1_SHA256 });
+    PSS_MECHANISMS.put("SHA-384", new long[] { PKCS11Constants.CKM_SHA384_RSA_PKCS_PSS,
+        PKCS11Constants.CKM_SHA384, PKCS11Constants.CKG_MGF1_SHA384 });
+    PSS_MECHANISMS.put("SHA-512", new long[] { PKCS11Constants.CKM_SHA512_RSA_PKCS_PSS,
+        PKCS11Constants.CKM_SHA512, PKCS11Constants.CKG_MGF1_SHA512 });
+  }
+
+  /**
+   * The provider this signature belongs to.
+   */
+  protected PKCS11Provider provider_;
+
+  /**
+   * The JCA algorithm name.
+   */
+  protected String algorithm_;
+
+  /**
+   * True for the ECDSA algorithms.
+   */
+  protected boolean ecdsa_;
+
+  /**
+   * The PSS parameters or null.
+   */
+  protected PSSParameterSpec pssParameterSpec_;
+
+  /**
+   * The hash-and-sign mechanism; null, until prepared for the current key and parameters.
+   */
+  protected Mechanism mechanism_;
+
+  /**
+   * The key of the token or null, if not initialized.
+   */
+  protected Key key_;
+
+  /**
+   * The digest of the data, if the mechanism is prehashed; reused for all signatures.
+   */
+  protected MessageDigest digest_;
+
+  /**
+   * The collected data, if the mechanism is not prehashed.
+   */
+  protected ByteArrayOutputStream data_;
+
+  /**
+   * Create a new signature.
+   *
+   * @param provider
+   *          The provider this signature belongs to.
+   * @param algorithm
+   *          The JCA algorithm name; e.g. SHA256withRSA.
+   * @exception NoSuchAlgorithmException
+   *              If the algorithm is not supported.
+   * @preconditions (provider != null) and (algorithm != null)
+   */
+  public PKCS11Signature(PKCS11Provider provider, String algorithm)
+      throws NoSuchAlgorithmException {
+    if (provider == null) {
+      throw new NullPointerException("Argument \"provider\" must not be null.");
+    }
+    if (!MECHANISMS.containsKey(algorithm) && !algorithm.equals("RSASSA-PSS")) {
+      throw new NoSuchAlgorithmException("Unsupported signature algorithm " + algorithm + ".");
+    }
+    provider_ = provider;
+    algorithm_ = algorithm;
+    ecdsa_ = algorithm.endsWith("ECDSA");
+  }
+
+  protected void engineInitVerify(PublicKey publicKey) throws InvalidKeyException {
+    throw new InvalidKeyException("Signatures are verified by the JDK providers.");
+  }
+
+  protected void engineInitSign(PrivateKey privateKey) throws InvalidKeyException {
+    boolean ecKey = privateKey instanceof PKCS11PrivateKey.EC;
+    if (!(privateKey instanceof PKCS11PrivateKey) || (ecKey != ecdsa_)) {
+      throw new InvalidKeyException((ecdsa_ ? "EC" : "RSA")
+          + " private key of a PKCS#11 provider required.");
+    }
+    key_ = ((PKCS11PrivateKey) privateKey).getTokenKey();
+    resetData();
+  }
+
+  protected void engineUpdate(byte b) throws SignatureException {
+    engineUpdate(new byte[] { b }, 0, 1);
+  }
+
+  protected void engineUpdate(byte[] b, int off, int len) throws SignatureException {
+    prepare();
+    if (digest_ != null) {
+      digest_.update(b, off, len);
+    } else {
+      data_.write(b, off, len);
+    }
+  }
+
+  protected byte[] engineSign() throws SignatureException {
+    prepare();
+    final Mechanism mechanism = mechanism_;
+    final Key key = key_;
+    final byte[] input = (digest_ != null) ? digest_.digest() : data_.toByteArray();
+    final boolean prehashed = digest_ != null;
+    resetData();
+    final PrehashSigner signer = provider_.getPrehashSigner();
+    byte[] signatureValue;
+    try {
+      signatureValue = provider_.execute(new SessionPool.SessionOperation<byte[]>() {
+        public byte[] execute(Session session) throws TokenException {
+          return prehashed ? signer.signDigest(session, mechanism, key, input) : signer.sign(
+              session, mechanism, key, input);
+        }
+      });
+    } catch (TokenException ex) {
+      throw new SignatureException("Signing on the token failed.", ex);
+    }
+
+    return ecdsa_ ? encodeEcdsaSignature(signatureValue) : signatureValue;
+  }
+
+  protected boolean engineVerify(byte[] sigBytes) throws SignatureException {
+    throw new SignatureException("Signatures are verified by the JDK providers.");
+  }
+
+  protected void engineSetParameter(AlgorithmParameterSpec params)
+      throws InvalidAlgorithmParameterException {
+    if (!algorithm_.equals("RSASSA-PSS")) {
+      if (params != null) {
+        throw new InvalidAlgorithmParameterException(algorithm_ + " takes no parameters.");
+      }
+      return;
+    }
+    if (!(params instanceof PSSParameterSpec)) {
+      throw new InvalidAlgorithmParameterException("PSSParameterSpec required.");
+    }
+    PSSParameterSpec pssParams = (PSSParameterSpec) params;
+    String digestAlgorithm = normalizeDigestName(pssParams.getDigestAlgorithm());
+    if (!PSS_MECHANISMS.containsKey(digestAlgorithm)
+        || !pssParams.getMGFAlgorithm().equalsIgnoreCase("MGF1")
+        || !(pssParams.getMGFParameters() instanceof MGF1ParameterSpec)
+        || !PSS_MECHANISMS.containsKey(normalizeDigestName(((MGF1ParameterSpec) pssParams
+            .getMGFParameters()).getDigestAlgorithm()))
+        || (pssParams.getTrailerField() != PSSParameterSpec.TRAILER_FIELD_BC)) {
+      throw new InvalidAlgorithmParameterException("Unsupported PSS parameters.");
+    }
+    pssParameterSpec_ = pssParams;
+    mechanism_ = null;
+    resetData();
+  }
+
+  /**
+   * @deprecated Use engineSetParameter(AlgorithmParameterSpec).
+   */
+  @Deprecated
+  protected void engineSetParameter(String param, java.lang.Object value)
+      throws InvalidParameterException {
+    throw new InvalidParameterException("Unsupported parameter " + param + ".");
+  }
+
+  /**
+   * @deprecated Use engineGetParameters.
+   */
+  @Deprecated
+  protected java.lang.Object engineGetParameter(String param) throws InvalidParameterException {
+    throw new InvalidParameterException("Unsupported parameter " + param + ".");
+  }
+
+  protected AlgorithmParameters engineGetParameters() {
+    if (pssParameterSpec_ == null) {
+      return null;
+    }
+    try {
+      AlgorithmParameters parameters = AlgorithmParameters.getInstance("RSASSA-PSS");
+      parameters.init(pssParameterSpec_);
+      return parameters;
+    } catch (GeneralSecurityException ex) {
+      throw new ProviderException("Can not encode the PSS parameters.", ex);
+    }
+  }
+
+  /**
+   * Create the mechanism and the digest or data buffer, unless done before.
+   *
+   * @exception SignatureException
+   *              If the signature is not initialized or the PSS parameters are missing.
+   */
+  protected void prepare() throws SignatureException {
+    if (key_ == null) {
+      throw new SignatureException("The signature is not initialized for signing.");
+    }
+    if (mechanism_ == null) {
+      mechanism_ = createMechanism();
+      digest_ = null;
+      data_ = null;
+      try {
+        if (provider_.getPrehashSigner().isPrehashed(mechanism_)) {
+          digest_ = provider_.getPrehashSigner().createMessageDigest(mechanism_);
+        }
+      } catch (TokenException ex) {
+        throw new SignatureException("Reading the mechanisms of the token failed.", ex);
+      }
+    }
+    if ((digest_ == null) && (data_ == null)) {
+      data_ = new ByteArrayOutputStream();
+    }
+  }
+
+  /**
+   * Create the hash-and-sign mechanism of the algorithm and parameters.
+   *
+   * @return The mechanism.
+   * @exception SignatureException
+   *              If the PSS parameters are missing.
+   */
+  protected Mechanism createMechanism() throws SignatureException {
+    if (!algorithm_.equals("RSASSA-PSS")) {
+      return Mechanism.get(MECHANISMS.get(algorithm_).longValue());
+    }
+    if (pssParameterSpec_ == null) {
+      throw new SignatureException("RSASSA-PSS requires PSS parameters.");
+    }
+    long[] codes = PSS_MECHANISMS.get(normalizeDigestName(pssParameterSpec_
+        .getDigestAlgorithm()));
+    long[] mgfCodes = PSS_MECHANISMS.get(normalizeDigestName(((MGF1ParameterSpec)
+        pssParameterSpec_.getMGFParameters()).getDigestAlgorithm()));
+    Mechanism mechanism = Mechanism.get(codes[0]);
+    mechanism.setParameters(new RSAPkcsPssParameters(Mechanism.get(codes[1]), mgfCodes[2],
+        pssParameterSpec_.getSaltLength()));
+
+    return mechanism;
+  }
+
+  /**
+   * Discard the data of the current signature.
+   */
+  protected void resetData() {
+    if (digest_ != null) {
+      digest_.reset();
+    }
+    if (data_ != null) {
+      data_.reset();
+    }
+  }
+
+  /**
+   * Get the standard name of a digest algorithm; e.g. SHA-256 for SHA256.
+   *
+   * @param digestAlgorithm
+   *          The name of the digest algorithm.
+   * @return The standard name.
+   */
+  protected static String normalizeDigestName(String digestAlgorithm) {
+    String name = digestAlgorithm.toUpperCase();
+    if (name.startsWith("SHA") && !name.startsWith("SHA-") && !name.startsWith("SHA3")) {
+      name = "SHA-" + name.substring(3);
+    }
+
+    return name.equals("SHA-1") || name.equals("SHA-") ? "SHA-1" : name;
+  }
+
+  /**
+   * Encode a PKCS#11 ECDSA signature, r and s of equal length, as DER sequence of two integers.
+   *
+   * @param signatureValue
+   *          The signature value of the token.
+   * @return The DER encoded signature.
+   * @exception SignatureException
+   *              If the signature value has an odd length.
+   */
+  protected static byte[] encodeEcdsaSignature(byte[] signatureValue) throws SignatureException {
+    if ((signatureValue.length == 0) || (signatureValue.length % 2 != 0)) {
+      throw new SignatureException("Invalid ECDSA signature value from the token.");
+    }
+    int half = signatureValue.length / 2;
+    byte[] r = new BigInteger(1, Arrays.copyOfRange(signatureValue, 0, half)).toByteArray();
+    byte[] s = new BigInteger(1, Arrays.copyOfRange(signatureValue, half, signatureValue.length))
+        .toByteArray();
+    ByteArrayOutputStream contents = new ByteArrayOutputStream(signatureValue.length + 8);
+    writeTlv(contents, 0x02, r);
+    writeTlv(contents, 0x02, s);
+    ByteArrayOutputStream encoding = new ByteArrayOutputStream(signatureValue.length + 11);
+    writeTlv(encoding, 0x30, contents.toByteArray());
+
+    return encoding.toByteArray();
+  }
+
+  /**
+   * Write a DER tag, length and contents.
+   *
+   * @param out
+   *          The stream to write to.
+   * @param tag
+   *          The tag.
+   * @param contents
+   *          The contents.
+   */
+  protected static void writeTlv(ByteArrayOutputStream out, int tag, byte[] contents) {
+    out.write(tag);
+    if (contents.length < 0x80) {
+      out.write(contents.length);
+    } else if (contents.length < 0x100) {
+      out.write(0x81);
+      out.write(contents.length);
+    } else {
+      out.write(0x82);
+      out.write(contents.length >> 8);
+      out.write(contents.length);
+    }
+    out.write(contents, 0, contents.length);
+  }
+
+}
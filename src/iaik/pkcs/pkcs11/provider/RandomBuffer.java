@@ -0,0 +1,417 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.provider;
+
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.SessionPool;
+import iaik.pkcs.pkcs11.Token;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.TokenRuntimeException;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Serves random bytes of a token from a buffer. The bytes are generated by the token in blocks of
+ * many bytes; thus, one C_GenerateRandom call serves many requests for a few bytes, like IVs and
+ * nonces. Threads take their bytes from one of several stripes, each holding a block, without
+ * locking: a thread claims a range of the block with a compare-and-set of the position and
+ * overwrites the range after copying it, so no byte is served twice. A background thread with a
+ * session of its own generates new blocks whenever fewer than the low-water mark are ready; if
+ * none is ready, the requesting thread generates one with a session of the pool.
+ *
+ * <pre>
+ * <code>
+ *   RandomBuffer randomBuffer = new RandomBuffer(sessionPool, 4096, 4, true);
+ *   SecureRandom random = SecureRandom.getInstance("PKCS11", provider);
+ * </code>
+ * </pre>
+ *
+ * If mixing is enabled, each output is XORed with the output of a DRBG of the JVM; the result is
+ * as unpredictable as the better of both sources.
+ *
+ * @see PKCS11SecureRandom
+ * @version 1.0
+ * @invariants (sessionPool_ != null) and (stripes_ != null) and (readyBlocks_ != null)
+ */
+public class RandomBuffer {
+
+  /**
+   * A block of random bytes and the position of its first unserved byte.
+   */
+  protected static class Block {
+
+    protected final byte[] bytes_;
+
+    protected final AtomicInteger position_ = new AtomicInteger();
+
+    protected Block(byte[] bytes) {
+      bytes_ = bytes;
+    }
+
+  }
+
+  /**
+   * The pool for generating blocks when none is ready and for seeding.
+   */
+  protected SessionPool sessionPool_;
+
+  /**
+   * The number of bytes generated with one call.
+   */
+  protected int blockSize_;
+
+  /**
+   * The number of ready blocks below which the background thread generates new ones.
+   */
+  protected int lowWaterMark_;
+
+  /**
+   * The current block of each stripe; null, if the stripe has none yet.
+   */
+  protected final AtomicReferenceArray<Block> stripes_;
+
+  /**
+   * The blocks generated in advance.
+   */
+  protected final ConcurrentLinkedQueue<byte[]> readyBlocks_ = new ConcurrentLinkedQueue<byte[]>();
+
+  /**
+   * The number of blocks in readyBlocks_.
+   */
+  protected final AtomicInteger readyCount_ = new AtomicInteger();
+
+  /**
+   * The DRBG mixed into the output or null.
+   */
+  protected SecureRandom drbg_;
+
+  /**
+   * The number of bytes served.
+   */
+  protected final LongAdder bytesServed_ = new LongAdder();
+
+  /**
+   * The number of C_GenerateRandom calls.
+   */
+  protected final LongAdder generateCalls_ = new LongAdder();
+
+  /**
+   * The thread generating blocks in advance.
+   */
+  protected Thread refillThread_;
+
+  /**
+   * True, after close was called.
+   */
+  protected volatile boolean closed_;
+
+  /**
+   * Create a new random buffer and start its background thread.
+   *
+   * @param sessionPool
+   *          The pool of sessions with the token.
+   * @param blockSize
+   *          The number of bytes generated with one call; e.g. 4096.
+   * @param lowWaterMark
+   *          The number of blocks kept ready; e.g. 4.
+   * @param mixWithDrbg
+   *          True, to XOR the output with the output of a DRBG of the JVM.
+   * @preconditions (sessionPool != null) and (blockSize > 0) and (lowWaterMark > 0)
+   */
+  public RandomBuffer(SessionPool sessionPool, int blockSize, int lowWaterMark,
+      boolean mixWithDrbg) {
+    if (sessionPool == null) {
+      throw new NullPointerException("Argument \"sessionPool\" must not be null.");
+    }
+    if ((blockSize <= 0) || (lowWaterMark <= 0)) {
+      throw new IllegalArgumentException("The block size and low-water mark must be positive.");
+    }
+    sessionPool_ = sessionPool;
+    blockSize_ = blockSize;
+    lowWaterMark_ = lowWaterMark;
+    stripes_ = new AtomicReferenceArray<Block>(Runtime.getRuntime().availableProcessors());
+    if (mixWithDrbg) {
+      try {
+        drbg_ = SecureRandom.getInstance("DRBG");
+      } catch (NoSuchAlgorithmException ex) {
+        throw new TokenRuntimeException("The JVM provides no DRBG.", ex);
+      }
+    }
+    refillThread_ = new Thread("PKCS11-random-refill") {
+      public void run() {
+        refill();
+      }
+    };
+    refillThread_.setDaemon(true);
+    refillThread_.start();
+  }
+
+  /**
+   * Fill the given array with random bytes.
+   *
+   * @param bytes
+   *          The array to fill.
+   * @exception TokenException
+   *              If no block was ready and generating one failed.
+   * @preconditions (bytes != null)
+   */
+  public void nextBytes(byte[] bytes) throws TokenException {
+    int offset = 0;
+    int stripe = (int) (Thread.currentThread().getId() % stripes_.length());
+    while (offset < bytes.length) {
+      Block block = stripes_.get(stripe);
+      if (block != null) {
+        int position = block.position_.get();
+        int count = Math.min(bytes.length - offset, block.bytes_.length - position);
+        if (count > 0) {
+          if (block.position_.compareAndSet(position, position + count)) {
+            System.arraycopy(block.bytes_, position, bytes, offset, count);
+            Arrays.fill(block.bytes_, position, position + count, (byte) 0);
+            offset += count;
+          }
+          continue;
+        }
+      }
+      Block newBlock = new Block(takeBlock());
+      if (!stripes_.compareAndSet(stripe, block, newBlock)) {
+        // another thread replaced the block first; keep the bytes for later
+        readyBlocks_.add(newBlock.bytes_);
+        readyCount_.incrementAndGet();
+      }
+    }
+    if (drbg_ != null) {
+      byte[] mix = new byte[bytes.length];
+      drbg_.nextBytes(mix);
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] ^= mix[i];
+      }
+    }
+    bytesServed_.add(bytes.length);
+  }
+
+  /**
+   * Supplement the randomness with the given seed. It is passed to the DRBG, if mixing is enabled;
+   * otherwise, to the token, if the token accepts seeds.
+   *
+   * @param seed
+   *          The seed.
+   * @exception TokenException
+   *              If seeding the token fails for another reason than missing support.
+   * @preconditions (seed != null)
+   */
+  public void setSeed(final byte[] seed) throws TokenException {
+    if (drbg_ != null) {
+      drbg_.setSeed(seed);
+      return;
+    }
+    try {
+      sessionPool_.execute(new SessionPool.SessionOperation<Object>() {
+        public Object execute(Session session) throws TokenException {
+          session.seedRandom(seed);
+          return null;
+        }
+      });
+    } catch (PKCS11Exception ex) {
+      long errorCode = ex.getErrorCode();
+      if ((errorCode != PKCS11Constants.CKR_RANDOM_SEED_NOT_SUPPORTED)
+          && (errorCode != PKCS11Constants.CKR_RANDOM_NO_RNG)) {
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Get the number of bytes served.
+   *
+   * @return The number of bytes.
+   */
+  public long getBytesServed() {
+    return bytesServed_.sum();
+  }
+
+  /**
+   * Get the number of C_GenerateRandom calls.
+   *
+   * @return The number of calls.
+   */
+  public long getGenerateCallCount() {
+    return generateCalls_.sum();
+  }
+
+  /**
+   * Get the average number of bytes served per C_GenerateRandom call.
+   *
+   * @return The number of bytes per call or 0, if there was no call yet.
+   */
+  public double getBytesServedPerCall() {
+    long calls = generateCalls_.sum();
+    return (calls > 0L) ? (double) bytesServed_.sum() / calls : 0.0;
+  }
+
+  /**
+   * Stop the background thread and overwrite the unserved bytes.
+   */
+  public void close() {
+    closed_ = true;
+    LockSupport.unpark(refillThread_);
+    try {
+      refillThread_.join(TimeUnit.SECONDS.toMillis(10L));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    byte[] bytes;
+    while ((bytes = readyBlocks_.poll()) != null) {
+      Arrays.fill(bytes, (byte) 0);
+    }
+    for (int i = 0; i < stripes_.length(); i++) {
+      Block block = stripes_.getAndSet(i, null);
+      if (block != null) {
+        Arrays.fill(block.bytes_, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * Take a ready block or generate one, if none is ready.
+   *
+   * @return The block.
+   * @exception TokenException
+   *              If generating the block fails.
+   */
+  protected byte[] takeBlock() throws TokenException {
+    byte[] bytes = readyBlocks_.poll();
+    int readyCount = (bytes != null) ? readyCount_.decrementAndGet() : readyCount_.get();
+    if (readyCount < lowWaterMark_) {
+      LockSupport.unpark(refillThread_);
+    }
+    if (bytes != null) {
+      return bytes;
+    }
+    if (closed_) {
+      throw new TokenException("The random buffer is closed.");
+    }
+
+    return sessionPool_.execute(new SessionPool.SessionOperation<byte[]>() {
+      public byte[] execute(Session session) throws TokenException {
+        return generate(session);
+      }
+    });
+  }
+
+  /**
+   * Generate a block.
+   *
+   * @param session
+   *          The session.
+   * @return The block.
+   * @exception TokenException
+   *              If generating the block fails.
+   */
+  protected byte[] generate(Session session) throws TokenException {
+    byte[] bytes = session.generateRandom(blockSize_);
+    generateCalls_.increment();
+
+    return bytes;
+  }
+
+  /**
+   * The loop of the background thread. It keeps twice the low-water mark of blocks ready, once the
+   * number fell below the low-water mark.
+   */
+  protected void refill() {
+    Token token = sessionPool_.getToken();
+    Session session = null;
+    try {
+      while (!closed_) {
+        if (readyCount_.get() >= lowWaterMark_) {
+          LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1L));
+          continue;
+        }
+        try {
+          if (session == null) {
+            session = token.openSession(Token.SessionType.SERIAL_SESSION,
+                Token.SessionReadWriteBehavior.RO_SESSION, null, null);
+          }
+          while (!closed_ && (readyCount_.get() < 2 * lowWaterMark_)) {
+            readyBlocks_.add(generate(session));
+            readyCount_.incrementAndGet();
+          }
+        } catch (TokenException ex) {
+          // the requesting threads generate blocks themselves; try again later
+          closeQuietly(session);
+          session = null;
+          LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1L));
+        }
+      }
+    } finally {
+      closeQuietly(session);
+    }
+  }
+
+  /**
+   * Close a session and ignore errors.
+   *
+   * @param session
+   *          The session or null.
+   */
+  protected static void closeQuietly(Session session) {
+    if (session != null) {
+      try {
+        session.closeSession();
+      } catch (TokenException ex) {
+        // the session is unusable anyway
+      }
+    }
+  }
+
+}
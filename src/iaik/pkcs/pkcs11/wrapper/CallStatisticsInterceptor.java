@@ -0,0 +1,392 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.wrapper;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the calls into the PKCS#11 module and keeps track of the state the module reported on its
+ * own: the open sessions per slot, the login state per slot and the last token information read
+ * per slot. The counters are lock-free and updated by the calling threads; reading them never calls
+ * the module. The management beans of ModuleMonitor take their values from this interceptor.
+ *
+ * @see iaik.pkcs.pkcs11.ModuleMonitor
+ * @version 1.0
+ */
+public class CallStatisticsInterceptor extends PKCS11Interceptor {
+
+  /**
+   * The state of an open session as seen by this interceptor.
+   */
+  protected static class SessionEntry {
+
+    protected final long slotId_;
+
+    protected final boolean rwSession_;
+
+    protected SessionEntry(long slotId, boolean rwSession) {
+      slotId_ = slotId;
+      rwSession_ = rwSession;
+    }
+
+  }
+
+  /**
+   * The number of calls per function name.
+   */
+  protected final ConcurrentHashMap<String, LongAdder> callCounts_ =
+      new ConcurrentHashMap<String, LongAdder>();
+
+  /**
+   * The number of PKCS11Exceptions per error code.
+   */
+  protected final ConcurrentHashMap<Long, LongAdder> errorCounts_ =
+      new ConcurrentHashMap<Long, LongAdder>();
+
+  /**
+   * The total number of calls.
+   */
+  protected final LongAdder totalCalls_ = new LongAdder();
+
+  /**
+   * The total number of calls that threw a PKCS11Exception.
+   */
+  protected final LongAdder totalErrors_ = new LongAdder();
+
+  /**
+   * The open sessions. The key of this table is the session handle.
+   */
+  protected final ConcurrentHashMap<Long, SessionEntry> sessions_ =
+      new ConcurrentHashMap<Long, SessionEntry>();
+
+  /**
+   * The slots whose token is logged in. The key of this table is the slot ID.
+   */
+  protected final ConcurrentHashMap<Long, Boolean> loggedIn_ =
+      new ConcurrentHashMap<Long, Boolean>();
+
+  /**
+   * The token information last returned by C_GetTokenInfo. The key of this table is the slot ID.
+   */
+  protected final ConcurrentHashMap<Long, CK_TOKEN_INFO> tokenInfos_ =
+      new ConcurrentHashMap<Long, CK_TOKEN_INFO>();
+
+  /**
+   * The time the token information was read, as of System.currentTimeMillis(). The key of this
+   * table is the slot ID.
+   */
+  protected final ConcurrentHashMap<Long, Long> tokenInfoTimes_ =
+      new ConcurrentHashMap<Long, Long>();
+
+  /**
+   * Count the call and track sessions, logins and token information.
+   *
+   * @param method
+   *          The method of the PKCS11 interface.
+   * @param args
+   *          The arguments or null.
+   * @return The result of the call.
+   * @exception Throwable
+   *              The exception thrown by the call.
+   */
+  protected Object intercept(Method method, Object[] args) throws Throwable {
+    String function = method.getName();
+    if (!function.startsWith("C_")) {
+      return proceed(method, args);
+    }
+    totalCalls_.increment();
+    increment(callCounts_, function);
+
+    Object result;
+    try {
+      result = proceed(method, args);
+    } catch (PKCS11Exception ex) {
+      totalErrors_.increment();
+      increment(errorCounts_, Long.valueOf(ex.getErrorCode()));
+      trackError(function, args, ex.getErrorCode());
+      throw ex;
+    }
+    track(function, args, result);
+
+    return result;
+  }
+
+  /**
+   * Increment the counter of the given key; create the counter, if it does not exist yet.
+   *
+   * @param counters
+   *          The table of counters.
+   * @param key
+   *          The key of the counter.
+   */
+  protected static <K> void increment(ConcurrentHashMap<K, LongAdder> counters, K key) {
+    LongAdder counter = counters.get(key);
+    if (counter == null) {
+      LongAdder newCounter = new LongAdder();
+      counter = counters.putIfAbsent(key, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.increment();
+  }
+
+  /**
+   * Update the tracked state after a successful call.
+   *
+   * @param function
+   *          The function name.
+   * @param args
+   *          The arguments.
+   * @param result
+   *          The result.
+   */
+  protected void track(String function, Object[] args, Object result) {
+    if (function.equals("C_OpenSession")) {
+      long flags = ((Long) args[1]).longValue();
+      sessions_.put((Long) result, new SessionEntry(((Long) args[0]).longValue(),
+          (flags & PKCS11Constants.CKF_RW_SESSION) != 0L));
+    } else if (function.equals("C_CloseSession")) {
+      sessions_.remove(args[0]);
+    } else if (function.equals("C_CloseAllSessions")) {
+      removeSessions(((Long) args[0]).longValue());
+    } else if (function.equals("C_Login") || function.equals("C_LoginUser")) {
+      if (((Long) args[1]).longValue() != PKCS11Constants.CKU_CONTEXT_SPECIFIC) {
+        setLoggedIn((Long) args[0], true);
+      }
+    } else if (function.equals("C_Logout")) {
+      setLoggedIn((Long) args[0], false);
+    } else if (function.equals("C_GetTokenInfo")) {
+      tokenInfos_.put((Long) args[0], (CK_TOKEN_INFO) result);
+      tokenInfoTimes_.put((Long) args[0], Long.valueOf(System.currentTimeMillis()));
+    } else if (function.equals("C_Finalize")) {
+      sessions_.clear();
+      loggedIn_.clear();
+    }
+  }
+
+  /**
+   * Update the tracked state after a failed call.
+   *
+   * @param function
+   *          The function name.
+   * @param args
+   *          The arguments.
+   * @param errorCode
+   *          The error code.
+   */
+  protected void trackError(String function, Object[] args, long errorCode) {
+    if ((errorCode == PKCS11Constants.CKR_USER_ALREADY_LOGGED_IN)
+        && function.equals("C_Login")) {
+      setLoggedIn((Long) args[0], true);
+    } else if ((errorCode == PKCS11Constants.CKR_SESSION_HANDLE_INVALID)
+        || (errorCode == PKCS11Constants.CKR_SESSION_CLOSED)) {
+      if ((args != null) && (args[0] instanceof Long)) {
+        sessions_.remove(args[0]);
+      }
+    } else if ((errorCode == PKCS11Constants.CKR_DEVICE_REMOVED)
+        || (errorCode == PKCS11Constants.CKR_TOKEN_NOT_PRESENT)) {
+      if ((args != null) && (args[0] instanceof Long)) {
+        SessionEntry entry = sessions_.get(args[0]);
+        if (entry != null) {
+          removeSessions(entry.slotId_);
+        }
+      }
+    }
+  }
+
+  /**
+   * Set the login state of the slot of the given session.
+   *
+   * @param sessionHandle
+   *          The session handle.
+   * @param loggedIn
+   *          The new login state.
+   */
+  protected void setLoggedIn(Long sessionHandle, boolean loggedIn) {
+    SessionEntry entry = sessions_.get(sessionHandle);
+    if (entry != null) {
+      loggedIn_.put(Long.valueOf(entry.slotId_), Boolean.valueOf(loggedIn));
+    }
+  }
+
+  /**
+   * Forget all sessions of the given slot and its login state.
+   *
+   * @param slotId
+   *          The slot ID.
+   */
+  protected void removeSessions(long slotId) {
+    Iterator<SessionEntry> entries = sessions_.values().iterator();
+    while (entries.hasNext()) {
+      if (entries.next().slotId_ == slotId) {
+        entries.remove();
+      }
+    }
+    loggedIn_.remove(Long.valueOf(slotId));
+  }
+
+  /**
+   * Get the total number of calls.
+   *
+   * @return The number of calls.
+   */
+  public long getTotalCalls() {
+    return totalCalls_.sum();
+  }
+
+  /**
+   * Get the total number of failed calls.
+   *
+   * @return The number of calls that threw a PKCS11Exception.
+   */
+  public long getTotalErrors() {
+    return totalErrors_.sum();
+  }
+
+  /**
+   * Get the number of calls per function.
+   *
+   * @return A sorted map from function name to the number of calls.
+   * @postconditions (result != null)
+   */
+  public Map<String, Long> getCallCounts() {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    Iterator<Map.Entry<String, LongAdder>> entries = callCounts_.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<String, LongAdder> entry = entries.next();
+      counts.put(entry.getKey(), Long.valueOf(entry.getValue().sum()));
+    }
+
+    return counts;
+  }
+
+  /**
+   * Get the number of PKCS11Exceptions per error.
+   *
+   * @return A sorted map from the error name; e.g. CKR_PIN_INCORRECT, to the number of errors.
+   * @postconditions (result != null)
+   */
+  public Map<String, Long> getErrorCounts() {
+    Map<String, Long> counts = new TreeMap<String, Long>();
+    Iterator<Map.Entry<Long, LongAdder>> entries = errorCounts_.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Long, LongAdder> entry = entries.next();
+      String name = new PKCS11Exception(entry.getKey().longValue()).getMessage();
+      counts.put(name, Long.valueOf(entry.getValue().sum()));
+    }
+
+    return counts;
+  }
+
+  /**
+   * Get the number of open sessions of all slots.
+   *
+   * @return The number of sessions.
+   */
+  public int getOpenSessionCount() {
+    return sessions_.size();
+  }
+
+  /**
+   * Get the number of open sessions of the given slot.
+   *
+   * @param slotId
+   *          The slot ID.
+   * @param rwOnly
+   *          True, to count only read-write sessions.
+   * @return The number of sessions.
+   */
+  public int getOpenSessionCount(long slotId, boolean rwOnly) {
+    int count = 0;
+    Iterator<SessionEntry> entries = sessions_.values().iterator();
+    while (entries.hasNext()) {
+      SessionEntry entry = entries.next();
+      if ((entry.slotId_ == slotId) && (entry.rwSession_ || !rwOnly)) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Check, if the token in the given slot is logged in according to the calls seen.
+   *
+   * @param slotId
+   *          The slot ID.
+   * @return True, if logged in.
+   */
+  public boolean isLoggedIn(long slotId) {
+    return Boolean.TRUE.equals(loggedIn_.get(Long.valueOf(slotId)));
+  }
+
+  /**
+   * Get the token information last read for the given slot.
+   *
+   * @param slotId
+   *          The slot ID.
+   * @return The token information or null, if none was read yet.
+   */
+  public CK_TOKEN_INFO getLastTokenInfo(long slotId) {
+    return tokenInfos_.get(Long.valueOf(slotId));
+  }
+
+  /**
+   * Get the time the token information of the given slot was last read.
+   *
+   * @param slotId
+   *          The slot ID.
+   * @return The time as of System.currentTimeMillis() or 0, if none was read yet.
+   */
+  public long getLastTokenInfoTime(long slotId) {
+    Long time = tokenInfoTimes_.get(Long.valueOf(slotId));
+    return (time != null) ? time.longValue() : 0L;
+  }
+
+}
@@ -0,0 +1,259 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.wrapper;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes the native calls of virtual threads on a bounded pool of platform threads. A virtual
+ * thread that calls a native method stays mounted on its carrier thread for the whole call; a few
+ * slow token operations can thus block all carriers of the virtual thread scheduler. With this
+ * interceptor installed, a call from a virtual thread is handed to one of the platform threads of
+ * this interceptor, and the virtual thread waits for the result without holding its carrier. Calls
+ * from platform threads are executed directly, unless offloadPlatformThreads is set.
+ *
+ * <pre>
+ * <code>
+ *   Module module = Module.getInstance("cryptoki.dll");
+ *   module.addInterceptor(new CarrierPoolInterceptor(16));
+ *   module.initialize(null);
+ * </code>
+ * </pre>
+ *
+ * The number of threads bounds the number of concurrent calls into the module; it should match
+ * the parallelism the module or the HSM can serve. On Java versions without virtual threads, no
+ * calls are offloaded by default.
+ *
+ * @version 1.0
+ * @invariants (executor_ != null)
+ */
+public class CarrierPoolInterceptor extends PKCS11Interceptor {
+
+  /**
+   * The method Thread.isVirtual or null, if this Java version has no virtual threads.
+   */
+  protected static final Method IS_VIRTUAL_METHOD;
+
+  static {
+    Method isVirtualMethod;
+    try {
+      isVirtualMethod = Thread.class.getMethod("isVirtual");
+    } catch (NoSuchMethodException ex) {
+      isVirtualMethod = null;
+    }
+    IS_VIRTUAL_METHOD = isVirtualMethod;
+  }
+
+  /**
+   * Numbers the pools for the thread names.
+   */
+  protected static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+  /**
+   * The platform threads which execute the calls.
+   */
+  protected final ThreadPoolExecutor executor_;
+
+  /**
+   * True, to offload the calls of platform threads too.
+   */
+  protected boolean offloadPlatformThreads_;
+
+  /**
+   * Create an interceptor with the given number of platform threads. The threads are daemon threads
+   * and are started on demand.
+   *
+   * @param threads
+   *          The number of platform threads; the maximum number of concurrent native calls made
+   *          through this interceptor.
+   * @preconditions (threads > 0)
+   */
+  public CarrierPoolInterceptor(int threads) {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Argument \"threads\" must be positive.");
+    }
+    final int poolNumber = POOL_COUNTER.incrementAndGet();
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger threadCounter_ = new AtomicInteger();
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "PKCS11-carrier-" + poolNumber + "-"
+            + threadCounter_.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    executor_ = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), threadFactory);
+    executor_.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Set, if calls of platform threads are offloaded as well. This bounds the number of concurrent
+   * native calls for all threads.
+   *
+   * @param offloadPlatformThreads
+   *          True, to offload the calls of all threads.
+   */
+  public void setOffloadPlatformThreads(boolean offloadPlatformThreads) {
+    offloadPlatformThreads_ = offloadPlatformThreads;
+  }
+
+  /**
+   * Check, if calls of platform threads are offloaded as well.
+   *
+   * @return True, if the calls of all threads are offloaded.
+   */
+  public boolean isOffloadPlatformThreads() {
+    return offloadPlatformThreads_;
+  }
+
+  /**
+   * Get the number of calls waiting for a platform thread.
+   *
+   * @return The number of queued calls.
+   */
+  public int getQueuedCallCount() {
+    return executor_.getQueue().size();
+  }
+
+  /**
+   * Get the number of calls currently executed.
+   *
+   * @return The number of active calls.
+   */
+  public int getActiveCallCount() {
+    return executor_.getActiveCount();
+  }
+
+  /**
+   * Stop the platform threads after the pending calls. Later calls are executed by the calling
+   * thread.
+   */
+  public void shutdown() {
+    executor_.shutdown();
+  }
+
+  /**
+   * Check, if the given thread is a virtual thread.
+   *
+   * @param thread
+   *          The thread.
+   * @return True, if the thread is virtual.
+   */
+  public static boolean isVirtual(Thread thread) {
+    if (IS_VIRTUAL_METHOD == null) {
+      return false;
+    }
+    try {
+      return ((Boolean) IS_VIRTUAL_METHOD.invoke(thread)).booleanValue();
+    } catch (Exception ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Execute native calls of virtual threads on the platform threads of this interceptor.
+   *
+   * @param method
+   *          The method of the PKCS11 interface.
+   * @param args
+   *          The arguments or null.
+   * @return The result of the call.
+   * @exception Throwable
+   *              The exception thrown by the call.
+   */
+  protected Object intercept(final Method method, final Object[] args) throws Throwable {
+    if (!method.getName().startsWith("C_") || executor_.isShutdown()
+        || !(offloadPlatformThreads_ || isVirtual(Thread.currentThread()))) {
+      return proceed(method, args);
+    }
+
+    Future<Object> result;
+    try {
+      result = executor_.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          try {
+            return proceed(method, args);
+          } catch (Exception ex) {
+            throw ex;
+          } catch (Error err) {
+            throw err;
+          } catch (Throwable t) {
+            throw new PKCS11RuntimeException(t.toString());
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      // shut down concurrently
+      return proceed(method, args);
+    }
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          // the call can not be cancelled once it is in the module; wait for it in any case
+          return result.get();
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException ex) {
+      throw ex.getCause();
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+}
@@ -56,6 +56,7 @@ public class Constants {
 
   public static final String DISABLE_BUFFER_PREALLOCATION = "PKCS11_DISABLE_BUFFER_PREALLOCATION";
   public static final String PKCS11_TEMP_DIR = "PKCS11_TEMP_DIR";
+  public static final String PKCS11_WRAPPER_CACHE_DIR = "PKCS11_WRAPPER_CACHE_DIR";
 
   public static final String PKCS11_LIB = "pkcs11lib";
 }
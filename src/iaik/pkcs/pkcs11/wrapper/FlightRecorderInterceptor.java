@@ -0,0 +1,281 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.wrapper;
+
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Emits a PKCS11CallEvent for each call into the PKCS#11 module. The interceptor remembers the slot
+ * of each session it saw opened and the mechanism of the last operation initialized in each
+ * session; thus, the events of calls like C_Sign carry the slot ID and the mechanism name, although
+ * the native function gets only the session handle. Install it before opening sessions.
+ *
+ * <pre>
+ * <code>
+ *   module.addInterceptor(new FlightRecorderInterceptor());
+ * </code>
+ * </pre>
+ *
+ * While the event is disabled in the running recordings, the interceptor only passes the calls on
+ * and maintains the session tables on open, init and close calls. The settings of the profile
+ * iaik/pkcs/pkcs11/wrapper/pkcs11.jfc enable the events of this library.
+ *
+ * @see PKCS11CallEvent
+ * @version 1.0
+ */
+public class FlightRecorderInterceptor extends PKCS11Interceptor {
+
+  /**
+   * The functions whose first argument is a slot ID.
+   */
+  protected static final Set<String> SLOT_FUNCTIONS = new HashSet<String>();
+
+  static {
+    SLOT_FUNCTIONS.add("C_GetSlotInfo");
+    SLOT_FUNCTIONS.add("C_GetTokenInfo");
+    SLOT_FUNCTIONS.add("C_GetMechanismList");
+    SLOT_FUNCTIONS.add("C_GetMechanismInfo");
+    SLOT_FUNCTIONS.add("C_InitToken");
+    SLOT_FUNCTIONS.add("C_OpenSession");
+    SLOT_FUNCTIONS.add("C_CloseAllSessions");
+  }
+
+  /**
+   * The functions whose first argument is neither a slot ID nor a session handle.
+   */
+  protected static final Set<String> MODULE_FUNCTIONS = new HashSet<String>();
+
+  static {
+    MODULE_FUNCTIONS.add("C_Initialize");
+    MODULE_FUNCTIONS.add("C_Finalize");
+    MODULE_FUNCTIONS.add("C_GetInfo");
+    MODULE_FUNCTIONS.add("C_GetSlotList");
+    MODULE_FUNCTIONS.add("C_WaitForSlotEvent");
+  }
+
+  /**
+   * The slot IDs of the open sessions. The key of this table is the session handle.
+   */
+  protected final Map<Long, Long> sessionSlots_ = new ConcurrentHashMap<Long, Long>();
+
+  /**
+   * The mechanism of the last operation initialized in a session. The key of this table is the
+   * session handle.
+   */
+  protected final Map<Long, Long> sessionMechanisms_ = new ConcurrentHashMap<Long, Long>();
+
+  /**
+   * Emit an event for the call, if the event is enabled.
+   *
+   * @param method
+   *          The method of the PKCS11 interface.
+   * @param args
+   *          The arguments or null.
+   * @return The result of the call.
+   * @exception Throwable
+   *              The exception thrown by the call.
+   */
+  protected Object intercept(Method method, Object[] args) throws Throwable {
+    String function = method.getName();
+    if (!function.startsWith("C_")) {
+      return proceed(method, args);
+    }
+
+    long slotId = -1L;
+    long sessionHandle = 0L;
+    if (!MODULE_FUNCTIONS.contains(function) && (args != null) && (args[0] instanceof Long)) {
+      if (SLOT_FUNCTIONS.contains(function)) {
+        slotId = ((Long) args[0]).longValue();
+      } else {
+        sessionHandle = ((Long) args[0]).longValue();
+      }
+    }
+    CK_MECHANISM ckMechanism = findMechanism(args);
+
+    PKCS11CallEvent event = new PKCS11CallEvent();
+    if (!event.isEnabled()) {
+      Object result = proceed(method, args);
+      updateSessionTables(function, slotId, sessionHandle, ckMechanism, result);
+      return result;
+    }
+
+    event.begin();
+    try {
+      Object result = proceed(method, args);
+      event.outputSize = sizeOf(result);
+      event.result = "CKR_OK";
+      updateSessionTables(function, slotId, sessionHandle, ckMechanism, result);
+      return result;
+    } catch (PKCS11Exception ex) {
+      event.result = ex.getMessage();
+      throw ex;
+    } catch (Throwable t) {
+      event.result = t.getClass().getName();
+      throw t;
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.function = function;
+        event.sessionHandle = sessionHandle;
+        if ((slotId == -1L) && (sessionHandle != 0L)) {
+          Long slot = sessionSlots_.get(Long.valueOf(sessionHandle));
+          slotId = (slot != null) ? slot.longValue() : -1L;
+        }
+        event.slotId = slotId;
+        long mechanismCode = -1L;
+        if (ckMechanism != null) {
+          mechanismCode = ckMechanism.mechanism;
+        } else if (sessionHandle != 0L) {
+          Long mechanism = sessionMechanisms_.get(Long.valueOf(sessionHandle));
+          mechanismCode = (mechanism != null) ? mechanism.longValue() : -1L;
+        }
+        event.mechanism = (mechanismCode != -1L) ? Functions
+            .mechanismCodeToString(mechanismCode) : null;
+        event.inputSize = inputSizeOf(args);
+        event.commit();
+      }
+    }
+  }
+
+  /**
+   * Keep track of opened and closed sessions and of the mechanisms of initialized operations. It
+   * is called after successful calls only; thus, a failed init call does not replace the mechanism
+   * of the operation still active in the session.
+   *
+   * @param function
+   *          The name of the called function.
+   * @param slotId
+   *          The slot ID argument or -1.
+   * @param sessionHandle
+   *          The session handle argument or 0.
+   * @param ckMechanism
+   *          The mechanism argument or null.
+   * @param result
+   *          The result of the call.
+   */
+  protected void updateSessionTables(String function, long slotId, long sessionHandle,
+      CK_MECHANISM ckMechanism, Object result) {
+    if ((ckMechanism != null) && (sessionHandle != 0L) && function.endsWith("Init")) {
+      sessionMechanisms_.put(Long.valueOf(sessionHandle), Long.valueOf(ckMechanism.mechanism));
+    } else if (function.equals("C_OpenSession")) {
+      sessionSlots_.put((Long) result, Long.valueOf(slotId));
+    } else if (function.equals("C_CloseSession")) {
+      sessionSlots_.remove(Long.valueOf(sessionHandle));
+      sessionMechanisms_.remove(Long.valueOf(sessionHandle));
+    } else if (function.equals("C_CloseAllSessions")) {
+      Iterator<Map.Entry<Long, Long>> entries = sessionSlots_.entrySet().iterator();
+      while (entries.hasNext()) {
+        Map.Entry<Long, Long> entry = entries.next();
+        if (entry.getValue().longValue() == slotId) {
+          sessionMechanisms_.remove(entry.getKey());
+          entries.remove();
+        }
+      }
+    } else if (function.equals("C_Finalize")) {
+      sessionSlots_.clear();
+      sessionMechanisms_.clear();
+    }
+  }
+
+  /**
+   * Find the mechanism argument of a call.
+   *
+   * @param args
+   *          The arguments or null.
+   * @return The mechanism or null, if the function has no mechanism argument.
+   */
+  protected static CK_MECHANISM findMechanism(Object[] args) {
+    if (args != null) {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i] instanceof CK_MECHANISM) {
+          return (CK_MECHANISM) args[i];
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Get the total length of the byte array arguments.
+   *
+   * @param args
+   *          The arguments or null.
+   * @return The number of bytes.
+   */
+  protected static int inputSizeOf(Object[] args) {
+    int size = 0;
+    if (args != null) {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i] instanceof byte[]) {
+          size += ((byte[]) args[i]).length;
+        }
+      }
+    }
+
+    return size;
+  }
+
+  /**
+   * Get the size of a result; the length of byte and long arrays.
+   *
+   * @param result
+   *          The result of a call.
+   * @return The length or 0 for other results.
+   */
+  protected static int sizeOf(Object result) {
+    if (result instanceof byte[]) {
+      return ((byte[]) result).length;
+    } else if (result instanceof long[]) {
+      return ((long[]) result).length;
+    }
+
+    return 0;
+  }
+
+}
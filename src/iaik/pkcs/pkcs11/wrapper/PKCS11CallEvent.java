@@ -0,0 +1,115 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.wrapper;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event for one call into the PKCS#11 module. The duration of the event is the
+ * time spent in the native wrapper and in the module, including the time the token needs. These
+ * events are emitted by the FlightRecorderInterceptor.
+ *
+ * @see FlightRecorderInterceptor
+ * @version 1.0
+ */
+@Name(PKCS11CallEvent.NAME)
+@Label("PKCS#11 Call")
+@Category({ "PKCS#11" })
+@Description("A call of a PKCS#11 function through the native wrapper")
+public class PKCS11CallEvent extends Event {
+
+  /**
+   * The name of this event type.
+   */
+  public static final String NAME = "iaik.pkcs11.Call";
+
+  /**
+   * The name of the PKCS#11 function; e.g. C_Sign.
+   */
+  @Label("Function")
+  public String function;
+
+  /**
+   * The slot ID or -1, if unknown.
+   */
+  @Label("Slot")
+  public long slotId = -1L;
+
+  /**
+   * The session handle or 0 for functions without session.
+   */
+  @Label("Session Handle")
+  public long sessionHandle;
+
+  /**
+   * The name of the mechanism of the current operation in the session; e.g. CKM_SHA256_RSA_PKCS.
+   */
+  @Label("Mechanism")
+  public String mechanism;
+
+  /**
+   * The total size of the byte array arguments.
+   */
+  @Label("Input Size")
+  @DataAmount(DataAmount.BYTES)
+  public int inputSize;
+
+  /**
+   * The size of the byte array result.
+   */
+  @Label("Output Size")
+  @DataAmount(DataAmount.BYTES)
+  public int outputSize;
+
+  /**
+   * The PKCS#11 return value; e.g. CKR_OK or CKR_DEVICE_ERROR.
+   */
+  @Label("Result")
+  public String result;
+
+}
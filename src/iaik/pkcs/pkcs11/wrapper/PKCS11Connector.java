@@ -46,6 +46,23 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
 
 /**
  * This class is a sort of factory to get a implementation of the PKCS11 interface. By now, this
@@ -160,7 +177,16 @@ public class PKCS11Connector {
   /**
    * Tries to load the PKCS#11 wrapper native library included in the class path (jar file). If
    * loaded from the jar file and wrapperDebugVersion is true, uses the included debug version. The
-   * found native library is copied to the temporary-file directory and loaded from there.
+   * found native library is copied to a cache directory and loaded from there. The name of the
+   * cached file contains the SHA-256 hash of the library; thus, later starts load the library
+   * copied before without copying it again, after verifying its hash. The cache directory is
+   * given by the system property or environment variable PKCS11_WRAPPER_CACHE_DIR; the default is
+   * a directory of the current user in the directory given by PKCS11_TEMP_DIR or else in the
+   * temporary-file directory. The cache is used only if the directory and the cached file are owned
+   * by the current user and not accessible to others. If the cache cannot be used or the library
+   * cannot be loaded from there, the library is copied to a temporary file deleted on exit. If the
+   * architecture is unknown, the libraries of all architectures are tried from temporary copies;
+   * only the one that could be loaded is copied to the cache.
    * 
    * @param wrapperDebugVersion
    *          true, if the PKCS#11 wrapper library's debug version shall be loaded
@@ -169,18 +195,6 @@ public class PKCS11Connector {
    *           file or if corresponding native library can't be written to temporary directory
    */
   public static void loadWrapperFromJar(boolean wrapperDebugVersion) throws IOException {
-
-    String libName;
-    String osFileEnding;
-    String jarFilePath;
-
-    String system;
-    String architecture;
-    String debug;
-    boolean success = false;
-    boolean tryAgain = false;
-    int trialCounter = 0;
-
     String osName = System.getProperty("os.name");
     int osIndex = getOS(osName);
     String archName = System.getProperty("os.arch");
@@ -188,103 +202,319 @@ public class PKCS11Connector {
     if (osIndex == -1) {
       osIndex = 0; // it may be some Linux - try it
     }
-    if (archIndex == -1) {
-      archIndex = 0;
-      trialCounter++;
-    }
 
-    system = WRAPPER_BASE_PATH + WRAPPER_OS_PATH[osIndex];
+    // try the detected architecture only; try all, if it is unknown
+    String[] architectures;
     if (osIndex == MAC_INDEX) {
-      architecture = "";
-      // no other choice than universal
+      architectures = new String[] { "" }; // no other choice than universal
+    } else if (archIndex != -1) {
+      architectures = new String[] { WRAPPER_ARCH_PATH[archIndex] };
     } else {
-      architecture = WRAPPER_ARCH_PATH[archIndex];
-    }
-    if (wrapperDebugVersion) {
-      debug = DEBUG_DIR;
-    } else {
-      debug = RELEASE_DIR;
+      architectures = WRAPPER_ARCH_PATH;
     }
+    String system = WRAPPER_BASE_PATH + WRAPPER_OS_PATH[osIndex];
+    String debug = wrapperDebugVersion ? DEBUG_DIR : RELEASE_DIR;
+    String libName = WRAPPER_FILE_PREFIX[osIndex] + PKCS11Implementation.PKCS11_WRAPPER;
+    String osFileEnding = WRAPPER_FILE_SUFFIX[osIndex];
 
-    libName = WRAPPER_FILE_PREFIX[osIndex] + PKCS11Implementation.PKCS11_WRAPPER;
-    osFileEnding = WRAPPER_FILE_SUFFIX[osIndex];
+    boolean found = false;
+    for (int i = 0; i < architectures.length; i++) {
+      String resourcePath = system + architectures[i] + debug + libName + osFileEnding;
+      byte[] library = readResource(resourcePath);
+      if (library == null) {
+        continue;
+      }
+      found = true;
 
-    do {
-      tryAgain = false;
-      jarFilePath = system + architecture + debug;
-      File tempWrapperFile = null;
-      InputStream wrapperLibrary = PKCS11Connector.class.getClassLoader()
-          .getResourceAsStream(jarFilePath + libName + osFileEnding);
-      if (wrapperLibrary == null) {
-        if (trialCounter < WRAPPER_ARCH_PATH.length) {
-          archIndex = trialCounter++;
-          architecture = WRAPPER_ARCH_PATH[archIndex];
-          tryAgain = true;
-          continue;
-        } else {
-          throw new IOException("No suitable wrapper native library for " + osName + " "
-              + archName + " found in jar file.");
+      // if the architecture is unknown, only a library that could be loaded before is cached
+      boolean probing = architectures.length > 1;
+      File cachedFile = null;
+      try {
+        cachedFile = probing ? findInCache(library, libName, osFileEnding)
+            : extractToCache(library, libName, osFileEnding);
+      } catch (IOException e) {
+        // the cache cannot be used safely; use a fresh temporary copy
+      }
+      if (cachedFile != null) {
+        try {
+          System.load(cachedFile.getAbsolutePath());
+          return;
+        } catch (UnsatisfiedLinkError e) {
+          // e.g. the cache directory is on a noexec file system; try a temporary copy
         }
       }
+      File wrapperFile = extractToTempFile(library, libName, osFileEnding);
       try {
-        String directory = System.getProperty(Constants.PKCS11_TEMP_DIR, null);
-        if (directory != null && !directory.isEmpty()) {
-          File tempWrapperDirectory = new File(directory);
-          if (tempWrapperDirectory.exists()) {
-            tempWrapperFile = File.createTempFile(libName, osFileEnding, tempWrapperDirectory);
-          } else {
-            throw new IOException(
-                    "Specified local temp directory '" + directory + "' does not exist!");
-          }
-        } else {
-          tempWrapperFile = File.createTempFile(libName, osFileEnding);
-        }
-        if (!tempWrapperFile.canWrite()) {
-          throw new IOException(
-              "Can't copy wrapper native library to local temporary directory - no write permission in " + tempWrapperFile.getAbsolutePath());
-        }
-        tempWrapperFile.deleteOnExit();
-
-        FileOutputStream os = new FileOutputStream(tempWrapperFile);
+        System.load(wrapperFile.getAbsolutePath());
+      } catch (UnsatisfiedLinkError e) {
+        wrapperFile.delete();
+        continue;
+      }
+      if (probing && (cachedFile == null)) {
         try {
-          int read = 0;
-          byte[] buffer = new byte[1024];
-          while ((read = wrapperLibrary.read(buffer)) > -1) {
-            os.write(buffer, 0, read);
-          }
-        } finally {
-          os.close();
-          wrapperLibrary.close();
+          extractToCache(library, libName, osFileEnding);
+        } catch (IOException e) {
+          // the library is loaded; the next start copies it again
         }
-      } catch (IOException e) {
-        // error writing found library, other architecture would not change this
-        if (tempWrapperFile != null) {
-        tempWrapperFile.delete();
       }
-        String exceptionMessage = "Can't copy wrapper native library to local temporary directory. " + e.getMessage();
-        throw new IOException(exceptionMessage);
-      } catch (RuntimeException e) {
-        if (tempWrapperFile != null)
-          tempWrapperFile.delete();
-        throw e;
+      return;
+    }
+
+    if (!found) {
+      throw new IOException("No suitable wrapper native library for " + osName + " " + archName
+          + " found in jar file.");
+    }
+    throw new IOException("No suitable wrapper native library found in jar file. " + osName + " "
+        + archName + " not supported.");
+  }
+
+  /**
+   * Read a resource from the class path.
+   * 
+   * @param resourcePath
+   *          The path of the resource.
+   * @return The content of the resource or null, if there is no such resource.
+   * @throws IOException
+   *           If reading the resource fails.
+   */
+  private static byte[] readResource(String resourcePath) throws IOException {
+    InputStream resource = PKCS11Connector.class.getClassLoader().getResourceAsStream(
+        resourcePath);
+    if (resource == null) {
+      return null;
+    }
+    try {
+      return resource.readAllBytes();
+    } finally {
+      resource.close();
+    }
+  }
+
+  /**
+   * Get the wrapper library from the cache directory; copy it there, if it is not cached yet. The
+   * file is written under a temporary name and renamed atomically; thus, other processes never see
+   * a partial file. A cached file whose content does not match its hash is replaced. The cached
+   * file must be a regular file, not a symbolic link, owned by the current user and not accessible
+   * to others; since the cache directory is private to the current user too, no other user can
+   * replace the file between verifying its hash and loading it.
+   * 
+   * @param library
+   *          The content of the library.
+   * @param libName
+   *          The name of the library.
+   * @param osFileEnding
+   *          The file suffix of the library.
+   * @return The cached file.
+   * @throws IOException
+   *           If the cache directory cannot be used.
+   */
+  private static File extractToCache(byte[] library, String libName, String osFileEnding)
+      throws IOException {
+    File existingFile = findInCache(library, libName, osFileEnding);
+    if (existingFile != null) {
+      return existingFile;
+    }
+    String hash = sha256(library);
+    Path cacheDirectory = getCacheDirectory();
+    Path cachedFile = cacheDirectory.resolve(libName + "-" + hash + osFileEnding);
+
+    Path tempFile = Files.createTempFile(cacheDirectory, libName, ".tmp", PosixFilePermissions
+        .asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+    try {
+      FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(library);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(true);
+      } finally {
+        channel.close();
       }
+      Files.move(tempFile, cachedFile, StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+    checkPrivate(cachedFile, false);
+    if (!hash.equals(sha256(Files.readAllBytes(cachedFile)))) {
+      throw new IOException("The cached wrapper native library " + cachedFile
+          + " does not match its hash.");
+    }
+
+    return cachedFile.toFile();
+  }
 
+  /**
+   * Get the wrapper library from the cache directory without copying it there. The cached file
+   * must fulfill the same conditions as with extractToCache.
+   * 
+   * @param library
+   *          The content of the library.
+   * @param libName
+   *          The name of the library.
+   * @param osFileEnding
+   *          The file suffix of the library.
+   * @return The cached file or null, if the library is not cached or its content does not match
+   *         its hash.
+   * @throws IOException
+   *           If the cache directory or the cached file cannot be used.
+   */
+  private static File findInCache(byte[] library, String libName, String osFileEnding)
+      throws IOException {
+    String hash = sha256(library);
+    Path cachedFile = getCacheDirectory().resolve(libName + "-" + hash + osFileEnding);
+    if (!Files.exists(cachedFile, LinkOption.NOFOLLOW_LINKS)) {
+      return null;
+    }
+    checkPrivate(cachedFile, false);
+
+    return hash.equals(sha256(Files.readAllBytes(cachedFile))) ? cachedFile.toFile() : null;
+  }
+
+  /**
+   * Get the cache directory for the wrapper library and create it, if necessary. The default
+   * directory is a directory of the current user in the directory given by PKCS11_TEMP_DIR or else
+   * in the temporary-file directory. Since the default name is predictable, an existing directory
+   * is only used if it is owned by the current user and accessible to this user only. The cache is
+   * used on POSIX file systems only, where these properties can be verified.
+   * 
+   * @return The cache directory.
+   * @throws IOException
+   *           If the directory cannot be created or is not private to the current user.
+   */
+  private static Path getCacheDirectory() throws IOException {
+    if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      throw new IOException("The file system does not support POSIX file permissions.");
+    }
+    String directory = System.getProperty(Constants.PKCS11_WRAPPER_CACHE_DIR, null);
+    if (directory == null) {
+      directory = System.getenv(Constants.PKCS11_WRAPPER_CACHE_DIR);
+    }
+    Path cacheDirectory;
+    if (directory != null && !directory.isEmpty()) {
+      cacheDirectory = Paths.get(directory);
+    } else {
+      String parent = System.getProperty(Constants.PKCS11_TEMP_DIR, null);
+      if (parent == null || parent.isEmpty()) {
+        parent = System.getProperty("java.io.tmpdir");
+      }
+      cacheDirectory = Paths.get(parent, "iaik-pkcs11-wrapper-" + System.getProperty("user.name"));
+    }
+    if (!Files.exists(cacheDirectory, LinkOption.NOFOLLOW_LINKS)) {
       try {
-        System.load(tempWrapperFile.getAbsolutePath());
-        success = true;
-      } catch (UnsatisfiedLinkError e) {
-          tempWrapperFile.delete();
-        if (trialCounter < WRAPPER_ARCH_PATH.length) {
-          archIndex = trialCounter++;
-          architecture = WRAPPER_ARCH_PATH[archIndex];
-          tryAgain = true;
+        Files.createDirectories(cacheDirectory, PosixFilePermissions
+            .asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+      } catch (FileAlreadyExistsException e) {
+        // created by another process meanwhile; checked below
+      }
+    }
+    checkPrivate(cacheDirectory, true);
+
+    return cacheDirectory;
+  }
+
+  /**
+   * Check that the given file or directory is no symbolic link, is owned by the current user and
+   * is accessible to this user only.
+   * 
+   * @param path
+   *          The file or directory.
+   * @param directory
+   *          True, if the path must be a directory; false, if it must be a regular file.
+   * @throws IOException
+   *           If the path does not fulfill these conditions or its attributes cannot be read.
+   */
+  private static void checkPrivate(Path path, boolean directory) throws IOException {
+    PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class,
+        LinkOption.NOFOLLOW_LINKS);
+    if (directory ? !attributes.isDirectory() : !attributes.isRegularFile()) {
+      throw new IOException(path + " is no " + (directory ? "directory." : "regular file."));
+    }
+    UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService()
+        .lookupPrincipalByName(System.getProperty("user.name"));
+    if (!user.equals(attributes.owner())) {
+      throw new IOException(path + " is not owned by the current user.");
+    }
+    Set<PosixFilePermission> permissions = attributes.permissions();
+    if (permissions.contains(PosixFilePermission.GROUP_WRITE)
+        || permissions.contains(PosixFilePermission.OTHERS_WRITE)
+        || (directory && !permissions.equals(PosixFilePermissions.fromString("rwx------")))) {
+      throw new IOException(path + " is accessible to other users.");
+    }
+  }
+
+  /**
+   * Copy the wrapper library to a new temporary file deleted on exit.
+   * 
+   * @param library
+   *          The content of the library.
+   * @param libName
+   *          The name of the library.
+   * @param osFileEnding
+   *          The file suffix of the library.
+   * @return The temporary file.
+   * @throws IOException
+   *           If the file cannot be written.
+   */
+  private static File extractToTempFile(byte[] library, String libName, String osFileEnding)
+      throws IOException {
+    File tempWrapperFile = null;
+    try {
+      String directory = System.getProperty(Constants.PKCS11_TEMP_DIR, null);
+      if (directory != null && !directory.isEmpty()) {
+        File tempWrapperDirectory = new File(directory);
+        if (tempWrapperDirectory.exists()) {
+          tempWrapperFile = File.createTempFile(libName, osFileEnding, tempWrapperDirectory);
         } else {
-          throw new IOException("No suitable wrapper native library found in jar file. "
-              + osName + " " + archName + " not supported.");
+          throw new IOException(
+                  "Specified local temp directory '" + directory + "' does not exist!");
         }
+      } else {
+        tempWrapperFile = File.createTempFile(libName, osFileEnding);
+      }
+      if (!tempWrapperFile.canWrite()) {
+        throw new IOException(
+            "Can't copy wrapper native library to local temporary directory - no write permission in " + tempWrapperFile.getAbsolutePath());
+      }
+      tempWrapperFile.deleteOnExit();
+
+      FileOutputStream os = new FileOutputStream(tempWrapperFile);
+      try {
+        os.write(library);
+      } finally {
+        os.close();
+      }
+    } catch (IOException e) {
+      // error writing found library, other architecture would not change this
+      if (tempWrapperFile != null) {
+        tempWrapperFile.delete();
       }
-    } while (!success && tryAgain);
+      String exceptionMessage = "Can't copy wrapper native library to local temporary directory. " + e.getMessage();
+      throw new IOException(exceptionMessage);
+    } catch (RuntimeException e) {
+      if (tempWrapperFile != null)
+        tempWrapperFile.delete();
+      throw e;
+    }
 
+    return tempWrapperFile;
+  }
+
+  /**
+   * Get the SHA-256 hash of the given data.
+   * 
+   * @param data
+   *          The data.
+   * @return The hash as hexadecimal string.
+   */
+  private static String sha256(byte[] data) {
+    try {
+      return Functions.toHexString(MessageDigest.getInstance("SHA-256").digest(data));
+    } catch (NoSuchAlgorithmException e) {
+      // every Java platform supports SHA-256
+      throw new IllegalStateException(e);
+    }
   }
 
   /**
@@ -315,11 +545,11 @@ public class PKCS11Connector {
    * @return index to be used with WRAPPER_ARCH_PATH
    */
   private static int getArch(String jvmArch) {
-    if (jvmArch.indexOf("64") > -1)
+    if (jvmArch.equals("amd64") || jvmArch.equals("x86_64"))
       return X64_INDEX;
     else if (jvmArch.indexOf("sparc") > -1)
       return SPARC_INDEX;
-    else if (jvmArch.indexOf("32") > -1 || jvmArch.indexOf("86") > -1)
+    else if (jvmArch.equals("x86") || jvmArch.matches("i[3-6]86"))
       return X86_INDEX;
     else
       return -1;
@@ -1245,6 +1245,7 @@ public interface PKCS11Constants {
     long CKR_DEVICE_REMOVED = 0x00000032L;
     long CKR_ENCRYPTED_DATA_INVALID = 0x00000040L;
     long CKR_ENCRYPTED_DATA_LEN_RANGE = 0x00000041L;
+    long CKR_AEAD_DECRYPT_FAILED = 0x00000042L;
     long CKR_FUNCTION_CANCELED = 0x00000050L;
     long CKR_FUNCTION_NOT_PARALLEL = 0x00000051L;
 
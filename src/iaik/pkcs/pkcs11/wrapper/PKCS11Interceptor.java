@@ -0,0 +1,194 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+// 
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+// 
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+// 
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+// 
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+// 
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+// 
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+// 
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+// 
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+// 
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.wrapper;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Base class for objects that intercept the calls to a PKCS11 interface; e.g. to measure, log or
+ * reroute them. The method wrap returns a PKCS11 object which passes each call to the intercept
+ * method of this class; intercept performs its work and calls proceed to invoke the wrapped module.
+ * Interceptors can be stacked; each one wraps the PKCS11 object returned by the previous one.
+ *
+ * <pre>
+ * <code>
+ *   module.addInterceptor(new PKCS11Interceptor() {
+ *     protected Object intercept(Method method, Object[] args) throws Throwable {
+ *       System.out.println(method.getName());
+ *       return proceed(method, args);
+ *     }
+ *   });
+ * </code>
+ * </pre>
+ *
+ * The methods equals, hashCode and toString are not intercepted; they are answered by the wrapped
+ * object, so that a wrapped module is equal to the unwrapped one.
+ *
+ * @version 1.0
+ * @invariants (target_ != null) after wrap was called
+ */
+public abstract class PKCS11Interceptor implements InvocationHandler {
+
+  /**
+   * The wrapped PKCS11 object.
+   */
+  protected PKCS11 target_;
+
+  /**
+   * Wrap the given PKCS11 object. An interceptor can only wrap one object.
+   *
+   * @param target
+   *          The PKCS11 object whose calls shall be intercepted.
+   * @return The PKCS11 object that passes all calls through this interceptor.
+   * @exception IllegalStateException
+   *              If this interceptor already wraps another object.
+   * @preconditions (target != null)
+   * @postconditions (result != null)
+   */
+  public synchronized PKCS11 wrap(PKCS11 target) {
+    if (target == null) {
+      throw new NullPointerException("Argument \"target\" must not be null.");
+    }
+    if (target_ != null) {
+      throw new IllegalStateException("This interceptor already wraps a PKCS11 module.");
+    }
+    target_ = target;
+
+    return (PKCS11) Proxy.newProxyInstance(PKCS11.class.getClassLoader(),
+        new Class<?>[] { PKCS11.class }, this);
+  }
+
+  /**
+   * Get the wrapped PKCS11 object.
+   *
+   * @return The wrapped object or null, if wrap was not called yet.
+   */
+  public PKCS11 getTarget() {
+    return target_;
+  }
+
+  /**
+   * Get the innermost PKCS11 object behind any interceptors; usually the PKCS11Implementation.
+   *
+   * @param pkcs11Module
+   *          A PKCS11 object, possibly returned by wrap.
+   * @return The PKCS11 object wrapped by all interceptors.
+   * @preconditions (pkcs11Module != null)
+   * @postconditions (result != null)
+   */
+  public static PKCS11 unwrap(PKCS11 pkcs11Module) {
+    PKCS11 module = pkcs11Module;
+    while (Proxy.isProxyClass(module.getClass())
+        && (Proxy.getInvocationHandler(module) instanceof PKCS11Interceptor)) {
+      module = ((PKCS11Interceptor) Proxy.getInvocationHandler(module)).getTarget();
+    }
+
+    return module;
+  }
+
+  /**
+   * Dispatches the calls of the proxy. Do not override; override intercept instead.
+   *
+   * @param proxy
+   *          The proxy returned by wrap.
+   * @param method
+   *          The called method.
+   * @param args
+   *          The arguments or null.
+   * @return The result of the call.
+   * @exception Throwable
+   *              The exception thrown by the call.
+   */
+  public final Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class) {
+      String name = method.getName();
+      if (name.equals("equals")) {
+        return Boolean.valueOf((proxy == args[0])
+            || ((args[0] instanceof PKCS11) && target_.equals(unwrap((PKCS11) args[0]))));
+      } else if (name.equals("hashCode")) {
+        return Integer.valueOf(target_.hashCode());
+      }
+      return target_.toString();
+    }
+
+    return intercept(method, args);
+  }
+
+  /**
+   * Intercepts a call to a method of the PKCS11 interface. Implementations call proceed to pass the
+   * call on to the wrapped object.
+   *
+   * @param method
+   *          The method of the PKCS11 interface.
+   * @param args
+   *          The arguments or null.
+   * @return The result of the call; wrapper objects for primitive results.
+   * @exception Throwable
+   *              The exception to throw to the caller; usually a PKCS11Exception.
+   */
+  protected abstract Object intercept(Method method, Object[] args) throws Throwable;
+
+  /**
+   * Invoke the method on the wrapped object. Exceptions thrown by the wrapped object are thrown
+   * unchanged.
+   *
+   * @param method
+   *          The method of the PKCS11 interface.
+   * @param args
+   *          The arguments or null.
+   * @return The result of the call.
+   * @exception Throwable
+   *              The exception thrown by the wrapped object.
+   */
+  protected Object proceed(Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target_, args);
+    } catch (InvocationTargetException ex) {
+      throw ex.getCause();
+    }
+  }
+
+}
@@ -6,4 +6,6 @@
  *
  */
 module IaikProvider {
+	requires java.management;
+	requires jdk.jfr;
 }
\ No newline at end of file